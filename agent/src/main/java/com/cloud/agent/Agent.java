@@ -66,6 +66,7 @@ import com.cloud.agent.api.ReadyCommand;
 import com.cloud.agent.api.ShutdownCommand;
 import com.cloud.agent.api.StartupAnswer;
 import com.cloud.agent.api.StartupCommand;
+import com.cloud.agent.transport.CompressionCodec;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentControlChannelException;
@@ -136,6 +137,8 @@ public class Agent implements HandlerFactory, IAgentControl {
     long _sequence = 0;
     long _lastPingResponseTime = 0;
     long _pingInterval = 0;
+    // codec the management server we are connected to accepted, only known after the startup answer
+    private volatile CompressionCodec _compressionCodec = CompressionCodec.GZIP;
     AtomicInteger _inProgress = new AtomicInteger();
 
     StartupTask _startup = null;
@@ -308,6 +311,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             try {
                 if (_link != null) {
                     final Request req = new Request(_id != null ? _id : -1, -1, cmd, false);
+                    req.setCompressionCodec(_compressionCodec);
                     _link.send(req.toBytes());
                 }
             } catch (final ClosedChannelException e) {
@@ -436,6 +440,7 @@ public class Agent implements HandlerFactory, IAgentControl {
                 s_logger.debug("Sending Startup: " + request.toString());
             }
             lockStartupTask(link);
+            _compressionCodec = CompressionCodec.GZIP;
             try {
                 link.send(request.toBytes());
             } catch (final ClosedChannelException e) {
@@ -467,6 +472,7 @@ public class Agent implements HandlerFactory, IAgentControl {
         startup.setGuid(getResourceGuid());
         startup.setResourceName(getResourceName());
         startup.setVersion(getVersion());
+        startup.setCompressionCodecs(CompressionCodec.names());
     }
 
     @Override
@@ -555,6 +561,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
         setId(startup.getHostId());
         _pingInterval = (long)startup.getPingInterval() * 1000; // change to ms.
+        _compressionCodec = CompressionCodec.fromName(startup.getCompressionCodec());
 
         setLastPingResponseTime();
         scheduleWatch(link, response, _pingInterval, _pingInterval);
@@ -676,6 +683,7 @@ public class Agent implements HandlerFactory, IAgentControl {
 
             if (response != null) {
                 try {
+                    response.setCompressionCodec(_compressionCodec);
                     link.send(response.toBytes());
                 } catch (final ClosedChannelException e) {
                     s_logger.warn("Unable to send response: " + response.toString());
@@ -861,6 +869,7 @@ public class Agent implements HandlerFactory, IAgentControl {
             }
 
             try {
+                request.setCompressionCodec(_compressionCodec);
                 task.getLink().send(request.toBytes());
                 //if i can send pingcommand out, means the link is ok
                 setLastPingResponseTime();
@@ -888,6 +897,7 @@ public class Agent implements HandlerFactory, IAgentControl {
                     s_logger.debug("Watch Sent: " + response.toString());
                 }
                 try {
+                    response.setCompressionCodec(_compressionCodec);
                     task.getLink().send(response.toBytes());
                 } catch (final ClosedChannelException e) {
                     s_logger.warn("Unable to send response: " + response.toString());
@@ -954,6 +964,7 @@ public class Agent implements HandlerFactory, IAgentControl {
     private void postRequest(final Request request) throws AgentControlChannelException {
         if (_link != null) {
             try {
+                request.setCompressionCodec(_compressionCodec);
                 _link.send(request.toBytes());
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to post agent control reques: " + request.toString());
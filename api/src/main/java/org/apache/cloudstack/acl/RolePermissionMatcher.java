@@ -0,0 +1,175 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.acl;
+
+import com.google.common.base.Strings;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The permissions of a role compiled for matching API names: rules without wildcards are looked up in a hash
+ * table and wildcard rules are kept in a trie keyed by the text before their first wildcard.
+ *
+ * It answers exactly like going through the permissions in their order and returning the first one whose
+ * {@link Rule#matches(String)} is true.
+ */
+public final class RolePermissionMatcher {
+    private final long version;
+    private final long created;
+    private final int size;
+    private final Map<String, CompiledRule> exactRules = new HashMap<>();
+    private final Node wildcardRules = new Node();
+
+    /**
+     * @param version version of the role permissions the matcher is built from
+     * @param permissions permissions of the role, in their sort order
+     */
+    public RolePermissionMatcher(final long version, final List<? extends RolePermission> permissions) {
+        this.version = version;
+        this.created = System.currentTimeMillis();
+        if (permissions == null) {
+            this.size = 0;
+            return;
+        }
+        this.size = permissions.size();
+
+        int order = 0;
+        for (final RolePermission permission : permissions) {
+            final String rule = permission.getRule().getRuleString().toLowerCase();
+            final int wildcard = rule.indexOf('*');
+            if (wildcard < 0) {
+                if (!exactRules.containsKey(rule)) {
+                    exactRules.put(rule, new CompiledRule(order, permission, null));
+                }
+            } else {
+                Node node = wildcardRules;
+                for (int i = 0; i < wildcard; i++) {
+                    node = node.child(rule.charAt(i));
+                }
+                node.rules.add(new CompiledRule(order, permission, rule.split("\\*", -1)));
+            }
+            order++;
+        }
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return milliseconds since the matcher was built
+     */
+    public long getAge() {
+        return System.currentTimeMillis() - created;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the first permission, in sort order, whose rule matches the API name, null if none does
+     */
+    public RolePermission findFirstMatch(final String commandName) {
+        if (Strings.isNullOrEmpty(commandName)) {
+            return null;
+        }
+        final String name = commandName.toLowerCase();
+        // Rules are letters, digits and wildcards standing for word characters, nothing else can match
+        for (int i = 0; i < name.length(); i++) {
+            if (!isWordCharacter(name.charAt(i))) {
+                return null;
+            }
+        }
+
+        CompiledRule best = exactRules.get(name);
+        Node node = wildcardRules;
+        for (int i = 0; node != null; i++) {
+            for (final CompiledRule rule : node.rules) {
+                // Rules of a node are in sort order, the first match is the only one that can be better
+                if (best != null && rule.order > best.order) {
+                    break;
+                }
+                if (rule.matches(name)) {
+                    best = rule;
+                    break;
+                }
+            }
+            node = i < name.length() ? node.children.get(name.charAt(i)) : null;
+        }
+        return best == null ? null : best.permission;
+    }
+
+    private static boolean isWordCharacter(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static final class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        private final List<CompiledRule> rules = new ArrayList<>();
+
+        private Node child(final char c) {
+            Node node = children.get(c);
+            if (node == null) {
+                node = new Node();
+                children.put(c, node);
+            }
+            return node;
+        }
+    }
+
+    private static final class CompiledRule {
+        private final int order;
+        private final RolePermission permission;
+        // Text between the wildcards of the rule, null for rules without wildcards
+        private final String[] parts;
+
+        private CompiledRule(final int order, final RolePermission permission, final String[] parts) {
+            this.order = order;
+            this.permission = permission;
+            this.parts = parts;
+        }
+
+        /**
+         * Matches an API name made of word characters only, so that a wildcard matches any text
+         */
+        private boolean matches(final String name) {
+            final String first = parts[0];
+            final String last = parts[parts.length - 1];
+            final int end = name.length() - last.length();
+            if (end < first.length() || !name.startsWith(first) || !name.endsWith(last)) {
+                return false;
+            }
+            int position = first.length();
+            for (int i = 1; i < parts.length - 1; i++) {
+                final String part = parts[i];
+                if (part.isEmpty()) {
+                    continue;
+                }
+                final int index = name.indexOf(part, position);
+                if (index < 0 || index + part.length() > end) {
+                    return false;
+                }
+                position = index + part.length();
+            }
+            return true;
+        }
+    }
+}
@@ -77,4 +77,10 @@ public interface RoleService {
     List<Role> findRolesByType(RoleType roleType);
 
     List<RolePermission> findAllPermissionsBy(Long roleId);
+
+    /**
+     *  Returns a number that changes whenever a role permission is created, updated, reordered or deleted, on this or any other management server.
+     *  Callers keeping role permissions in memory reload them when it changes.
+     */
+    long getPermissionsVersion();
 }
@@ -0,0 +1,235 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.acl;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class RolePermissionMatcherTest {
+    private static final int RULES = 500;
+
+    private static final String[] VERBS = {"list", "create", "update", "delete", "add", "remove", "enable", "disable", "get", "reset"};
+    private static final String[] NOUNS = {"VirtualMachines", "Volumes", "Networks", "Hosts", "Users", "Accounts", "Templates",
+            "Snapshots", "Zones", "Roles", "RolePermissions", "LoadBalancerRules", "FirewallRules", "Vpcs", "SSHKeyPairs"};
+
+    private static class TestRolePermission implements RolePermission {
+        private final long id;
+        private final Rule rule;
+        private final Permission permission;
+
+        TestRolePermission(final long id, final String rule, final Permission permission) {
+            this.id = id;
+            this.rule = new Rule(rule);
+            this.permission = permission;
+        }
+
+        @Override
+        public long getId() {
+            return id;
+        }
+
+        @Override
+        public String getUuid() {
+            return String.valueOf(id);
+        }
+
+        @Override
+        public long getRoleId() {
+            return 1L;
+        }
+
+        @Override
+        public Rule getRule() {
+            return rule;
+        }
+
+        @Override
+        public Permission getPermission() {
+            return permission;
+        }
+
+        @Override
+        public String getDescription() {
+            return null;
+        }
+
+        @Override
+        public long getSortOrder() {
+            return id;
+        }
+    }
+
+    private static RolePermission permission(final long id, final String rule, final RolePermission.Permission permission) {
+        return new TestRolePermission(id, rule, permission);
+    }
+
+    // What the access checker did before the permissions were compiled
+    private static RolePermission findFirstMatchByScan(final List<RolePermission> permissions, final String commandName) {
+        for (final RolePermission permission : permissions) {
+            if (permission.getRule().matches(commandName)) {
+                return permission;
+            }
+        }
+        return null;
+    }
+
+    private static List<RolePermission> randomPermissions(final Random random, final int count) {
+        final List<RolePermission> permissions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String verb = VERBS[random.nextInt(VERBS.length)];
+            final String noun = NOUNS[random.nextInt(NOUNS.length)];
+            final String rule;
+            switch (random.nextInt(6)) {
+            case 0:
+                rule = verb + "*";
+                break;
+            case 1:
+                rule = "*" + noun.substring(0, 1 + random.nextInt(noun.length() - 1));
+                break;
+            case 2:
+                rule = verb + "*" + noun.substring(noun.length() - 1 - random.nextInt(noun.length() - 1)) + "*";
+                break;
+            case 3:
+                rule = (verb + noun).toUpperCase();
+                break;
+            default:
+                rule = verb + noun + (random.nextInt(4) == 0 ? i : "");
+                break;
+            }
+            permissions.add(permission(i, rule, random.nextBoolean() ? RolePermission.Permission.ALLOW : RolePermission.Permission.DENY));
+        }
+        return permissions;
+    }
+
+    private static List<String> randomCommandNames(final Random random, final int count) {
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String name = VERBS[random.nextInt(VERBS.length)] + NOUNS[random.nextInt(NOUNS.length)];
+            switch (random.nextInt(8)) {
+            case 0:
+                names.add(name.toUpperCase());
+                break;
+            case 1:
+                names.add(name + random.nextInt(RULES));
+                break;
+            case 2:
+                names.add(name + "_x");
+                break;
+            case 3:
+                names.add(name + "-x");
+                break;
+            default:
+                names.add(name);
+                break;
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void testMatchesLikeScanningRulesInOrder() {
+        final Random random = new Random(7);
+        for (int round = 0; round < 20; round++) {
+            final List<RolePermission> permissions = randomPermissions(random, RULES);
+            final RolePermissionMatcher matcher = new RolePermissionMatcher(round, permissions);
+            Assert.assertEquals(RULES, matcher.size());
+            for (final String commandName : randomCommandNames(random, 2000)) {
+                Assert.assertSame(commandName, findFirstMatchByScan(permissions, commandName), matcher.findFirstMatch(commandName));
+            }
+        }
+    }
+
+    @Test
+    public void testFirstRuleInOrderWins() {
+        final RolePermission denyWildcard = permission(1L, "list*", RolePermission.Permission.DENY);
+        final RolePermission allowExact = permission(2L, "listHosts", RolePermission.Permission.ALLOW);
+        final RolePermission allowAll = permission(3L, "*", RolePermission.Permission.ALLOW);
+
+        RolePermissionMatcher matcher = new RolePermissionMatcher(1L, Arrays.asList(denyWildcard, allowExact, allowAll));
+        Assert.assertSame(denyWildcard, matcher.findFirstMatch("listHosts"));
+        Assert.assertSame(allowAll, matcher.findFirstMatch("createUser"));
+
+        matcher = new RolePermissionMatcher(1L, Arrays.asList(allowExact, denyWildcard, allowAll));
+        Assert.assertSame(allowExact, matcher.findFirstMatch("LISTHOSTS"));
+        Assert.assertSame(denyWildcard, matcher.findFirstMatch("listZones"));
+    }
+
+    @Test
+    public void testWildcards() {
+        final RolePermission middle = permission(1L, "list*s", RolePermission.Permission.ALLOW);
+        final RolePermission repeated = permission(2L, "m0nk3yMa**g1c*", RolePermission.Permission.ALLOW);
+        final RolePermission overlapping = permission(3L, "ab*ba", RolePermission.Permission.ALLOW);
+        final RolePermissionMatcher matcher = new RolePermissionMatcher(1L, Arrays.asList(middle, repeated, overlapping));
+
+        Assert.assertSame(middle, matcher.findFirstMatch("listClusters"));
+        Assert.assertNull(matcher.findFirstMatch("listCluster"));
+        Assert.assertSame(repeated, matcher.findFirstMatch("m0nk3yMag1c"));
+        Assert.assertSame(repeated, matcher.findFirstMatch("m0nk3yMaXXg1cYY"));
+        Assert.assertSame(overlapping, matcher.findFirstMatch("abba"));
+        Assert.assertNull(matcher.findFirstMatch("aba"));
+        Assert.assertNull(matcher.findFirstMatch("list Clusters"));
+        Assert.assertNull(matcher.findFirstMatch(""));
+        Assert.assertNull(matcher.findFirstMatch(null));
+    }
+
+    @Test
+    public void testNoPermissions() {
+        Assert.assertNull(new RolePermissionMatcher(1L, null).findFirstMatch("listHosts"));
+        Assert.assertNull(new RolePermissionMatcher(1L, new ArrayList<RolePermission>()).findFirstMatch("listHosts"));
+    }
+
+    @Test
+    @Ignore("Benchmark, run by hand: it times about a million checks")
+    public void testChecksPerSecond() {
+        final Random random = new Random(11);
+        final List<RolePermission> permissions = randomPermissions(random, RULES);
+        final RolePermissionMatcher matcher = new RolePermissionMatcher(1L, permissions);
+        final String[] commandNames = randomCommandNames(random, 1000).toArray(new String[0]);
+
+        // Warm up both paths before measuring, JMH style
+        int matches = 0;
+        for (int i = 0; i < 20000; i++) {
+            matches += findFirstMatchByScan(permissions, commandNames[i % commandNames.length]) == null ? 0 : 1;
+            matches += matcher.findFirstMatch(commandNames[i % commandNames.length]) == null ? 0 : 1;
+        }
+
+        final int scanChecks = 20000;
+        long start = System.nanoTime();
+        for (int i = 0; i < scanChecks; i++) {
+            matches += findFirstMatchByScan(permissions, commandNames[i % commandNames.length]) == null ? 0 : 1;
+        }
+        final double scanRate = scanChecks / ((System.nanoTime() - start) / 1e9);
+
+        final int matcherChecks = 1000000;
+        start = System.nanoTime();
+        for (int i = 0; i < matcherChecks; i++) {
+            matches += matcher.findFirstMatch(commandNames[i % commandNames.length]) == null ? 0 : 1;
+        }
+        final double matcherRate = matcherChecks / ((System.nanoTime() - start) / 1e9);
+
+        final String rates = String.format("Role with %d rules: %.0f checks/s scanning the rules, %.0f checks/s compiled (%d matches)",
+                RULES, scanRate, matcherRate, matches);
+        Assert.assertTrue(rates, matches > 0);
+        Assert.assertTrue(rates, matcherRate > scanRate);
+    }
+}
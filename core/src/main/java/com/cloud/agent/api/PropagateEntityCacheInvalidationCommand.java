@@ -0,0 +1,49 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carries the DAO cache evictions of one management server to its peers.
+ */
+public class PropagateEntityCacheInvalidationCommand extends Command {
+    // cache name -> ids of the evicted entities, an empty list means the whole cache was cleared
+    Map<String, List<String>> invalidations;
+
+    protected PropagateEntityCacheInvalidationCommand() {
+
+    }
+
+    public PropagateEntityCacheInvalidationCommand(Map<String, List<String>> invalidations) {
+        this.invalidations = invalidations;
+    }
+
+    public Map<String, List<String>> getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+
+}
@@ -0,0 +1,53 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+package com.cloud.agent.api;
+
+import java.util.List;
+
+/**
+ * Asks the management server holding the locks to send a {@link PropagateLockReleaseCommand} once it releases them,
+ * as threads of the sender are waiting for them.
+ */
+public class PropagateLockWaitCommand extends Command {
+    List<String> keys;
+    long msId;
+
+    protected PropagateLockWaitCommand() {
+
+    }
+
+    public PropagateLockWaitCommand(List<String> keys, long msId) {
+        this.keys = keys;
+        this.msId = msId;
+    }
+
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    public long getMsId() {
+        return msId;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+
+}
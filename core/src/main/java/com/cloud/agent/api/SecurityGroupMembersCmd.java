@@ -0,0 +1,109 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cloud.agent.api.LogLevel.Log4jLevel;
+
+/**
+ * Programs the members of security groups into named address sets on a host. Rules sent with {@link SecurityGroupRulesCmd}
+ * refer to these sets instead of listing every member, so a member joining or leaving a group only needs a delta here.
+ */
+public class SecurityGroupMembersCmd extends Command {
+    private static final String GROUP_SET_NAME_PREFIX = "sg_";
+
+    public static class GroupMembers {
+        private final String setName;
+        private final boolean replace;
+        @LogLevel(Log4jLevel.Trace)
+        private final List<String> addedCidrs;
+        @LogLevel(Log4jLevel.Trace)
+        private final List<String> removedCidrs;
+
+        /**
+         * @param replace true if addedCidrs are all the members of the group and the set is swapped for them, false to
+         *            apply addedCidrs and removedCidrs to a set the host already has
+         */
+        public GroupMembers(final String setName, final boolean replace, final List<String> addedCidrs, final List<String> removedCidrs) {
+            this.setName = setName;
+            this.replace = replace;
+            this.addedCidrs = new ArrayList<String>(addedCidrs);
+            this.removedCidrs = new ArrayList<String>(removedCidrs);
+        }
+
+        public String getSetName() {
+            return setName;
+        }
+
+        public boolean isReplace() {
+            return replace;
+        }
+
+        public List<String> getAddedCidrs() {
+            return addedCidrs;
+        }
+
+        public List<String> getRemovedCidrs() {
+            return removedCidrs;
+        }
+    }
+
+    private final List<GroupMembers> groups;
+    private final List<Long> vmIds;
+
+    /**
+     * @param vmIds vms on the host whose rules refer to the sets, they need their whole ruleset again if the update fails
+     */
+    public SecurityGroupMembersCmd(final List<GroupMembers> groups, final List<Long> vmIds) {
+        this.groups = new ArrayList<GroupMembers>(groups);
+        this.vmIds = new ArrayList<Long>(vmIds);
+    }
+
+    public static String getGroupSetName(final long securityGroupId) {
+        return GROUP_SET_NAME_PREFIX + securityGroupId;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return true;
+    }
+
+    public List<GroupMembers> getGroups() {
+        return groups;
+    }
+
+    public List<Long> getVmIds() {
+        return vmIds;
+    }
+
+    /**
+     * used for logging
+     * @return the number of cidrs added or removed by this command
+     */
+    public int getTotalNumCidrs() {
+        int count = 0;
+        for (final GroupMembers group : groups) {
+            count += group.getAddedCidrs().size() + group.getRemovedCidrs().size();
+        }
+        return count;
+    }
+}
@@ -36,6 +36,7 @@ public class SecurityGroupRulesCmd extends Command {
     private static final String CIDR_LENGTH_SEPARATOR = "/";
     private static final char RULE_TARGET_SEPARATOR = ',';
     private static final char RULE_COMMAND_SEPARATOR = ';';
+    private static final String RULE_GROUP_SET_PREFIX = "set:";
     protected static final String EGRESS_RULE = "E:";
     protected static final String INGRESS_RULE = "I:";
     private static final Logger LOGGER = Logger.getLogger(SecurityGroupRulesCmd.class);
@@ -58,6 +59,7 @@ public class SecurityGroupRulesCmd extends Command {
         private final int endPort;
         @LogLevel(Log4jLevel.Trace)
         private List<String> allowedCidrs;
+        private List<String> allowedGroupSets = new ArrayList<String>();
 
         public IpPortAndProto(final String proto, final int startPort, final int endPort, final String... allowedCidrs) {
             super();
@@ -78,6 +80,20 @@ public class SecurityGroupRulesCmd extends Command {
             }
         }
 
+        /**
+         * @return names of the address sets, pushed with {@link SecurityGroupMembersCmd}, whose members this rule allows
+         */
+        public List<String> getAllowedGroupSets() {
+            return allowedGroupSets;
+        }
+
+        public void setAllowedGroupSets(final String... allowedGroupSets) {
+            this.allowedGroupSets = new ArrayList<String>();
+            for (final String allowedGroupSet : allowedGroupSets) {
+                this.allowedGroupSets.add(allowedGroupSet);
+            }
+        }
+
         public String getProto() {
             return proto;
         }
@@ -196,6 +212,10 @@ public class SecurityGroupRulesCmd extends Command {
         return ruleBuilder.toString();
     }
 
+    /**
+     * Group sets are only written in the uncompressed form. The compressed form is read by scripts that only know cidrs, so
+     * rules for those hypervisors have to carry the group members as cidrs.
+     */
     private void stringifyRulesFor(final List<IpPortAndProto> ipPortAndProtocols, final String inOrEgress, final boolean compressed, final StringBuilder ruleBuilder) {
         for (final IpPortAndProto ipPandP : ipPortAndProtocols) {
             ruleBuilder.append(inOrEgress).append(ipPandP.getProto()).append(RULE_COMMAND_SEPARATOR).append(ipPandP.getStartPort()).append(RULE_COMMAND_SEPARATOR)
@@ -203,6 +223,11 @@ public class SecurityGroupRulesCmd extends Command {
             for (final String cidr : ipPandP.getAllowedCidrs()) {
                 ruleBuilder.append(represent(cidr, compressed)).append(RULE_TARGET_SEPARATOR);
             }
+            if (!compressed) {
+                for (final String groupSet : ipPandP.getAllowedGroupSets()) {
+                    ruleBuilder.append(RULE_GROUP_SET_PREFIX).append(groupSet).append(RULE_TARGET_SEPARATOR);
+                }
+            }
             ruleBuilder.append("NEXT ");
         }
     }
@@ -267,6 +292,21 @@ public class SecurityGroupRulesCmd extends Command {
         return count;
     }
 
+    /**
+     * used for logging
+     * @return the number of group sets referenced by the in and egress rule sets for this security group rules command.
+     */
+    public int getTotalNumGroupSets() {
+        int count = 0;
+        for (final IpPortAndProto i : ingressRuleSet) {
+            count += i.allowedGroupSets.size();
+        }
+        for (final IpPortAndProto i : egressRuleSet) {
+            count += i.allowedGroupSets.size();
+        }
+        return count;
+    }
+
     public void setMsId(final long msId) {
         this.msId = msId;
     }
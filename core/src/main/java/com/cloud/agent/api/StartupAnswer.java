@@ -22,6 +22,7 @@ package com.cloud.agent.api;
 public class StartupAnswer extends Answer {
     long hostId;
     int pingInterval;
+    String compressionCodec;
 
     protected StartupAnswer() {
     }
@@ -43,4 +44,16 @@ public class StartupAnswer extends Answer {
     public int getPingInterval() {
         return pingInterval;
     }
+
+    /**
+     * @return name of the codec the agent may compress with when sending to the management server,
+     * null for older management servers, that only know GZIP
+     */
+    public String getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    public void setCompressionCodec(String compressionCodec) {
+        this.compressionCodec = compressionCodec;
+    }
 }
@@ -19,6 +19,8 @@
 
 package com.cloud.agent.api;
 
+import java.util.List;
+
 import com.cloud.host.Host;
 
 public class StartupCommand extends Command {
@@ -47,6 +49,7 @@ public class StartupCommand extends Command {
     String resourceName;
     String gatewayIpAddress;
     String msHostList;
+    List<String> compressionCodecs;
 
     public StartupCommand(Host.Type type) {
         this.type = type;
@@ -290,6 +293,17 @@ public class StartupCommand extends Command {
         this.msHostList = msHostList;
     }
 
+    public List<String> getCompressionCodecs() {
+        return compressionCodecs;
+    }
+
+    /**
+     * @param compressionCodecs names of the codecs the agent is able to decompress, older agents leave it null
+     */
+    public void setCompressionCodecs(List<String> compressionCodecs) {
+        this.compressionCodecs = compressionCodecs;
+    }
+
     @Override
     public boolean executeInSequence() {
         return false;
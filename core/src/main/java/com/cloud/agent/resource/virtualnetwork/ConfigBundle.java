@@ -0,0 +1,146 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import com.cloud.utils.ExecutionResult;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Packs config items into a single gzip compressed, base64 encoded vr_cfg.sh file, so that they
+ * reach the router in one transfer and are applied by one invocation of vr_cfg.sh -z. The script
+ * reports every item as "VR config item &lt;n&gt;: success|failed", which is mapped back to the items
+ * by {@link #parseResults(ExecutionResult)}.
+ */
+public class ConfigBundle {
+    public static final String FILE_SUFFIX = ".cfg.gz";
+
+    private static final Pattern ITEM_RESULT = Pattern.compile("^VR config item (\\d+): (success|failed)$", Pattern.MULTILINE);
+
+    private final String _version;
+    private final List<ConfigItem> _items;
+
+    public ConfigBundle(String version, List<ConfigItem> items) {
+        _version = version;
+        _items = items;
+    }
+
+    public List<ConfigItem> getItems() {
+        return _items;
+    }
+
+    /**
+     * @return the items in the vr_cfg.sh format
+     */
+    public String getConfig() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#Apache CloudStack Virtual Router Config File\n");
+        sb.append("<version>\n" + _version + "\n</version>\n");
+        for (ConfigItem c : _items) {
+            sb.append(c.getAggregateCommand());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the compressed and encoded file contents to create on the router
+     */
+    public String getContents() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(getConfig().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to compress VR config bundle", e);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    static String unpack(String contents) throws IOException {
+        byte[] compressed = Base64.getDecoder().decode(contents);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Maps the output of vr_cfg.sh to one result per item. vr_cfg.sh stops at the first failing
+     * item, the items after it are reported as not applied. An item without a result fails even
+     * when the script succeeded, as a vr_cfg.sh without bundle support rejects -z and still exits 0.
+     */
+    public List<ExecutionResult> parseResults(ExecutionResult result) {
+        if (result == null) {
+            result = new ExecutionResult(false, "null execution result");
+        }
+
+        Map<Integer, Boolean> reported = new HashMap<Integer, Boolean>();
+        if (result.getDetails() != null) {
+            Matcher matcher = ITEM_RESULT.matcher(result.getDetails());
+            while (matcher.find()) {
+                reported.put(Integer.parseInt(matcher.group(1)), "success".equals(matcher.group(2)));
+            }
+        }
+
+        List<ExecutionResult> results = new ArrayList<ExecutionResult>(_items.size());
+        for (int i = 0; i < _items.size(); i++) {
+            Boolean success = reported.get(i);
+            if (success == null) {
+                if (result.isSuccess()) {
+                    results.add(new ExecutionResult(false, "no result reported for the item, the router may not support config bundles: " + result.getDetails()));
+                } else {
+                    results.add(new ExecutionResult(false, reported.isEmpty() ? result.getDetails() : "not applied, an earlier item of the bundle failed"));
+                }
+            } else if (success) {
+                results.add(new ExecutionResult(true, null));
+            } else {
+                results.add(new ExecutionResult(false, result.getDetails()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return a failed result for every item, e.g. when the bundle could not be transferred
+     */
+    public List<ExecutionResult> failAll(ExecutionResult result) {
+        String details = result == null ? "null execution result" : result.getDetails();
+        List<ExecutionResult> results = new ArrayList<ExecutionResult>(_items.size());
+        for (int i = 0; i < _items.size(); i++) {
+            results.add(new ExecutionResult(false, details));
+        }
+        return results;
+    }
+}
@@ -83,6 +83,7 @@ public class VirtualRoutingResource {
     private int _retry;
     private int _port;
     private Duration _eachTimeout;
+    private boolean _bundleConfig;
     private Map<String, Object> _params;
 
     private String _cfgVersion = "1.0";
@@ -226,21 +227,30 @@ public class VirtualRoutingResource {
             return new Answer(cmd, true, "Nothing to do");
         }
 
-        List<ExecutionResult> results = new ArrayList<ExecutionResult>();
+        List<ExecutionResult> results;
+        if (_bundleConfig && cfg.size() > 1) {
+            results = applyConfigBundle(cmd.getRouterAccessIp(), cfg, VRScripts.VR_SCRIPT_EXEC_TIMEOUT, true);
+        } else {
+            results = new ArrayList<ExecutionResult>();
+            for (ConfigItem configItem : cfg) {
+                long startTimestamp = System.currentTimeMillis();
+                ExecutionResult result = applyConfigToVR(cmd.getRouterAccessIp(), configItem, VRScripts.VR_SCRIPT_EXEC_TIMEOUT);
+                if (s_logger.isDebugEnabled()) {
+                    long elapsed = System.currentTimeMillis() - startTimestamp;
+                    s_logger.debug("Processing " + configItem + " took " + elapsed + "ms");
+                }
+                if (result == null) {
+                    result = new ExecutionResult(false, "null execution result");
+                }
+                results.add(result);
+            }
+        }
+
         List<String> details = new ArrayList<String>();
         boolean finalResult = false;
-        for (ConfigItem configItem : cfg) {
-            long startTimestamp = System.currentTimeMillis();
-            ExecutionResult result = applyConfigToVR(cmd.getRouterAccessIp(), configItem, VRScripts.VR_SCRIPT_EXEC_TIMEOUT);
-            if (s_logger.isDebugEnabled()) {
-                long elapsed = System.currentTimeMillis() - startTimestamp;
-                s_logger.debug("Processing " + configItem + " took " + elapsed + "ms");
-            }
-            if (result == null) {
-                result = new ExecutionResult(false, "null execution result");
-            }
-            results.add(result);
-            details.add(configItem.getInfo() + (result.isSuccess() ? " - success: " : " - failed: ") + result.getDetails());
+        for (int i = 0; i < results.size(); i++) {
+            ExecutionResult result = results.get(i);
+            details.add(cfg.get(i).getInfo() + (result.isSuccess() ? " - success: " : " - failed: ") + result.getDetails());
             finalResult = result.isSuccess();
         }
 
@@ -257,6 +267,32 @@ public class VirtualRoutingResource {
         }
     }
 
+    /**
+     * Transfers the items as one compressed file and applies them with a single vr_cfg.sh call
+     *
+     * @param immediate apply every item right away instead of deferring the dhcp and vm data updates
+     *                  and flushing conntrack at the end, which is what an aggregation does
+     * @return one result per item
+     */
+    private List<ExecutionResult> applyConfigBundle(String routerAccessIp, List<ConfigItem> cfg, Duration timeout, boolean immediate) {
+        long startTimestamp = System.currentTimeMillis();
+        ConfigBundle bundle = new ConfigBundle(_cfgVersion, cfg);
+        String bundleFileName = "VR-" + UUID.randomUUID().toString() + ConfigBundle.FILE_SUFFIX;
+
+        ExecutionResult result = _vrDeployer.createFileInVR(routerAccessIp, VRScripts.CONFIG_CACHE_LOCATION, bundleFileName, bundle.getContents());
+        if (result == null || !result.isSuccess()) {
+            return bundle.failAll(result);
+        }
+
+        String args = (immediate ? "-i " : "") + "-z -c " + VRScripts.CONFIG_CACHE_LOCATION + bundleFileName;
+        List<ExecutionResult> results = bundle.parseResults(_vrDeployer.executeInVR(routerAccessIp, VRScripts.VR_CFG, args, timeout));
+        if (s_logger.isDebugEnabled()) {
+            long elapsed = System.currentTimeMillis() - startTimestamp;
+            s_logger.debug("Processing bundle of " + cfg.size() + " config items took " + elapsed + "ms");
+        }
+        return results;
+    }
+
     private CheckS2SVpnConnectionsAnswer execute(CheckS2SVpnConnectionsCommand cmd) {
 
         StringBuffer buff = new StringBuffer();
@@ -323,6 +359,9 @@ public class VirtualRoutingResource {
             String value = (String)params.get("router.aggregation.command.each.timeout");
             _eachTimeout = Duration.standardSeconds(NumbersUtil.parseInt(value, 10));
         }
+        if (_params.get("router.config.bundle") == null) {
+            _bundleConfig = Boolean.parseBoolean(params.get("router.config.bundle"));
+        }
 
         return true;
     }
@@ -346,6 +385,9 @@ public class VirtualRoutingResource {
             s_logger.debug("The router.aggregation.command.each.timeout in seconds is set to " + _eachTimeout.getStandardSeconds());
         }
 
+        value = (String)params.get("router.config.bundle");
+        _bundleConfig = Boolean.parseBoolean(value);
+
         if (_vrDeployer == null) {
             throw new ConfigurationException("Unable to find the resource for VirtualRouterDeployer!");
         }
@@ -426,9 +468,7 @@ public class VirtualRoutingResource {
             Queue<NetworkElementCommand> queue = _vrAggregateCommandsSet.get(routerName);
             int answerCounts = 0;
             try {
-                StringBuilder sb = new StringBuilder();
-                sb.append("#Apache CloudStack Virtual Router Config File\n");
-                sb.append("<version>\n" + _cfgVersion + "\n</version>\n");
+                List<ConfigItem> items = new ArrayList<ConfigItem>();
                 for (NetworkElementCommand command : queue) {
                     answerCounts += command.getAnswersCount();
                     List<ConfigItem> cfg = generateCommandCfg(command);
@@ -437,21 +477,30 @@ public class VirtualRoutingResource {
                         continue;
                     }
 
-                    for (ConfigItem c : cfg) {
-                        sb.append(c.getAggregateCommand());
-                    }
+                    items.addAll(cfg);
                 }
 
-                // TODO replace with applyConfig with a stop on fail
-                String cfgFileName = "VR-"+ UUID.randomUUID().toString() + ".cfg";
-                FileConfigItem fileConfigItem = new FileConfigItem(VRScripts.CONFIG_CACHE_LOCATION, cfgFileName, sb.toString());
-                ScriptConfigItem scriptConfigItem = new ScriptConfigItem(VRScripts.VR_CFG, "-c " + VRScripts.CONFIG_CACHE_LOCATION + cfgFileName);
                 // 120s is the minimal timeout
                 Duration timeout = _eachTimeout.withDurationAdded(_eachTimeout.getStandardSeconds(), answerCounts);
                 if (s_logger.isDebugEnabled()){
                     s_logger.debug("Aggregate action timeout in seconds is " + timeout.getStandardSeconds());
                 }
 
+                if (_bundleConfig) {
+                    List<ExecutionResult> results = applyConfigBundle(cmd.getRouterAccessIp(), items, timeout, false);
+                    for (int i = 0; i < results.size(); i++) {
+                        if (!results.get(i).isSuccess()) {
+                            return new Answer(cmd, false, items.get(i).getInfo() + " - failed: " + results.get(i).getDetails());
+                        }
+                    }
+                    return new Answer(cmd, true, "Command aggregation finished");
+                }
+
+                // TODO replace with applyConfig with a stop on fail
+                String cfgFileName = "VR-"+ UUID.randomUUID().toString() + ".cfg";
+                FileConfigItem fileConfigItem = new FileConfigItem(VRScripts.CONFIG_CACHE_LOCATION, cfgFileName, new ConfigBundle(_cfgVersion, items).getConfig());
+                ScriptConfigItem scriptConfigItem = new ScriptConfigItem(VRScripts.VR_CFG, "-c " + VRScripts.CONFIG_CACHE_LOCATION + cfgFileName);
+
                 ExecutionResult result = applyConfigToVR(cmd.getRouterAccessIp(), fileConfigItem, timeout);
                 if (!result.isSuccess()) {
                     return new Answer(cmd, false, result.getDetails());
@@ -0,0 +1,251 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Codecs used to compress the content of large requests on the agent wire protocol.
+ *
+ * The codec of a compressed request is carried in the byte following the version in
+ * the request header. That byte has always been 0 on the wire, so GZIP keeps id 0 and
+ * requests from older agents and management servers are still understood. A receiver
+ * decodes any codec it knows, while a sender only uses a codec other than GZIP once the
+ * peer has announced support for it at startup.
+ */
+public enum CompressionCodec {
+    GZIP((byte)0) {
+        @Override
+        public ByteBuffer compress(final byte[] data) throws IOException {
+            final ByteArrayOutputStream byteOut = new ByteArrayOutputStream(data.length / 4 + 64);
+            final GZIPOutputStream out = new GZIPOutputStream(byteOut, 8192);
+            out.write(data);
+            out.close();
+            return ByteBuffer.wrap(byteOut.toByteArray());
+        }
+
+        @Override
+        public ByteBuffer decompress(final ByteBuffer buffer, final int length) throws IOException {
+            final byte[] result = new byte[length];
+            final InputStream in = new GZIPInputStream(toInputStream(buffer));
+            try {
+                int offset = 0;
+                int len;
+                while (offset < length && (len = in.read(result, offset, length - offset)) > 0) {
+                    offset += len;
+                }
+                return ByteBuffer.wrap(result, 0, offset);
+            } finally {
+                in.close();
+            }
+        }
+    },
+
+    /**
+     * zlib at its fastest level, primed with a dictionary of strings common in serialized
+     * commands and answers. Changing the dictionary needs a new codec id.
+     */
+    DEFLATE_DICT((byte)1) {
+        @Override
+        public ByteBuffer compress(final byte[] data) {
+            final Deflater deflater = s_deflater.get();
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data);
+            deflater.finish();
+
+            byte[] out = scratch(data.length / 4 + 64);
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == out.length) {
+                    out = growScratch(out);
+                }
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            return ByteBuffer.wrap(Arrays.copyOf(out, size));
+        }
+
+        @Override
+        public ByteBuffer decompress(final ByteBuffer buffer, final int length) throws IOException {
+            final Inflater inflater = s_inflater.get();
+            inflater.reset();
+            if (buffer.hasArray()) {
+                inflater.setInput(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                final byte[] input = new byte[buffer.remaining()];
+                buffer.get(input);
+                inflater.setInput(input);
+            }
+
+            final byte[] result = new byte[length];
+            int offset = 0;
+            try {
+                while (offset < length && !inflater.finished()) {
+                    final int len = inflater.inflate(result, offset, length - offset);
+                    if (len == 0) {
+                        if (inflater.needsDictionary()) {
+                            inflater.setDictionary(DICTIONARY);
+                        } else if (inflater.needsInput()) {
+                            throw new IOException("Compressed content is truncated");
+                        }
+                    }
+                    offset += len;
+                }
+            } catch (final DataFormatException e) {
+                throw new IOException("Compressed content is corrupted", e);
+            }
+            return ByteBuffer.wrap(result, 0, offset);
+        }
+    };
+
+    /* Most frequent strings go last, deflate reaches them with the shortest distances */
+    private static final byte[] DICTIONARY = ("\"wait\":0,\"bypassHostMaintenance\":false,\"executeInSequence\":false,\"contextMap\":{},"
+            + "\"result\":true,\"details\":\"\",\"hostType\":\"Routing\",\"gatewayAccessible\":true,\"_hostVmStateReport\":{"
+            + "\"state\":\"PowerOn\",\"state\":\"PowerOff\",\"host\":\"\",\"hostId\":,\"vmName\":\"\",\"uuid\":\"\",\"name\":\"\","
+            + "\"cpuUtilization\":,\"networkReadKBs\":,\"networkWriteKBs\":,\"diskReadIOs\":,\"diskWriteIOs\":,\"diskReadKBs\":,"
+            + "\"diskWriteKBs\":,\"memoryKBs\":,\"intFreeMemoryKBs\":,\"targetMemoryKBs\":,\"numCPUs\":,\"entityType\":\"vm\","
+            + "\"path\":\"\",\"size\":,\"format\":\"QCOW2\",\"poolUuid\":\"\",\"volumeStats\":{},\"vmStatsMap\":{},"
+            + "{\"com.cloud.agent.api.PingRoutingCommand\":{\"com.cloud.agent.api.Answer\":{\"com.cloud.agent.api.").getBytes(StandardCharsets.UTF_8);
+
+    private static final int MAX_RETAINED_SCRATCH_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<Deflater> s_deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> s_inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private static final ThreadLocal<byte[]> s_scratch = new ThreadLocal<byte[]>();
+
+    private final byte _id;
+
+    CompressionCodec(final byte id) {
+        _id = id;
+    }
+
+    public byte getId() {
+        return _id;
+    }
+
+    public abstract ByteBuffer compress(byte[] data) throws IOException;
+
+    /**
+     * @param length size of the content once decompressed, as carried in the request header.
+     */
+    public abstract ByteBuffer decompress(ByteBuffer buffer, int length) throws IOException;
+
+    /**
+     * @return the codec with the given id, null if it is not known.
+     */
+    public static CompressionCodec fromId(final byte id) {
+        for (final CompressionCodec codec : values()) {
+            if (codec._id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the preferred codec among the ones supported by the peer, GZIP if the peer did not announce any.
+     */
+    public static CompressionCodec negotiate(final List<String> peerCodecs) {
+        if (peerCodecs == null) {
+            return GZIP;
+        }
+        final CompressionCodec[] codecs = values();
+        for (int i = codecs.length - 1; i >= 0; i--) {
+            if (peerCodecs.contains(codecs[i].name())) {
+                return codecs[i];
+            }
+        }
+        return GZIP;
+    }
+
+    public static List<String> names() {
+        final List<String> names = new ArrayList<String>();
+        for (final CompressionCodec codec : values()) {
+            names.add(codec.name());
+        }
+        return names;
+    }
+
+    public static CompressionCodec fromName(final String name) {
+        if (name == null) {
+            return GZIP;
+        }
+        for (final CompressionCodec codec : values()) {
+            if (codec.name().equals(name)) {
+                return codec;
+            }
+        }
+        return GZIP;
+    }
+
+    private static InputStream toInputStream(final ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        final byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return new ByteArrayInputStream(array);
+    }
+
+    private static byte[] scratch(final int size) {
+        byte[] scratch = s_scratch.get();
+        if (scratch != null && scratch.length >= size) {
+            return scratch;
+        }
+        scratch = new byte[Math.max(size, 4096)];
+        if (scratch.length <= MAX_RETAINED_SCRATCH_SIZE) {
+            s_scratch.set(scratch);
+        }
+        return scratch;
+    }
+
+    private static byte[] growScratch(final byte[] current) {
+        final byte[] grown = Arrays.copyOf(current, current.length * 2);
+        if (grown.length <= MAX_RETAINED_SCRATCH_SIZE) {
+            s_scratch.set(grown);
+        }
+        return grown;
+    }
+}
@@ -19,8 +19,6 @@
 
 package com.cloud.agent.transport;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.lang.reflect.Type;
@@ -29,8 +27,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -66,7 +62,7 @@ import com.cloud.utils.exception.CloudRuntimeException;
  *
  * A request looks as follows:
  * 1. Version - 1 byte;
- * 2. Flags - 3 bytes;
+ * 2. Compression codec - 1 byte, followed by Flags - 2 bytes;
  * 3. Sequence - 8 bytes;
  * 4. Length - 4 bytes;
  * 5. ManagementServerId - 8 bytes;
@@ -114,6 +110,7 @@ public class Request {
     protected Command[] _cmds;
     protected String _content;
     protected String _agentName;
+    protected CompressionCodec _compressionCodec = CompressionCodec.GZIP;
 
     protected Request() {
     }
@@ -267,7 +264,7 @@ public class Request {
     protected ByteBuffer serializeHeader(final int contentSize) {
         final ByteBuffer buffer = ByteBuffer.allocate(40);
         buffer.put(getVersionInByte());
-        buffer.put((byte)0);
+        buffer.put((_flags & FLAG_COMPRESSED) != 0 ? _compressionCodec.getId() : (byte)0);
         buffer.putShort(getFlags());
         buffer.putLong(_seq);
         // The size here is uncompressed size, if the data is compressed.
@@ -281,32 +278,19 @@ public class Request {
     }
 
     public static ByteBuffer doDecompress(ByteBuffer buffer, int length) {
-        byte[] byteArrayIn = new byte[1024];
-        ByteArrayInputStream byteIn;
-        if (buffer.hasArray()) {
-            byteIn = new ByteArrayInputStream(buffer.array(), buffer.position() + buffer.arrayOffset(), buffer.remaining());
-        } else {
-            byte[] array = new byte[buffer.limit() - buffer.position()];
-            buffer.get(array);
-            byteIn = new ByteArrayInputStream(array);
-        }
-        ByteBuffer retBuff = ByteBuffer.allocate(length);
-        int len = 0;
+        return doDecompress(CompressionCodec.GZIP, buffer, length);
+    }
+
+    public static ByteBuffer doDecompress(CompressionCodec codec, ByteBuffer buffer, int length) {
         try {
-            GZIPInputStream in = new GZIPInputStream(byteIn);
-            while ((len = in.read(byteArrayIn)) > 0) {
-                retBuff.put(byteArrayIn, 0, len);
-            }
-            in.close();
+            return codec.decompress(buffer, length);
         } catch (IOException e) {
             s_logger.error("Fail to decompress the request!", e);
+            return ByteBuffer.allocate(0);
         }
-        retBuff.flip();
-        return retBuff;
     }
 
     public static ByteBuffer doCompress(ByteBuffer buffer, int length) {
-        ByteArrayOutputStream byteOut = new ByteArrayOutputStream(length);
         byte[] array;
         if (buffer.hasArray()) {
             array = buffer.array();
@@ -314,15 +298,16 @@ public class Request {
             array = new byte[buffer.capacity()];
             buffer.get(array);
         }
+        return doCompress(CompressionCodec.GZIP, array);
+    }
+
+    protected static ByteBuffer doCompress(CompressionCodec codec, byte[] data) {
         try {
-            GZIPOutputStream out = new GZIPOutputStream(byteOut, length);
-            out.write(array);
-            out.finish();
-            out.close();
+            return codec.compress(data);
         } catch (IOException e) {
             s_logger.error("Fail to compress the request!", e);
+            return ByteBuffer.allocate(0);
         }
-        return ByteBuffer.wrap(byteOut.toByteArray());
     }
 
     public ByteBuffer[] toBytes() {
@@ -332,12 +317,14 @@ public class Request {
         if (_content == null) {
             _content = s_gson.toJson(_cmds, _cmds.getClass());
         }
-        tmp = ByteBuffer.wrap(_content.getBytes());
-        int capacity = tmp.capacity();
+        final byte[] content = _content.getBytes();
+        int capacity = content.length;
         /* Check if we need to compress the data */
         if (capacity >= 8192) {
-            tmp = doCompress(tmp, capacity);
+            tmp = doCompress(_compressionCodec, content);
             _flags |= FLAG_COMPRESSED;
+        } else {
+            tmp = ByteBuffer.wrap(content);
         }
         buffers[1] = tmp;
         buffers[0] = serializeHeader(capacity);
@@ -345,6 +332,18 @@ public class Request {
         return buffers;
     }
 
+    /**
+     * @param codec codec to compress the content with if it is large, it must be one the receiving side
+     * announced support for.
+     */
+    public void setCompressionCodec(CompressionCodec codec) {
+        _compressionCodec = codec != null ? codec : CompressionCodec.GZIP;
+    }
+
+    public CompressionCodec getCompressionCodec() {
+        return _compressionCodec;
+    }
+
     public byte[] getBytes() {
         final ByteBuffer[] buffers = toBytes();
         final int len1 = buffers[0].remaining();
@@ -492,7 +491,7 @@ public class Request {
         if (version.ordinal() != Version.v1.ordinal() && version.ordinal() != Version.v3.ordinal()) {
             throw new UnsupportedVersionException("This version is no longer supported: " + version.toString(), UnsupportedVersionException.IncompatibleVersion);
         }
-        buff.get();
+        final byte codecId = buff.get();
         final short flags = buff.getShort();
         final boolean isRequest = (flags & FLAG_REQUEST) > 0;
 
@@ -510,7 +509,11 @@ public class Request {
         }
 
         if ((flags & FLAG_COMPRESSED) != 0) {
-            buff = doDecompress(buff, size);
+            final CompressionCodec codec = CompressionCodec.fromId(codecId);
+            if (codec == null) {
+                throw new UnsupportedVersionException("Unknown compression codec: " + codecId, UnsupportedVersionException.IncompatibleVersion);
+            }
+            buff = doDecompress(codec, buff, size);
         }
 
         byte[] command = null;
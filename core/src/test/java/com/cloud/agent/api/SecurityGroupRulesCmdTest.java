@@ -19,6 +19,7 @@
 
 package com.cloud.agent.api;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.List;
@@ -81,6 +82,21 @@ public class SecurityGroupRulesCmdTest {
         assertTrue(a.contains(SecurityGroupRulesCmd.EGRESS_RULE));
     }
 
+    /**
+     * Test method for {@link com.cloud.agent.api.SecurityGroupRulesCmd#stringifyRules()} with rules that allow group sets.
+     */
+    @Test
+    public void testStringifyRulesWithGroupSets() throws Exception {
+        final IpPortAndProto rule = new IpPortAndProto("tcp", 22, 22, "1.2.3.4/32");
+        rule.setAllowedGroupSets(SecurityGroupMembersCmd.getGroupSetName(7L));
+        final SecurityGroupRulesCmd cmd = new SecurityGroupRulesCmd("10.10.10.10", null, "aa:aa:aa:aa:aa:aa", "vm", 1L, null, 0L, new IpPortAndProto[] {rule},
+                new IpPortAndProto[0], new Vector<String>());
+
+        assertTrue(cmd.stringifyRules().equals("I:tcp;22;22;1.2.3.4/32,set:sg_7,NEXT "));
+        assertFalse(cmd.stringifyCompressedRules().contains("sg_7"));
+        assertTrue(cmd.getTotalNumGroupSets() == 1);
+    }
+
     /**
      * Test method for {@link com.cloud.agent.api.SecurityGroupRulesCmd#compressStringifiedRules()}.
      */
@@ -0,0 +1,257 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.agent.resource.virtualnetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.routing.AggregationControlCommand;
+import com.cloud.agent.api.routing.AggregationControlCommand.Action;
+import com.cloud.agent.api.routing.GroupAnswer;
+import com.cloud.agent.api.routing.NetworkElementCommand;
+import com.cloud.agent.api.routing.SetPortForwardingRulesCommand;
+import com.cloud.agent.api.to.PortForwardingRuleTO;
+import com.cloud.utils.ExecutionResult;
+
+public class ConfigBundleTest {
+
+    private static final String ROUTERIP = "169.254.3.4";
+    private static final String ROUTERGUESTIP = "10.200.1.1";
+    private static final String ROUTERNAME = "r-4-VM";
+
+    /**
+     * Stands in for the router: counts what is transferred to it and runs vr_cfg.sh bundles the way
+     * the script does, failing the scripts that contain failScript
+     */
+    private static class FakeDeployer implements VirtualRouterDeployer {
+        int fileTransfers;
+        long bytesTransferred;
+        int executions;
+        String failScript;
+        final Map<String, String> files = new HashMap<String, String>();
+
+        @Override
+        public ExecutionResult executeInVR(String routerIp, String script, String args) {
+            return executeInVR(routerIp, script, args, Duration.standardSeconds(60L));
+        }
+
+        @Override
+        public ExecutionResult executeInVR(String routerIp, String script, String args, Duration timeout) {
+            executions++;
+            if (VRScripts.VR_CFG.equals(script) && args.contains("-z")) {
+                return runBundle(args.substring(args.indexOf("-c ") + 3));
+            }
+            boolean success = failScript == null || !(script + " " + args).contains(failScript);
+            return new ExecutionResult(success, success ? null : "script failed");
+        }
+
+        private ExecutionResult runBundle(String path) {
+            String config;
+            try {
+                config = ConfigBundle.unpack(files.get(path));
+            } catch (Exception e) {
+                return new ExecutionResult(false, "VR config: unable to unpack " + path);
+            }
+            StringBuilder output = new StringBuilder();
+            int item = 0;
+            for (String line : config.split("\n")) {
+                if (line.equals("</file>")) {
+                    output.append("VR config item " + item++ + ": success\n");
+                } else if (line.startsWith("/opt/cloud/bin/")) {
+                    if (failScript != null && line.contains(failScript)) {
+                        output.append("VR config item " + item + ": failed\n");
+                        return new ExecutionResult(false, output.toString());
+                    }
+                    output.append("VR config item " + item++ + ": success\n");
+                }
+            }
+            return new ExecutionResult(true, output.toString());
+        }
+
+        @Override
+        public ExecutionResult createFileInVR(String routerIp, String path, String filename, String content) {
+            fileTransfers++;
+            bytesTransferred += content.getBytes(StandardCharsets.UTF_8).length;
+            files.put(path + filename, content);
+            return new ExecutionResult(true, null);
+        }
+
+        @Override
+        public ExecutionResult prepareCommand(NetworkElementCommand cmd) {
+            cmd.setRouterAccessIp(ROUTERIP);
+            return new ExecutionResult(true, null);
+        }
+
+        @Override
+        public ExecutionResult cleanupCommand(NetworkElementCommand cmd) {
+            return new ExecutionResult(true, null);
+        }
+    }
+
+    private VirtualRoutingResource createResource(FakeDeployer deployer, boolean bundle) throws Exception {
+        VirtualRoutingResource resource = new VirtualRoutingResource(deployer);
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("router.config.bundle", Boolean.toString(bundle));
+        resource.configure("VRResource", params);
+        return resource;
+    }
+
+    private SetPortForwardingRulesCommand generateSetPortForwardingRulesCommand(int offset, int rules) {
+        List<PortForwardingRuleTO> pfRules = new ArrayList<PortForwardingRuleTO>();
+        for (int i = 0; i < rules; i++) {
+            int port = 1024 + offset + i;
+            pfRules.add(new PortForwardingRuleTO(offset + i, "64.1.1.10", port, port, "10.10.1." + (i % 250 + 2), 22, 22, "TCP", false, false));
+        }
+        SetPortForwardingRulesCommand cmd = new SetPortForwardingRulesCommand(pfRules);
+        cmd.setAccessDetail(NetworkElementCommand.ROUTER_NAME, ROUTERNAME);
+        return cmd;
+    }
+
+    private Answer aggregate(VirtualRoutingResource resource, int commands, int rulesPerCommand) {
+        resource.executeRequest(new AggregationControlCommand(Action.Start, ROUTERNAME, ROUTERIP, ROUTERGUESTIP));
+        for (int i = 0; i < commands; i++) {
+            resource.executeRequest(generateSetPortForwardingRulesCommand(i * rulesPerCommand, rulesPerCommand));
+        }
+        return resource.executeRequest(new AggregationControlCommand(Action.Finish, ROUTERNAME, ROUTERIP, ROUTERGUESTIP));
+    }
+
+    @Test
+    public void testUnpackRestoresConfig() throws Exception {
+        ConfigBundle bundle = new ConfigBundle("1.0", Arrays.<ConfigItem>asList(new FileConfigItem("/var/cache/cloud/", "a.json", "{\"a\": 1}"),
+                new ScriptConfigItem(VRScripts.UPDATE_CONFIG, "a.json")));
+
+        String config = ConfigBundle.unpack(bundle.getContents());
+        assertEquals(bundle.getConfig(), config);
+        assertTrue(config.contains("<file>\n/var/cache/cloud/a.json\n{\"a\": 1}\n</file>\n"));
+        assertTrue(config.contains("<script>\n/opt/cloud/bin/update_config.py a.json\n</script>\n"));
+    }
+
+    @Test
+    public void testParseResults() {
+        List<ConfigItem> items = new ArrayList<ConfigItem>();
+        for (int i = 0; i < 3; i++) {
+            items.add(new ScriptConfigItem(VRScripts.UPDATE_CONFIG, "item" + i));
+        }
+        ConfigBundle bundle = new ConfigBundle("1.0", items);
+
+        List<ExecutionResult> results = bundle.parseResults(new ExecutionResult(false, "VR config item 0: success\nVR config item 1: failed\n"));
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertFalse(results.get(2).isSuccess());
+        assertTrue(results.get(2).getDetails().startsWith("not applied"));
+
+        results = bundle.parseResults(new ExecutionResult(false, "VR config: unable to unpack"));
+        for (ExecutionResult result : results) {
+            assertFalse(result.isSuccess());
+            assertEquals("VR config: unable to unpack", result.getDetails());
+        }
+    }
+
+    @Test
+    public void testParseResultsWithoutItemReports() {
+        List<ConfigItem> items = new ArrayList<ConfigItem>();
+        for (int i = 0; i < 3; i++) {
+            items.add(new ScriptConfigItem(VRScripts.UPDATE_CONFIG, "item" + i));
+        }
+        ConfigBundle bundle = new ConfigBundle("1.0", items);
+
+        // an old vr_cfg.sh rejects -z but still exits 0
+        List<ExecutionResult> results = bundle.parseResults(new ExecutionResult(true, "/opt/cloud/bin/vr_cfg.sh: illegal option -- z"));
+        assertEquals(3, results.size());
+        for (ExecutionResult result : results) {
+            assertFalse(result.isSuccess());
+            assertTrue(result.getDetails().contains("illegal option"));
+        }
+
+        results = bundle.parseResults(new ExecutionResult(true, "VR config item 0: success\nVR config item 1: success\n"));
+        assertTrue(results.get(0).isSuccess());
+        assertTrue(results.get(1).isSuccess());
+        assertFalse(results.get(2).isSuccess());
+    }
+
+    @Test
+    public void testCommandIsAppliedAsOneBundle() throws Exception {
+        FakeDeployer deployer = new FakeDeployer();
+        VirtualRoutingResource resource = createResource(deployer, true);
+
+        Answer answer = resource.executeRequest(generateSetPortForwardingRulesCommand(0, 500));
+
+        assertTrue(answer instanceof GroupAnswer);
+        assertTrue(answer.getResult());
+        assertEquals(2, ((GroupAnswer)answer).getResults().length);
+        assertEquals(1, deployer.fileTransfers);
+        assertEquals(1, deployer.executions);
+    }
+
+    @Test
+    public void testBundleReportsFailedItem() throws Exception {
+        FakeDeployer deployer = new FakeDeployer();
+        deployer.failScript = VRScripts.UPDATE_CONFIG;
+        VirtualRoutingResource resource = createResource(deployer, true);
+
+        Answer answer = resource.executeRequest(generateSetPortForwardingRulesCommand(0, 10));
+
+        assertFalse(answer.getResult());
+        String[] details = ((GroupAnswer)answer).getResults();
+        assertTrue(details[0].contains(" - success: "));
+        assertTrue(details[1].contains(" - failed: "));
+    }
+
+    @Test
+    public void testAggregationBundleTransfersLessData() throws Exception {
+        FakeDeployer plainDeployer = new FakeDeployer();
+        Answer plainAnswer = aggregate(createResource(plainDeployer, false), 50, 40);
+        assertTrue(plainAnswer.getResult());
+
+        FakeDeployer bundleDeployer = new FakeDeployer();
+        Answer bundleAnswer = aggregate(createResource(bundleDeployer, true), 50, 40);
+        assertTrue(bundleAnswer.getResult());
+
+        assertEquals(1, plainDeployer.fileTransfers);
+        assertEquals(1, bundleDeployer.fileTransfers);
+        assertEquals(1, bundleDeployer.executions);
+        assertTrue("bundle of " + bundleDeployer.bytesTransferred + " bytes vs " + plainDeployer.bytesTransferred + " bytes",
+                bundleDeployer.bytesTransferred * 4 < plainDeployer.bytesTransferred);
+    }
+
+    @Test
+    public void testAggregationBundleReportsFailedItem() throws Exception {
+        FakeDeployer deployer = new FakeDeployer();
+        deployer.failScript = VRScripts.UPDATE_CONFIG;
+
+        Answer answer = aggregate(createResource(deployer, true), 3, 5);
+
+        assertFalse(answer.getResult());
+        assertTrue(answer.getDetails().contains(" - failed: "));
+    }
+}
@@ -20,6 +20,8 @@
 package com.cloud.agent.transport;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 
 import org.apache.log4j.Level;
@@ -212,6 +214,47 @@ public class RequestTest extends TestCase {
         }
     }
 
+    public void testCompressionCodecs() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            content.append("{\"com.cloud.agent.api.Answer\":{\"result\":true,\"details\":\"vm-").append(i).append("\",\"wait\":0}}");
+        }
+        byte[] data = content.toString().getBytes();
+
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            ByteBuffer compressed = codec.compress(data);
+            assertTrue(compressed.remaining() < data.length);
+            ByteBuffer decompressed = codec.decompress(compressed, data.length);
+            byte[] result = new byte[decompressed.remaining()];
+            decompressed.get(result);
+            Assert.assertArrayEquals(codec.name(), data, result);
+        }
+    }
+
+    public void testCompressedRequestWithNegotiatedCodec() throws Exception {
+        SecStorageFirewallCfgCommand cmd = new SecStorageFirewallCfgCommand();
+        for (int i = 0; i < 500; i++) {
+            cmd.addPortConfig("10.1.1." + (i % 255), Integer.toString(i), true, "eth0");
+        }
+        Request sreq = new Request(2, 3, new Command[] {cmd}, true, true);
+        sreq.setSequence(892403718);
+        sreq.setCompressionCodec(CompressionCodec.negotiate(CompressionCodec.names()));
+        assertEquals(CompressionCodec.DEFLATE_DICT, sreq.getCompressionCodec());
+
+        byte[] bytes = sreq.getBytes();
+        assertEquals(CompressionCodec.DEFLATE_DICT.getId(), bytes[1]);
+        assertTrue((bytes[3] & Request.FLAG_COMPRESSED) != 0);
+
+        Request creq = Request.parse(bytes);
+        compareRequest(creq, sreq);
+    }
+
+    public void testNegotiateWithOlderPeer() {
+        assertEquals(CompressionCodec.GZIP, CompressionCodec.negotiate(null));
+        assertEquals(CompressionCodec.GZIP, CompressionCodec.negotiate(Arrays.asList("GZIP")));
+        assertEquals(CompressionCodec.GZIP, CompressionCodec.fromName(null));
+    }
+
     public void testLogging() {
         s_logger.info("Testing Logging");
         GetHostStatsCommand cmd3 = new GetHostStatsCommand("hostguid", "hostname", 101);
@@ -16,6 +16,9 @@
 // under the License.
 package com.cloud.capacity;
 
+import java.util.List;
+import java.util.Set;
+
 import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 
@@ -83,6 +86,16 @@ public interface CapacityManager {
                     true,
                     ConfigKey.Scope.ImageStore,
                     null);
+    static final ConfigKey<Integer> CapacityCalculateWorkers =
+            new ConfigKey<Integer>(
+                    Integer.class,
+                    "capacity.calculate.workers",
+                    "Advanced",
+                    "4",
+                    "Number of clusters whose host cpu/memory capacity is recalculated in parallel",
+                    false,
+                    ConfigKey.Scope.Global,
+                    null);
 
     public boolean releaseVmCapacity(VirtualMachine vm, boolean moveFromReserved, boolean moveToReservered, Long hostId);
 
@@ -97,8 +110,23 @@ public interface CapacityManager {
     boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOverprovisioningFactor, float memoryOvercommitRatio,
         boolean considerReservedCapacity);
 
+    /**
+     * Same as {@link #checkIfHostHasCapacity(long, Integer, long, boolean, float, float, boolean)}, but works on capacity rows
+     * the caller already loaded, e.g. in bulk for a list of candidate hosts.
+     * @param capacityCpu CPU capacity row of the host, may be null
+     * @param capacityMem memory capacity row of the host, may be null
+     */
+    boolean checkIfHostHasCapacity(long hostId, CapacityVO capacityCpu, CapacityVO capacityMem, Integer cpu, long ram, boolean checkFromReservedCapacity,
+        float cpuOverprovisioningFactor, float memoryOvercommitRatio, boolean considerReservedCapacity);
+
     void updateCapacityForHost(Host host);
 
+    /**
+     * Recalculates the cpu/memory capacity of many hosts, processing their clusters in parallel
+     * @param hosts the hosts to recalculate
+     */
+    void updateCapacityForHosts(List<? extends Host> hosts);
+
     /**
      * @param pool storage pool
      * @param templateForVmCreation template that will be used for vm creation
@@ -113,6 +141,13 @@ public interface CapacityManager {
      */
     boolean checkIfHostReachMaxGuestLimit(Host host);
 
+    /**
+     * Bulk version of {@link #checkIfHostReachMaxGuestLimit(Host)}
+     * @param hosts the hosts to be checked
+     * @return ids of the hosts whose running VM count >= hypervisor limit
+     */
+    Set<Long> listHostsReachedMaxGuestLimit(List<? extends Host> hosts);
+
     /**
      * Check if specified host has capability to support cpu cores and speed freq
      * @param hostId the host to be checked
@@ -122,6 +157,11 @@ public interface CapacityManager {
      */
     boolean checkIfHostHasCpuCapability(long hostId, Integer cpuNum, Integer cpuSpeed);
 
+    /**
+     * Same as {@link #checkIfHostHasCpuCapability(long, Integer, Integer)} for a host that is already loaded
+     */
+    boolean checkIfHostHasCpuCapability(Host host, Integer cpuNum, Integer cpuSpeed);
+
     /**
      * Check if cluster will cross threshold if the cpu/memory requested are accomodated
      * @param clusterId the clusterId to check
@@ -18,10 +18,9 @@ package com.cloud.agent.manager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -54,6 +53,7 @@ import com.cloud.agent.api.ShutdownCommand;
 import com.cloud.agent.api.StartCommand;
 import com.cloud.agent.api.StopCommand;
 import com.cloud.agent.api.storage.CreateCommand;
+import com.cloud.agent.transport.CompressionCodec;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.exception.AgentUnavailableException;
@@ -85,29 +85,19 @@ public abstract class AgentAttache {
         }
     };
 
-    protected static final Comparator<Object> s_seqComparator = new Comparator<Object>() {
-        @Override
-        public int compare(final Object o1, final Object o2) {
-            long seq1 = ((Request)o1).getSequence();
-            long seq2 = (Long)o2;
-            if (seq1 < seq2) {
-                return -1;
-            } else if (seq1 > seq2) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-    };
-
     protected final long _id;
     protected String _name = null;
     protected final ConcurrentHashMap<Long, Listener> _waitForList;
-    protected final LinkedList<Request> _requests;
-    protected Long _currentSequence;
+    /* requests waiting for the current in-sequence request to finish, by sequence and in arrival order, guarded by itself */
+    protected final LinkedHashMap<Long, QueuedRequest> _requests;
+    protected volatile Long _currentSequence;
+    private long _dequeuedRequests;
+    private long _totalQueueWaitTime;
+    private long _maxQueueWaitTime;
     protected Status _status = Status.Connecting;
     protected boolean _maintenance;
     protected long _nextSequence;
+    protected volatile CompressionCodec _compressionCodec = CompressionCodec.GZIP;
 
     protected AgentManagerImpl _agentMgr;
 
@@ -128,7 +118,7 @@ public abstract class AgentAttache {
         _waitForList = new ConcurrentHashMap<Long, Listener>();
         _currentSequence = null;
         _maintenance = maintenance;
-        _requests = new LinkedList<Request>();
+        _requests = new LinkedHashMap<Long, QueuedRequest>();
         _agentMgr = agentMgr;
         _nextSequence = new Long(s_rand.nextInt(Short.MAX_VALUE)).longValue() << 48;
     }
@@ -137,6 +127,14 @@ public abstract class AgentAttache {
         return ++_nextSequence;
     }
 
+    public CompressionCodec getCompressionCodec() {
+        return _compressionCodec;
+    }
+
+    public void setCompressionCodec(final CompressionCodec codec) {
+        _compressionCodec = codec;
+    }
+
     public synchronized void setMaintenanceMode(final boolean value) {
         _maintenance = value;
     }
@@ -179,10 +177,11 @@ public abstract class AgentAttache {
         }
     }
 
-    protected synchronized void addRequest(final Request req) {
-        int index = findRequest(req);
-        assert (index < 0) : "How can we get index again? " + index + ":" + req.toString();
-        _requests.add(-index - 1, req);
+    protected void addRequest(final Request req) {
+        synchronized (_requests) {
+            final QueuedRequest previous = _requests.put(req.getSequence(), new QueuedRequest(req));
+            assert (previous == null) : "How can we get the same sequence again? " + req.toString();
+        }
     }
 
     protected void cancel(final Request req) {
@@ -190,7 +189,7 @@ public abstract class AgentAttache {
         cancel(seq);
     }
 
-    protected synchronized void cancel(final long seq) {
+    protected void cancel(final long seq) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(seq, "Cancelling."));
         }
@@ -198,18 +197,42 @@ public abstract class AgentAttache {
         if (listener != null) {
             listener.processDisconnect(_id, Status.Disconnected);
         }
-        int index = findRequest(seq);
-        if (index >= 0) {
-            _requests.remove(index);
+        synchronized (_requests) {
+            _requests.remove(seq);
+        }
+    }
+
+    protected Request findRequest(final long seq) {
+        synchronized (_requests) {
+            final QueuedRequest queued = _requests.get(seq);
+            return queued != null ? queued.getRequest() : null;
         }
     }
 
-    protected synchronized int findRequest(final Request req) {
-        return Collections.binarySearch(_requests, req, s_reqComparator);
+    /**
+     * @return the request that has been waiting the longest, null if there is none.
+     */
+    protected Request pollRequest() {
+        synchronized (_requests) {
+            final Iterator<QueuedRequest> it = _requests.values().iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            final QueuedRequest queued = it.next();
+            it.remove();
+
+            final long waited = System.currentTimeMillis() - queued.getQueuedTime();
+            _dequeuedRequests++;
+            _totalQueueWaitTime += waited;
+            _maxQueueWaitTime = Math.max(_maxQueueWaitTime, waited);
+            return queued.getRequest();
+        }
     }
 
-    protected synchronized int findRequest(final long seq) {
-        return Collections.binarySearch(_requests, seq, s_seqComparator);
+    protected void clearRequests() {
+        synchronized (_requests) {
+            _requests.clear();
+        }
     }
 
     protected String log(final long seq, final String msg) {
@@ -246,7 +269,36 @@ public abstract class AgentAttache {
     }
 
     public int getQueueSize() {
-        return _requests.size();
+        synchronized (_requests) {
+            return _requests.size();
+        }
+    }
+
+    /**
+     * @return how long the oldest queued request has been waiting in milliseconds, 0 if the queue is empty.
+     */
+    public long getQueueWaitTime() {
+        synchronized (_requests) {
+            if (_requests.isEmpty()) {
+                return 0;
+            }
+            return System.currentTimeMillis() - _requests.values().iterator().next().getQueuedTime();
+        }
+    }
+
+    /**
+     * @return average time in milliseconds the requests sent so far have waited in the queue.
+     */
+    public long getAverageQueueWaitTime() {
+        synchronized (_requests) {
+            return _dequeuedRequests == 0 ? 0 : _totalQueueWaitTime / _dequeuedRequests;
+        }
+    }
+
+    public long getMaxQueueWaitTime() {
+        synchronized (_requests) {
+            return _maxQueueWaitTime;
+        }
     }
 
     public int getNonRecurringListenersSize() {
@@ -328,7 +380,7 @@ public abstract class AgentAttache {
 
     public void cleanup(final Status state) {
         cancelAllCommands(state, true);
-        _requests.clear();
+        clearRequests();
     }
 
     @Override
@@ -460,14 +512,14 @@ public abstract class AgentAttache {
 
     protected synchronized void sendNext(final long seq) {
         _currentSequence = null;
-        if (_requests.isEmpty()) {
+        Request req = pollRequest();
+        if (req == null) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug(log(seq, "No more commands found"));
             }
             return;
         }
 
-        Request req = _requests.pop();
         if (s_logger.isDebugEnabled()) {
             s_logger.debug(log(req.getSequence(), "Sending now.  is current sequence."));
         }
@@ -506,6 +558,24 @@ public abstract class AgentAttache {
      */
     protected abstract boolean isClosed();
 
+    protected static class QueuedRequest {
+        private final Request _request;
+        private final long _queuedTime;
+
+        QueuedRequest(final Request request) {
+            _request = request;
+            _queuedTime = System.currentTimeMillis();
+        }
+
+        public Request getRequest() {
+            return _request;
+        }
+
+        public long getQueuedTime() {
+            return _queuedTime;
+        }
+    }
+
     protected class Alarm extends ManagedContextRunnable {
         long _seq;
 
@@ -73,6 +73,7 @@ import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.agent.api.StartupSecondaryStorageCommand;
 import com.cloud.agent.api.StartupStorageCommand;
 import com.cloud.agent.api.UnsupportedAnswer;
+import com.cloud.agent.transport.CompressionCodec;
 import com.cloud.agent.transport.Request;
 import com.cloud.agent.transport.Response;
 import com.cloud.alert.AlertManager;
@@ -113,6 +114,7 @@ import com.cloud.utils.exception.NioConnectionException;
 import com.cloud.utils.exception.TaskExecutionException;
 import com.cloud.utils.fsm.NoTransitionException;
 import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.nio.HandlerFactory;
 import com.cloud.utils.nio.Link;
 import com.cloud.utils.nio.NioServer;
@@ -612,6 +614,11 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
 
         _monitorExecutor.scheduleWithFixedDelay(new MonitorTask(), mgmtServiceConf.getPingInterval(), mgmtServiceConf.getPingInterval(), TimeUnit.SECONDS);
 
+        try {
+            JmxUtil.registerMBean("AgentManager", "Agent Queues", new AgentQueuesMBeanImpl(_agents));
+        } catch (final Exception e) {
+            s_logger.warn("Unable to register agent queue statistics to JMX monitoring due to " + e.getMessage());
+        }
         return true;
     }
 
@@ -1100,6 +1107,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                 }
 
                 attache = createAttacheForConnect(host, link);
+                attache.setCompressionCodec(CompressionCodec.negotiate(startup[0].getCompressionCodecs()));
                 attache = notifyMonitorsOfConnection(attache, startup, false);
             }
         } catch (final Exception e) {
@@ -1201,6 +1209,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
             if (cmd instanceof StartupRoutingCommand || cmd instanceof StartupProxyCommand || cmd instanceof StartupSecondaryStorageCommand ||
                     cmd instanceof StartupStorageCommand) {
                 answers[i] = new StartupAnswer((StartupCommand) cmds[i], 0, mgmtServiceConf.getPingInterval());
+                answers[i].setCompressionCodec(CompressionCodec.negotiate(((StartupCommand) cmds[i]).getCompressionCodecs()).name());
                 break;
             }
         }
@@ -1328,6 +1337,9 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                     s_logger.warn("Caught: ", th);
                     answer = new Answer(cmd, false, th.getMessage());
                 }
+                if (answer instanceof StartupAnswer) {
+                    ((StartupAnswer)answer).setCompressionCodec(attache.getCompressionCodec().name());
+                }
                 answers[i] = answer;
             }
 
@@ -1340,6 +1352,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                 }
             }
             try {
+                response.setCompressionCodec(attache.getCompressionCodec());
                 link.send(response.toBytes());
             } catch (final ClosedChannelException e) {
                 s_logger.warn("Unable to send response because connection is closed: " + response);
@@ -1750,6 +1763,7 @@ public class AgentManagerImpl extends ManagerBase implements AgentManager, Handl
                 if (((StartupRoutingCommand)cmd).getHypervisorType() == HypervisorType.KVM || ((StartupRoutingCommand)cmd).getHypervisorType() == HypervisorType.LXC) {
                     Map<String, String> params = new HashMap<String, String>();
                     params.put("router.aggregation.command.each.timeout", _configDao.getValue("router.aggregation.command.each.timeout"));
+                    params.put("router.config.bundle", _configDao.getValue("router.config.bundle"));
 
                     try {
                         SetHostParamsCommand cmds = new SetHostParamsCommand(params);
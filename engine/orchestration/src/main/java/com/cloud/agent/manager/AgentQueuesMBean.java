@@ -0,0 +1,36 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allows JMX access to the request queues of the agents connected to this management server
+ *
+ */
+public interface AgentQueuesMBean {
+    int getQueuedRequests();
+
+    long getMaxQueueWaitTime();
+
+    /**
+     * @return for every agent its id, name, number of queued requests, how long the oldest one has been waiting and
+     * the average and max time the requests sent so far have waited, in milliseconds
+     */
+    List<Map<String, String>> getAgentQueues();
+}
@@ -0,0 +1,67 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.StandardMBean;
+
+public class AgentQueuesMBeanImpl extends StandardMBean implements AgentQueuesMBean {
+    private final Map<Long, AgentAttache> _agents;
+
+    protected AgentQueuesMBeanImpl(Map<Long, AgentAttache> agents) {
+        super(AgentQueuesMBean.class, false);
+        _agents = agents;
+    }
+
+    @Override
+    public int getQueuedRequests() {
+        int queued = 0;
+        for (AgentAttache attache : _agents.values()) {
+            queued += attache.getQueueSize();
+        }
+        return queued;
+    }
+
+    @Override
+    public long getMaxQueueWaitTime() {
+        long max = 0;
+        for (AgentAttache attache : _agents.values()) {
+            max = Math.max(max, attache.getQueueWaitTime());
+        }
+        return max;
+    }
+
+    @Override
+    public List<Map<String, String>> getAgentQueues() {
+        List<Map<String, String>> results = new LinkedList<Map<String, String>>();
+        for (AgentAttache attache : _agents.values()) {
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("id", Long.toString(attache.getId()));
+            map.put("name", attache.getName());
+            map.put("queued", Integer.toString(attache.getQueueSize()));
+            map.put("queueWaitMs", Long.toString(attache.getQueueWaitTime()));
+            map.put("averageQueueWaitMs", Long.toString(attache.getAverageQueueWaitTime()));
+            map.put("maxQueueWaitMs", Long.toString(attache.getMaxQueueWaitTime()));
+            results.add(map);
+        }
+        return results;
+    }
+}
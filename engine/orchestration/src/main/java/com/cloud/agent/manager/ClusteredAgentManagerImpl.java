@@ -59,6 +59,9 @@ import com.cloud.agent.api.CancelCommand;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PropagateEntityCacheInvalidationCommand;
+import com.cloud.agent.api.PropagateLockReleaseCommand;
+import com.cloud.agent.api.PropagateLockWaitCommand;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.ScheduleHostScanTaskCommand;
 import com.cloud.agent.api.TransferAgentCommand;
@@ -110,6 +113,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     protected HashMap<String, SSLEngine> _sslEngines;
     private final Timer _timer = new Timer("ClusteredAgentManager Timer");
     boolean _agentLbHappened = false;
+    private ClusteredEntityCacheInvalidator _entityCacheInvalidator;
+    private ClusteredLockReleaseNotifier _lockReleaseNotifier;
 
     @Inject
     protected ClusterManager _clusterMgr = null;
@@ -140,6 +145,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
     protected final ConfigKey<Integer> LoadSize = new ConfigKey<Integer>(Integer.class, "direct.agent.load.size", "Advanced", "16", "How many agents to connect to in each round", true);
     protected final ConfigKey<Integer> ScanInterval = new ConfigKey<Integer>(Integer.class, "direct.agent.scan.interval", "Advanced", "90", "Interval between scans to load agents", false,
             ConfigKey.Scope.Global, 1000);
+    protected final ConfigKey<Integer> EntityCacheInvalidationInterval = new ConfigKey<Integer>(Integer.class, "entity.cache.invalidation.interval", "Advanced", "500",
+            "Interval in milliseconds between the broadcasts of the DAO cache evictions to the other management servers", false);
 
     @Override
     public boolean configure(final String name, final Map<String, Object> xmlParams) throws ConfigurationException {
@@ -155,6 +162,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         _clusterMgr.registerDispatcher(new ClusterDispatcher());
 
         _gson = GsonHelper.getGson();
+        _entityCacheInvalidator = new ClusteredEntityCacheInvalidator(_clusterMgr, _gson);
+        _lockReleaseNotifier = new ClusteredLockReleaseNotifier(_clusterMgr, _gson);
 
         return super.configure(name, xmlParams);
     }
@@ -165,6 +174,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             return false;
         }
         _timer.schedule(new DirectAgentScanTimerTask(), STARTUP_DELAY, ScanInterval.value());
+        _entityCacheInvalidator.start(EntityCacheInvalidationInterval.value());
+        _lockReleaseNotifier.start();
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Scheduled direct agent scan task to run at an interval of " + ScanInterval.value() + " seconds");
         }
@@ -592,6 +603,8 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
             }
         }
         _timer.cancel();
+        _entityCacheInvalidator.stop();
+        _lockReleaseNotifier.stop();
 
         // cancel all transfer tasks
         s_transferExecutor.shutdownNow();
@@ -1339,6 +1352,15 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
                 final Answer[] answers = new Answer[1];
                 answers[0] = new Answer(cmd, result, null);
                 return _gson.toJson(answers);
+            } else if (cmds.length == 1 && cmds[0] instanceof PropagateEntityCacheInvalidationCommand) {
+                ClusteredEntityCacheInvalidator.handle((PropagateEntityCacheInvalidationCommand)cmds[0]);
+                return null;
+            } else if (cmds.length == 1 && cmds[0] instanceof PropagateLockReleaseCommand) {
+                ClusteredLockReleaseNotifier.handle((PropagateLockReleaseCommand)cmds[0]);
+                return null;
+            } else if (cmds.length == 1 && cmds[0] instanceof PropagateLockWaitCommand) {
+                ClusteredLockReleaseNotifier.handle((PropagateLockWaitCommand)cmds[0]);
+                return null;
             } else if (cmds.length == 1 && cmds[0] instanceof ScheduleHostScanTaskCommand) {
                 final ScheduleHostScanTaskCommand cmd = (ScheduleHostScanTaskCommand)cmds[0];
                 final String response = handleScheduleHostScanTaskCommand(cmd);
@@ -1452,6 +1474,7 @@ public class ClusteredAgentManagerImpl extends AgentManagerImpl implements Clust
         keysLst.add(ConnectedAgentThreshold);
         keysLst.add(LoadSize);
         keysLst.add(ScanInterval);
+        keysLst.add(EntityCacheInvalidationInterval);
         return keysLst.toArray(new ConfigKey<?>[keysLst.size()]);
     }
 }
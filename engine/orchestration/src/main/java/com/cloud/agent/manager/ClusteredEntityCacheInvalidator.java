@@ -0,0 +1,146 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PropagateEntityCacheInvalidationCommand;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.EntityCacheInvalidationListener;
+import com.cloud.utils.db.GenericDaoBase;
+import com.google.gson.Gson;
+
+/**
+ * Collects the DAO cache evictions done on this management server and broadcasts them to the peers in batches,
+ * so that a burst of updates costs one cluster message per flush interval.  Evictions are only handed over once
+ * the changes are committed, and are sent to the peers found active by the cluster heart beat.
+ */
+public class ClusteredEntityCacheInvalidator implements EntityCacheInvalidationListener {
+    private static final Logger s_logger = Logger.getLogger(ClusteredEntityCacheInvalidator.class);
+
+    private final ClusterManager _clusterMgr;
+    private final Gson _gson;
+    // cache name -> evicted ids, null when the whole cache was cleared
+    private final Map<String, Set<String>> _pending = new HashMap<String, Set<String>>();
+    private ScheduledExecutorService _executor;
+
+    public ClusteredEntityCacheInvalidator(final ClusterManager clusterMgr, final Gson gson) {
+        _clusterMgr = clusterMgr;
+        _gson = gson;
+    }
+
+    public void start(final long flushIntervalMs) {
+        _executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("EntityCache-Invalidator"));
+        _executor.scheduleWithFixedDelay(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                try {
+                    flush();
+                } catch (final Exception e) {
+                    s_logger.warn("Unable to propagate entity cache invalidations", e);
+                }
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        GenericDaoBase.setCacheInvalidationListener(this);
+    }
+
+    public void stop() {
+        GenericDaoBase.setCacheInvalidationListener(null);
+        if (_executor != null) {
+            _executor.shutdown();
+        }
+    }
+
+    @Override
+    public void onEntityCacheInvalidated(final String cacheName, final Serializable id) {
+        synchronized (_pending) {
+            if (id == null) {
+                _pending.put(cacheName, null);
+                return;
+            }
+            if (_pending.containsKey(cacheName)) {
+                final Set<String> ids = _pending.get(cacheName);
+                if (ids != null) {
+                    ids.add(id.toString());
+                }
+            } else {
+                final Set<String> ids = new HashSet<String>();
+                ids.add(id.toString());
+                _pending.put(cacheName, ids);
+            }
+        }
+    }
+
+    protected void flush() {
+        final Map<String, List<String>> invalidations = new HashMap<String, List<String>>();
+        synchronized (_pending) {
+            if (_pending.isEmpty()) {
+                return;
+            }
+            for (final Map.Entry<String, Set<String>> entry : _pending.entrySet()) {
+                invalidations.put(entry.getKey(), entry.getValue() == null ? new ArrayList<String>() : new ArrayList<String>(entry.getValue()));
+            }
+            _pending.clear();
+        }
+
+        final List<String> peers = _clusterMgr.getActivePeerNames();
+        if (peers.isEmpty()) {
+            return;
+        }
+
+        final String cmds = _gson.toJson(new Command[] {new PropagateEntityCacheInvalidationCommand(invalidations)});
+        for (final String peer : peers) {
+            try {
+                _clusterMgr.executeAsync(peer, 0, cmds, false);
+            } catch (final Exception e) {
+                s_logger.warn("Unable to propagate entity cache invalidations to " + peer, e);
+            }
+        }
+    }
+
+    /**
+     * Applies the evictions received from a peer management server to the local caches.
+     */
+    public static void handle(final PropagateEntityCacheInvalidationCommand cmd) {
+        if (cmd.getInvalidations() == null) {
+            return;
+        }
+        for (final Map.Entry<String, List<String>> entry : cmd.getInvalidations().entrySet()) {
+            if (entry.getValue() == null || entry.getValue().isEmpty()) {
+                GenericDaoBase.invalidateCachedEntity(entry.getKey(), null);
+            } else {
+                for (final String id : entry.getValue()) {
+                    GenericDaoBase.invalidateCachedEntity(entry.getKey(), id);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PropagateLockReleaseCommand;
+import com.cloud.agent.api.PropagateLockWaitCommand;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.LockReleaseListener;
+import com.cloud.utils.db.Merovingian2;
+import com.google.gson.Gson;
+
+/**
+ * Sends the releases of the locks held by this management server to the peers waiting for them, and asks the peers
+ * holding the locks this one waits for to do the same.  Notices queued while others are being sent are coalesced
+ * into one message per peer.  When too many are queued the new ones are dropped, the waiters then find out about
+ * the release on their next poll.
+ */
+public class ClusteredLockReleaseNotifier implements LockReleaseListener {
+    private static final Logger s_logger = Logger.getLogger(ClusteredLockReleaseNotifier.class);
+
+    static final int MAX_PENDING_NOTICES = 10000;
+
+    private final ClusterManager _clusterMgr;
+    private final Gson _gson;
+    private final LinkedBlockingQueue<Notice> _pending = new LinkedBlockingQueue<Notice>(MAX_PENDING_NOTICES);
+    private ExecutorService _executor;
+    private volatile boolean _stopped = false;
+
+    public ClusteredLockReleaseNotifier(final ClusterManager clusterMgr, final Gson gson) {
+        _clusterMgr = clusterMgr;
+        _gson = gson;
+    }
+
+    public void start() {
+        _executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("LockRelease-Notifier"));
+        _executor.execute(new ManagedContextRunnable() {
+            @Override
+            protected void runInContext() {
+                while (!_stopped) {
+                    try {
+                        flush(_pending.take());
+                    } catch (final InterruptedException e) {
+                        s_logger.debug("[ignored] interrupted while waiting for lock releases");
+                    } catch (final Exception e) {
+                        s_logger.warn("Unable to propagate lock releases", e);
+                    }
+                }
+            }
+        });
+        Merovingian2.setLockReleaseListener(this);
+    }
+
+    public void stop() {
+        Merovingian2.setLockReleaseListener(null);
+        _stopped = true;
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void onLockReleased(final String key, final Set<Long> waitingMsIds) {
+        for (final Long msId : waitingMsIds) {
+            queue(new Notice(msId, key, true));
+        }
+    }
+
+    @Override
+    public void onLockWaiting(final String key, final long ownerMsId) {
+        queue(new Notice(ownerMsId, key, false));
+    }
+
+    protected void queue(final Notice notice) {
+        if (!_pending.offer(notice)) {
+            s_logger.debug("Too many lock notices pending, dropping the one about lck-" + notice.key + " for " + notice.msId);
+        }
+    }
+
+    protected void flush(final Notice first) {
+        final List<Notice> notices = new ArrayList<Notice>();
+        notices.add(first);
+        _pending.drainTo(notices);
+
+        final Map<Long, Set<String>> released = new LinkedHashMap<Long, Set<String>>();
+        final Map<Long, Set<String>> waiting = new LinkedHashMap<Long, Set<String>>();
+        for (final Notice notice : notices) {
+            final Map<Long, Set<String>> keys = notice.released ? released : waiting;
+            Set<String> peerKeys = keys.get(notice.msId);
+            if (peerKeys == null) {
+                peerKeys = new LinkedHashSet<String>();
+                keys.put(notice.msId, peerKeys);
+            }
+            peerKeys.add(notice.key);
+        }
+
+        for (final Map.Entry<Long, Set<String>> entry : released.entrySet()) {
+            send(entry.getKey(), new PropagateLockReleaseCommand(new ArrayList<String>(entry.getValue())));
+        }
+        if (!waiting.isEmpty()) {
+            final long msId = _clusterMgr.getManagementNodeId();
+            for (final Map.Entry<Long, Set<String>> entry : waiting.entrySet()) {
+                send(entry.getKey(), new PropagateLockWaitCommand(new ArrayList<String>(entry.getValue()), msId));
+            }
+        }
+    }
+
+    protected void send(final long msId, final Command cmd) {
+        try {
+            _clusterMgr.executeAsync(Long.toString(msId), 0, _gson.toJson(new Command[] {cmd}), false);
+        } catch (final Exception e) {
+            s_logger.warn("Unable to propagate lock notices to " + msId, e);
+        }
+    }
+
+    /**
+     * Wakes up the threads of this management server waiting for the locks released by a peer.
+     */
+    public static void handle(final PropagateLockReleaseCommand cmd) {
+        final Merovingian2 lockMaster = Merovingian2.getLockMaster();
+        if (lockMaster == null || cmd.getKeys() == null) {
+            return;
+        }
+        for (final String key : cmd.getKeys()) {
+            lockMaster.wakeUpWaiters(key);
+        }
+    }
+
+    /**
+     * Remembers to tell the peer about the release of the locks it waits for.
+     */
+    public static void handle(final PropagateLockWaitCommand cmd) {
+        final Merovingian2 lockMaster = Merovingian2.getLockMaster();
+        if (lockMaster == null || cmd.getKeys() == null) {
+            return;
+        }
+        for (final String key : cmd.getKeys()) {
+            lockMaster.addRemoteWaiter(key, cmd.getMsId());
+        }
+    }
+
+    protected static class Notice {
+        final long msId;
+        final String key;
+        // true to tell the peer about a release, false to ask it to tell us about one
+        final boolean released;
+
+        Notice(final long msId, final String key, final boolean released) {
+            this.msId = msId;
+            this.key = key;
+            this.released = released;
+        }
+    }
+}
@@ -41,6 +41,7 @@ public class ConnectedAgentAttache extends AgentAttache {
     @Override
     public synchronized void send(final Request req) throws AgentUnavailableException {
         try {
+            req.setCompressionCodec(_compressionCodec);
             _link.send(req.toBytes());
         } catch (ClosedChannelException e) {
             throw new AgentUnavailableException("Channel is closed", _id);
@@ -63,7 +64,7 @@ public class ConnectedAgentAttache extends AgentAttache {
             _link = null;
         }
         cancelAllCommands(state, true);
-        _requests.clear();
+        clearRequests();
     }
 
     @Override
@@ -23,6 +23,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -3984,8 +3985,17 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
     @MessageHandler(topic = Topics.VM_POWER_STATE)
     protected void HandlePowerStateReport(final String subject, final String senderAddress, final Object args) {
         assert args != null;
-        final Long vmId = (Long)args;
+        // power state sync publishes all VMs changed by one host report together
+        if (args instanceof Collection) {
+            for (final Object vmId : (Collection<?>)args) {
+                handlePowerStateReport((Long)vmId);
+            }
+        } else {
+            handlePowerStateReport((Long)args);
+        }
+    }
 
+    private void handlePowerStateReport(final Long vmId) {
         final List<VmWorkJobVO> pendingWorkJobs = _workJobDao.listPendingWorkJobs(
                 VirtualMachine.Type.Instance, vmId);
         if (pendingWorkJobs.size() == 0 && !_haMgr.hasPendingHaWork(vmId)) {
@@ -4017,7 +4027,7 @@ public class VirtualMachineManagerImpl extends ManagerBase implements VirtualMac
 
             // reset VM power state tracking so that we won't lost signal when VM has
             // been translated to
-            _vmDao.resetVmPowerStateTracking(vmId);
+            _syncMgr.resetVmSyncState(vmId);
         }
     }
 
@@ -24,6 +24,8 @@ public interface VirtualMachinePowerStateSync {
 
     void resetHostSyncState(long hostId);
 
+    void resetVmSyncState(long vmId);
+
     void processHostVmStateReport(long hostId, Map<String, HostVmStateReportEntry> report);
 
     // to adapt legacy ping report
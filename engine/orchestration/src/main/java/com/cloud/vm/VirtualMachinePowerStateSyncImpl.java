@@ -16,10 +16,15 @@
 // under the License.
 package com.cloud.vm;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
@@ -30,7 +35,6 @@ import org.apache.cloudstack.framework.messagebus.PublishScope;
 
 import com.cloud.agent.api.HostVmStateReportEntry;
 import com.cloud.utils.DateUtil;
-import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.vm.dao.VMInstanceDao;
 
 public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStateSync {
@@ -41,15 +45,45 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
     @Inject VirtualMachineManager _vmMgr;
     @Inject ManagementServiceConfiguration mgmtServiceConf;
 
+    /**
+     * Last known power state of VMs whose tracking in the DB has settled, i.e. another report of the
+     * same state from the same host would not change the row. Reports matching this snapshot are
+     * skipped without touching the DB; anything else goes through VMInstanceDao.
+     */
+    private final Map<Long, PowerStateSnapshot> _settledPowerStates = new ConcurrentHashMap<Long, PowerStateSnapshot>();
+    // VMs each host had in the snapshot after its last report, used to prune VMs that left the host
+    private final Map<Long, Set<Long>> _settledVmsByHost = new ConcurrentHashMap<Long, Set<Long>>();
+
+    static class PowerStateSnapshot {
+        final long hostId;
+        final VirtualMachine.PowerState powerState;
+
+        PowerStateSnapshot(long hostId, VirtualMachine.PowerState powerState) {
+            this.hostId = hostId;
+            this.powerState = powerState;
+        }
+
+        boolean matches(long hostId, VirtualMachine.PowerState powerState) {
+            return this.hostId == hostId && this.powerState == powerState;
+        }
+    }
+
     public VirtualMachinePowerStateSyncImpl() {
     }
 
     @Override
     public void resetHostSyncState(long hostId) {
         s_logger.info("Reset VM power state sync for host: " + hostId);
+        forgetSettledVms(hostId, _settledVmsByHost.remove(hostId));
         _instanceDao.resetHostPowerStateTracking(hostId);
     }
 
+    @Override
+    public void resetVmSyncState(long vmId) {
+        _settledPowerStates.remove(vmId);
+        _instanceDao.resetVmPowerStateTracking(vmId);
+    }
+
     @Override
     public void processHostVmStateReport(long hostId, Map<String, HostVmStateReportEntry> report) {
         if (s_logger.isDebugEnabled())
@@ -73,26 +107,47 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
         if (s_logger.isDebugEnabled())
             s_logger.debug("Process VM state report. host: " + hostId + ", number of records in report: " + translatedInfo.size());
 
+        // only VMs whose reported state differs from the settled snapshot need to go to the DB
+        Set<Long> settledVms = new HashSet<Long>();
+        Map<Long, VirtualMachine.PowerState> pendingUpdates = new HashMap<Long, VirtualMachine.PowerState>();
         for (Map.Entry<Long, VirtualMachine.PowerState> entry : translatedInfo.entrySet()) {
+            PowerStateSnapshot snapshot = _settledPowerStates.get(entry.getKey());
+            if (snapshot != null && snapshot.matches(hostId, entry.getValue())) {
+                settledVms.add(entry.getKey());
+                continue;
+            }
 
             if (s_logger.isDebugEnabled())
                 s_logger.debug("VM state report. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
 
-            if (_instanceDao.updatePowerState(entry.getKey(), hostId, entry.getValue())) {
-                if (s_logger.isDebugEnabled())
-                    s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + entry.getKey() + ", power state: " + entry.getValue());
+            _settledPowerStates.remove(entry.getKey());
+            pendingUpdates.put(entry.getKey(), entry.getValue());
+        }
 
-                _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, entry.getKey());
-            } else {
-                if (s_logger.isDebugEnabled())
-                    s_logger.debug("VM power state does not change, skip DB writing. vm id: " + entry.getKey());
+        List<Long> updatedVms = new ArrayList<Long>();
+        if (!pendingUpdates.isEmpty()) {
+            updatedVms.addAll(_instanceDao.updatePowerState(pendingUpdates, hostId));
+            for (Map.Entry<Long, VirtualMachine.PowerState> entry : pendingUpdates.entrySet()) {
+                if (!updatedVms.contains(entry.getKey())) {
+                    if (s_logger.isDebugEnabled())
+                        s_logger.debug("VM power state does not change, skip DB writing. vm id: " + entry.getKey());
+
+                    _settledPowerStates.put(entry.getKey(), new PowerStateSnapshot(hostId, entry.getValue()));
+                    settledVms.add(entry.getKey());
+                }
             }
         }
 
+        Set<Long> previouslySettledVms = _settledVmsByHost.put(hostId, settledVms);
+        if (previouslySettledVms != null) {
+            previouslySettledVms.removeAll(settledVms);
+            forgetSettledVms(hostId, previouslySettledVms);
+        }
+
         // for all running/stopping VMs, we provide monitoring of missing report
         List<VMInstanceVO> vmsThatAreMissingReport = _instanceDao.findByHostInStates(hostId, VirtualMachine.State.Running,
                 VirtualMachine.State.Stopping, VirtualMachine.State.Starting);
-        java.util.Iterator<VMInstanceVO> it = vmsThatAreMissingReport.iterator();
+        Iterator<VMInstanceVO> it = vmsThatAreMissingReport.iterator();
         while (it.hasNext()) {
             VMInstanceVO instance = it.next();
             if (translatedInfo.get(instance.getId()) != null)
@@ -107,17 +162,15 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
             // 2 times of sync-update interval for graceful period
             long milliSecondsGracefullPeriod = mgmtServiceConf.getPingInterval() * 2000L;
 
+            List<Long> outdatedVms = new ArrayList<Long>();
+            Map<Long, VirtualMachine.PowerState> missingVms = new HashMap<Long, VirtualMachine.PowerState>();
             for (VMInstanceVO instance : vmsThatAreMissingReport) {
+                _settledPowerStates.remove(instance.getId());
 
                 // Make sure powerState is up to date for missing VMs
-                try {
-                    if (!_instanceDao.isPowerStateUpToDate(instance.getId())) {
-                        s_logger.warn("Detected missing VM but power state is outdated, wait for another process report run for VM id: " + instance.getId());
-                        _instanceDao.resetVmPowerStateTracking(instance.getId());
-                        continue;
-                    }
-                } catch (CloudRuntimeException e) {
-                    s_logger.warn("Checked for missing powerstate of a none existing vm", e);
+                if (!_instanceDao.isPowerStateUpToDate(instance)) {
+                    s_logger.warn("Detected missing VM but power state is outdated, wait for another process report run for VM id: " + instance.getId());
+                    outdatedVms.add(instance.getId());
                     continue;
                 }
 
@@ -135,26 +188,43 @@ public class VirtualMachinePowerStateSyncImpl implements VirtualMachinePowerStat
 
                 if (milliSecondsSinceLastStateUpdate > milliSecondsGracefullPeriod) {
                     s_logger.debug("vm id: " + instance.getId() + " - time since last state update(" + milliSecondsSinceLastStateUpdate + "ms) has passed graceful period");
-
-                    if (_instanceDao.updatePowerState(instance.getId(), hostId, VirtualMachine.PowerState.PowerReportMissing)) {
-                        if (s_logger.isDebugEnabled())
-                            s_logger.debug("VM state report is updated. host: " + hostId + ", vm id: " + instance.getId() + ", power state: PowerReportMissing ");
-
-                        _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, instance.getId());
-                    } else {
-                        if (s_logger.isDebugEnabled())
-                            s_logger.debug("VM power state does not change, skip DB writing. vm id: " + instance.getId());
-                    }
+                    missingVms.put(instance.getId(), VirtualMachine.PowerState.PowerReportMissing);
                 } else {
                     s_logger.debug("vm id: " + instance.getId() + " - time since last state update(" + milliSecondsSinceLastStateUpdate + "ms) has not passed graceful period yet");
                 }
             }
+
+            _instanceDao.resetVmPowerStateTracking(outdatedVms);
+            if (!missingVms.isEmpty()) {
+                updatedVms.addAll(_instanceDao.updatePowerState(missingVms, hostId));
+            }
+        }
+
+        if (!updatedVms.isEmpty()) {
+            if (s_logger.isDebugEnabled())
+                s_logger.debug("VM state report is updated. host: " + hostId + ", vm ids: " + updatedVms);
+
+            _messageBus.publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, updatedVms);
         }
 
         if (s_logger.isDebugEnabled())
             s_logger.debug("Done with process of VM state report. host: " + hostId);
     }
 
+    private void forgetSettledVms(long hostId, Set<Long> vmIds) {
+        if (vmIds == null) {
+            return;
+        }
+
+        for (Long vmId : vmIds) {
+            // the VM may have been reported by another host in the meantime
+            PowerStateSnapshot snapshot = _settledPowerStates.get(vmId);
+            if (snapshot != null && snapshot.hostId == hostId) {
+                _settledPowerStates.remove(vmId, snapshot);
+            }
+        }
+    }
+
     @Override
     public Map<Long, VirtualMachine.PowerState> convertVmStateReport(Map<String, HostVmStateReportEntry> states) {
         final HashMap<Long, VirtualMachine.PowerState> map = new HashMap<Long, VirtualMachine.PowerState>();
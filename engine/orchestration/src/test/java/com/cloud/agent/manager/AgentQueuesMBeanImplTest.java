@@ -0,0 +1,70 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class AgentQueuesMBeanImplTest {
+
+    private AgentAttache mockAttache(long id, int queued, long waiting, long average, long max) {
+        AgentAttache attache = mock(AgentAttache.class);
+        when(attache.getId()).thenReturn(id);
+        when(attache.getName()).thenReturn("host-" + id);
+        when(attache.getQueueSize()).thenReturn(queued);
+        when(attache.getQueueWaitTime()).thenReturn(waiting);
+        when(attache.getAverageQueueWaitTime()).thenReturn(average);
+        when(attache.getMaxQueueWaitTime()).thenReturn(max);
+        return attache;
+    }
+
+    @Test
+    public void testReportsQueuesOfConnectedAgents() {
+        ConcurrentHashMap<Long, AgentAttache> agents = new ConcurrentHashMap<Long, AgentAttache>();
+        AgentQueuesMBeanImpl mbean = new AgentQueuesMBeanImpl(agents);
+        assertEquals(0, mbean.getQueuedRequests());
+        assertEquals(0, mbean.getMaxQueueWaitTime());
+
+        agents.put(1L, mockAttache(1L, 3, 250, 20, 400));
+        agents.put(2L, mockAttache(2L, 1, 900, 10, 950));
+
+        assertEquals(4, mbean.getQueuedRequests());
+        assertEquals(900, mbean.getMaxQueueWaitTime());
+
+        List<Map<String, String>> queues = mbean.getAgentQueues();
+        assertEquals(2, queues.size());
+        for (Map<String, String> queue : queues) {
+            if ("1".equals(queue.get("id"))) {
+                assertEquals("host-1", queue.get("name"));
+                assertEquals("3", queue.get("queued"));
+                assertEquals("250", queue.get("queueWaitMs"));
+                assertEquals("20", queue.get("averageQueueWaitMs"));
+                assertEquals("400", queue.get("maxQueueWaitMs"));
+            } else {
+                assertEquals("2", queue.get("id"));
+                assertEquals("1", queue.get("queued"));
+            }
+        }
+    }
+}
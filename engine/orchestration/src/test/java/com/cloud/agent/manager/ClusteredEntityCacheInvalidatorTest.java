@@ -0,0 +1,119 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PropagateEntityCacheInvalidationCommand;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.serializer.GsonHelper;
+import com.google.gson.Gson;
+
+public class ClusteredEntityCacheInvalidatorTest {
+
+    private ClusterManager clusterMgr;
+    private Gson gson;
+    private ClusteredEntityCacheInvalidator invalidator;
+
+    @Before
+    public void setUp() {
+        clusterMgr = mock(ClusterManager.class);
+        gson = GsonHelper.getGson();
+        when(clusterMgr.getActivePeerNames()).thenReturn(Arrays.asList("2"));
+        invalidator = new ClusteredEntityCacheInvalidator(clusterMgr, gson);
+    }
+
+    private Map<String, List<String>> flushAndCapture() {
+        invalidator.flush();
+        ArgumentCaptor<String> json = ArgumentCaptor.forClass(String.class);
+        verify(clusterMgr, times(1)).executeAsync(eq("2"), eq(0L), json.capture(), anyBoolean());
+        Command[] cmds = gson.fromJson(json.getValue(), Command[].class);
+        assertEquals(1, cmds.length);
+        assertTrue(cmds[0] instanceof PropagateEntityCacheInvalidationCommand);
+        return ((PropagateEntityCacheInvalidationCommand)cmds[0]).getInvalidations();
+    }
+
+    @Test
+    public void testNothingToFlush() {
+        invalidator.flush();
+        verify(clusterMgr, never()).executeAsync(anyString(), anyLong(), anyString(), anyBoolean());
+    }
+
+    @Test
+    public void testFlushGoesToActivePeersWithoutQueryingThem() {
+        when(clusterMgr.getActivePeerNames()).thenReturn(Arrays.asList("2", "3"));
+        invalidator.onEntityCacheInvalidated("AccountDaoImpl", 1L);
+        invalidator.flush();
+
+        verify(clusterMgr, times(1)).executeAsync(eq("2"), eq(0L), anyString(), anyBoolean());
+        verify(clusterMgr, times(1)).executeAsync(eq("3"), eq(0L), anyString(), anyBoolean());
+        verify(clusterMgr, never()).broadcast(anyLong(), anyString());
+    }
+
+    @Test
+    public void testNoPeers() {
+        when(clusterMgr.getActivePeerNames()).thenReturn(Collections.<String>emptyList());
+        invalidator.onEntityCacheInvalidated("AccountDaoImpl", 1L);
+        invalidator.flush();
+        verify(clusterMgr, never()).executeAsync(anyString(), anyLong(), anyString(), anyBoolean());
+    }
+
+    @Test
+    public void testEvictionsAreBatched() {
+        invalidator.onEntityCacheInvalidated("AccountDaoImpl", 1L);
+        invalidator.onEntityCacheInvalidated("AccountDaoImpl", 2L);
+        invalidator.onEntityCacheInvalidated("AccountDaoImpl", 1L);
+        invalidator.onEntityCacheInvalidated("DataCenterDaoImpl", 3L);
+
+        Map<String, List<String>> invalidations = flushAndCapture();
+        assertEquals(2, invalidations.size());
+        assertEquals(2, invalidations.get("AccountDaoImpl").size());
+        assertTrue(invalidations.get("AccountDaoImpl").contains("1"));
+        assertTrue(invalidations.get("AccountDaoImpl").contains("2"));
+        assertEquals(1, invalidations.get("DataCenterDaoImpl").size());
+    }
+
+    @Test
+    public void testClearSupersedesSingleEvictions() {
+        invalidator.onEntityCacheInvalidated("AccountDaoImpl", 1L);
+        invalidator.onEntityCacheInvalidated("AccountDaoImpl", null);
+        invalidator.onEntityCacheInvalidated("AccountDaoImpl", 2L);
+
+        Map<String, List<String>> invalidations = flushAndCapture();
+        assertTrue(invalidations.get("AccountDaoImpl").isEmpty());
+    }
+}
@@ -0,0 +1,120 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.PropagateLockReleaseCommand;
+import com.cloud.agent.api.PropagateLockWaitCommand;
+import com.cloud.cluster.ClusterManager;
+import com.cloud.serializer.GsonHelper;
+import com.google.gson.Gson;
+
+public class ClusteredLockReleaseNotifierTest {
+
+    private ClusterManager clusterMgr;
+    private Gson gson;
+    private ClusteredLockReleaseNotifier notifier;
+
+    @Before
+    public void setUp() {
+        clusterMgr = mock(ClusterManager.class);
+        when(clusterMgr.getManagementNodeId()).thenReturn(1L);
+        gson = GsonHelper.getGson();
+        notifier = new ClusteredLockReleaseNotifier(clusterMgr, gson);
+    }
+
+    private Command sentTo(String peer) {
+        ArgumentCaptor<String> json = ArgumentCaptor.forClass(String.class);
+        verify(clusterMgr, times(1)).executeAsync(eq(peer), eq(0L), json.capture(), eq(false));
+        Command[] cmds = gson.fromJson(json.getValue(), Command[].class);
+        assertEquals(1, cmds.length);
+        return cmds[0];
+    }
+
+    @Test
+    public void testReleasesGoOnlyToWaitingPeers() {
+        notifier.onLockReleased("network-1", new HashSet<Long>(Arrays.asList(2L, 3L)));
+        notifier.onLockReleased("network-1", Collections.singleton(2L));
+        notifier.onLockReleased("vm-2", Collections.singleton(2L));
+
+        notifier.flush(new ClusteredLockReleaseNotifier.Notice(3L, "vm-3", true));
+
+        Command cmd = sentTo("2");
+        assertTrue(cmd instanceof PropagateLockReleaseCommand);
+        assertEquals(Arrays.asList("network-1", "vm-2"), ((PropagateLockReleaseCommand)cmd).getKeys());
+
+        cmd = sentTo("3");
+        assertTrue(cmd instanceof PropagateLockReleaseCommand);
+        List<String> keys = ((PropagateLockReleaseCommand)cmd).getKeys();
+        assertEquals(Arrays.asList("vm-3", "network-1"), keys);
+
+        verify(clusterMgr, never()).broadcast(anyLong(), anyString());
+    }
+
+    @Test
+    public void testWaitersAskTheOwner() {
+        notifier.onLockWaiting("network-1", 2L);
+
+        notifier.flush(new ClusteredLockReleaseNotifier.Notice(2L, "vm-2", false));
+
+        Command cmd = sentTo("2");
+        assertTrue(cmd instanceof PropagateLockWaitCommand);
+        assertEquals(Arrays.asList("vm-2", "network-1"), ((PropagateLockWaitCommand)cmd).getKeys());
+        assertEquals(1L, ((PropagateLockWaitCommand)cmd).getMsId());
+    }
+
+    @Test
+    public void testPendingNoticesAreBounded() {
+        for (int i = 0; i < ClusteredLockReleaseNotifier.MAX_PENDING_NOTICES + 10; i++) {
+            notifier.onLockWaiting("vm-" + i, 2L);
+        }
+
+        notifier.flush(new ClusteredLockReleaseNotifier.Notice(2L, "vm-0", false));
+
+        Command cmd = sentTo("2");
+        assertEquals(ClusteredLockReleaseNotifier.MAX_PENDING_NOTICES, ((PropagateLockWaitCommand)cmd).getKeys().size());
+        verify(clusterMgr, times(1)).executeAsync(anyString(), anyLong(), anyString(), anyBoolean());
+    }
+
+    @Test
+    public void testHandleWithoutLockMaster() {
+        // nothing to wake up when the lock master is not initialized, must not fail
+        ClusteredLockReleaseNotifier.handle(new PropagateLockReleaseCommand(Arrays.asList("vm-2")));
+        ClusteredLockReleaseNotifier.handle(new PropagateLockWaitCommand(Arrays.asList("vm-2"), 2L));
+    }
+}
@@ -16,12 +16,17 @@
 // under the License.
 package com.cloud.agent.manager;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import org.junit.Test;
 
+import com.cloud.agent.transport.Request;
 import com.cloud.utils.nio.Link;
 
 public class ConnectedAgentAttacheTest {
@@ -79,4 +84,33 @@ public class ConnectedAgentAttacheTest {
 
         assertFalse(agentAttache1.equals("abc"));
     }
-}
\ No newline at end of file
+
+    private Request mockRequest(long seq) {
+        Request req = mock(Request.class);
+        when(req.getSequence()).thenReturn(seq);
+        return req;
+    }
+
+    @Test
+    public void testRequestQueueIsFifo() throws Exception {
+        ConnectedAgentAttache agentAttache = new ConnectedAgentAttache(null, 0, null, mock(Link.class), false);
+        Request req1 = mockRequest(30);
+        Request req2 = mockRequest(10);
+        Request req3 = mockRequest(20);
+        agentAttache.addRequest(req1);
+        agentAttache.addRequest(req2);
+        agentAttache.addRequest(req3);
+        assertEquals(3, agentAttache.getQueueSize());
+        assertSame(req2, agentAttache.findRequest(10));
+
+        agentAttache.cancel(10);
+        assertNull(agentAttache.findRequest(10));
+        assertEquals(2, agentAttache.getQueueSize());
+
+        assertSame(req1, agentAttache.pollRequest());
+        assertSame(req3, agentAttache.pollRequest());
+        assertNull(agentAttache.pollRequest());
+        assertEquals(0, agentAttache.getQueueSize());
+        assertEquals(0, agentAttache.getQueueWaitTime());
+    }
+}
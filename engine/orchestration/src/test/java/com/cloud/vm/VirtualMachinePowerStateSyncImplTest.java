@@ -0,0 +1,125 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cloudstack.framework.messagebus.MessageBus;
+import org.apache.cloudstack.framework.messagebus.PublishScope;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.cloud.agent.api.HostVmStateReportEntry;
+import com.cloud.configuration.ManagementServiceConfiguration;
+import com.cloud.vm.VirtualMachine.PowerState;
+import com.cloud.vm.dao.VMInstanceDao;
+
+@RunWith(MockitoJUnitRunner.class)
+public class VirtualMachinePowerStateSyncImplTest {
+
+    @Mock
+    MessageBus _messageBus;
+    @Mock
+    VMInstanceDao _instanceDao;
+    @Mock
+    ManagementServiceConfiguration mgmtServiceConf;
+    @Mock
+    VMInstanceVO vm1;
+    @Mock
+    VMInstanceVO vm2;
+
+    @InjectMocks
+    VirtualMachinePowerStateSyncImpl _syncMgr = new VirtualMachinePowerStateSyncImpl();
+
+    private Map<String, HostVmStateReportEntry> _report;
+
+    @Before
+    public void setUp() {
+        when(vm1.getId()).thenReturn(1L);
+        when(vm2.getId()).thenReturn(2L);
+        when(_instanceDao.findVMByInstanceName("i-2-1-VM")).thenReturn(vm1);
+        when(_instanceDao.findVMByInstanceName("i-2-2-VM")).thenReturn(vm2);
+        when(_instanceDao.findByHostInStates(anyLong(), any(VirtualMachine.State.class), any(VirtualMachine.State.class), any(VirtualMachine.State.class)))
+                .thenReturn(new ArrayList<VMInstanceVO>());
+
+        _report = new HashMap<String, HostVmStateReportEntry>();
+        _report.put("i-2-1-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+        _report.put("i-2-2-VM", new HostVmStateReportEntry(PowerState.PowerOn, "host"));
+    }
+
+    @Test
+    public void testChangedVmsArePublishedTogether() {
+        List<Long> updated = Arrays.asList(1L, 2L);
+        when(_instanceDao.updatePowerState(anyMap(), eq(10L))).thenReturn(updated);
+
+        _syncMgr.processHostVmStatePingReport(10L, _report);
+
+        verify(_instanceDao, times(1)).updatePowerState(anyMap(), eq(10L));
+        verify(_messageBus, times(1)).publish(null, VirtualMachineManager.Topics.VM_POWER_STATE, PublishScope.GLOBAL, updated);
+    }
+
+    @Test
+    public void testSettledReportSkipsDb() {
+        when(_instanceDao.updatePowerState(anyMap(), eq(10L))).thenReturn(Collections.<Long>emptyList());
+
+        _syncMgr.processHostVmStatePingReport(10L, _report);
+        _syncMgr.processHostVmStatePingReport(10L, _report);
+
+        verify(_instanceDao, times(1)).updatePowerState(anyMap(), eq(10L));
+        verify(_messageBus, never()).publish(any(String.class), any(String.class), any(PublishScope.class), any());
+    }
+
+    @Test
+    public void testVmReportedByAnotherHostIsNotSkipped() {
+        when(_instanceDao.updatePowerState(anyMap(), anyLong())).thenReturn(Collections.<Long>emptyList());
+
+        _syncMgr.processHostVmStatePingReport(10L, _report);
+        _syncMgr.processHostVmStatePingReport(11L, _report);
+
+        verify(_instanceDao, times(1)).updatePowerState(anyMap(), eq(11L));
+    }
+
+    @Test
+    public void testResetVmSyncStateForcesDbUpdate() {
+        when(_instanceDao.updatePowerState(anyMap(), eq(10L))).thenReturn(Collections.<Long>emptyList());
+
+        _syncMgr.processHostVmStatePingReport(10L, _report);
+        _syncMgr.resetVmSyncState(1L);
+        _syncMgr.processHostVmStatePingReport(10L, _report);
+
+        verify(_instanceDao).resetVmPowerStateTracking(1L);
+        verify(_instanceDao, times(2)).updatePowerState(anyMap(), eq(10L));
+    }
+}
@@ -0,0 +1,115 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.vm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.cloudstack.framework.jobs.impl.CompactJobPayloadCodec;
+import org.apache.cloudstack.framework.jobs.impl.LegacyJobPayloadCodec;
+import org.junit.Test;
+
+import com.cloud.dc.DataCenter;
+import com.cloud.deploy.DataCenterDeployment;
+import com.cloud.deploy.DeployDestination;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.host.Host;
+import com.cloud.org.Cluster;
+import com.cloud.dc.Pod;
+
+public class VmWorkSerializerTest {
+
+    private VmWorkStart createStartWork() {
+        VmWorkStart work = new VmWorkStart(2L, 3L, 42L, VirtualMachineManagerImpl.VM_WORK_JOB_HANDLER);
+        DataCenterDeployment plan = new DataCenterDeployment(1L, 2L, 3L, null, null, null);
+        ExcludeList avoids = new ExcludeList();
+        avoids.addHost(7L);
+        avoids.addHost(8L);
+        avoids.addPool(9L);
+        plan.setAvoids(avoids);
+        work.setPlan(plan);
+        work.setDeploymentPlanner("FirstFitPlanner");
+
+        Map<VirtualMachineProfile.Param, Object> params = new HashMap<VirtualMachineProfile.Param, Object>();
+        params.put(VirtualMachineProfile.Param.VmPassword, "password");
+        params.put(VirtualMachineProfile.Param.ReProgramGuestNetworks, Boolean.TRUE);
+        work.setParams(params);
+        return work;
+    }
+
+    private VmWorkMigrate createMigrateWork() {
+        DataCenter zone = mock(DataCenter.class);
+        when(zone.getId()).thenReturn(1L);
+        Pod pod = mock(Pod.class);
+        when(pod.getId()).thenReturn(2L);
+        Cluster cluster = mock(Cluster.class);
+        when(cluster.getId()).thenReturn(3L);
+        Host host = mock(Host.class);
+        when(host.getId()).thenReturn(4L);
+
+        return new VmWorkMigrate(2L, 3L, 42L, VirtualMachineManagerImpl.VM_WORK_JOB_HANDLER, 5L, new DeployDestination(zone, pod, cluster, host));
+    }
+
+    @Test
+    public void testStartWorkRoundTrip() {
+        VmWorkStart work = VmWorkSerializer.deserialize(VmWorkStart.class, VmWorkSerializer.serialize(createStartWork()));
+
+        assertEquals(42L, work.getVmId());
+        assertEquals(1L, work.dcId);
+        assertEquals(Long.valueOf(3L), work.clusterId);
+        assertEquals("FirstFitPlanner", work.getDeploymentPlanner());
+        assertTrue(work.avoids.getHostsToAvoid().contains(8L));
+        assertEquals("password", work.getParams().get(VirtualMachineProfile.Param.VmPassword));
+        assertEquals(Boolean.TRUE, work.getParams().get(VirtualMachineProfile.Param.ReProgramGuestNetworks));
+    }
+
+    @Test
+    public void testMigrateWorkRoundTrip() {
+        VmWorkMigrate work = VmWorkSerializer.deserialize(VmWorkMigrate.class, VmWorkSerializer.serialize(createMigrateWork()));
+
+        assertEquals(5L, work.getSrcHostId());
+        assertEquals(Long.valueOf(4L), work.hostId);
+        assertEquals(Long.valueOf(2L), work.podId);
+    }
+
+    @Test
+    public void testLegacyWorkPayloadIsReadable() {
+        String legacy = new LegacyJobPayloadCodec().encode(createMigrateWork());
+
+        VmWorkMigrate work = VmWorkSerializer.deserialize(VmWorkMigrate.class, legacy);
+        assertEquals(5L, work.getSrcHostId());
+    }
+
+    @Test
+    public void testWorkPayloadSize() {
+        CompactJobPayloadCodec compact = new CompactJobPayloadCodec();
+        LegacyJobPayloadCodec legacy = new LegacyJobPayloadCodec();
+
+        VmWork[] works = new VmWork[] {createStartWork(), createMigrateWork()};
+        for (VmWork work : works) {
+            String compactPayload = compact.encode(work);
+            String legacyPayload = legacy.encode(work);
+            assertTrue(work.getClass().getSimpleName() + " payload of " + compactPayload.length() + " chars is not below legacy " + legacyPayload.length(),
+                    compactPayload.length() * 2 < legacyPayload.length());
+        }
+    }
+}
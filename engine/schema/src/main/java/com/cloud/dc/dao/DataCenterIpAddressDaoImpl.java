@@ -17,6 +17,7 @@
 package com.cloud.dc.dao;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
@@ -28,7 +29,10 @@ import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
 import com.cloud.dc.DataCenterIpAddressVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.Pair;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.FreeRowPool;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
@@ -48,6 +52,16 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
     private final GenericSearchBuilder<DataCenterIpAddressVO, Integer> AllIpCountForDc;
     private final GenericSearchBuilder<DataCenterIpAddressVO, Integer> AllAllocatedIpCount;
     private final GenericSearchBuilder<DataCenterIpAddressVO, Integer> AllAllocatedIpCountForDc;
+    private final GenericSearchBuilder<DataCenterIpAddressVO, Long> FreePodIpIdSearch;
+    private final GenericSearchBuilder<DataCenterIpAddressVO, Long> FreeDcIpIdSearch;
+
+    private static final String TAKE_POD_IP_SQL = "UPDATE `cloud`.`op_dc_ip_address_alloc` SET taken=?, nic_id=?, reservation_id=? "
+            + "WHERE id=? AND pod_id=? AND forsystemvms=? AND taken IS NULL";
+    private static final String TAKE_DC_IP_SQL = "UPDATE `cloud`.`op_dc_ip_address_alloc` SET taken=?, reservation_id=? WHERE id=? AND data_center_id=? AND taken IS NULL";
+
+    // free ips per pod and system vm reservation, and per zone
+    private final FreeRowPool<Pair<Long, Boolean>> _freePodIps;
+    private final FreeRowPool<Long> _freeDcIps;
 
     private static final ConfigKey<Boolean> SystemVmManagementIpReservationModeStrictness = new ConfigKey<Boolean>("Advanced",
             Boolean.class, "system.vm.management.ip.reservation.mode.strictness", "false","If enabled, the use of System VMs management IP reservation is strict, preferred if not.", false, ConfigKey.Scope.Global);
@@ -55,53 +69,74 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
     @Override
     @DB
     public DataCenterIpAddressVO takeIpAddress(long dcId, long podId, long instanceId, String reservationId, boolean forSystemVms) {
-        SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
-        sc.setParameters("pod", podId);
-        sc.setParameters("taken", (Date)null);
-        sc.setParameters("forSystemVms", forSystemVms);
-
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
-        DataCenterIpAddressVO vo = lockOneRandomRow(sc, true);
+        Long id = takePodIp(podId, forSystemVms, instanceId, reservationId);
 
         // If there is no explicitly created range for system vms and reservation mode is preferred (strictness = false)
-        if (forSystemVms && vo == null && !SystemVmManagementIpReservationModeStrictness.value()) {
-            sc.setParameters("forSystemVms", false);
-            vo = lockOneRandomRow(sc, true);
+        if (forSystemVms && id == null && !SystemVmManagementIpReservationModeStrictness.value()) {
+            id = takePodIp(podId, false, instanceId, reservationId);
         }
-        if (vo == null) {
+        if (id == null) {
             txn.rollback();
             return null;
         }
-        vo.setTakenAt(new Date());
-        vo.setInstanceId(instanceId);
-        vo.setReservationId(reservationId);
-        update(vo.getId(), vo);
+        DataCenterIpAddressVO vo = findById(id);
         txn.commit();
         return vo;
     }
 
     @Override
     @DB
-    public DataCenterIpAddressVO takeDataCenterIpAddress(long dcId, String reservationId) {
-        SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
-        sc.setParameters("dc", dcId);
-        sc.setParameters("taken", (Date)null);
-
+    public DataCenterIpAddressVO takeDataCenterIpAddress(final long dcId, final String reservationId) {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
-        DataCenterIpAddressVO vo = lockOneRandomRow(sc, true);
-        if (vo == null) {
+        final String now = DateUtil.getDateDisplayString(s_gmtTimeZone, new Date());
+        Long id = _freeDcIps.allocate(dcId, new FreeRowPool.Claimer() {
+            @Override
+            public boolean claim(long id) {
+                TransactionLegacy txn = TransactionLegacy.currentTxn();
+                try (PreparedStatement pstmt = txn.prepareStatement(TAKE_DC_IP_SQL);) {
+                    pstmt.setString(1, now);
+                    pstmt.setString(2, reservationId);
+                    pstmt.setLong(3, id);
+                    pstmt.setLong(4, dcId);
+                    return pstmt.executeUpdate() == 1;
+                } catch (SQLException e) {
+                    throw new CloudRuntimeException("Unable to take ip address " + id + " in zone " + dcId, e);
+                }
+            }
+        });
+        if (id == null) {
             txn.rollback();
             return null;
         }
-        vo.setTakenAt(new Date());
-        vo.setReservationId(reservationId);
-        update(vo.getId(), vo);
+        DataCenterIpAddressVO vo = findById(id);
         txn.commit();
         return vo;
     }
 
+    private Long takePodIp(final long podId, final boolean forSystemVms, final long instanceId, final String reservationId) {
+        final String now = DateUtil.getDateDisplayString(s_gmtTimeZone, new Date());
+        return _freePodIps.allocate(new Pair<Long, Boolean>(podId, forSystemVms), new FreeRowPool.Claimer() {
+            @Override
+            public boolean claim(long id) {
+                TransactionLegacy txn = TransactionLegacy.currentTxn();
+                try (PreparedStatement pstmt = txn.prepareStatement(TAKE_POD_IP_SQL);) {
+                    pstmt.setString(1, now);
+                    pstmt.setLong(2, instanceId);
+                    pstmt.setString(3, reservationId);
+                    pstmt.setLong(4, id);
+                    pstmt.setLong(5, podId);
+                    pstmt.setBoolean(6, forSystemVms);
+                    return pstmt.executeUpdate() == 1;
+                } catch (SQLException e) {
+                    throw new CloudRuntimeException("Unable to take ip address " + id + " in pod " + podId, e);
+                }
+            }
+        });
+    }
+
     @Override
     public boolean deleteIpAddressByPod(long podId) {
         SearchCriteria<DataCenterIpAddressVO> sc = AllFieldsSearch.create();
@@ -135,9 +170,10 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
     @DB
     public void addIpRange(long dcId, long podId, String start, String end, boolean forSystemVms, Integer vlan) {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
+        String selectMacSql = "SELECT mac_address FROM `cloud`.`data_center` WHERE id=? FOR UPDATE";
         String insertSql = "INSERT INTO `cloud`.`op_dc_ip_address_alloc` (ip_address, data_center_id, pod_id, mac_address, forsystemvms" + (vlan == null ? ") " : ", vlan) ") +
-                "VALUES (?, ?, ?, (select mac_address from `cloud`.`data_center` where id=?), ?" + (vlan == null ? ")" : ", ?)");
-        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+1 where id=?";
+                "VALUES (?, ?, ?, ?, ?" + (vlan == null ? ")" : ", ?)");
+        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+? where id=?";
 
         long startIP = NetUtils.ip2Long(start);
         long endIP = NetUtils.ip2Long(end);
@@ -145,24 +181,41 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         try {
             txn.start();
 
-            while (startIP <= endIP) {
-                try(PreparedStatement insertPstmt = txn.prepareStatement(insertSql);) {
+            // hand out the mac addresses the same way as one insert per ip did, but with a single batch
+            long macAddress;
+            try (PreparedStatement selectPstmt = txn.prepareStatement(selectMacSql);) {
+                selectPstmt.setLong(1, dcId);
+                try (ResultSet rs = selectPstmt.executeQuery();) {
+                    if (!rs.next()) {
+                        throw new CloudRuntimeException("Unable to find data center " + dcId);
+                    }
+                    macAddress = rs.getLong(1);
+                }
+            }
+
+            long count = 0;
+            try (PreparedStatement insertPstmt = txn.prepareStatement(insertSql);) {
+                while (startIP <= endIP) {
                     insertPstmt.setString(1, NetUtils.long2Ip(startIP++));
                     insertPstmt.setLong(2, dcId);
                     insertPstmt.setLong(3, podId);
-                    insertPstmt.setLong(4, dcId);
+                    insertPstmt.setLong(4, macAddress + count++);
                     insertPstmt.setBoolean(5, forSystemVms);
                     if (vlan != null) {
                         insertPstmt.setInt(6, vlan);
                     }
-                    insertPstmt.executeUpdate();
-                }
-                try(PreparedStatement updatePstmt = txn.prepareStatement(updateSql);) {
-                    updatePstmt.setLong(1, dcId);
-                    updatePstmt.executeUpdate();
+                    insertPstmt.addBatch();
                 }
+                insertPstmt.executeBatch();
+            }
+            try (PreparedStatement updatePstmt = txn.prepareStatement(updateSql);) {
+                updatePstmt.setLong(1, count);
+                updatePstmt.setLong(2, dcId);
+                updatePstmt.executeUpdate();
             }
             txn.commit();
+            _freePodIps.invalidate(new Pair<Long, Boolean>(podId, forSystemVms));
+            _freeDcIps.invalidate(dcId);
         } catch (SQLException ex) {
             throw new CloudRuntimeException("Unable to persist ip address range ", ex);
         }
@@ -325,6 +378,37 @@ public class DataCenterIpAddressDaoImpl extends GenericDaoBase<DataCenterIpAddre
         AllAllocatedIpCountForDc.and("data_center_id", AllAllocatedIpCountForDc.entity().getDataCenterId(), SearchCriteria.Op.EQ);
         AllAllocatedIpCountForDc.and("removed", AllAllocatedIpCountForDc.entity().getTakenAt(), SearchCriteria.Op.NNULL);
         AllAllocatedIpCountForDc.done();
+
+        FreePodIpIdSearch = createSearchBuilder(Long.class);
+        FreePodIpIdSearch.select(null, Func.NATIVE, FreePodIpIdSearch.entity().getId());
+        FreePodIpIdSearch.and("pod", FreePodIpIdSearch.entity().getPodId(), SearchCriteria.Op.EQ);
+        FreePodIpIdSearch.and("forSystemVms", FreePodIpIdSearch.entity().isForSystemVms(), SearchCriteria.Op.EQ);
+        FreePodIpIdSearch.and("taken", FreePodIpIdSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        FreePodIpIdSearch.done();
+
+        FreeDcIpIdSearch = createSearchBuilder(Long.class);
+        FreeDcIpIdSearch.select(null, Func.NATIVE, FreeDcIpIdSearch.entity().getId());
+        FreeDcIpIdSearch.and("dc", FreeDcIpIdSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
+        FreeDcIpIdSearch.and("taken", FreeDcIpIdSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        FreeDcIpIdSearch.done();
+
+        _freePodIps = new FreeRowPool<Pair<Long, Boolean>>("pod private ips", new FreeRowPool.Loader<Pair<Long, Boolean>>() {
+            @Override
+            public List<Long> listFreeIds(Pair<Long, Boolean> podAndForSystemVms) {
+                SearchCriteria<Long> sc = FreePodIpIdSearch.create();
+                sc.setParameters("pod", podAndForSystemVms.first());
+                sc.setParameters("forSystemVms", podAndForSystemVms.second());
+                return customSearch(sc, null);
+            }
+        });
+        _freeDcIps = new FreeRowPool<Long>("zone private ips", new FreeRowPool.Loader<Long>() {
+            @Override
+            public List<Long> listFreeIds(Long dcId) {
+                SearchCriteria<Long> sc = FreeDcIpIdSearch.create();
+                sc.setParameters("dc", dcId);
+                return customSearch(sc, null);
+            }
+        });
     }
 
     @Override
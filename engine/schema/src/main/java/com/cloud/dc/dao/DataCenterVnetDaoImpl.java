@@ -19,6 +19,7 @@ package com.cloud.dc.dao;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -31,9 +32,11 @@ import org.springframework.stereotype.Component;
 import com.cloud.dc.DataCenterVnetVO;
 import com.cloud.network.dao.AccountGuestVlanMapDao;
 import com.cloud.network.dao.AccountGuestVlanMapVO;
+import com.cloud.utils.DateUtil;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.UriUtils;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.FreeRowPool;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.JoinBuilder;
@@ -52,8 +55,6 @@ import com.cloud.utils.exception.CloudRuntimeException;
 @DB
 public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long> implements DataCenterVnetDao {
 
-    private final SearchBuilder<DataCenterVnetVO> FreeVnetSearch;
-    private final SearchBuilder<DataCenterVnetVO> FreeDedicatedVnetSearch;
     private final SearchBuilder<DataCenterVnetVO> VnetDcSearch;
     private final SearchBuilder<DataCenterVnetVO> VnetDcSearchAllocated;
     private final SearchBuilder<DataCenterVnetVO> DcSearchAllocated;
@@ -66,6 +67,14 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
     protected GenericSearchBuilder<DataCenterVnetVO, Integer> countVnetsDedicatedToAccount;
     protected SearchBuilder<AccountGuestVlanMapVO> AccountGuestVlanMapSearch;
     protected GenericSearchBuilder<DataCenterVnetVO, String> ListAllVnetSearch;
+    private final GenericSearchBuilder<DataCenterVnetVO, Long> FreeVnetIdSearch;
+    private final GenericSearchBuilder<DataCenterVnetVO, Long> FreeDedicatedVnetIdSearch;
+
+    private static final String TAKE_VNET_SQL = "UPDATE `cloud`.`op_dc_vnet_alloc` SET taken=?, account_id=?, reservation_id=? "
+            + "WHERE id=? AND physical_network_id=? AND taken IS NULL AND ";
+
+    // free vnets per physical network and dedicated ranges, empty when not dedicated
+    private final FreeRowPool<FreeVnetKey> _freeVnets;
 
     @Inject
     protected AccountGuestVlanMapDao _accountGuestVlanMapDao;
@@ -161,6 +170,7 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
             }
             stmt.executeBatch();
             txn.commit();
+            _freeVnets.invalidate();
         } catch (SQLException e) {
             throw new CloudRuntimeException(e.getMessage());
         }
@@ -193,31 +203,56 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
 
     @Override
     @DB
-    public DataCenterVnetVO take(long physicalNetworkId, long accountId, String reservationId, List<Long> vlanDbIds) {
-        SearchCriteria<DataCenterVnetVO> sc;
-        if (vlanDbIds != null) {
-            sc = FreeDedicatedVnetSearch.create();
-            sc.setParameters("accountGuestVlanMapId", vlanDbIds.toArray());
-        } else {
-            sc = FreeVnetSearch.create();
-        }
-        sc.setParameters("physicalNetworkId", physicalNetworkId);
-        Date now = new Date();
+    public DataCenterVnetVO take(long physicalNetworkId, final long accountId, final String reservationId, List<Long> vlanDbIds) {
+        final FreeVnetKey key = new FreeVnetKey(physicalNetworkId, vlanDbIds);
+        final String now = DateUtil.getDateDisplayString(s_gmtTimeZone, new Date());
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
-        DataCenterVnetVO vo = lockOneRandomRow(sc, true);
-        if (vo == null) {
+        Long id = _freeVnets.allocate(key, new FreeRowPool.Claimer() {
+            @Override
+            public boolean claim(long id) {
+                return takeVnet(id, key, now, accountId, reservationId);
+            }
+        });
+        if (id == null) {
+            txn.rollback();
             return null;
         }
 
-        vo.setTakenAt(now);
-        vo.setAccountId(accountId);
-        vo.setReservationId(reservationId);
-        update(vo.getId(), vo);
+        DataCenterVnetVO vo = findById(id);
         txn.commit();
         return vo;
     }
 
+    private boolean takeVnet(long id, FreeVnetKey key, String now, long accountId, String reservationId) {
+        StringBuilder sql = new StringBuilder(TAKE_VNET_SQL);
+        if (key.vlanDbIds.isEmpty()) {
+            sql.append("account_vnet_map_id IS NULL");
+        } else {
+            sql.append("account_vnet_map_id IN (");
+            for (int i = 0; i < key.vlanDbIds.size(); i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+        }
+
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try (PreparedStatement pstmt = txn.prepareStatement(sql.toString());) {
+            int i = 1;
+            pstmt.setString(i++, now);
+            pstmt.setLong(i++, accountId);
+            pstmt.setString(i++, reservationId);
+            pstmt.setLong(i++, id);
+            pstmt.setLong(i++, key.physicalNetworkId);
+            for (Long vlanDbId : key.vlanDbIds) {
+                pstmt.setLong(i++, vlanDbId);
+            }
+            return pstmt.executeUpdate() == 1;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to take vnet " + id + " in physical network " + key.physicalNetworkId, e);
+        }
+    }
+
     @Override
     public void release(String vnet, long physicalNetworkId, long accountId, String reservationId) {
         SearchCriteria<DataCenterVnetVO> sc = VnetDcSearchAllocated.create();
@@ -310,20 +345,6 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
         SearchRange.and("physicalNetworkId", SearchRange.entity().getPhysicalNetworkId(), Op.EQ);
         SearchRange.and("vnetRange", SearchRange.entity().getVnet(), Op.BETWEEN);
 
-        FreeVnetSearch = createSearchBuilder();
-        FreeVnetSearch.and("dc", FreeVnetSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
-        FreeVnetSearch.and("physicalNetworkId", FreeVnetSearch.entity().getPhysicalNetworkId(), SearchCriteria.Op.EQ);
-        FreeVnetSearch.and("taken", FreeVnetSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
-        FreeVnetSearch.and("accountGuestVlanMapId", FreeVnetSearch.entity().getAccountGuestVlanMapId(), SearchCriteria.Op.NULL);
-        FreeVnetSearch.done();
-
-        FreeDedicatedVnetSearch = createSearchBuilder();
-        FreeDedicatedVnetSearch.and("dc", FreeDedicatedVnetSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
-        FreeDedicatedVnetSearch.and("physicalNetworkId", FreeDedicatedVnetSearch.entity().getPhysicalNetworkId(), SearchCriteria.Op.EQ);
-        FreeDedicatedVnetSearch.and("taken", FreeDedicatedVnetSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
-        FreeDedicatedVnetSearch.and("accountGuestVlanMapId", FreeDedicatedVnetSearch.entity().getAccountGuestVlanMapId(), SearchCriteria.Op.IN);
-        FreeDedicatedVnetSearch.done();
-
         VnetDcSearch = createSearchBuilder();
         VnetDcSearch.and("vnet", VnetDcSearch.entity().getVnet(), SearchCriteria.Op.EQ);
         VnetDcSearch.and("dc", VnetDcSearch.entity().getDataCenterId(), SearchCriteria.Op.EQ);
@@ -366,5 +387,68 @@ public class DataCenterVnetDaoImpl extends GenericDaoBase<DataCenterVnetVO, Long
         ListAllVnetSearch.and("physicalNetworkId", ListAllVnetSearch.entity().getPhysicalNetworkId(), Op.EQ);
         ListAllVnetSearch.done();
 
+        FreeVnetIdSearch = createSearchBuilder(Long.class);
+        FreeVnetIdSearch.select(null, Func.NATIVE, FreeVnetIdSearch.entity().getId());
+        FreeVnetIdSearch.and("physicalNetworkId", FreeVnetIdSearch.entity().getPhysicalNetworkId(), SearchCriteria.Op.EQ);
+        FreeVnetIdSearch.and("taken", FreeVnetIdSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        FreeVnetIdSearch.and("accountGuestVlanMapId", FreeVnetIdSearch.entity().getAccountGuestVlanMapId(), SearchCriteria.Op.NULL);
+        FreeVnetIdSearch.done();
+
+        FreeDedicatedVnetIdSearch = createSearchBuilder(Long.class);
+        FreeDedicatedVnetIdSearch.select(null, Func.NATIVE, FreeDedicatedVnetIdSearch.entity().getId());
+        FreeDedicatedVnetIdSearch.and("physicalNetworkId", FreeDedicatedVnetIdSearch.entity().getPhysicalNetworkId(), SearchCriteria.Op.EQ);
+        FreeDedicatedVnetIdSearch.and("taken", FreeDedicatedVnetIdSearch.entity().getTakenAt(), SearchCriteria.Op.NULL);
+        FreeDedicatedVnetIdSearch.and("accountGuestVlanMapId", FreeDedicatedVnetIdSearch.entity().getAccountGuestVlanMapId(), SearchCriteria.Op.IN);
+        FreeDedicatedVnetIdSearch.done();
+
+        _freeVnets = new FreeRowPool<FreeVnetKey>("guest vnets", new FreeRowPool.Loader<FreeVnetKey>() {
+            @Override
+            public List<Long> listFreeIds(FreeVnetKey key) {
+                SearchCriteria<Long> sc;
+                if (key.vlanDbIds.isEmpty()) {
+                    sc = FreeVnetIdSearch.create();
+                } else {
+                    sc = FreeDedicatedVnetIdSearch.create();
+                    sc.setParameters("accountGuestVlanMapId", key.vlanDbIds.toArray());
+                }
+                sc.setParameters("physicalNetworkId", key.physicalNetworkId);
+                return customSearch(sc, null);
+            }
+        });
+    }
+
+    protected static class FreeVnetKey {
+        final long physicalNetworkId;
+        final List<Long> vlanDbIds;
+
+        FreeVnetKey(long physicalNetworkId, List<Long> vlanDbIds) {
+            this.physicalNetworkId = physicalNetworkId;
+            if (vlanDbIds == null) {
+                this.vlanDbIds = Collections.emptyList();
+            } else {
+                List<Long> sorted = new ArrayList<Long>(vlanDbIds);
+                Collections.sort(sorted);
+                this.vlanDbIds = sorted;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.valueOf(physicalNetworkId).hashCode() + vlanDbIds.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FreeVnetKey)) {
+                return false;
+            }
+            FreeVnetKey that = (FreeVnetKey)obj;
+            return physicalNetworkId == that.physicalNetworkId && vlanDbIds.equals(that.vlanDbIds);
+        }
+
+        @Override
+        public String toString() {
+            return physicalNetworkId + (vlanDbIds.isEmpty() ? "" : " dedicated " + vlanDbIds);
+        }
     }
 }
@@ -22,7 +22,7 @@ import java.sql.SQLException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
@@ -48,6 +48,14 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
     protected GenericSearchBuilder<DomainVO, Long> FindIdsOfAllChildrenSearch;
     protected SearchBuilder<DomainVO> AllFieldsSearch;
 
+    // Domains never change parent, so the cached tree only misses domains created on other management servers
+    // (these trigger a reload) and keeps domains removed on other management servers until it expires.
+    private static final long DOMAIN_TREE_MAX_AGE = 60 * 1000L;
+    private static final long DOMAIN_TREE_MIN_RELOAD_INTERVAL = 1000L;
+    private volatile DomainTree _domainTree;
+    private final AtomicLong _domainTreeVersion = new AtomicLong();
+    private final Object _domainTreeLock = new Object();
+
     public DomainDaoImpl() {
         DomainNameLikeSearch = createSearchBuilder();
         DomainNameLikeSearch.and("name", DomainNameLikeSearch.entity().getName(), SearchCriteria.Op.LIKE);
@@ -133,6 +141,7 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             update(parentDomain.getId(), parentDomain);
 
             txn.commit();
+            invalidateDomainTree();
             return domain;
         } catch (Exception e) {
             s_logger.error("Unable to create domain due to " + e.getMessage(), e);
@@ -194,6 +203,7 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             update(parentDomain.getId(), parentDomain);
             success = super.remove(id);
             txn.commit();
+            invalidateDomainTree();
         } catch (SQLException ex) {
             success = false;
             s_logger.error("error removing domain: " + id, ex);
@@ -248,6 +258,14 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
             return true;
         }
 
+        DomainTree tree = getDomainTree(parentId, childId);
+        if (tree != null) {
+            return tree.isAncestor(parentId, childId);
+        }
+        return isChildDomainByPath(parentId, childId);
+    }
+
+    protected boolean isChildDomainByPath(Long parentId, Long childId) {
         boolean result = false;
         SearchCriteria<DomainVO> sc = DomainPairSearch.create();
         sc.setParameters("id", parentId, childId);
@@ -276,6 +294,11 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
 
     @Override
     public Set<Long> getDomainParentIds(long domainId) {
+        DomainTree tree = getDomainTree(domainId);
+        if (tree != null) {
+            return new HashSet<Long>(tree.getAncestorIds(domainId));
+        }
+
         Set<Long> parentDomains = new HashSet<Long>();
         Domain domain = findById(domainId);
 
@@ -291,4 +314,56 @@ public class DomainDaoImpl extends GenericDaoBase<DomainVO, Long> implements Dom
         return parentDomains;
     }
 
+    /**
+     * @return the cached domain tree if it knows all the given domains, reloading it when it is too old, outdated by
+     *         a domain create or remove on this server, or misses one of them; null if the domains are unknown to a
+     *         freshly loaded tree, in which case callers query the database
+     */
+    protected DomainTree getDomainTree(Long... domainIds) {
+        DomainTree tree = _domainTree;
+        if (needsReload(tree, domainIds)) {
+            tree = loadDomainTree(domainIds);
+        }
+        return containsAll(tree, domainIds) ? tree : null;
+    }
+
+    private boolean needsReload(DomainTree tree, Long... domainIds) {
+        return tree == null || tree.getVersion() != _domainTreeVersion.get() || tree.getAge() > DOMAIN_TREE_MAX_AGE
+                || (!containsAll(tree, domainIds) && tree.getAge() > DOMAIN_TREE_MIN_RELOAD_INTERVAL);
+    }
+
+    private static boolean containsAll(DomainTree tree, Long... domainIds) {
+        for (Long domainId : domainIds) {
+            if (!tree.contains(domainId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Loads the tree under a lock, so that concurrent misses share one listAll(). The tree is stamped with the version
+     * read before the query: if a domain is created or removed meanwhile, the tree is outdated as soon as it is
+     * installed and the next lookup loads it again.
+     */
+    protected DomainTree loadDomainTree(Long... domainIds) {
+        synchronized (_domainTreeLock) {
+            DomainTree tree = _domainTree;
+            if (!needsReload(tree, domainIds)) {
+                return tree;
+            }
+            long version = _domainTreeVersion.get();
+            tree = new DomainTree(version, listAll());
+            _domainTree = tree;
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Loaded domain tree version " + version + " with " + tree.size() + " domains");
+            }
+            return tree;
+        }
+    }
+
+    public void invalidateDomainTree() {
+        _domainTreeVersion.incrementAndGet();
+    }
+
 }
@@ -0,0 +1,94 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.domain.dao;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.cloud.domain.Domain;
+
+/**
+ * Immutable snapshot of the parent ids of the active domains, answering hierarchy checks without
+ * going to the database. Ancestor checks walk up from the child, so they take O(depth) map lookups.
+ */
+public class DomainTree {
+    private final long _version;
+    private final long _createdAt;
+    private final Map<Long, Long> _parents;
+
+    public DomainTree(long version, List<? extends Domain> domains) {
+        _version = version;
+        _createdAt = System.currentTimeMillis();
+        _parents = new HashMap<Long, Long>(domains.size() * 2);
+        for (Domain domain : domains) {
+            _parents.put(domain.getId(), domain.getParent());
+        }
+    }
+
+    public long getVersion() {
+        return _version;
+    }
+
+    public long getAge() {
+        return System.currentTimeMillis() - _createdAt;
+    }
+
+    public int size() {
+        return _parents.size();
+    }
+
+    public boolean contains(long domainId) {
+        return _parents.containsKey(domainId);
+    }
+
+    /**
+     * @return true if ancestorId is domainId itself or one of its ancestors; false if either domain is unknown
+     */
+    public boolean isAncestor(long ancestorId, long domainId) {
+        if (!contains(ancestorId) || !contains(domainId)) {
+            return false;
+        }
+        Long current = domainId;
+        while (current != null) {
+            if (current.longValue() == ancestorId) {
+                return true;
+            }
+            current = _parents.get(current);
+        }
+        return false;
+    }
+
+    /**
+     * @return the domain and all its ancestors up to ROOT, empty if the domain is unknown
+     */
+    public Set<Long> getAncestorIds(long domainId) {
+        if (!contains(domainId)) {
+            return Collections.emptySet();
+        }
+        Set<Long> ancestors = new HashSet<Long>();
+        Long current = domainId;
+        while (current != null && ancestors.add(current)) {
+            current = _parents.get(current);
+        }
+        return ancestors;
+    }
+
+}
@@ -32,6 +32,10 @@ public interface NetworkServiceMapDao extends GenericDao<NetworkServiceMapVO, Lo
 
     boolean canProviderSupportServiceInNetwork(long networkId, Service service, Provider provider);
 
+    /**
+     * @return the service map of the network.  The rows may be shared with other callers when the DAO cache is
+     * enabled and must not be changed; the list itself is a copy.
+     */
     List<NetworkServiceMapVO> getServicesInNetwork(long networkId);
 
     String getProviderForServiceInNetwork(long networkid, Service service);
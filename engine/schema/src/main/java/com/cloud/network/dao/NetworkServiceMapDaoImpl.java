@@ -17,7 +17,10 @@
 package com.cloud.network.dao;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 import org.springframework.stereotype.Component;
@@ -26,17 +29,24 @@ import com.cloud.exception.UnsupportedServiceException;
 import com.cloud.network.Network.Provider;
 import com.cloud.network.Network.Service;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.EntitySnapshotCache;
 import com.cloud.utils.db.GenericDaoBase;
-import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 
+/**
+ * All the lookups are answered from the rows of the network, which are kept per network when the DAO cache is
+ * enabled (cache.size) so that the service and provider checks made while preparing a nic don't each hit the
+ * database.  Any change to the map clears the kept rows, here and on the other management servers.
+ *
+ * The kept rows are shared by all the callers, see {@link NetworkServiceMapDao#getServicesInNetwork(long)}.
+ */
 @Component
 @DB()
 public class NetworkServiceMapDaoImpl extends GenericDaoBase<NetworkServiceMapVO, Long> implements NetworkServiceMapDao {
     final SearchBuilder<NetworkServiceMapVO> AllFieldsSearch;
-    final SearchBuilder<NetworkServiceMapVO> MultipleServicesSearch;
-    final GenericSearchBuilder<NetworkServiceMapVO, String> DistinctProvidersSearch;
+
+    private volatile EntitySnapshotCache<Long, NetworkServiceMapVO> _snapshots;
 
     protected NetworkServiceMapDaoImpl() {
         super();
@@ -45,42 +55,64 @@ public class NetworkServiceMapDaoImpl extends GenericDaoBase<NetworkServiceMapVO
         AllFieldsSearch.and("service", AllFieldsSearch.entity().getService(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("provider", AllFieldsSearch.entity().getProvider(), SearchCriteria.Op.EQ);
         AllFieldsSearch.done();
+    }
+
+    @Override
+    protected void createCache(final Map<String, ? extends Object> params) {
+        super.createCache(params);
+        if (_cache != null) {
+            _snapshots = new EntitySnapshotCache<Long, NetworkServiceMapVO>(_cache.getCacheConfiguration().getMaxElementsInMemory(),
+                    _cache.getCacheConfiguration().getTimeToLiveSeconds());
+        } else {
+            _snapshots = null;
+        }
+    }
 
-        MultipleServicesSearch = createSearchBuilder();
-        MultipleServicesSearch.and("networkId", MultipleServicesSearch.entity().getNetworkId(), SearchCriteria.Op.EQ);
-        MultipleServicesSearch.and("service", MultipleServicesSearch.entity().getService(), SearchCriteria.Op.IN);
-        MultipleServicesSearch.and("provider", MultipleServicesSearch.entity().getProvider(), SearchCriteria.Op.EQ);
-        MultipleServicesSearch.done();
+    protected List<NetworkServiceMapVO> listByNetworkId(long networkId) {
+        final EntitySnapshotCache<Long, NetworkServiceMapVO> snapshots = _snapshots;
+        if (snapshots == null) {
+            return searchByNetworkId(networkId);
+        }
+
+        List<NetworkServiceMapVO> rows = snapshots.get(networkId);
+        if (rows != null) {
+            _cacheStats.hit();
+            return rows;
+        }
+        _cacheStats.miss();
 
-        DistinctProvidersSearch = createSearchBuilder(String.class);
-        DistinctProvidersSearch.and("networkId", DistinctProvidersSearch.entity().getNetworkId(), SearchCriteria.Op.EQ);
-        DistinctProvidersSearch.and("provider", DistinctProvidersSearch.entity().getProvider(), SearchCriteria.Op.EQ);
-        DistinctProvidersSearch.and("service", DistinctProvidersSearch.entity().getService(), SearchCriteria.Op.EQ);
-        DistinctProvidersSearch.selectFields(DistinctProvidersSearch.entity().getProvider());
-        DistinctProvidersSearch.done();
+        final long generation = snapshots.getGeneration();
+        rows = searchByNetworkId(networkId);
+        // A network being created has no rows yet, don't keep that
+        if (!rows.isEmpty()) {
+            snapshots.put(networkId, rows, generation);
+        }
+        return rows;
+    }
+
+    protected List<NetworkServiceMapVO> searchByNetworkId(long networkId) {
+        SearchCriteria<NetworkServiceMapVO> sc = AllFieldsSearch.create();
+        sc.setParameters("networkId", networkId);
+        return listBy(sc);
     }
 
     @Override
     public boolean areServicesSupportedInNetwork(long networkId, Service... services) {
-        SearchCriteria<NetworkServiceMapVO> sc = MultipleServicesSearch.create();
-        sc.setParameters("networkId", networkId);
+        List<NetworkServiceMapVO> networkServices = listByNetworkId(networkId);
 
         if (services != null) {
-            String[] servicesStr = new String[services.length];
-
-            int i = 0;
+            Set<String> servicesStr = new HashSet<String>();
             for (Service service : services) {
-                servicesStr[i] = service.getName();
-                i++;
+                servicesStr.add(service.getName());
             }
 
-            sc.setParameters("service", (Object[])servicesStr);
-        }
-
-        List<NetworkServiceMapVO> networkServices = listBy(sc);
-
-        if (services != null) {
-            if (networkServices.size() == services.length) {
+            int supported = 0;
+            for (NetworkServiceMapVO networkService : networkServices) {
+                if (servicesStr.contains(networkService.getService())) {
+                    supported++;
+                }
+            }
+            if (supported == services.length) {
                 return true;
             }
         } else if (!networkServices.isEmpty()) {
@@ -92,25 +124,20 @@ public class NetworkServiceMapDaoImpl extends GenericDaoBase<NetworkServiceMapVO
 
     @Override
     public boolean canProviderSupportServiceInNetwork(long networkId, Service service, Provider provider) {
-        SearchCriteria<NetworkServiceMapVO> sc = AllFieldsSearch.create();
-        sc.setParameters("networkId", networkId);
-        sc.setParameters("service", service.getName());
-        sc.setParameters("provider", provider.getName());
-        if (findOneBy(sc) != null) {
-            return true;
-        } else {
-            return false;
+        for (NetworkServiceMapVO networkService : listByNetworkId(networkId)) {
+            if (networkService.getService().equals(service.getName()) && networkService.getProvider().equals(provider.getName())) {
+                return true;
+            }
         }
+        return false;
     }
 
     protected List<String> getServicesForProviderInNetwork(long networkId, Provider provider) {
         List<String> services = new ArrayList<String>();
-        SearchCriteria<NetworkServiceMapVO> sc = AllFieldsSearch.create();
-        sc.setParameters("networkId", networkId);
-        sc.setParameters("provider", provider.getName());
-        List<NetworkServiceMapVO> map = listBy(sc);
-        for (NetworkServiceMapVO instance : map) {
-            services.add(instance.getService());
+        for (NetworkServiceMapVO instance : listByNetworkId(networkId)) {
+            if (instance.getProvider().equals(provider.getName())) {
+                services.add(instance.getService());
+            }
         }
 
         return services;
@@ -118,22 +145,18 @@ public class NetworkServiceMapDaoImpl extends GenericDaoBase<NetworkServiceMapVO
 
     @Override
     public String getProviderForServiceInNetwork(long networkId, Service service) {
-        SearchCriteria<NetworkServiceMapVO> sc = AllFieldsSearch.create();
-        sc.setParameters("networkId", networkId);
-        sc.setParameters("service", service.getName());
-        NetworkServiceMapVO ntwkSvc = findOneBy(sc);
-        if (ntwkSvc == null) {
-            throw new UnsupportedServiceException("Service " + service.getName() + " is not supported in the network id=" + networkId);
+        for (NetworkServiceMapVO ntwkSvc : listByNetworkId(networkId)) {
+            if (ntwkSvc.getService().equals(service.getName())) {
+                return ntwkSvc.getProvider();
+            }
         }
 
-        return ntwkSvc.getProvider();
+        throw new UnsupportedServiceException("Service " + service.getName() + " is not supported in the network id=" + networkId);
     }
 
     @Override
     public List<NetworkServiceMapVO> getServicesInNetwork(long networkId) {
-        SearchCriteria<NetworkServiceMapVO> sc = AllFieldsSearch.create();
-        sc.setParameters("networkId", networkId);
-        return listBy(sc);
+        return new ArrayList<NetworkServiceMapVO>(listByNetworkId(networkId));
     }
 
     @Override
@@ -145,31 +168,53 @@ public class NetworkServiceMapDaoImpl extends GenericDaoBase<NetworkServiceMapVO
 
     @Override
     public List<String> getDistinctProviders(long networkId) {
-        SearchCriteria<String> sc = DistinctProvidersSearch.create();
-        sc.setParameters("networkId", networkId);
-        List<String> results = customSearch(sc, null);
+        List<String> results = new ArrayList<String>();
+        for (NetworkServiceMapVO networkService : listByNetworkId(networkId)) {
+            results.add(networkService.getProvider());
+        }
         return results;
     }
 
     @Override
     public String isProviderForNetwork(long networkId, Provider provider) {
-        SearchCriteria<String> sc = DistinctProvidersSearch.create();
-        sc.setParameters("networkId", networkId);
-        sc.setParameters("provider", provider.getName());
-        List<String> results = customSearch(sc, null);
-        if (results.isEmpty()) {
-            return null;
-        } else {
-            return results.get(0);
+        for (NetworkServiceMapVO networkService : listByNetworkId(networkId)) {
+            if (networkService.getProvider().equals(provider.getName())) {
+                return networkService.getProvider();
+            }
         }
+        return null;
     }
 
     @Override
     public List<String> getProvidersForServiceInNetwork(long networkId, Service service) {
-        SearchCriteria<String> sc = DistinctProvidersSearch.create();
-        sc.setParameters("networkId", networkId);
-        sc.setParameters("service", service.getName());
-        return customSearch(sc, null);
+        List<String> results = new ArrayList<String>();
+        for (NetworkServiceMapVO networkService : listByNetworkId(networkId)) {
+            if (networkService.getService().equals(service.getName())) {
+                results.add(networkService.getProvider());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public NetworkServiceMapVO persist(NetworkServiceMapVO entity) {
+        NetworkServiceMapVO vo = super.persist(entity);
+        invalidateCache(vo.getId());
+        return vo;
     }
 
+    // Called on a change, once more after its commit and on a change made by another management server: a lookup
+    // in between the change and its commit would otherwise keep the rows from before the change
+    @Override
+    protected void evict(final Long id) {
+        super.evict(id);
+        clearSnapshots();
+    }
+
+    private void clearSnapshots() {
+        final EntitySnapshotCache<Long, NetworkServiceMapVO> snapshots = _snapshots;
+        if (snapshots != null) {
+            snapshots.clear();
+        }
+    }
 }
@@ -33,6 +33,10 @@ public interface NetworkOfferingServiceMapDao extends GenericDao<NetworkOffering
 
     boolean canProviderSupportServiceInNetworkOffering(long networkOfferingId, Service service, Provider provider);
 
+    /**
+     * @return the service map of the offering.  The rows may be shared with other callers when the DAO cache is
+     * enabled and must not be changed; the list itself is a copy.
+     */
     List<NetworkOfferingServiceMapVO> listByNetworkOfferingId(long networkOfferingId);
 
     void deleteByOfferingId(long networkOfferingId);
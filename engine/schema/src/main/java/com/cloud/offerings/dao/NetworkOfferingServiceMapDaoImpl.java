@@ -16,7 +16,12 @@
 // under the License.
 package com.cloud.offerings.dao;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 import org.springframework.stereotype.Component;
@@ -25,21 +30,23 @@ import com.cloud.network.Network.Provider;
 import com.cloud.network.Network.Service;
 import com.cloud.offerings.NetworkOfferingServiceMapVO;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.EntitySnapshotCache;
 import com.cloud.utils.db.GenericDaoBase;
-import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
-import com.cloud.utils.db.SearchCriteria.Func;
 
+/**
+ * Like the network service map, the lookups are answered from the rows of the offering, kept per offering when
+ * the DAO cache is enabled and cleared on any change to the map.  The kept rows are shared by all the callers,
+ * see {@link NetworkOfferingServiceMapDao#listByNetworkOfferingId(long)}.
+ */
 @Component
 @DB()
 public class NetworkOfferingServiceMapDaoImpl extends GenericDaoBase<NetworkOfferingServiceMapVO, Long> implements NetworkOfferingServiceMapDao {
 
     final SearchBuilder<NetworkOfferingServiceMapVO> AllFieldsSearch;
-    final SearchBuilder<NetworkOfferingServiceMapVO> MultipleServicesSearch;
-    final GenericSearchBuilder<NetworkOfferingServiceMapVO, String> ProvidersSearch;
-    final GenericSearchBuilder<NetworkOfferingServiceMapVO, String> ServicesSearch;
-    final GenericSearchBuilder<NetworkOfferingServiceMapVO, String> DistinctProvidersSearch;
+
+    private volatile EntitySnapshotCache<Long, NetworkOfferingServiceMapVO> _snapshots;
 
     protected NetworkOfferingServiceMapDaoImpl() {
         super();
@@ -48,52 +55,64 @@ public class NetworkOfferingServiceMapDaoImpl extends GenericDaoBase<NetworkOffe
         AllFieldsSearch.and("service", AllFieldsSearch.entity().getService(), SearchCriteria.Op.EQ);
         AllFieldsSearch.and("provider", AllFieldsSearch.entity().getProvider(), SearchCriteria.Op.EQ);
         AllFieldsSearch.done();
-
-        MultipleServicesSearch = createSearchBuilder();
-        MultipleServicesSearch.and("networkOfferingId", MultipleServicesSearch.entity().getNetworkOfferingId(), SearchCriteria.Op.EQ);
-        MultipleServicesSearch.and("service", MultipleServicesSearch.entity().getService(), SearchCriteria.Op.IN);
-        MultipleServicesSearch.and("provider", MultipleServicesSearch.entity().getProvider(), SearchCriteria.Op.EQ);
-        MultipleServicesSearch.done();
-
-        ProvidersSearch = createSearchBuilder(String.class);
-        ProvidersSearch.and("networkOfferingId", ProvidersSearch.entity().getNetworkOfferingId(), SearchCriteria.Op.EQ);
-        ProvidersSearch.and("service", ProvidersSearch.entity().getService(), SearchCriteria.Op.EQ);
-        ProvidersSearch.select(null, Func.DISTINCT, ProvidersSearch.entity().getProvider());
-        ProvidersSearch.done();
-
-        ServicesSearch = createSearchBuilder(String.class);
-        ServicesSearch.and("networkOfferingId", ServicesSearch.entity().getNetworkOfferingId(), SearchCriteria.Op.EQ);
-        ServicesSearch.select(null, Func.DISTINCT, ServicesSearch.entity().getService());
-        ServicesSearch.done();
-
-        DistinctProvidersSearch = createSearchBuilder(String.class);
-        DistinctProvidersSearch.and("offId", DistinctProvidersSearch.entity().getNetworkOfferingId(), SearchCriteria.Op.EQ);
-        DistinctProvidersSearch.and("provider", DistinctProvidersSearch.entity().getProvider(), SearchCriteria.Op.EQ);
-        DistinctProvidersSearch.selectFields(DistinctProvidersSearch.entity().getProvider());
-        DistinctProvidersSearch.done();
     }
 
     @Override
-    public boolean areServicesSupportedByNetworkOffering(long networkOfferingId, Service... services) {
-        SearchCriteria<NetworkOfferingServiceMapVO> sc = MultipleServicesSearch.create();
-        sc.setParameters("networkOfferingId", networkOfferingId);
+    protected void createCache(final Map<String, ? extends Object> params) {
+        super.createCache(params);
+        if (_cache != null) {
+            _snapshots = new EntitySnapshotCache<Long, NetworkOfferingServiceMapVO>(_cache.getCacheConfiguration().getMaxElementsInMemory(),
+                    _cache.getCacheConfiguration().getTimeToLiveSeconds());
+        } else {
+            _snapshots = null;
+        }
+    }
 
-        if (services != null) {
-            String[] servicesStr = new String[services.length];
+    protected List<NetworkOfferingServiceMapVO> listByOfferingId(long networkOfferingId) {
+        final EntitySnapshotCache<Long, NetworkOfferingServiceMapVO> snapshots = _snapshots;
+        if (snapshots == null) {
+            return searchByOfferingId(networkOfferingId);
+        }
 
-            int i = 0;
-            for (Service service : services) {
-                servicesStr[i] = service.getName();
-                i++;
-            }
+        List<NetworkOfferingServiceMapVO> rows = snapshots.get(networkOfferingId);
+        if (rows != null) {
+            _cacheStats.hit();
+            return rows;
+        }
+        _cacheStats.miss();
 
-            sc.setParameters("service", (Object[])servicesStr);
+        final long generation = snapshots.getGeneration();
+        rows = searchByOfferingId(networkOfferingId);
+        // An offering being created has no rows yet, don't keep that
+        if (!rows.isEmpty()) {
+            snapshots.put(networkOfferingId, rows, generation);
         }
+        return rows;
+    }
 
-        List<NetworkOfferingServiceMapVO> offeringServices = listBy(sc);
+    protected List<NetworkOfferingServiceMapVO> searchByOfferingId(long networkOfferingId) {
+        SearchCriteria<NetworkOfferingServiceMapVO> sc = AllFieldsSearch.create();
+        sc.setParameters("networkOfferingId", networkOfferingId);
+        return listBy(sc);
+    }
+
+    @Override
+    public boolean areServicesSupportedByNetworkOffering(long networkOfferingId, Service... services) {
+        List<NetworkOfferingServiceMapVO> offeringServices = listByOfferingId(networkOfferingId);
 
         if (services != null) {
-            if (offeringServices.size() == services.length) {
+            Set<String> servicesStr = new HashSet<String>();
+            for (Service service : services) {
+                servicesStr.add(service.getName());
+            }
+
+            int supported = 0;
+            for (NetworkOfferingServiceMapVO offeringService : offeringServices) {
+                if (servicesStr.contains(offeringService.getService())) {
+                    supported++;
+                }
+            }
+            if (supported == services.length) {
                 return true;
             }
         } else if (!offeringServices.isEmpty()) {
@@ -105,18 +124,17 @@ public class NetworkOfferingServiceMapDaoImpl extends GenericDaoBase<NetworkOffe
 
     @Override
     public boolean canProviderSupportServiceInNetworkOffering(long networkOfferingId, Service service, Provider provider) {
-        SearchCriteria<NetworkOfferingServiceMapVO> sc = AllFieldsSearch.create();
-        sc.setParameters("networkOfferingId", networkOfferingId);
-        sc.setParameters("service", service.getName());
-        sc.setParameters("provider", provider.getName());
-        return findOneBy(sc) != null;
+        for (NetworkOfferingServiceMapVO offeringService : listByOfferingId(networkOfferingId)) {
+            if (offeringService.getService().equals(service.getName()) && offeringService.getProvider().equals(provider.getName())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
     public List<NetworkOfferingServiceMapVO> listByNetworkOfferingId(long networkOfferingId) {
-        SearchCriteria<NetworkOfferingServiceMapVO> sc = AllFieldsSearch.create();
-        sc.setParameters("networkOfferingId", networkOfferingId);
-        return listBy(sc);
+        return new ArrayList<NetworkOfferingServiceMapVO>(listByOfferingId(networkOfferingId));
     }
 
     @Override
@@ -128,35 +146,32 @@ public class NetworkOfferingServiceMapDaoImpl extends GenericDaoBase<NetworkOffe
 
     @Override
     public List<String> listProvidersForServiceForNetworkOffering(long networkOfferingId, Service service) {
-        SearchCriteria<String> sc = ProvidersSearch.create();
-        ;
-
-        sc.setParameters("networkOfferingId", networkOfferingId);
-        sc.setParameters("service", service.getName());
-
-        return customSearch(sc, null);
+        Set<String> providers = new LinkedHashSet<String>();
+        for (NetworkOfferingServiceMapVO offeringService : listByOfferingId(networkOfferingId)) {
+            if (offeringService.getService().equals(service.getName())) {
+                providers.add(offeringService.getProvider());
+            }
+        }
+        return new ArrayList<String>(providers);
     }
 
     @Override
     public boolean isProviderForNetworkOffering(long networkOfferingId, Provider provider) {
-        SearchCriteria<NetworkOfferingServiceMapVO> sc = AllFieldsSearch.create();
-        ;
-
-        sc.setParameters("networkOfferingId", networkOfferingId);
-        sc.setParameters("provider", provider.getName());
-
-        if (findOneBy(sc) != null) {
-            return true;
+        for (NetworkOfferingServiceMapVO offeringService : listByOfferingId(networkOfferingId)) {
+            if (offeringService.getProvider().equals(provider.getName())) {
+                return true;
+            }
         }
         return false;
     }
 
     @Override
     public List<String> listServicesForNetworkOffering(long networkOfferingId) {
-        SearchCriteria<String> sc = ServicesSearch.create();
-        ;
-        sc.setParameters("networkOfferingId", networkOfferingId);
-        return customSearch(sc, null);
+        Set<String> services = new LinkedHashSet<String>();
+        for (NetworkOfferingServiceMapVO offeringService : listByOfferingId(networkOfferingId)) {
+            services.add(offeringService.getService());
+        }
+        return new ArrayList<String>(services);
     }
 
     @Override
@@ -166,14 +181,34 @@ public class NetworkOfferingServiceMapDaoImpl extends GenericDaoBase<NetworkOffe
         sc.setParameters("service", entity.getService());
         sc.setParameters("provider", entity.getProvider());
         NetworkOfferingServiceMapVO mappingInDb = findOneBy(sc);
-        return mappingInDb != null ? mappingInDb : super.persist(entity);
+        if (mappingInDb != null) {
+            return mappingInDb;
+        }
+        NetworkOfferingServiceMapVO vo = super.persist(entity);
+        invalidateCache(vo.getId());
+        return vo;
     }
 
     @Override
     public List<String> getDistinctProviders(long offId) {
-        SearchCriteria<String> sc = DistinctProvidersSearch.create();
-        sc.setParameters("offId", offId);
-        List<String> results = customSearch(sc, null);
+        List<String> results = new ArrayList<String>();
+        for (NetworkOfferingServiceMapVO offeringService : listByOfferingId(offId)) {
+            results.add(offeringService.getProvider());
+        }
         return results;
     }
+
+    // See NetworkServiceMapDaoImpl.evict
+    @Override
+    protected void evict(final Long id) {
+        super.evict(id);
+        clearSnapshots();
+    }
+
+    private void clearSnapshots() {
+        final EntitySnapshotCache<Long, NetworkOfferingServiceMapVO> snapshots = _snapshots;
+        if (snapshots != null) {
+            snapshots.clear();
+        }
+    }
 }
@@ -48,6 +48,8 @@ public interface NicDao extends GenericDao<NicVO, Long> {
 
     NicVO findDefaultNicForVM(long instanceId);
 
+    List<NicVO> listDefaultNicsForVms(List<Long> instanceIds);
+
     /**
      * @param networkId
      * @param instanceId
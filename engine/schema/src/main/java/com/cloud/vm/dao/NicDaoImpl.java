@@ -17,6 +17,7 @@
 package com.cloud.vm.dao;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.annotation.PostConstruct;
@@ -46,6 +47,7 @@ public class NicDaoImpl extends GenericDaoBase<NicVO, Long> implements NicDao {
     private GenericSearchBuilder<NicVO, Integer> deviceIdSearch;
     private GenericSearchBuilder<NicVO, Integer> CountByForStartingVms;
     private SearchBuilder<NicVO> PeerRouterSearch;
+    private SearchBuilder<NicVO> DefaultNicsByVmIdsSearch;
 
     @Inject
     VMInstanceDao _vmDao;
@@ -102,6 +104,11 @@ public class NicDaoImpl extends GenericDaoBase<NicVO, Long> implements NicDao {
         PeerRouterSearch.and("macAddress", PeerRouterSearch.entity().getMacAddress(), Op.EQ);
         PeerRouterSearch.and("vmType", PeerRouterSearch.entity().getVmType(), Op.EQ);
         PeerRouterSearch.done();
+
+        DefaultNicsByVmIdsSearch = createSearchBuilder();
+        DefaultNicsByVmIdsSearch.and("instances", DefaultNicsByVmIdsSearch.entity().getInstanceId(), Op.IN);
+        DefaultNicsByVmIdsSearch.and("isDefault", DefaultNicsByVmIdsSearch.entity().isDefaultNic(), Op.EQ);
+        DefaultNicsByVmIdsSearch.done();
     }
 
     @Override
@@ -215,6 +222,17 @@ public class NicDaoImpl extends GenericDaoBase<NicVO, Long> implements NicDao {
         return findOneBy(sc);
     }
 
+    @Override
+    public List<NicVO> listDefaultNicsForVms(List<Long> instanceIds) {
+        if (instanceIds == null || instanceIds.isEmpty()) {
+            return new ArrayList<NicVO>();
+        }
+        SearchCriteria<NicVO> sc = DefaultNicsByVmIdsSearch.create();
+        sc.setParameters("instances", instanceIds.toArray());
+        sc.setParameters("isDefault", 1);
+        return listBy(sc);
+    }
+
     @Override
     public NicVO getControlNicForVM(long vmId){
         SearchCriteria<NicVO> sc = AllFieldsSearch.create();
@@ -114,6 +114,12 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 
     public Long countActiveByHostId(long hostId);
 
+    /**
+     * Counts the active VMs of several hosts in one query
+     * @return map of host id to active VM count; hosts without active VMs are absent
+     */
+    Map<Long, Long> countActiveByHostIds(List<Long> hostIds);
+
     Pair<List<Long>, Map<Long, Double>> listClusterIdsInZoneByVmCount(long zoneId, long accountId);
 
     Pair<List<Long>, Map<Long, Double>> listClusterIdsInPodByVmCount(long podId, long accountId);
@@ -139,10 +145,31 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 
     List<VMInstanceVO> listStartingWithNoHostId();
 
+    /**
+     * @return starting and running vms on any of the hosts
+     */
+    List<VMInstanceVO> listUpByHostIds(List<Long> hostIds);
+
+    /**
+     * @return stopped vms that last ran on any of the hosts
+     */
+    List<VMInstanceVO> listByLastHostIds(List<Long> hostIds);
+
+    List<VMInstanceVO> listByIds(List<Long> ids);
+
     boolean updatePowerState(long instanceId, long powerHostId, VirtualMachine.PowerState powerState);
 
+    /**
+     * Applies the power states reported by a host in one transaction, rows that need no change
+     * are not written and the others are written as one batch.
+     * @return ids of the instances whose power state tracking was updated
+     */
+    List<Long> updatePowerState(Map<Long, VirtualMachine.PowerState> instancePowerStates, long powerHostId);
+
     void resetVmPowerStateTracking(long instanceId);
 
+    void resetVmPowerStateTracking(List<Long> instanceIds);
+
     void resetHostPowerStateTracking(long hostId);
 
     HashMap<String, Long> countVgpuVMs(Long dcId, Long podId, Long clusterId);
@@ -151,5 +178,7 @@ public interface VMInstanceDao extends GenericDao<VMInstanceVO, Long>, StateDao<
 
     boolean isPowerStateUpToDate(long instanceId);
 
+    boolean isPowerStateUpToDate(VMInstanceVO instance);
+
     List<VMInstanceVO> listNonMigratingVmsByHostEqualsLastHost(long hostId);
 }
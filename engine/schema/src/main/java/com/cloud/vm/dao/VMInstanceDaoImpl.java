@@ -70,6 +70,7 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     protected SearchBuilder<VMInstanceVO> VMClusterSearch;
     protected SearchBuilder<VMInstanceVO> LHVMClusterSearch;
     protected SearchBuilder<VMInstanceVO> IdStatesSearch;
+    protected SearchBuilder<VMInstanceVO> IdsSearch;
     protected SearchBuilder<VMInstanceVO> AllFieldsSearch;
     protected SearchBuilder<VMInstanceVO> ZoneTemplateNonExpungedSearch;
     protected SearchBuilder<VMInstanceVO> TemplateNonExpungedSearch;
@@ -82,6 +83,8 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
     protected SearchBuilder<VMInstanceVO> HostIdStatesSearch;
     protected SearchBuilder<VMInstanceVO> HostIdUpTypesSearch;
     protected SearchBuilder<VMInstanceVO> HostUpSearch;
+    protected SearchBuilder<VMInstanceVO> HostsUpSearch;
+    protected SearchBuilder<VMInstanceVO> LastHostsStateSearch;
     protected SearchBuilder<VMInstanceVO> InstanceNameSearch;
     protected SearchBuilder<VMInstanceVO> HostNameSearch;
     protected SearchBuilder<VMInstanceVO> HostNameAndZoneSearch;
@@ -117,6 +120,9 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
 
     private static final String ORDER_HOSTS_NUMBER_OF_VMS_FOR_ACCOUNT_PART2 = " GROUP BY host.id ORDER BY 2 ASC ";
 
+    private static final String COUNT_ACTIVE_VMS_BY_HOST_IDS = "SELECT host_id, COUNT(*) FROM `cloud`.`vm_instance` WHERE removed IS NULL " +
+        "AND state IN ('Running', 'Starting', 'Stopping', 'Migrating') AND host_id IN (";
+
     private static final String COUNT_VMS_BASED_ON_VGPU_TYPES1 =
             "SELECT pci, type, SUM(vmcount) FROM (SELECT MAX(IF(offering.name = 'pciDevice',value,'')) AS pci, MAX(IF(offering.name = 'vgpuType', value,'')) " +
             "AS type, COUNT(DISTINCT vm.id) AS vmcount FROM service_offering_details offering INNER JOIN vm_instance vm ON offering.service_offering_id = vm.service_offering_id " +
@@ -138,6 +144,10 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         IdStatesSearch.and("states", IdStatesSearch.entity().getState(), Op.IN);
         IdStatesSearch.done();
 
+        IdsSearch = createSearchBuilder();
+        IdsSearch.and("ids", IdsSearch.entity().getId(), Op.IN);
+        IdsSearch.done();
+
         VMClusterSearch = createSearchBuilder();
         SearchBuilder<HostVO> hostSearch = _hostDao.createSearchBuilder();
         VMClusterSearch.join("hostSearch", hostSearch, hostSearch.entity().getId(), VMClusterSearch.entity().getHostId(), JoinType.INNER);
@@ -219,6 +229,16 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         HostUpSearch.and("states", HostUpSearch.entity().getState(), Op.IN);
         HostUpSearch.done();
 
+        HostsUpSearch = createSearchBuilder();
+        HostsUpSearch.and("hosts", HostsUpSearch.entity().getHostId(), Op.IN);
+        HostsUpSearch.and("states", HostsUpSearch.entity().getState(), Op.IN);
+        HostsUpSearch.done();
+
+        LastHostsStateSearch = createSearchBuilder();
+        LastHostsStateSearch.and("lastHosts", LastHostsStateSearch.entity().getLastHostId(), Op.IN);
+        LastHostsStateSearch.and("state", LastHostsStateSearch.entity().getState(), Op.EQ);
+        LastHostsStateSearch.done();
+
         InstanceNameSearch = createSearchBuilder();
         InstanceNameSearch.and("instanceName", InstanceNameSearch.entity().getInstanceName(), Op.EQ);
         InstanceNameSearch.done();
@@ -420,6 +440,38 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return listBy(sc);
     }
 
+    @Override
+    public List<VMInstanceVO> listUpByHostIds(List<Long> hostIds) {
+        if (hostIds.isEmpty()) {
+            return new ArrayList<VMInstanceVO>();
+        }
+        SearchCriteria<VMInstanceVO> sc = HostsUpSearch.create();
+        sc.setParameters("hosts", hostIds.toArray());
+        sc.setParameters("states", new Object[] {State.Starting, State.Running});
+        return listBy(sc);
+    }
+
+    @Override
+    public List<VMInstanceVO> listByLastHostIds(List<Long> hostIds) {
+        if (hostIds.isEmpty()) {
+            return new ArrayList<VMInstanceVO>();
+        }
+        SearchCriteria<VMInstanceVO> sc = LastHostsStateSearch.create();
+        sc.setParameters("lastHosts", hostIds.toArray());
+        sc.setParameters("state", State.Stopped);
+        return listBy(sc);
+    }
+
+    @Override
+    public List<VMInstanceVO> listByIds(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<VMInstanceVO>();
+        }
+        SearchCriteria<VMInstanceVO> sc = IdsSearch.create();
+        sc.setParameters("ids", ids.toArray());
+        return listBy(sc);
+    }
+
     @Override
     public List<VMInstanceVO> listByTypes(Type... types) {
         SearchCriteria<VMInstanceVO> sc = TypesSearch.create();
@@ -585,6 +637,34 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return customSearch(sc, null).get(0);
     }
 
+    @Override
+    public Map<Long, Long> countActiveByHostIds(List<Long> hostIds) {
+        Map<Long, Long> result = new HashMap<Long, Long>();
+        if (hostIds == null || hostIds.isEmpty()) {
+            return result;
+        }
+        StringBuilder sql = new StringBuilder(COUNT_ACTIVE_VMS_BY_HOST_IDS);
+        for (int i = 0; i < hostIds.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") GROUP BY host_id");
+
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            for (int i = 0; i < hostIds.size(); i++) {
+                pstmt.setLong(i + 1, hostIds.get(i));
+            }
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                result.put(rs.getLong(1), rs.getLong(2));
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + sql, e);
+        }
+    }
+
     @Override
     public Pair<List<Long>, Map<Long, Double>> listClusterIdsInZoneByVmCount(long zoneId, long accountId) {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
@@ -832,39 +912,74 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         return Transaction.execute(new TransactionCallback<Boolean>() {
             @Override
             public Boolean doInTransaction(TransactionStatus status) {
-                boolean needToUpdate = false;
                 VMInstanceVO instance = findById(instanceId);
-                if (instance != null) {
-                    Long savedPowerHostId = instance.getPowerHostId();
-                    if (instance.getPowerState() != powerState || savedPowerHostId == null
-                            || savedPowerHostId.longValue() != powerHostId) {
-                        instance.setPowerState(powerState);
-                        instance.setPowerHostId(powerHostId);
-                        instance.setPowerStateUpdateCount(1);
-                        instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
-                        needToUpdate = true;
-                        update(instanceId, instance);
-                    } else {
-                        // to reduce DB updates, consecutive same state update for more than 3 times
-                        if (instance.getPowerStateUpdateCount() < MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT) {
-                            instance.setPowerStateUpdateCount(instance.getPowerStateUpdateCount() + 1);
-                            instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
-                            needToUpdate = true;
-                            update(instanceId, instance);
-                        }
+                if (instance != null && applyPowerState(instance, powerHostId, powerState, DateUtil.currentGMTTime())) {
+                    update(instanceId, instance);
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    @Override
+    public List<Long> updatePowerState(final Map<Long, VirtualMachine.PowerState> instancePowerStates, final long powerHostId) {
+        if (instancePowerStates.isEmpty()) {
+            return new ArrayList<Long>();
+        }
+
+        return Transaction.execute(new TransactionCallback<List<Long>>() {
+            @Override
+            public List<Long> doInTransaction(TransactionStatus status) {
+                SearchCriteria<VMInstanceVO> sc = IdsSearch.create();
+                sc.setParameters("ids", instancePowerStates.keySet().toArray());
+
+                Date now = DateUtil.currentGMTTime();
+                List<VMInstanceVO> changed = new ArrayList<VMInstanceVO>();
+                List<Long> changedIds = new ArrayList<Long>();
+                for (VMInstanceVO instance : listBy(sc)) {
+                    if (applyPowerState(instance, powerHostId, instancePowerStates.get(instance.getId()), now)) {
+                        changed.add(instance);
+                        changedIds.add(instance.getId());
                     }
                 }
-                return needToUpdate;
+                updateAll(changed);
+                return changedIds;
             }
         });
     }
 
+    private boolean applyPowerState(VMInstanceVO instance, long powerHostId, VirtualMachine.PowerState powerState, Date now) {
+        Long savedPowerHostId = instance.getPowerHostId();
+        if (instance.getPowerState() != powerState || savedPowerHostId == null
+                || savedPowerHostId.longValue() != powerHostId) {
+            instance.setPowerState(powerState);
+            instance.setPowerHostId(powerHostId);
+            instance.setPowerStateUpdateCount(1);
+            instance.setPowerStateUpdateTime(now);
+            return true;
+        }
+
+        // to reduce DB updates, consecutive same state update for more than 3 times
+        if (instance.getPowerStateUpdateCount() < MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT) {
+            instance.setPowerStateUpdateCount(instance.getPowerStateUpdateCount() + 1);
+            instance.setPowerStateUpdateTime(now);
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public boolean isPowerStateUpToDate(final long instanceId) {
         VMInstanceVO instance = findById(instanceId);
         if(instance == null) {
             throw new CloudRuntimeException("checking power state update count on non existing instance " + instanceId);
         }
+        return isPowerStateUpToDate(instance);
+    }
+
+    @Override
+    public boolean isPowerStateUpToDate(VMInstanceVO instance) {
         return instance.getPowerStateUpdateCount() < MAX_CONSECUTIVE_SAME_STATE_UPDATE_COUNT;
     }
 
@@ -883,6 +998,27 @@ public class VMInstanceDaoImpl extends GenericDaoBase<VMInstanceVO, Long> implem
         });
     }
 
+    @Override
+    public void resetVmPowerStateTracking(final List<Long> instanceIds) {
+        if (instanceIds.isEmpty()) {
+            return;
+        }
+
+        Transaction.execute(new TransactionCallbackNoReturn() {
+            @Override
+            public void doInTransactionWithoutResult(TransactionStatus status) {
+                SearchCriteria<VMInstanceVO> sc = createSearchCriteria();
+                sc.addAnd("id", SearchCriteria.Op.IN, instanceIds.toArray());
+
+                VMInstanceVO instance = createForUpdate();
+                instance.setPowerStateUpdateCount(0);
+                instance.setPowerStateUpdateTime(DateUtil.currentGMTTime());
+
+                update(instance, sc);
+            }
+        });
+    }
+
     @Override @DB
     public void resetHostPowerStateTracking(final long hostId) {
         Transaction.execute(new TransactionCallbackNoReturn() {
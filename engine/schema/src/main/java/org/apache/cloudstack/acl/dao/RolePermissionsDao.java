@@ -56,4 +56,10 @@ public interface RolePermissionsDao extends GenericDao<RolePermissionVO, Long> {
      * @return returns list of role permissions
      */
     List<RolePermissionVO> findAllByRoleIdSorted(Long roleId);
+
+    /**
+     * Returns a number that changes whenever a role permission is changed, on this or another management server
+     * @return the current version of the role permissions
+     */
+    long getPermissionsVersion();
 }
@@ -39,6 +39,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 public class RolePermissionsDaoImpl extends GenericDaoBase<RolePermissionVO, Long> implements RolePermissionsDao {
@@ -46,6 +47,7 @@ public class RolePermissionsDaoImpl extends GenericDaoBase<RolePermissionVO, Lon
 
     private final SearchBuilder<RolePermissionVO> RolePermissionsSearch;
     private Attribute sortOrderAttribute;
+    private final AtomicLong permissionsVersion = new AtomicLong();
 
     public RolePermissionsDaoImpl() {
         super();
@@ -98,7 +100,9 @@ public class RolePermissionsDaoImpl extends GenericDaoBase<RolePermissionVO, Lon
             RolePermission lastRule = permissionsList.get(permissionsList.size() - 1);
             item.setSortOrder(lastRule.getSortOrder() + 1);
         }
-        return super.persist(item);
+        final RolePermissionVO persisted = super.persist(item);
+        invalidateCache(persisted.getId());
+        return persisted;
     }
 
     @Override
@@ -174,4 +178,17 @@ public class RolePermissionsDaoImpl extends GenericDaoBase<RolePermissionVO, Lon
         }
         return rolePermissionList;
     }
+
+    @Override
+    public long getPermissionsVersion() {
+        return permissionsVersion.get();
+    }
+
+    // Bumped on a change, again after its commit and on a change made by another management server, so that
+    // permissions compiled while the change was not committed yet are not kept under the new version
+    @Override
+    protected void evict(final Long id) {
+        super.evict(id);
+        permissionsVersion.incrementAndGet();
+    }
 }
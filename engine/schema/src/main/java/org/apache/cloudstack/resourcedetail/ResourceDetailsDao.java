@@ -16,6 +16,7 @@
 // under the License.
 package org.apache.cloudstack.resourcedetail;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -73,6 +74,13 @@ public interface ResourceDetailsDao<R extends ResourceDetail> extends GenericDao
 
     public Map<String, String> listDetailsKeyPairs(long resourceId, boolean forDisplay);
 
+    /**
+     * List details of several resources with a single query
+     * @param resourceIds
+     * @return map of resourceId to the key/value pairs of its details, resources without details are left out
+     */
+    public Map<Long, Map<String, String>> listDetailsKeyPairsForResources(Collection<Long> resourceIds);
+
     public void saveDetails(List<R> details);
 
     public void addDetail(long resourceId, String key, String value, boolean display);
@@ -16,6 +16,7 @@
 // under the License.
 package org.apache.cloudstack.resourcedetail;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +30,7 @@ import com.cloud.utils.db.TransactionLegacy;
 
 public abstract class ResourceDetailsDaoBase<R extends ResourceDetail> extends GenericDaoBase<R, Long> {
     private SearchBuilder<R> AllFieldsSearch;
+    private SearchBuilder<R> ResourceIdsSearch;
 
     public ResourceDetailsDaoBase() {
         AllFieldsSearch = createSearchBuilder();
@@ -40,6 +42,10 @@ public abstract class ResourceDetailsDaoBase<R extends ResourceDetail> extends G
             AllFieldsSearch.and("display", AllFieldsSearch.entity().isDisplay(), SearchCriteria.Op.EQ);
         }
         AllFieldsSearch.done();
+
+        ResourceIdsSearch = createSearchBuilder();
+        ResourceIdsSearch.and("resourceIds", ResourceIdsSearch.entity().getResourceId(), SearchCriteria.Op.IN);
+        ResourceIdsSearch.done();
     }
 
     public R findDetail(long resourceId, String name) {
@@ -81,6 +87,26 @@ public abstract class ResourceDetailsDaoBase<R extends ResourceDetail> extends G
         return details;
     }
 
+    public Map<Long, Map<String, String>> listDetailsKeyPairsForResources(Collection<Long> resourceIds) {
+        Map<Long, Map<String, String>> details = new HashMap<Long, Map<String, String>>();
+        if (resourceIds.isEmpty()) {
+            return details;
+        }
+
+        SearchCriteria<R> sc = ResourceIdsSearch.create();
+        sc.setParameters("resourceIds", resourceIds.toArray());
+
+        for (R result : search(sc, null)) {
+            Map<String, String> resourceDetails = details.get(result.getResourceId());
+            if (resourceDetails == null) {
+                resourceDetails = new HashMap<String, String>();
+                details.put(result.getResourceId(), resourceDetails);
+            }
+            resourceDetails.put(result.getName(), result.getValue());
+        }
+        return details;
+    }
+
     public List<R> listDetails(long resourceId) {
         SearchCriteria<R> sc = AllFieldsSearch.create();
         sc.setParameters("resourceId", resourceId);
@@ -0,0 +1,128 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.dc.dao;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class DataCenterIpAddressDaoImplTest {
+    private static final long DC_ID = 1L;
+    private static final long POD_ID = 2L;
+    private static final long MAC_ADDRESS = 100L;
+
+    private DataCenterIpAddressDaoImpl dao;
+    private TransactionLegacy txn;
+    private ResultSet macAddress;
+    private PreparedStatement selectMac;
+    private PreparedStatement insert;
+    private PreparedStatement updateMac;
+
+    @Before
+    public void setUp() throws Exception {
+        dao = new DataCenterIpAddressDaoImpl();
+
+        macAddress = mock(ResultSet.class);
+        when(macAddress.next()).thenReturn(true);
+        when(macAddress.getLong(1)).thenReturn(MAC_ADDRESS);
+        selectMac = mock(PreparedStatement.class);
+        when(selectMac.executeQuery()).thenReturn(macAddress);
+        insert = mock(PreparedStatement.class);
+        updateMac = mock(PreparedStatement.class);
+
+        Connection conn = mock(Connection.class);
+        when(conn.prepareStatement(startsWith("SELECT mac_address FROM `cloud`.`data_center`"))).thenReturn(selectMac);
+        when(conn.prepareStatement(startsWith("INSERT INTO `cloud`.`op_dc_ip_address_alloc`"))).thenReturn(insert);
+        when(conn.prepareStatement(startsWith("UPDATE `cloud`.`data_center` set mac_address"))).thenReturn(updateMac);
+
+        txn = TransactionLegacy.open("DataCenterIpAddressDaoImplTest");
+        txn.transitToUserManagedConnection(conn);
+    }
+
+    @After
+    public void tearDown() {
+        txn.close();
+    }
+
+    @Test
+    public void addIpRangeInsertsTheRangeInOneBatch() throws Exception {
+        dao.addIpRange(DC_ID, POD_ID, "10.1.1.1", "10.1.1.5", false, null);
+
+        verify(selectMac, times(1)).executeQuery();
+        verify(insert, times(5)).addBatch();
+        verify(insert, times(1)).executeBatch();
+        verify(insert, never()).executeUpdate();
+        verify(insert).setString(1, "10.1.1.1");
+        verify(insert).setString(1, "10.1.1.5");
+        verify(insert, never()).setInt(anyInt(), anyInt());
+    }
+
+    @Test
+    public void addIpRangeHandsOutConsecutiveMacAddresses() throws Exception {
+        dao.addIpRange(DC_ID, POD_ID, "10.1.1.1", "10.1.1.5", false, null);
+
+        for (long i = 0; i < 5; i++) {
+            verify(insert, times(1)).setLong(4, MAC_ADDRESS + i);
+        }
+        verify(insert, never()).setLong(4, MAC_ADDRESS + 5);
+    }
+
+    @Test
+    public void addIpRangeBumpsTheZoneMacAddressOnce() throws Exception {
+        dao.addIpRange(DC_ID, POD_ID, "10.1.1.1", "10.1.1.5", false, null);
+
+        verify(updateMac, times(1)).executeUpdate();
+        verify(updateMac, times(1)).setLong(1, 5L);
+        verify(updateMac, times(1)).setLong(2, DC_ID);
+    }
+
+    @Test
+    public void addIpRangeSetsTheVlan() throws Exception {
+        dao.addIpRange(DC_ID, POD_ID, "10.1.1.1", "10.1.1.2", true, 42);
+
+        verify(insert, times(2)).setInt(6, 42);
+        verify(insert, times(2)).setBoolean(5, true);
+        verify(updateMac, times(1)).setLong(1, 2L);
+    }
+
+    @Test(expected = CloudRuntimeException.class)
+    public void addIpRangeFailsForUnknownZone() throws Exception {
+        when(macAddress.next()).thenReturn(false);
+        try {
+            dao.addIpRange(DC_ID, POD_ID, "10.1.1.1", "10.1.1.5", false, null);
+        } finally {
+            verify(insert, never()).executeBatch();
+            verify(updateMac, never()).setLong(anyInt(), anyLong());
+        }
+    }
+}
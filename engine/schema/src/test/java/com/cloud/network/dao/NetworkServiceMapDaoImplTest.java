@@ -0,0 +1,157 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.dao;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.cloud.exception.UnsupportedServiceException;
+import com.cloud.network.Network.Provider;
+import com.cloud.network.Network.Service;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.TransactionLegacy;
+
+public class NetworkServiceMapDaoImplTest {
+    private static final long NETWORK_ID = 1L;
+    private static final int NICS = 100;
+
+    private static final AtomicInteger s_caches = new AtomicInteger();
+
+    // Stands in for the writers of the map, which change it through the protected GenericDaoBase methods
+    static class TestNetworkServiceMapDaoImpl extends NetworkServiceMapDaoImpl {
+        void changed(Long id) {
+            invalidateCache(id);
+        }
+    }
+
+    private TestNetworkServiceMapDaoImpl createDao(boolean cached) throws Exception {
+        TestNetworkServiceMapDaoImpl dao = spy(new TestNetworkServiceMapDaoImpl());
+        Map<String, Object> params = new HashMap<String, Object>();
+        if (cached) {
+            params.put("cache.size", "100");
+            params.put("cache.time.to.live", "600");
+        }
+        dao.configure("NetworkServiceMapDao-" + s_caches.incrementAndGet(), params);
+
+        List<NetworkServiceMapVO> rows = new ArrayList<NetworkServiceMapVO>();
+        rows.add(new NetworkServiceMapVO(NETWORK_ID, Service.Dhcp, Provider.VirtualRouter));
+        rows.add(new NetworkServiceMapVO(NETWORK_ID, Service.Dns, Provider.VirtualRouter));
+        rows.add(new NetworkServiceMapVO(NETWORK_ID, Service.UserData, Provider.VirtualRouter));
+        rows.add(new NetworkServiceMapVO(NETWORK_ID, Service.SecurityGroup, Provider.SecurityGroupProvider));
+        doReturn(rows).when(dao).searchByNetworkId(NETWORK_ID);
+        doReturn(new ArrayList<NetworkServiceMapVO>()).when(dao).searchByNetworkId(2L);
+        return dao;
+    }
+
+    // The service and provider lookups made through the network model when a nic of a shared network is prepared
+    private void prepareNic(NetworkServiceMapDaoImpl dao) {
+        Assert.assertEquals(4, dao.getServicesInNetwork(NETWORK_ID).size());
+        Assert.assertTrue(dao.areServicesSupportedInNetwork(NETWORK_ID, Service.Dhcp));
+        Assert.assertTrue(dao.areServicesSupportedInNetwork(NETWORK_ID, Service.Dns, Service.UserData));
+        Assert.assertFalse(dao.areServicesSupportedInNetwork(NETWORK_ID, Service.Dhcp, Service.Lb));
+        Assert.assertEquals(Provider.VirtualRouter.getName(), dao.getProviderForServiceInNetwork(NETWORK_ID, Service.UserData));
+        Assert.assertTrue(dao.canProviderSupportServiceInNetwork(NETWORK_ID, Service.Dhcp, Provider.VirtualRouter));
+        Assert.assertFalse(dao.canProviderSupportServiceInNetwork(NETWORK_ID, Service.Dhcp, Provider.SecurityGroupProvider));
+        Assert.assertEquals(Provider.SecurityGroupProvider.getName(), dao.isProviderForNetwork(NETWORK_ID, Provider.SecurityGroupProvider));
+        Assert.assertNull(dao.isProviderForNetwork(NETWORK_ID, Provider.JuniperSRX));
+        Assert.assertEquals(4, dao.getDistinctProviders(NETWORK_ID).size());
+        Assert.assertEquals(1, dao.getProvidersForServiceInNetwork(NETWORK_ID, Service.SecurityGroup).size());
+    }
+
+    @Test
+    public void prepareQueriesDatabaseOnceWithSnapshots() throws Exception {
+        NetworkServiceMapDaoImpl uncached = createDao(false);
+        for (int i = 0; i < NICS; i++) {
+            prepareNic(uncached);
+        }
+        verify(uncached, times(11 * NICS)).searchByNetworkId(NETWORK_ID);
+
+        NetworkServiceMapDaoImpl cached = createDao(true);
+        for (int i = 0; i < NICS; i++) {
+            prepareNic(cached);
+        }
+        verify(cached, times(1)).searchByNetworkId(NETWORK_ID);
+    }
+
+    @Test
+    public void emptyNetworkIsNotKept() throws Exception {
+        NetworkServiceMapDaoImpl dao = createDao(true);
+        Assert.assertFalse(dao.areServicesSupportedInNetwork(2L, Service.Dhcp));
+        Assert.assertTrue(dao.getServicesInNetwork(2L).isEmpty());
+        verify(dao, times(2)).searchByNetworkId(2L);
+    }
+
+    @Test(expected = UnsupportedServiceException.class)
+    public void unsupportedServiceStillFails() throws Exception {
+        createDao(true).getProviderForServiceInNetwork(NETWORK_ID, Service.Lb);
+    }
+
+    @Test
+    public void changesClearSnapshots() throws Exception {
+        TestNetworkServiceMapDaoImpl dao = createDao(true);
+        prepareNic(dao);
+        verify(dao, times(1)).searchByNetworkId(NETWORK_ID);
+
+        // A row changed on this management server
+        dao.changed(null);
+        prepareNic(dao);
+        verify(dao, times(2)).searchByNetworkId(NETWORK_ID);
+
+        // A row changed on another management server
+        GenericDaoBase.invalidateCachedEntity(dao.getName(), null);
+        prepareNic(dao);
+        verify(dao, times(3)).searchByNetworkId(NETWORK_ID);
+    }
+
+    @Test
+    public void changesClearSnapshotsAgainOnCommit() throws Exception {
+        TestNetworkServiceMapDaoImpl dao = createDao(true);
+        TransactionLegacy txn = TransactionLegacy.open("changesClearSnapshotsAgainOnCommit");
+        try {
+            txn.start();
+            dao.changed(1L);
+
+            // A lookup between the change and its commit still reads the rows from before the change
+            prepareNic(dao);
+            verify(dao, times(1)).searchByNetworkId(NETWORK_ID);
+
+            txn.commit();
+            prepareNic(dao);
+            verify(dao, times(2)).searchByNetworkId(NETWORK_ID);
+        } finally {
+            txn.close();
+        }
+    }
+
+    @Test
+    public void returnedListsAreCopies() throws Exception {
+        NetworkServiceMapDaoImpl dao = createDao(true);
+        dao.getServicesInNetwork(NETWORK_ID).clear();
+        Assert.assertEquals(4, dao.getServicesInNetwork(NETWORK_ID).size());
+    }
+}
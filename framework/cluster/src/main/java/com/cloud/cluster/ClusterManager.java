@@ -16,6 +16,8 @@
 // under the License.
 package com.cloud.cluster;
 
+import java.util.List;
+
 import org.apache.cloudstack.framework.config.ConfigKey;
 
 import com.cloud.utils.component.Manager;
@@ -26,6 +28,10 @@ public interface ClusterManager extends Manager {
         "Interval to check for the heart beat between management server nodes", false);
     final ConfigKey<Integer> HeartbeatThreshold = new ConfigKey<Integer>(Integer.class, "cluster.heartbeat.threshold", "management-server", "150000",
         "Threshold before self-fence the management server", true);
+    final ConfigKey<Integer> ClusterPduQueueSize = new ConfigKey<Integer>(Integer.class, "cluster.pdu.queue.size", "management-server", "10000",
+        "Maximum number of messages waiting to be sent to a peer management server, senders wait when it is reached", false);
+    final ConfigKey<Integer> ClusterPduBatchSize = new ConfigKey<Integer>(Integer.class, "cluster.pdu.batch.size", "management-server", "100",
+        "Maximum number of queued messages delivered to a peer management server in a single call", true);
 
     void OnReceiveClusterServicePdu(ClusterServicePdu pdu);
 
@@ -46,6 +52,21 @@ public interface ClusterManager extends Manager {
      */
     void broadcast(long agentId, String cmds);
 
+    /**
+     * Sends the command to a peer without waiting for its answer.
+     * @param strPeer peer to send the command to
+     * @param agentId agent id this command is regarding
+     * @param cmds commands to send
+     * @param stopOnError
+     */
+    void executeAsync(String strPeer, long agentId, String cmds, boolean stopOnError);
+
+    /**
+     * @return names of the management server nodes found active by the last heart beat check, this node excluded.
+     * Unlike {@link #broadcast(long, String)}, this does not query the database.
+     */
+    List<String> getActivePeerNames();
+
     void registerListener(ClusterManagerListener listener);
 
     void unregisterListener(ClusterManagerListener listener);
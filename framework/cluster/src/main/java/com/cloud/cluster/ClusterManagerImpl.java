@@ -25,16 +25,21 @@ import java.sql.Connection;
 import java.sql.SQLNonTransientException;
 import java.sql.SQLRecoverableException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -71,9 +76,15 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
     private static final int EXECUTOR_SHUTDOWN_TIMEOUT = 1000; // 1 second
     private static final int DEFAULT_OUTGOING_WORKERS = 5;
+    // how long a producer waits for room in the outgoing queue of a peer that is not keeping up
+    private static final long PDU_QUEUE_OFFER_TIMEOUT_MS = 1000;
+    // how long PDUs are sent one by one to a peer that does not take batches before trying a batch again
+    private static final long PDU_BATCHING_RETRY_INTERVAL_MS = 10 * 60 * 1000;
 
     private final List<ClusterManagerListener> _listeners = new ArrayList<ClusterManagerListener>();
     private final Map<Long, ManagementServerHostVO> _activePeers = new HashMap<Long, ManagementServerHostVO>();
+    // names of the active peers, this node excluded, as of the last heart beat check
+    private volatile List<String> _activePeerNames = Collections.emptyList();
 
     private final Map<String, ClusterService> _clusterPeers;
 
@@ -112,7 +123,11 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
     private String _clusterNodeIP = "127.0.0.1";
 
-    private final List<ClusterServicePdu> _clusterPduOutgoingQueue = new ArrayList<ClusterServicePdu>();
+    // outgoing PDUs per destination peer, each queue is drained by at most one sender at a time so PDUs to a peer keep their order
+    private final ConcurrentHashMap<String, PeerPduQueue> _clusterPduOutgoingQueues = new ConcurrentHashMap<String, PeerPduQueue>();
+    private final ExecutorService _pduSenderExecutor = Executors.newFixedThreadPool(DEFAULT_OUTGOING_WORKERS, new NamedThreadFactory("Cluster-PduSender"));
+    // peers running a version that only takes one PDU per call -> when to try a batch again
+    private final ConcurrentHashMap<String, Long> _peersWithoutPduBatching = new ConcurrentHashMap<String, Long>();
     private final List<ClusterServicePdu> _clusterPduIncomingQueue = new ArrayList<ClusterServicePdu>();
     private final Map<Long, ClusterServiceRequestPdu> _outgoingPdusWaitingForAck = new HashMap<Long, ClusterServiceRequestPdu>();
 
@@ -172,26 +187,66 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
     }
 
     private void addOutgoingClusterPdu(final ClusterServicePdu pdu) {
-        synchronized (_clusterPduOutgoingQueue) {
-            _clusterPduOutgoingQueue.add(pdu);
-            _clusterPduOutgoingQueue.notifyAll();
+        final PeerPduQueue peerQueue = getPeerPduQueue(pdu.getDestPeer());
+        boolean queued = false;
+        try {
+            // hold the producer back a little when the peer is not keeping up rather than queueing without bound
+            queued = peerQueue.offer(pdu, PDU_QUEUE_OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            s_logger.debug("Interrupted while queueing cluster PDU to peer " + pdu.getDestPeer());
+        }
+
+        if (!queued) {
+            s_logger.error("Outgoing cluster PDU queue to peer " + pdu.getDestPeer() + " is full, dropping pdu: " + pdu.getJsonPackage());
+            if (pdu instanceof ClusterServiceRequestPdu) {
+                final ClusterServiceRequestPdu requestPdu = popRequestPdu(pdu.getSequenceId());
+                if (requestPdu != null) {
+                    synchronized (requestPdu) {
+                        requestPdu.notifyAll();
+                    }
+                }
+            }
+            return;
         }
+        scheduleClusterPduSending(peerQueue);
     }
 
-    private ClusterServicePdu popOutgoingClusterPdu(final long timeoutMs) {
-        synchronized (_clusterPduOutgoingQueue) {
-            try {
-                _clusterPduOutgoingQueue.wait(timeoutMs);
-            } catch (final InterruptedException e) {
+    private PeerPduQueue getPeerPduQueue(final String strPeer) {
+        PeerPduQueue peerQueue = _clusterPduOutgoingQueues.get(strPeer);
+        if (peerQueue == null) {
+            final PeerPduQueue newQueue = new PeerPduQueue(strPeer, ClusterPduQueueSize.value());
+            peerQueue = _clusterPduOutgoingQueues.putIfAbsent(strPeer, newQueue);
+            if (peerQueue == null) {
+                peerQueue = newQueue;
             }
+        }
+        return peerQueue;
+    }
 
-            if (_clusterPduOutgoingQueue.size() > 0) {
-                final ClusterServicePdu pdu = _clusterPduOutgoingQueue.get(0);
-                _clusterPduOutgoingQueue.remove(0);
-                return pdu;
+    /**
+     * Drops the PDUs still queued to a peer that left the cluster, the requests waiting for their answer are
+     * cancelled by cancelClusterRequestToPeer.
+     */
+    private void purgePeerPduQueue(final String strPeer) {
+        _peersWithoutPduBatching.remove(strPeer);
+        final PeerPduQueue peerQueue = _clusterPduOutgoingQueues.remove(strPeer);
+        if (peerQueue != null) {
+            final int dropped = peerQueue.clear();
+            if (dropped > 0) {
+                s_logger.warn("Dropped " + dropped + " cluster PDUs queued to peer " + strPeer + " as it left the cluster");
+            }
+        }
+    }
+
+    private void scheduleClusterPduSending(final PeerPduQueue peerQueue) {
+        if (peerQueue.startSending()) {
+            try {
+                _pduSenderExecutor.execute(getClusterPduSendingTask(peerQueue));
+            } catch (final RejectedExecutionException e) {
+                peerQueue.stopSending();
+                s_logger.warn("Unable to schedule sending of cluster PDUs to peer " + peerQueue.getPeer() + ", cluster manager is stopping");
             }
         }
-        return null;
     }
 
     private void addIncomingClusterPdu(final ClusterServicePdu pdu) {
@@ -217,11 +272,11 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         return null;
     }
 
-    private Runnable getClusterPduSendingTask() {
+    private Runnable getClusterPduSendingTask(final PeerPduQueue peerQueue) {
         return new ManagedContextRunnable() {
             @Override
             protected void runInContext() {
-                onSendingClusterPdu();
+                onSendingClusterPdu(peerQueue);
             }
         };
     }
@@ -235,56 +290,138 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         };
     }
 
-    private void onSendingClusterPdu() {
-        while (true) {
-            try {
-                final ClusterServicePdu pdu = popOutgoingClusterPdu(1000);
-                if (pdu == null) {
-                    continue;
+    private void onSendingClusterPdu(final PeerPduQueue peerQueue) {
+        try {
+            final List<ClusterServicePdu> pdus = new ArrayList<ClusterServicePdu>();
+            while (peerQueue.drainTo(pdus, Math.max(1, ClusterPduBatchSize.value())) > 0) {
+                try {
+                    sendClusterPdus(peerQueue.getPeer(), pdus);
+                } catch (final Throwable e) {
+                    s_logger.error("Unexcpeted exception: ", e);
                 }
+                pdus.clear();
+            }
+        } finally {
+            peerQueue.stopSending();
+            // a PDU may have been queued after the last drain but before the sending flag was cleared
+            if (!peerQueue.isEmpty()) {
+                scheduleClusterPduSending(peerQueue);
+            }
+        }
+    }
 
-                ClusterService peerService = null;
-                for (int i = 0; i < 2; i++) {
-                    try {
-                        peerService = getPeerService(pdu.getDestPeer());
-                    } catch (final RemoteException e) {
-                        s_logger.error("Unable to get cluster service on peer : " + pdu.getDestPeer());
-                    }
+    private void sendClusterPdus(final String strPeer, final List<ClusterServicePdu> pdus) {
+        if (pdus.size() == 1 || !isPduBatchingSupported(strPeer)) {
+            for (final ClusterServicePdu pdu : pdus) {
+                sendClusterPdu(pdu);
+            }
+            return;
+        }
 
-                    if (peerService != null) {
-                        try {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + ". agent: " + pdu.getAgentId() + ", pdu seq: " +
-                                        pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
+        // the peer tells how many PDUs it took, only the others are sent again so none is delivered twice
+        List<ClusterServicePdu> remaining = pdus;
+        for (int i = 0; i < 2 && !remaining.isEmpty(); i++) {
+            ClusterService peerService = null;
+            try {
+                peerService = getPeerService(strPeer);
+            } catch (final RemoteException e) {
+                s_logger.error("Unable to get cluster service on peer : " + strPeer);
+            }
 
-                            final Profiler profiler = new Profiler();
-                            profiler.start();
+            if (peerService != null) {
+                try {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Cluster PDU batch " + getSelfPeerName() + " -> " + strPeer + ". pdus: " + remaining.size() + ", first pdu seq: " +
+                                remaining.get(0).getSequenceId());
+                    }
 
-                            final String strResult = peerService.execute(pdu);
-                            profiler.stop();
+                    final Profiler profiler = new Profiler();
+                    profiler.start();
 
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + " completed. time: " +
-                                        profiler.getDurationInMillis() + "ms. agent: " + pdu.getAgentId() + ", pdu seq: " + pdu.getSequenceId() +
-                                        ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
-                            }
+                    final int delivered = peerService.execute(remaining);
+                    profiler.stop();
 
-                            if ("true".equals(strResult)) {
-                                break;
-                            }
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Cluster PDU batch " + getSelfPeerName() + " -> " + strPeer + " completed. time: " + profiler.getDurationInMillis() +
+                                "ms. pdus: " + remaining.size() + ", delivered: " + delivered);
+                    }
 
-                        } catch (final RemoteException e) {
-                            invalidatePeerService(pdu.getDestPeer());
-                            if (s_logger.isInfoEnabled()) {
-                                s_logger.info("Exception on remote execution, peer: " + pdu.getDestPeer() + ", iteration: " + i + ", exception message :" +
-                                        e.getMessage());
-                            }
+                    if (delivered < 0) {
+                        // the peer is running a version that does not take batches, deliver the PDUs one by one instead
+                        s_logger.info("Peer " + strPeer + " does not accept cluster PDU batches, sending PDUs one at a time to it");
+                        _peersWithoutPduBatching.put(strPeer, System.currentTimeMillis() + PDU_BATCHING_RETRY_INTERVAL_MS);
+                        for (final ClusterServicePdu pdu : remaining) {
+                            sendClusterPdu(pdu);
                         }
+                        return;
+                    }
+                    remaining = remaining.subList(Math.min(delivered, remaining.size()), remaining.size());
+                } catch (final RemoteException e) {
+                    invalidatePeerService(strPeer);
+                    if (s_logger.isInfoEnabled()) {
+                        s_logger.info("Exception on remote execution, peer: " + strPeer + ", iteration: " + i + ", exception message :" + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        if (!remaining.isEmpty()) {
+            s_logger.warn("Unable to deliver " + remaining.size() + " of " + pdus.size() + " cluster PDUs to peer " + strPeer);
+        }
+    }
+
+    private boolean isPduBatchingSupported(final String strPeer) {
+        final Long retryAt = _peersWithoutPduBatching.get(strPeer);
+        if (retryAt == null) {
+            return true;
+        }
+        if (System.currentTimeMillis() < retryAt) {
+            return false;
+        }
+        // the peer may have been upgraded since
+        _peersWithoutPduBatching.remove(strPeer, retryAt);
+        return true;
+    }
+
+    private void sendClusterPdu(final ClusterServicePdu pdu) {
+        ClusterService peerService = null;
+        for (int i = 0; i < 2; i++) {
+            try {
+                peerService = getPeerService(pdu.getDestPeer());
+            } catch (final RemoteException e) {
+                s_logger.error("Unable to get cluster service on peer : " + pdu.getDestPeer());
+            }
+
+            if (peerService != null) {
+                try {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + ". agent: " + pdu.getAgentId() + ", pdu seq: " +
+                                pdu.getSequenceId() + ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
+                    }
+
+                    final Profiler profiler = new Profiler();
+                    profiler.start();
+
+                    final String strResult = peerService.execute(pdu);
+                    profiler.stop();
+
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Cluster PDU " + getSelfPeerName() + " -> " + pdu.getDestPeer() + " completed. time: " +
+                                profiler.getDurationInMillis() + "ms. agent: " + pdu.getAgentId() + ", pdu seq: " + pdu.getSequenceId() +
+                                ", pdu ack seq: " + pdu.getAckSequenceId() + ", json: " + pdu.getJsonPackage());
+                    }
+
+                    if ("true".equals(strResult)) {
+                        return;
+                    }
+
+                } catch (final RemoteException e) {
+                    invalidatePeerService(pdu.getDestPeer());
+                    if (s_logger.isInfoEnabled()) {
+                        s_logger.info("Exception on remote execution, peer: " + pdu.getDestPeer() + ", iteration: " + i + ", exception message :" +
+                                e.getMessage());
                     }
                 }
-            } catch (final Throwable e) {
-                s_logger.error("Unexcpeted exception: ", e);
             }
         }
     }
@@ -373,6 +510,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         }
     }
 
+    @Override
     public void executeAsync(final String strPeer, final long agentId, final String cmds, final boolean stopOnError) {
         final ClusterServicePdu pdu = new ClusterServicePdu();
         pdu.setSourcePeer(getSelfPeerName());
@@ -416,6 +554,21 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         return null;
     }
 
+    @Override
+    public List<String> getActivePeerNames() {
+        return _activePeerNames;
+    }
+
+    private void updateActivePeerNames() {
+        final List<String> names = new ArrayList<String>(_activePeers.size());
+        for (final ManagementServerHostVO mshost : _activePeers.values()) {
+            if (mshost.getMsid() != _msId) {
+                names.add(Long.toString(mshost.getMsid()));
+            }
+        }
+        _activePeerNames = Collections.unmodifiableList(names);
+    }
+
     @Override
     public ManagementServerHostVO getPeer(final String mgmtServerId) {
         return _mshostDao.findByMsid(Long.parseLong(mgmtServerId));
@@ -477,6 +630,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Leaving node, IP: " + mshost.getServiceIP() + ", msid: " + mshost.getMsid());
             }
+            purgePeerPduQueue(String.valueOf(mshost.getMsid()));
             cancelClusterRequestToPeer(String.valueOf(mshost.getMsid()));
         }
 
@@ -912,6 +1066,10 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
             queueNotification(new ClusterManagerMessage(ClusterManagerMessage.MessageType.nodeAdded, newNodeList));
         }
 
+        if (!invalidatedNodeList.isEmpty() || !removedNodeList.isEmpty() || !newNodeList.isEmpty()) {
+            updateActivePeerNames();
+        }
+
         profiler.stop();
 
         if (profiler.getDurationInMillis() >= HeartbeatInterval.value()) {
@@ -1007,6 +1165,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         }
 
         _heartbeatScheduler.shutdownNow();
+        _pduSenderExecutor.shutdownNow();
         _executor.shutdownNow();
 
         try {
@@ -1043,10 +1202,6 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
             throw new ConfigurationException("cluster node IP should be valid local address where the server is running, please check your configuration");
         }
 
-        for (int i = 0; i < DEFAULT_OUTGOING_WORKERS; i++) {
-            _executor.execute(getClusterPduSendingTask());
-        }
-
         // notification task itself in turn works as a task dispatcher
         _executor.execute(getClusterPduNotificationTask());
 
@@ -1113,7 +1268,7 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {HeartbeatInterval, HeartbeatThreshold};
+        return new ConfigKey<?>[] {HeartbeatInterval, HeartbeatThreshold, ClusterPduQueueSize, ClusterPduBatchSize};
     }
 
     private boolean pingManagementNode(final ManagementServerHostVO mshost) {
@@ -1198,4 +1353,43 @@ public class ClusterManagerImpl extends ManagerBase implements ClusterManager, C
         }
     }
 
+
+    private static class PeerPduQueue {
+        private final String _peer;
+        private final LinkedBlockingQueue<ClusterServicePdu> _queue;
+        private final AtomicBoolean _sending = new AtomicBoolean(false);
+
+        PeerPduQueue(final String peer, final int capacity) {
+            _peer = peer;
+            _queue = new LinkedBlockingQueue<ClusterServicePdu>(capacity);
+        }
+
+        String getPeer() {
+            return _peer;
+        }
+
+        boolean offer(final ClusterServicePdu pdu, final long timeout, final TimeUnit unit) throws InterruptedException {
+            return _queue.offer(pdu, timeout, unit);
+        }
+
+        int drainTo(final List<ClusterServicePdu> pdus, final int max) {
+            return _queue.drainTo(pdus, max);
+        }
+
+        boolean isEmpty() {
+            return _queue.isEmpty();
+        }
+
+        int clear() {
+            return _queue.drainTo(new ArrayList<ClusterServicePdu>());
+        }
+
+        boolean startSending() {
+            return _sending.compareAndSet(false, true);
+        }
+
+        void stopSending() {
+            _sending.set(false);
+        }
+    }
 }
@@ -18,9 +18,16 @@ package com.cloud.cluster;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface ClusterService extends Remote {
     String execute(ClusterServicePdu pdu) throws RemoteException;
 
+    /**
+     * Delivers several PDUs to the peer in a single call, they are received in the given order.
+     * @return how many of the PDUs, from the first one, the peer took, or -1 if the peer does not take batches
+     */
+    int execute(List<ClusterServicePdu> pdus) throws RemoteException;
+
     boolean ping(String callingPeer) throws RemoteException;
 }
@@ -31,6 +31,10 @@ import org.apache.http.protocol.HttpRequestHandler;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
     private static final Logger s_logger = Logger.getLogger(ClusterServiceServletHttpHandler.class);
 
@@ -127,6 +131,10 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
                     responseContent = handleDeliverPduMethodCall(req);
                     break;
 
+                case RemoteMethodConstants.METHOD_DELIVER_PDUS:
+                    responseContent = handleDeliverPdusMethodCall(req);
+                    break;
+
                 case RemoteMethodConstants.METHOD_PING:
                     responseContent = handlePingMethodCall(req);
                     break;
@@ -181,6 +189,35 @@ public class ClusterServiceServletHttpHandler implements HttpRequestHandler {
         return "true";
     }
 
+    /**
+     * @return how many of the PDUs, from the first one, were taken, the sender retries the others
+     */
+    private String handleDeliverPdusMethodCall(HttpRequest req) {
+        final String pdus = (String)req.getParams().getParameter("pdus");
+
+        int delivered = 0;
+        try {
+            for (final JsonElement element : new JsonParser().parse(pdus).getAsJsonArray()) {
+                final JsonObject json = element.getAsJsonObject();
+                final ClusterServicePdu pdu = new ClusterServicePdu();
+                pdu.setSourcePeer(json.get("sourcePeer").getAsString());
+                pdu.setDestPeer(json.get("destPeer").getAsString());
+                pdu.setAgentId(json.get("agentId").getAsLong());
+                pdu.setSequenceId(json.get("pduSeq").getAsLong());
+                pdu.setAckSequenceId(json.get("pduAckSeq").getAsLong());
+                pdu.setJsonPackage(json.has("gsonPackage") && !json.get("gsonPackage").isJsonNull() ? json.get("gsonPackage").getAsString() : null);
+                pdu.setStopOnError(json.get("stopOnError").getAsBoolean());
+                pdu.setPduType(json.get("pduType").getAsInt());
+
+                manager.OnReceiveClusterServicePdu(pdu);
+                delivered++;
+            }
+        } catch (final RuntimeException e) {
+            s_logger.error("Unable to take cluster PDU " + delivered + " of a batch", e);
+        }
+        return Integer.toString(delivered);
+    }
+
     private String handlePingMethodCall(HttpRequest req) {
         final String callingPeer = (String)req.getParams().getParameter("callingPeer");
 
@@ -18,16 +18,20 @@ package com.cloud.cluster;
 
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.List;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.StatusLine;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.params.HttpClientParams;
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.Profiler;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 
 public class ClusterServiceServletImpl implements ClusterService {
     private static final long serialVersionUID = 4574025200012566153L;
@@ -66,6 +70,47 @@ public class ClusterServiceServletImpl implements ClusterService {
         return executePostMethod(client, method);
     }
 
+    @Override
+    public int execute(final List<ClusterServicePdu> pdus) throws RemoteException {
+
+        final JsonArray array = new JsonArray();
+        for (final ClusterServicePdu pdu : pdus) {
+            array.add(toJson(pdu));
+        }
+
+        final HttpClient client = getHttpClient();
+        final PostMethod method = new PostMethod(_serviceUrl);
+
+        method.addParameter("method", Integer.toString(RemoteMethodConstants.METHOD_DELIVER_PDUS));
+        method.addParameter("pdus", array.toString());
+
+        final String result = executePostMethod(client, method);
+        if (result == null) {
+            // peers that do not know the method answer with a bad request
+            final StatusLine status = method.getStatusLine();
+            return status != null && status.getStatusCode() == HttpStatus.SC_BAD_REQUEST ? -1 : 0;
+        }
+        try {
+            return Integer.parseInt(result.trim());
+        } catch (final NumberFormatException e) {
+            s_logger.error("Unexpected response to a cluster PDU batch from : " + _serviceUrl + ", response : " + result);
+            return 0;
+        }
+    }
+
+    static JsonObject toJson(final ClusterServicePdu pdu) {
+        final JsonObject json = new JsonObject();
+        json.addProperty("sourcePeer", pdu.getSourcePeer());
+        json.addProperty("destPeer", pdu.getDestPeer());
+        json.addProperty("pduSeq", pdu.getSequenceId());
+        json.addProperty("pduAckSeq", pdu.getAckSequenceId());
+        json.addProperty("agentId", pdu.getAgentId());
+        json.addProperty("gsonPackage", pdu.getJsonPackage());
+        json.addProperty("stopOnError", pdu.isStopOnError());
+        json.addProperty("pduType", pdu.getPduType());
+        return json;
+    }
+
     @Override
     public boolean ping(final String callingPeer) throws RemoteException {
         if (s_logger.isDebugEnabled()) {
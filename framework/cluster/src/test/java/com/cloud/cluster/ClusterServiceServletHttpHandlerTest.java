@@ -0,0 +1,103 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+public class ClusterServiceServletHttpHandlerTest {
+
+    private ClusterServicePdu createPdu(long seq, String json) {
+        ClusterServicePdu pdu = new ClusterServicePdu();
+        pdu.setSequenceId(seq);
+        pdu.setSourcePeer("1");
+        pdu.setDestPeer("2");
+        pdu.setAgentId(5);
+        pdu.setJsonPackage(json);
+        pdu.setPduType(ClusterServicePdu.PDU_TYPE_REQUEST);
+        return pdu;
+    }
+
+    private String deliver(ClusterServiceServletHttpHandler handler, JsonArray pdus) throws Exception {
+        BasicHttpRequest request = new BasicHttpRequest("POST", "/clusterservice");
+        request.getParams().setParameter("method", Integer.toString(RemoteMethodConstants.METHOD_DELIVER_PDUS));
+        request.getParams().setParameter("pdus", pdus.toString());
+        HttpResponse response = mock(HttpResponse.class);
+        handler.handleRequest(request, response);
+
+        verify(response).setStatusCode(HttpStatus.SC_OK);
+        ArgumentCaptor<HttpEntity> entity = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(response).setEntity(entity.capture());
+        return EntityUtils.toString(entity.getValue());
+    }
+
+    @Test
+    public void testDeliverPdusInOrder() throws Exception {
+        ClusterManager manager = mock(ClusterManager.class);
+        ClusterServiceServletHttpHandler handler = new ClusterServiceServletHttpHandler(manager);
+
+        JsonArray pdus = new JsonArray();
+        pdus.add(ClusterServiceServletImpl.toJson(createPdu(10, "[{\"first\":1}]")));
+        pdus.add(ClusterServiceServletImpl.toJson(createPdu(11, "[{\"second\":2}]")));
+
+        assertEquals("2", deliver(handler, pdus));
+
+        ArgumentCaptor<ClusterServicePdu> captor = ArgumentCaptor.forClass(ClusterServicePdu.class);
+        verify(manager, times(2)).OnReceiveClusterServicePdu(captor.capture());
+        List<ClusterServicePdu> received = captor.getAllValues();
+        assertEquals(10, received.get(0).getSequenceId());
+        assertEquals("[{\"first\":1}]", received.get(0).getJsonPackage());
+        assertEquals(11, received.get(1).getSequenceId());
+        assertEquals("2", received.get(1).getDestPeer());
+        assertEquals(5, received.get(1).getAgentId());
+        assertEquals(ClusterServicePdu.PDU_TYPE_REQUEST, received.get(1).getPduType());
+    }
+
+    @Test
+    public void testDeliverPdusReportsHowManyWereTaken() throws Exception {
+        ClusterManager manager = mock(ClusterManager.class);
+        ClusterServiceServletHttpHandler handler = new ClusterServiceServletHttpHandler(manager);
+
+        JsonArray pdus = new JsonArray();
+        pdus.add(ClusterServiceServletImpl.toJson(createPdu(10, "[{\"first\":1}]")));
+        JsonObject broken = ClusterServiceServletImpl.toJson(createPdu(11, "[{\"second\":2}]"));
+        broken.remove("pduSeq");
+        pdus.add(broken);
+        pdus.add(ClusterServiceServletImpl.toJson(createPdu(12, "[{\"third\":3}]")));
+
+        // the sender sends the PDUs after the first one again, they must not have been delivered
+        assertEquals("1", deliver(handler, pdus));
+        ArgumentCaptor<ClusterServicePdu> captor = ArgumentCaptor.forClass(ClusterServicePdu.class);
+        verify(manager, times(1)).OnReceiveClusterServicePdu(captor.capture());
+        assertEquals(10, captor.getValue().getSequenceId());
+    }
+}
@@ -31,4 +31,9 @@ public interface ConfigDepot {
     <T> void set(ConfigKey<T> key, T value);
 
     <T> void createOrUpdateConfigObject(String componentName, ConfigKey<T> key, String value);
+
+    /**
+     * Drops the cached configuration values so that the next read sees what is in the database.
+     */
+    void invalidateConfigCache();
 }
@@ -17,9 +17,9 @@
 package org.apache.cloudstack.framework.config;
 
 import java.sql.Date;
+import java.util.Objects;
 
 import org.apache.cloudstack.framework.config.impl.ConfigDepotImpl;
-import org.apache.cloudstack.framework.config.impl.ConfigurationVO;
 
 import com.cloud.utils.exception.CloudRuntimeException;
 
@@ -76,7 +76,9 @@ public class ConfigKey<T> {
     private final Scope _scope; // Parameter can be at different levels (Zone/cluster/pool/account), by default every parameter is at global
     private final boolean _isDynamic;
     private final T _multiplier;
-    T _value = null;
+    volatile T _value = null;
+    // The raw value _value was parsed from, so a dynamic key is only parsed again when it changes
+    private volatile String _rawValue = null;
 
     static ConfigDepotImpl s_depot = null;
 
@@ -139,9 +141,12 @@ public class ConfigKey<T> {
 
     public T value() {
         if (_value == null || isDynamic()) {
-            ConfigurationVO vo = s_depot != null ? s_depot.global().findById(key()) : null;
-            final String value = (vo != null && vo.getValue() != null) ? vo.getValue() : defaultValue();
-            _value = ((value == null) ? (T)defaultValue() : valueOf(value));
+            final String stored = s_depot != null ? s_depot.getGlobalValue(key()) : null;
+            final String value = stored != null ? stored : defaultValue();
+            if (_value == null || !Objects.equals(value, _rawValue)) {
+                _value = ((value == null) ? (T)defaultValue() : valueOf(value));
+                _rawValue = value;
+            }
         }
 
         return _value;
@@ -152,7 +157,7 @@ public class ConfigKey<T> {
             return value();
         }
 
-        String value = s_depot != null ? s_depot.findScopedConfigStorage(this).getConfigValue(id, this) : null;
+        String value = s_depot != null ? s_depot.getScopedValue(this, id) : null;
         if (value == null) {
             return value();
         } else {
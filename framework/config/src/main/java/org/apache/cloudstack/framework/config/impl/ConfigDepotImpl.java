@@ -22,7 +22,11 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -42,7 +46,12 @@ import com.cloud.utils.exception.CloudRuntimeException;
 /**
  * ConfigDepotImpl implements the ConfigDepot and ConfigDepotAdmin interface.
  * Its functionalities include:
- *   - Control how dynamic config values are cached and refreshed.
+ *   - Control how dynamic config values are cached and refreshed.  Global
+ *     values are kept in an in-memory snapshot that is reloaded with a single
+ *     query at most every CACHE_REFRESH_INTERVAL ms, and scoped values are
+ *     cached until the next reload.  The periodic reload is what makes changes
+ *     done on other management servers visible here; local changes made
+ *     through ConfigurationManager invalidate the cache right away.
  *   - Control how scoped config values are stored.
  *   - Gather all of the Configurable interfaces and insert their config
  *     variables into the config table.
@@ -78,6 +87,18 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
 
     HashMap<ConfigKey.Scope, Set<ConfigKey<?>>> _scopeLevelConfigsMap = new HashMap<ConfigKey.Scope, Set<ConfigKey<?>>>();
 
+    static final long CACHE_REFRESH_INTERVAL = 5000;
+    static final int SCOPED_CACHE_MAX_SIZE = 100000;
+    // Marks a cached scoped lookup that found no override
+    private static final String NO_VALUE = new String();
+
+    private volatile Map<String, String> _globalValues = null;
+    private volatile long _nextRefreshTime = 0;
+    private volatile long _version = 0;
+    private final AtomicBoolean _refreshing = new AtomicBoolean(false);
+    private final AtomicLong _invalidations = new AtomicLong(0);
+    private final ConcurrentHashMap<String, String> _scopedValues = new ConcurrentHashMap<String, String>();
+
     public ConfigDepotImpl() {
         ConfigKey.init(this);
         _scopeLevelConfigsMap.put(ConfigKey.Scope.Zone, new HashSet<ConfigKey<?>>());
@@ -137,6 +158,7 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
                 vo.setValue(value);
             }
             _configDao.persist(vo);
+            invalidateConfigCache();
         } else {
             if (vo.isDynamic() != key.isDynamic() || !ObjectUtils.equals(vo.getDescription(), key.description()) || !ObjectUtils.equals(vo.getDefaultValue(), key.defaultValue()) ||
                 !ObjectUtils.equals(vo.getScope(), key.scope().toString()) ||
@@ -166,6 +188,98 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
         return _configDao;
     }
 
+    /**
+     * @return the global value of the configuration from the in-memory snapshot, or null if it is not set.
+     */
+    public String getGlobalValue(String name) {
+        Map<String, String> values = _globalValues;
+        if (values == null || System.currentTimeMillis() >= _nextRefreshTime) {
+            values = refreshGlobalValues();
+        }
+        if (values.containsKey(name)) {
+            return values.get(name);
+        }
+
+        // Not registered through a Configurable, look it up directly
+        ConfigurationVO vo = _configDao.findById(name);
+        return vo != null ? vo.getValue() : null;
+    }
+
+    /**
+     * @return the value set for the configuration at the scope of the given resource, or null if there is no override.
+     */
+    public String getScopedValue(ConfigKey<?> key, long id) {
+        String cacheKey = key.scope() + ":" + id + ":" + key.key();
+        String value = _scopedValues.get(cacheKey);
+        if (value == null) {
+            value = findScopedConfigStorage(key).getConfigValue(id, key);
+            if (_scopedValues.size() >= SCOPED_CACHE_MAX_SIZE) {
+                _scopedValues.clear();
+            }
+            _scopedValues.put(cacheKey, value != null ? value : NO_VALUE);
+            return value;
+        }
+        return value == NO_VALUE ? null : value;
+    }
+
+    /**
+     * @return a number that changes every time the cached configuration values change.
+     */
+    public long getVersion() {
+        return _version;
+    }
+
+    @Override
+    public void invalidateConfigCache() {
+        _invalidations.incrementAndGet();
+        _scopedValues.clear();
+        _nextRefreshTime = 0;
+    }
+
+    protected Map<String, String> refreshGlobalValues() {
+        Map<String, String> current = _globalValues;
+        // Only one caller reloads, the others keep reading the previous snapshot
+        if (current != null && !_refreshing.compareAndSet(false, true)) {
+            return current;
+        }
+
+        try {
+            synchronized (this) {
+                if (_globalValues != null && _globalValues != current) {
+                    return _globalValues;
+                }
+
+                long invalidations = _invalidations.get();
+                Map<String, String> values = new HashMap<String, String>(_allKeys.size() * 2 + 16);
+                for (ConfigurationVO vo : _configDao.listAll()) {
+                    values.put(vo.getName(), vo.getValue());
+                }
+                _scopedValues.clear();
+                if (!values.equals(current)) {
+                    _globalValues = values;
+                    _version++;
+                    if (current != null && s_logger.isDebugEnabled()) {
+                        s_logger.debug("Configuration values changed, cache is now at version " + _version);
+                    }
+                }
+                // An invalidation that raced with the reload may not be in what was just read
+                _nextRefreshTime = invalidations == _invalidations.get() ? System.currentTimeMillis() + CACHE_REFRESH_INTERVAL : 0;
+                return _globalValues;
+            }
+        } catch (RuntimeException e) {
+            if (current == null) {
+                throw e;
+            }
+            s_logger.warn("Unable to refresh the configuration cache, using the previous values", e);
+            _nextRefreshTime = System.currentTimeMillis() + CACHE_REFRESH_INTERVAL;
+            return current;
+        } finally {
+            if (current != null) {
+                _refreshing.set(false);
+            }
+        }
+    }
+
     public ScopedConfigStorage findScopedConfigStorage(ConfigKey<?> config) {
         for (ScopedConfigStorage storage : _scopedStorages) {
             if (storage.getScope() == config.scope()) {
@@ -202,6 +316,7 @@ public class ConfigDepotImpl implements ConfigDepot, ConfigDepotAdmin {
     @Override
     public <T> void set(ConfigKey<T> key, T value) {
         _configDao.update(key.key(), value.toString());
+        invalidateConfigCache();
     }
 
     @Override
@@ -0,0 +1,122 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.config.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.ScopedConfigStorage;
+import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
+
+public class ConfigDepotImplTest {
+    private final static ConfigKey<Integer> DynamicIntCK = new ConfigKey<Integer>("Advanced", Integer.class, "cache.dynIntKey", "10", "Test Key", true,
+            ConfigKey.Scope.Zone);
+
+    @Mock
+    ConfigurationDao _configDao;
+
+    @Mock
+    ScopedConfigStorage _scopedStorage;
+
+    ConfigDepotImpl _depot;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        _depot = new ConfigDepotImpl();
+        _depot._configDao = _configDao;
+        _depot._scopedStorages = new ArrayList<ScopedConfigStorage>();
+        _depot._scopedStorages.add(_scopedStorage);
+        when(_scopedStorage.getScope()).thenReturn(ConfigKey.Scope.Zone);
+    }
+
+    @After
+    public void tearDown() {
+        ConfigKey.init(null);
+    }
+
+    private ConfigurationVO config(String value) {
+        ConfigurationVO vo = new ConfigurationVO("UnitTestComponent", DynamicIntCK);
+        vo.setValue(value);
+        return vo;
+    }
+
+    @Test
+    public void testGlobalValueIsReadFromSnapshot() {
+        when(_configDao.listAll()).thenReturn(Arrays.asList(config("20")));
+
+        assertEquals(Integer.valueOf(20), DynamicIntCK.value());
+        assertEquals(Integer.valueOf(20), DynamicIntCK.value());
+        assertEquals(Integer.valueOf(20), DynamicIntCK.value());
+
+        verify(_configDao, times(1)).listAll();
+        verify(_configDao, times(0)).findById(DynamicIntCK.key());
+    }
+
+    @Test
+    public void testInvalidateReloadsValues() {
+        when(_configDao.listAll()).thenReturn(Arrays.asList(config("20")));
+        assertEquals(Integer.valueOf(20), DynamicIntCK.value());
+        long version = _depot.getVersion();
+
+        when(_configDao.listAll()).thenReturn(Arrays.asList(config("30")));
+        assertEquals(Integer.valueOf(20), DynamicIntCK.value());
+
+        _depot.invalidateConfigCache();
+        assertEquals(Integer.valueOf(30), DynamicIntCK.value());
+        assertEquals(version + 1, _depot.getVersion());
+    }
+
+    @Test
+    public void testUnknownKeyFallsBackToDao() {
+        when(_configDao.listAll()).thenReturn(new ArrayList<ConfigurationVO>());
+        when(_configDao.findById(DynamicIntCK.key())).thenReturn(config("40"));
+
+        assertEquals("40", _depot.getGlobalValue(DynamicIntCK.key()));
+    }
+
+    @Test
+    public void testScopedValueIsCached() {
+        when(_configDao.listAll()).thenReturn(Arrays.asList(config("20")));
+        when(_scopedStorage.getConfigValue(1L, DynamicIntCK)).thenReturn("50");
+
+        assertEquals(Integer.valueOf(50), DynamicIntCK.valueIn(1L));
+        assertEquals(Integer.valueOf(50), DynamicIntCK.valueIn(1L));
+        assertEquals(Integer.valueOf(20), DynamicIntCK.valueIn(2L));
+        assertEquals(Integer.valueOf(20), DynamicIntCK.valueIn(2L));
+        verify(_scopedStorage, times(1)).getConfigValue(1L, DynamicIntCK);
+        verify(_scopedStorage, times(1)).getConfigValue(2L, DynamicIntCK);
+
+        when(_scopedStorage.getConfigValue(1L, DynamicIntCK)).thenReturn(null);
+        _depot.invalidateConfigCache();
+        assertEquals(Integer.valueOf(20), DynamicIntCK.valueIn(1L));
+        assertNull(_depot.getScopedValue(DynamicIntCK, 1L));
+    }
+}
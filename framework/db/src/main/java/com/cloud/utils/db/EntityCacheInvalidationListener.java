@@ -0,0 +1,31 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.io.Serializable;
+
+/**
+ * Gets told about every entity evicted from a DAO cache because it was changed on this management server, so that
+ * the other management servers can evict it as well.
+ */
+public interface EntityCacheInvalidationListener {
+    /**
+     * @param cacheName name of the DAO cache
+     * @param id id of the evicted entity, null if the whole cache was cleared
+     */
+    void onEntityCacheInvalidated(String cacheName, Serializable id);
+}
@@ -0,0 +1,104 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import net.sf.ehcache.Cache;
+
+public class EntityCacheMBeanImpl extends StandardMBean implements EntityCacheMBean {
+    private final Cache _cache;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _invalidations = new AtomicLong();
+    private final AtomicLong _remoteInvalidations = new AtomicLong();
+
+    public EntityCacheMBeanImpl(Cache cache) {
+        super(EntityCacheMBean.class, false);
+        _cache = cache;
+    }
+
+    public void hit() {
+        _hits.incrementAndGet();
+    }
+
+    public void miss() {
+        _misses.incrementAndGet();
+    }
+
+    public void invalidated(boolean remote) {
+        if (remote) {
+            _remoteInvalidations.incrementAndGet();
+        } else {
+            _invalidations.incrementAndGet();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return _cache.getName();
+    }
+
+    @Override
+    public int getSize() {
+        return _cache.getSize();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return _cache.getCacheConfiguration().getMaxElementsInMemory();
+    }
+
+    @Override
+    public long getTimeToLiveSeconds() {
+        return _cache.getCacheConfiguration().getTimeToLiveSeconds();
+    }
+
+    @Override
+    public long getHits() {
+        return _hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        final long hits = _hits.get();
+        final long total = hits + _misses.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public long getInvalidations() {
+        return _invalidations.get();
+    }
+
+    @Override
+    public long getRemoteInvalidations() {
+        return _remoteInvalidations.get();
+    }
+
+    @Override
+    public void clear() {
+        _cache.removeAll();
+    }
+}
@@ -0,0 +1,101 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the rows a DAO loaded for a key (all the rows of a network, of an offering...) so that the many small
+ * lookups made against the same key are answered without going back to the database.
+ *
+ * A snapshot is kept for a limited time and the least recently used ones are dropped when the cache is full.
+ * The DAO clears the whole cache whenever rows change; a load that started before such a clear is not kept, so
+ * a snapshot never outlives the change it missed by more than the time to live.
+ */
+public class EntitySnapshotCache<K, T> {
+    private final int _maxSize;
+    private final long _timeToLiveMillis;
+    private final Map<K, Snapshot<T>> _snapshots;
+    private long _generation;
+
+    public EntitySnapshotCache(final int maxSize, final long timeToLiveSeconds) {
+        _maxSize = maxSize;
+        _timeToLiveMillis = timeToLiveSeconds * 1000;
+        _snapshots = new LinkedHashMap<K, Snapshot<T>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<K, Snapshot<T>> eldest) {
+                return size() > _maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the rows kept for the key, null if there are none or they have expired
+     */
+    public synchronized List<T> get(final K key) {
+        final Snapshot<T> snapshot = _snapshots.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        if (_timeToLiveMillis > 0 && System.currentTimeMillis() - snapshot.loaded > _timeToLiveMillis) {
+            _snapshots.remove(key);
+            return null;
+        }
+        return snapshot.rows;
+    }
+
+    /**
+     * @return the token to hand to {@link #put} for rows about to be loaded
+     */
+    public synchronized long getGeneration() {
+        return _generation;
+    }
+
+    /**
+     * Keeps the rows loaded for the key, unless the cache was cleared since the load started.
+     */
+    public synchronized void put(final K key, final List<T> rows, final long generation) {
+        if (generation != _generation || _maxSize <= 0) {
+            return;
+        }
+        _snapshots.put(key, new Snapshot<T>(Collections.unmodifiableList(rows), System.currentTimeMillis()));
+    }
+
+    public synchronized void clear() {
+        _generation++;
+        _snapshots.clear();
+    }
+
+    public synchronized int size() {
+        return _snapshots.size();
+    }
+
+    private static class Snapshot<T> {
+        final List<T> rows;
+        final long loaded;
+
+        Snapshot(final List<T> rows, final long loaded) {
+            this.rows = rows;
+            this.loaded = loaded;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the ids of the free rows of an allocation table (private ips, vnets...) in memory, grouped by the range
+ * they are allocated from, so that an allocation gets a candidate without sorting the free rows in the database.
+ *
+ * The pool is only a hint: the caller claims a candidate with a conditional update of that single row, and simply
+ * moves on to the next candidate if the row was taken in the meantime, by this or another management server.
+ * When a range runs empty it is reloaded from the database once, so nothing that is free in the database is ever
+ * missed.  Rows released back are picked up by that reload.
+ */
+public class FreeRowPool<K> {
+    private static final Logger s_logger = Logger.getLogger(FreeRowPool.class);
+
+    // Consecutive stale candidates after which the range is reloaded rather than drained
+    static final int MAX_STALE_CANDIDATES = 32;
+
+    private static final List<FreeRowPool<?>> s_pools = new CopyOnWriteArrayList<FreeRowPool<?>>();
+
+    public interface Loader<K> {
+        /**
+         * @return ids of the rows of the range that are free in the database
+         */
+        List<Long> listFreeIds(K key);
+    }
+
+    public interface Claimer {
+        /**
+         * @return true if the row was still free and is now taken by the caller
+         */
+        boolean claim(long id);
+    }
+
+    private final String _name;
+    private final Loader<K> _loader;
+    private final ConcurrentHashMap<K, FreeIds> _ranges = new ConcurrentHashMap<K, FreeIds>();
+
+    public FreeRowPool(String name, Loader<K> loader) {
+        _name = name;
+        _loader = loader;
+        s_pools.add(this);
+    }
+
+    /**
+     * @return id of the row claimed in the range, or null if there is no free row left
+     */
+    public Long allocate(K key, Claimer claimer) {
+        FreeIds free = _ranges.get(key);
+        if (free == null) {
+            free = new FreeIds();
+            FreeIds existing = _ranges.putIfAbsent(key, free);
+            if (existing != null) {
+                free = existing;
+            }
+        }
+
+        boolean reloaded = false;
+        int stale = 0;
+        while (true) {
+            Long id = free.poll();
+            if (id == null) {
+                if (reloaded) {
+                    return null;
+                }
+                free.reload(key, _loader);
+                reloaded = true;
+                continue;
+            }
+            if (claimer.claim(id)) {
+                return id;
+            }
+            if (++stale >= MAX_STALE_CANDIDATES && !reloaded) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Too many stale candidates in " + _name + " for " + key + ", reloading it");
+                }
+                free.clear();
+            }
+        }
+    }
+
+    /**
+     * Forgets the range, it is reloaded on its next allocation.
+     */
+    public void invalidate(K key) {
+        _ranges.remove(key);
+    }
+
+    public void invalidate() {
+        _ranges.clear();
+    }
+
+    /**
+     * Forgets everything held by all the pools, for when what the other management servers allocated can no
+     * longer be trusted to be reflected by the pools, e.g. when the cluster membership changes.
+     */
+    public static void invalidateAll() {
+        for (FreeRowPool<?> pool : s_pools) {
+            pool.invalidate();
+        }
+    }
+
+    protected static class FreeIds {
+        private static final Random s_random = new Random();
+
+        private long[] _ids = new long[0];
+        private int _next = 0;
+
+        synchronized Long poll() {
+            return _next < _ids.length ? _ids[_next++] : null;
+        }
+
+        synchronized void clear() {
+            _next = _ids.length;
+        }
+
+        synchronized <K> void reload(K key, Loader<K> loader) {
+            if (_next < _ids.length) {
+                // somebody else reloaded while we were looking
+                return;
+            }
+            List<Long> ids = loader.listFreeIds(key);
+            long[] shuffled = new long[ids.size()];
+            int i = 0;
+            for (Long id : ids) {
+                shuffled[i++] = id;
+            }
+            // hand out in random order, like ORDER BY RAND() did, so that servers sharing a range rarely collide
+            for (i = shuffled.length - 1; i > 0; i--) {
+                int j = s_random.nextInt(i + 1);
+                long tmp = shuffled[i];
+                shuffled[i] = shuffled[j];
+                shuffled[j] = tmp;
+            }
+            _ids = shuffled;
+            _next = 0;
+        }
+    }
+}
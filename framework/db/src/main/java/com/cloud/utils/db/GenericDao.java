@@ -135,6 +135,14 @@ public interface GenericDao<T, ID extends Serializable> {
 
     int update(T entity, SearchCriteria<T> sc);
 
+    /**
+     * Update the changes made to the entity beans using JDBC batches.  Beans
+     * with the same set of changed fields share one statement.
+     * @param entities beans generated by this dao.
+     * @return number of rows updated.
+     */
+    int updateAll(List<T> entities);
+
     /**
      * Look for all active rows.
      * @return list of entity beans.
@@ -199,6 +207,16 @@ public interface GenericDao<T, ID extends Serializable> {
      **/
     T persist(T entity);
 
+    /**
+     * Persist the entity beans using JDBC batches, one round trip per table
+     * for the whole list.  The id field of each entity is updated with the
+     * generated id.  Unlike persist(), the rows are not read back, so the
+     * returned beans are the ones given and can't be used with update().
+     * @param entities the beans to persist.
+     * @return the persisted beans.
+     **/
+    List<T> persistAll(List<T> entities);
+
     /**
      * remove the entity bean.  This will call delete automatically if
      * the entity bean does not have a removed field.
@@ -77,6 +77,7 @@ import com.cloud.utils.component.ComponentMethodInterceptable;
 import com.cloud.utils.crypt.DBEncryptionUtil;
 import com.cloud.utils.db.SearchCriteria.SelectType;
 import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.Ip;
 import com.cloud.utils.net.NetUtils;
 
@@ -788,13 +789,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     protected int update(ID id, UpdateBuilder ub, T entity) {
-        if (_cache != null) {
-            _cache.remove(id);
-        }
         SearchCriteria<T> sc = createSearchCriteria();
         sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
+        invalidateCache(id);
 
         try {
             if (ub.getCollectionChanges() != null) {
@@ -830,6 +829,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             txn.start();
+            final List<ID> evictedIds = _cache != null && !isSearchById(sc) ? lockIdsToEvict(_tables, searchClause, sc.getValues(), rows) : null;
             pstmt = txn.prepareAutoCloseStatement(sql.toString());
 
             Collection<Ternary<Attribute, Boolean, Object>> changes = ub.getChanges();
@@ -844,6 +844,9 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             int result = pstmt.executeUpdate();
+            if (result > 0 && _cache != null && !isSearchById(sc)) {
+                invalidateCachedIds(evictedIds);
+            }
             txn.commit();
             ub.clear();
             return result;
@@ -946,9 +949,11 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         T result = null;
         if (_cache != null) {
             final Element element = _cache.get(id);
-            if (element == null) {
+            if (element == null || isRemoved((T)element.getObjectValue())) {
+                _cacheStats.miss();
                 result = lockRow(id, null);
             } else {
+                _cacheStats.hit();
                 result = (T)element.getObjectValue();
             }
         } else {
@@ -980,8 +985,10 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         if (_cache != null) {
             final Element element = _cache.get(id);
             if (element == null) {
+                _cacheStats.miss();
                 result = findById(id, true, null);
             } else {
+                _cacheStats.hit();
                 result = (T)element.getObjectValue();
             }
         } else {
@@ -1190,9 +1197,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             }
 
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateCache(id);
             return true;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1219,12 +1224,19 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         final TransactionLegacy txn = TransactionLegacy.currentTxn();
         PreparedStatement pstmt = null;
         try {
+            txn.start();
+            final List<ID> evictedIds = _cache != null ? lockIdsToEvict(_table, sc.getWhereClause(), sc.getValues(), null) : null;
             pstmt = txn.prepareAutoCloseStatement(sql);
             int i = 0;
             for (final Pair<Attribute, Object> value : sc.getValues()) {
                 prepareAttribute(++i, pstmt, value.first(), value.second());
             }
-            return pstmt.executeUpdate();
+            final int result = pstmt.executeUpdate();
+            if (result > 0) {
+                invalidateCachedIds(evictedIds);
+            }
+            txn.commit();
+            return result;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
         } catch (final Throwable e) {
@@ -1458,6 +1470,155 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         return _idField != null ? findByIdIncludingRemoved(id) : null;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    @DB()
+    public List<T> persistAll(final List<T> entities) {
+        if (entities == null || entities.isEmpty()) {
+            return entities;
+        }
+
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            txn.start();
+            boolean idsAssigned = false;
+            for (final Pair<String, Attribute[]> pair : _insertSqls) {
+                final Attribute[] attrs = pair.second();
+                pstmt = txn.prepareAutoCloseStatement(pair.first(), Statement.RETURN_GENERATED_KEYS);
+
+                for (final T entity : entities) {
+                    prepareAttributes(pstmt, entity, attrs, 1);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+
+                // the first table that generates keys gives the ids of the entities, in batch order
+                if (!idsAssigned && _idField != null) {
+                    final ResultSet rs = pstmt.getGeneratedKeys();
+                    if (rs != null) {
+                        for (final T entity : entities) {
+                            if (!rs.next()) {
+                                break;
+                            }
+                            _idField.set(entity, convertGeneratedKey(rs.getObject(1)));
+                            idsAssigned = true;
+                        }
+                    }
+                }
+            }
+
+            if (_ecAttributes != null && _ecAttributes.size() > 0) {
+                for (final T entity : entities) {
+                    final HashMap<Attribute, Object> ecAttributes = new HashMap<Attribute, Object>();
+                    for (final Attribute attr : _ecAttributes) {
+                        final Object ec = attr.field.get(entity);
+                        if (ec != null) {
+                            ecAttributes.put(attr, ec);
+                        }
+                    }
+                    insertElementCollection(entity, _idAttributes.get(_table)[0], (ID)_idField.get(entity), ecAttributes);
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            if (e.getSQLState().equals("23000") && e.getErrorCode() == 1062) {
+                throw new EntityExistsException("Entity already exists: ", e);
+            } else {
+                throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+            }
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to set the id of the persisted entities", e);
+        }
+
+        return entities;
+    }
+
+    private Object convertGeneratedKey(final Object key) {
+        if (key instanceof Number) {
+            final Class<?> type = _idField.getType();
+            if (type == Long.class || type == long.class) {
+                return ((Number)key).longValue();
+            } else if (type == Integer.class || type == int.class) {
+                return ((Number)key).intValue();
+            }
+        }
+        return key;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    @DB()
+    public int updateAll(final List<T> entities) {
+        if (entities == null || entities.isEmpty()) {
+            return 0;
+        }
+
+        // entities changing the same set of fields share the same statement
+        final Map<String, List<T>> batches = new HashMap<String, List<T>>();
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        int rowsUpdated = 0;
+        try {
+            txn.start();
+            for (final T entity : entities) {
+                assert Enhancer.isEnhanced(entity.getClass()) : "Entity is not generated by this dao";
+                final UpdateBuilder ub = getUpdateBuilder(entity);
+                if (ub.getCollectionChanges() != null) {
+                    rowsUpdated += update((ID)_idField.get(entity), ub, entity);
+                    continue;
+                }
+                final StringBuilder sql = ub.toSql(_tables);
+                if (sql == null) {
+                    continue;
+                }
+                final String key = sql.toString();
+                List<T> batch = batches.get(key);
+                if (batch == null) {
+                    batch = new ArrayList<T>();
+                    batches.put(key, batch);
+                }
+                batch.add(entity);
+            }
+
+            for (final Map.Entry<String, List<T>> batch : batches.entrySet()) {
+                for (final T entity : batch.getValue()) {
+                    final ID id = (ID)_idField.get(entity);
+                    final SearchCriteria<T> sc = createSearchCriteria();
+                    sc.addAnd(_idAttributes.get(_table)[0], SearchCriteria.Op.EQ, id);
+                    if (pstmt == null) {
+                        pstmt = txn.prepareAutoCloseStatement(batch.getKey() + sc.getWhereClause());
+                    }
+
+                    final UpdateBuilder ub = getUpdateBuilder(entity);
+                    int i = 1;
+                    for (final Ternary<Attribute, Boolean, Object> value : ub.getChanges()) {
+                        prepareAttribute(i++, pstmt, value.first(), value.third());
+                    }
+                    for (final Pair<Attribute, Object> value : sc.getValues()) {
+                        prepareAttribute(i++, pstmt, value.first(), value.second());
+                    }
+                    pstmt.addBatch();
+                }
+
+                for (final int count : pstmt.executeBatch()) {
+                    rowsUpdated += count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0);
+                }
+                pstmt = null;
+                for (final T entity : batch.getValue()) {
+                    invalidateCache((ID)_idField.get(entity));
+                    getUpdateBuilder(entity).clear();
+                }
+            }
+            txn.commit();
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } catch (final IllegalAccessException e) {
+            throw new CloudRuntimeException("Unable to get the id of the updated entities", e);
+        }
+        return rowsUpdated;
+    }
+
     protected void insertElementCollection(T entity, Attribute idAttribute, ID id, Map<Attribute, Object> ecAttributes) throws SQLException {
         TransactionLegacy txn = TransactionLegacy.currentTxn();
         txn.start();
@@ -1770,9 +1931,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
         PreparedStatement pstmt = null;
         try {
             txn.start();
+            final List<ID> evictedIds = _cache != null ? lockIdsToEvict(_table, _removed.first() + " IS NOT NULL", Collections.<Pair<Attribute, Object>>emptyList(), null) : null;
             pstmt = txn.prepareAutoCloseStatement(sql.toString());
 
-            pstmt.executeUpdate();
+            if (pstmt.executeUpdate() > 0) {
+                invalidateCachedIds(evictedIds);
+            }
             txn.commit();
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on " + pstmt, e);
@@ -1813,9 +1977,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
 
             final int result = pstmt.executeUpdate();
             txn.commit();
-            if (_cache != null) {
-                _cache.remove(id);
-            }
+            invalidateCache(id);
             return result > 0;
         } catch (final SQLException e) {
             throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
@@ -1836,6 +1998,12 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
     }
 
     protected Cache _cache;
+    protected EntityCacheMBeanImpl _cacheStats;
+
+    private static final Map<String, GenericDaoBase<?, ? extends Serializable>> s_cachedDaos = new ConcurrentHashMap<String, GenericDaoBase<?, ? extends Serializable>>();
+    private static volatile EntityCacheInvalidationListener s_cacheInvalidationListener;
+    // criteria updates and deletes of more cached rows than this clear the whole cache
+    private static final int MAX_IDS_EVICTED_BY_CRITERIA = 100;
 
     @DB()
     protected void createCache(final Map<String, ? extends Object> params) {
@@ -1848,12 +2016,175 @@ public abstract class GenericDaoBase<T, ID extends Serializable> extends Compone
             final int idle = NumbersUtil.parseInt((String)params.get("cache.time.to.idle"), 300);
             _cache = new Cache(getName(), maxElements, false, live == -1, live == -1 ? Integer.MAX_VALUE : live, idle);
             cm.addCache(_cache);
+            _cacheStats = new EntityCacheMBeanImpl(_cache);
+            s_cachedDaos.put(_cache.getName(), this);
+            try {
+                JmxUtil.registerMBean("EntityCache", _cache.getName(), _cacheStats);
+            } catch (final Exception e) {
+                s_logger.warn("Unable to register JMX bean for cache " + _cache.getName(), e);
+            }
             s_logger.info("Cache created: " + _cache.toString());
         } else {
             _cache = null;
         }
     }
 
+    /**
+     * Sets the listener told about the entities evicted from the DAO caches, used to propagate the evictions to
+     * the other management servers.
+     */
+    public static void setCacheInvalidationListener(final EntityCacheInvalidationListener listener) {
+        s_cacheInvalidationListener = listener;
+    }
+
+    /**
+     * Evicts an entity that was changed on another management server from the local cache.
+     *
+     * @param cacheName name of the DAO cache
+     * @param id string form of the id of the entity, null to clear the whole cache
+     */
+    public static void invalidateCachedEntity(final String cacheName, final String id) {
+        final GenericDaoBase<?, ? extends Serializable> dao = s_cachedDaos.get(cacheName);
+        if (dao == null) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("No entity cache named " + cacheName + " on this management server");
+            }
+            return;
+        }
+        dao.invalidateRemotely(id);
+    }
+
+    /**
+     * Evicts an entity changed on another management server.  DAOs keeping more than entities by id clear that
+     * state here as well.
+     */
+    @SuppressWarnings("unchecked")
+    protected void invalidateRemotely(final String id) {
+        evict(id == null ? null : (ID)toCacheKey(id));
+        _cacheStats.invalidated(true);
+    }
+
+    private Object toCacheKey(final String id) {
+        final Class<?> type = _idField.getType();
+        if (type == Long.class || type == long.class) {
+            return Long.valueOf(id);
+        } else if (type == Integer.class || type == int.class) {
+            return Integer.valueOf(id);
+        } else if (type == Short.class || type == short.class) {
+            return Short.valueOf(id);
+        }
+        return id;
+    }
+
+    /**
+     * Evicts an entity from the cache of this DAO and has the other management servers do the same.  The entity
+     * is evicted right away and once more when the current transaction commits, as a reader in between may have
+     * cached the row as it was before the change.  The other management servers are only told after the commit.
+     *
+     * @param id id of the entity, null to clear the whole cache
+     */
+    protected void invalidateCache(final ID id) {
+        if (_cache == null) {
+            return;
+        }
+        evict(id);
+        _cacheStats.invalidated(false);
+
+        final Runnable afterCommit = new Runnable() {
+            @Override
+            public void run() {
+                evict(id);
+                final EntityCacheInvalidationListener listener = s_cacheInvalidationListener;
+                if (listener != null) {
+                    listener.onEntityCacheInvalidated(_cache.getName(), id);
+                }
+            }
+        };
+        final TransactionLegacy txn = TransactionLegacy.currentTxn(false);
+        if (txn != null) {
+            txn.runAfterCommit(afterCommit);
+        } else {
+            afterCommit.run();
+        }
+    }
+
+    /**
+     * Evicts the given entities, or clears the whole cache when ids is null.
+     */
+    protected void invalidateCachedIds(final List<ID> ids) {
+        if (ids == null) {
+            invalidateCache(null);
+            return;
+        }
+        for (final ID id : ids) {
+            invalidateCache(id);
+        }
+    }
+
+    /**
+     * Drops an entity from the local cache.  DAOs keeping more than entities by id clear that state here as well.
+     *
+     * @param id id of the entity, null to clear the whole cache
+     */
+    protected void evict(final ID id) {
+        if (id == null) {
+            _cache.removeAll();
+        } else {
+            _cache.remove(id);
+        }
+    }
+
+    /**
+     * Locks the rows a criteria update or delete is about to change, so that the statement changes the same rows,
+     * and returns their ids to evict them from the cache.
+     *
+     * @return the ids, or null when they are too many to be evicted one by one or the statement is limited to some
+     * of the matching rows, the whole cache is cleared then.
+     */
+    @SuppressWarnings("unchecked")
+    private List<ID> lockIdsToEvict(final String tables, final String whereClause, final List<Pair<Attribute, Object>> values, final Integer rows)
+            throws SQLException {
+        if (rows != null || _idField == null || whereClause == null || whereClause.isEmpty()) {
+            return null;
+        }
+
+        final Attribute idAttr = _idAttributes.get(_table)[0];
+        final String sql = "SELECT " + idAttr.table + "." + idAttr.columnName + " FROM " + tables + " WHERE " + whereClause + " LIMIT "
+                + (MAX_IDS_EVICTED_BY_CRITERIA + 1) + " FOR UPDATE";
+        final TransactionLegacy txn = TransactionLegacy.currentTxn();
+        final PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+        int i = 1;
+        for (final Pair<Attribute, Object> value : values) {
+            prepareAttribute(i++, pstmt, value.first(), value.second());
+        }
+
+        final List<ID> ids = new ArrayList<ID>();
+        final ResultSet rs = pstmt.executeQuery();
+        while (rs.next()) {
+            if (ids.size() == MAX_IDS_EVICTED_BY_CRITERIA) {
+                return null;
+            }
+            ids.add((ID)convertGeneratedKey(rs.getObject(1)));
+        }
+        return ids;
+    }
+
+    private boolean isSearchById(final SearchCriteria<?> sc) {
+        final List<Pair<Attribute, Object>> values = sc.getValues();
+        return values.size() == 1 && _idField != null && values.get(0).first().field == _idField;
+    }
+
+    private boolean isRemoved(final T entity) {
+        if (_removed == null) {
+            return false;
+        }
+        try {
+            return _removed.second().field.get(entity) != null;
+        } catch (final IllegalAccessException e) {
+            return false;
+        }
+    }
+
     @Override
     @DB()
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
@@ -18,9 +18,8 @@ package com.cloud.utils.db;
 
 import static java.lang.String.format;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -51,8 +50,9 @@ public class GlobalLock {
 
     private int referenceCount = 0;
     private long holdingStartTick = 0;
+    private boolean released = false;
 
-    private static Map<String, GlobalLock> s_lockMap = new HashMap<String, GlobalLock>();
+    private static ConcurrentHashMap<String, GlobalLock> s_lockMap = new ConcurrentHashMap<String, GlobalLock>();
 
     private GlobalLock(String name) {
         this.name = name;
@@ -81,34 +81,38 @@ public class GlobalLock {
         }
 
         if (needToRemove)
-            releaseInternLock(name);
+            releaseInternLock(this);
 
         return refCount;
     }
 
     public static GlobalLock getInternLock(String name) {
-        synchronized (s_lockMap) {
-            if (s_lockMap.containsKey(name)) {
-                GlobalLock lock = s_lockMap.get(name);
-                lock.addRef();
-                return lock;
-            } else {
-                GlobalLock lock = new GlobalLock(name);
-                lock.addRef();
-                s_lockMap.put(name, lock);
-                return lock;
+        while (true) {
+            GlobalLock lock = s_lockMap.get(name);
+            if (lock == null) {
+                lock = new GlobalLock(name);
+                GlobalLock existing = s_lockMap.putIfAbsent(name, lock);
+                if (existing != null) {
+                    lock = existing;
+                }
+            }
+            synchronized (lock) {
+                // a lock whose last reference is gone has been dropped from the map, intern a new one
+                if (!lock.released) {
+                    lock.addRef();
+                    return lock;
+                }
             }
+            s_lockMap.remove(name, lock);
         }
     }
 
-    private static void releaseInternLock(String name) {
-        synchronized (s_lockMap) {
-            GlobalLock lock = s_lockMap.get(name);
-            if (lock != null) {
-                if (lock.referenceCount == 0)
-                    s_lockMap.remove(name);
-            } else {
-                s_logger.warn("Releasing " + name + ", but it is already released.");
+    private static void releaseInternLock(GlobalLock lock) {
+        synchronized (lock) {
+            if (lock.referenceCount == 0 && !lock.released) {
+                lock.released = true;
+                if (!s_lockMap.remove(lock.name, lock))
+                    s_logger.warn("Releasing " + lock.name + ", but it is already released.");
             }
         }
     }
@@ -131,9 +135,12 @@ public class GlobalLock {
                     }
 
                     if (ownerThread != null) {
+                        if (remainingMilliSeconds <= 0)
+                            return false;
+
                         profiler.start();
                         try {
-                            wait((timeoutSeconds) * 1000L);
+                            wait(remainingMilliSeconds);
                         } catch (InterruptedException e) {
                             interrupted = true;
                         }
@@ -164,6 +171,8 @@ public class GlobalLock {
                     synchronized (this) {
                         ownerThread = null;
                         releaseRef();
+                        // let the next waiter try instead of sleeping until its timeout
+                        notifyAll();
                         return false;
                     }
                 }
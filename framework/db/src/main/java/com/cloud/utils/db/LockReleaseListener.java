@@ -0,0 +1,38 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.Set;
+
+/**
+ * Connects the lock waiters of this management server with the peers holding the locks.  A thread waiting for a lock
+ * held by a peer asks it to be told about the release, and the peer tells only the management servers that asked,
+ * so that they can retry right away instead of waiting for their next poll.
+ */
+public interface LockReleaseListener {
+    /**
+     * @param key key of the lock released by this management server
+     * @param waitingMsIds management servers with threads waiting for the lock
+     */
+    void onLockReleased(String key, Set<Long> waitingMsIds);
+
+    /**
+     * @param key key of the lock threads of this management server are waiting for
+     * @param ownerMsId management server holding the lock
+     */
+    void onLockWaiting(String key, long ownerMsId);
+}
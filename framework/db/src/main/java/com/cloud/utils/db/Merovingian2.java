@@ -20,18 +20,28 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.management.StandardMBean;
 
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.DateUtil;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.time.InaccurateClock;
@@ -52,6 +62,12 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static final String SELECT_THREAD_LOCKS_SQL = SELECT_SQL + " WHERE mac=? AND ip=?";
     private static final String CLEANUP_THREAD_LOCKS_SQL = "DELETE FROM op_lock WHERE mac=? AND ip=? AND thread=?";
 
+    // Waiters are woken up by releases on this server or by the peer holding the lock through the
+    // LockReleaseListener, this is only how long they wait before checking the database again on their own,
+    // in case a notification got lost with a crashed peer or a dropped PDU
+    static final long DEFAULT_WAIT_POLL_INTERVAL = 500;
+    static final int MAX_WAIT_STATISTICS = 1000;
+
     TimeZone _gmtTimeZone = TimeZone.getTimeZone("GMT");
 
     private final long _msId;
@@ -59,6 +75,15 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     private static Merovingian2 s_instance = null;
     private ConnectionConcierge _concierge = null;
     private static ThreadLocal<Count> s_tls = new ThreadLocal<Count>();
+    private static volatile LockReleaseListener s_releaseListener;
+
+    private final ConcurrentHashMap<String, Waiters> _waiters = new ConcurrentHashMap<String, Waiters>();
+    // lock held by this server -> peers with threads waiting for it
+    private final ConcurrentHashMap<String, Set<Long>> _remoteWaiters = new ConcurrentHashMap<String, Set<Long>>();
+    private final ConcurrentHashMap<String, WaitStatistics> _waitStats = new ConcurrentHashMap<String, WaitStatistics>();
+    private final AtomicLong _totalWaits = new AtomicLong();
+    private final AtomicLong _totalWaitTime = new AtomicLong();
+    private volatile long _waitPollInterval = DEFAULT_WAIT_POLL_INTERVAL;
 
     private Merovingian2(long msId) {
         super(MerovingianMBean.class, false);
@@ -99,6 +124,10 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         return s_instance;
     }
 
+    public static void setLockReleaseListener(LockReleaseListener listener) {
+        s_releaseListener = listener;
+    }
+
     protected void incrCount() {
         Count count = s_tls.get();
         if (count == null) {
@@ -126,33 +155,169 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         if (s_logger.isTraceEnabled()) {
             s_logger.trace("Acquiring lck-" + key + " with wait time of " + timeInSeconds);
         }
-        long startTime = InaccurateClock.getTime();
+        long startTime = System.currentTimeMillis();
+        long waitStart = 0;
 
-        while ((InaccurateClock.getTime() - startTime) < (timeInSeconds * 1000l)) {
-            int count = owns(key);
-
-            if (count >= 1) {
-                return increment(key, threadName, threadId);
-            } else if (count == 0) {
-                if (doAcquire(key, threadName, threadId)) {
-                    return true;
+        Waiters waiters = retainWaiters(key);
+        try {
+            long remaining;
+            while ((remaining = (timeInSeconds * 1000l) - (System.currentTimeMillis() - startTime)) > 0) {
+                long releases = waiters.getReleases();
+                Map<String, String> owner = isLocked(key);
+                int count = owns(owner);
+
+                if (count >= 1) {
+                    return increment(key, threadName, threadId);
+                } else if (count == 0) {
+                    if (doAcquire(key, threadName, threadId)) {
+                        return true;
+                    }
+                    // Lost the race, find out who won so that it can tell us about the release
+                    owner = isLocked(key);
+                }
+                if (owner != null) {
+                    long ownerMsId = Long.parseLong(owner.get("mgmt"));
+                    if (ownerMsId != _msId && waiters.waitFor(ownerMsId)) {
+                        notifyWaiting(key, ownerMsId);
+                    }
+                }
+                if (waitStart == 0) {
+                    waitStart = System.currentTimeMillis();
                 }
-            }
-            try {
                 if (s_logger.isTraceEnabled()) {
-                    s_logger.trace("Sleeping more time while waiting for lck-" + key);
+                    s_logger.trace("Waiting for the release of lck-" + key);
                 }
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {
-                s_logger.debug("[ignored] interupted while aquiring " + key);
+                waiters.await(releases, Math.min(remaining, _waitPollInterval));
+            }
+        } finally {
+            releaseWaiters(key, waiters);
+            if (waitStart != 0) {
+                recordWait(key, System.currentTimeMillis() - waitStart);
             }
         }
-        String msg = "Timed out on acquiring lock " + key + " .  Waited for " + ((InaccurateClock.getTime() - startTime)/1000) +  "seconds";
+        String msg = "Timed out on acquiring lock " + key + " .  Waited for " + ((System.currentTimeMillis() - startTime)/1000) +  "seconds";
         Exception e = new CloudRuntimeException(msg);
         s_logger.warn(msg, e);
         return false;
     }
 
+    protected Waiters retainWaiters(String key) {
+        while (true) {
+            Waiters waiters = _waiters.get(key);
+            if (waiters == null) {
+                waiters = new Waiters();
+                Waiters existing = _waiters.putIfAbsent(key, waiters);
+                if (existing != null) {
+                    waiters = existing;
+                }
+            }
+            if (waiters.retain()) {
+                return waiters;
+            }
+            // Lost the race with the last thread leaving, its entry is on its way out
+            _waiters.remove(key, waiters);
+        }
+    }
+
+    protected void releaseWaiters(String key, Waiters waiters) {
+        if (waiters.release()) {
+            _waiters.remove(key, waiters);
+        }
+    }
+
+    /**
+     * Wakes up the threads of this server waiting for the lock, one is enough as the others are
+     * woken up by its own release.
+     */
+    public void wakeUpWaiters(String key) {
+        Waiters waiters = _waiters.get(key);
+        if (waiters != null) {
+            waiters.signal(false);
+        }
+    }
+
+    protected void wakeUpAllWaiters() {
+        for (Waiters waiters : _waiters.values()) {
+            waiters.signal(true);
+        }
+    }
+
+    /**
+     * Registers a peer with threads waiting for a lock held by this server, so that it is told when the lock is
+     * released.  It is told right away if this server no longer holds the lock.
+     */
+    public void addRemoteWaiter(String key, long msId) {
+        Set<Long> msIds = _remoteWaiters.get(key);
+        if (msIds == null) {
+            msIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+            Set<Long> existing = _remoteWaiters.putIfAbsent(key, msIds);
+            if (existing != null) {
+                msIds = existing;
+            }
+        }
+        msIds.add(msId);
+
+        // Checked after registering, a release from now on finds the peer in _remoteWaiters
+        Map<String, String> owner = isLocked(key);
+        if (owner == null || !owner.get("mgmt").equals(Long.toString(_msId))) {
+            Set<Long> waiting = new HashSet<Long>();
+            waiting.add(msId);
+            Set<Long> others = _remoteWaiters.remove(key);
+            if (others != null) {
+                waiting.addAll(others);
+            }
+            notifyRemoteWaiters(key, waiting);
+        }
+    }
+
+    protected void notifyReleased(String key) {
+        wakeUpWaiters(key);
+        Set<Long> waiting = _remoteWaiters.remove(key);
+        if (waiting != null && !waiting.isEmpty()) {
+            notifyRemoteWaiters(key, waiting);
+        }
+    }
+
+    protected void notifyRemoteWaiters(String key, Set<Long> msIds) {
+        LockReleaseListener listener = s_releaseListener;
+        if (listener != null) {
+            try {
+                listener.onLockReleased(key, msIds);
+            } catch (Exception e) {
+                s_logger.warn("Unable to notify the release of lck-" + key, e);
+            }
+        }
+    }
+
+    protected void notifyWaiting(String key, long ownerMsId) {
+        LockReleaseListener listener = s_releaseListener;
+        if (listener != null) {
+            try {
+                listener.onLockWaiting(key, ownerMsId);
+            } catch (Exception e) {
+                s_logger.warn("Unable to ask " + ownerMsId + " about the release of lck-" + key, e);
+            }
+        }
+    }
+
+    protected void recordWait(String key, long waited) {
+        _totalWaits.incrementAndGet();
+        _totalWaitTime.addAndGet(waited);
+
+        WaitStatistics stats = _waitStats.get(key);
+        if (stats == null) {
+            if (_waitStats.size() >= MAX_WAIT_STATISTICS) {
+                return;
+            }
+            stats = new WaitStatistics();
+            WaitStatistics existing = _waitStats.putIfAbsent(key, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.record(waited);
+    }
+
     protected boolean increment(String key, String threadName, int threadId) {
       try (PreparedStatement pstmt = _concierge.conn().prepareStatement(INCREMENT_SQL);){
             pstmt.setString(1, key);
@@ -238,6 +403,12 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                     pstmt.setLong(1, msId);
                     int rows = pstmt.executeUpdate();
                     s_logger.info("Released " + rows + " locks for " + msId);
+                    if (rows > 0) {
+                        wakeUpAllWaiters();
+                    }
+                    for (Set<Long> msIds : _remoteWaiters.values()) {
+                        msIds.remove(msId);
+                    }
                 }catch (Exception e) {
                     s_logger.error("cleanupForServer:Exception:"+e.getMessage());
                     throw new CloudRuntimeException("cleanupForServer:Exception:"+e.getMessage(), e);
@@ -274,6 +445,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
                         s_logger.trace("lck-" + key + " removed");
                     }
                     decrCount();
+                    if (result == 1) {
+                        notifyReleased(key);
+                    }
                 }catch (Exception e) {
                     s_logger.error("release:Exception:"+ e.getMessage());
                     throw new CloudRuntimeException("release:Exception:"+ e.getMessage(), e);
@@ -340,9 +514,12 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
     }
 
     public int owns(String key) {
+        return owns(isLocked(key));
+    }
+
+    protected int owns(Map<String, String> owner) {
         Thread th = Thread.currentThread();
         int threadId = System.identityHashCode(th);
-        Map<String, String> owner = isLocked(key);
         if (owner == null) {
             return 0;
         }
@@ -402,6 +579,9 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         {
             pstmt.setString(1, key);
             int rows = pstmt.executeUpdate();
+            if (rows > 0) {
+                notifyReleased(key);
+            }
             return rows > 0;
         } catch (Exception e) {
             s_logger.error("releaseLockAsLastResortAndIReallyKnowWhatIAmDoing : Exception: " +  e.getMessage());
@@ -409,7 +589,181 @@ public class Merovingian2 extends StandardMBean implements MerovingianMBean {
         }
     }
 
+    @Override
+    public List<Map<String, String>> getLockWaitStatistics() {
+        List<Map<String, String>> results = new LinkedList<Map<String, String>>();
+        for (Map.Entry<String, WaitStatistics> entry : _waitStats.entrySet()) {
+            Waiters waiters = _waiters.get(entry.getKey());
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("key", entry.getKey());
+            map.put("waiting", Integer.toString(waiters != null ? waiters.getWaiting() : 0));
+            map.put("waits", Long.toString(entry.getValue().waits.get()));
+            map.put("totalWaitMs", Long.toString(entry.getValue().totalWaitTime.get()));
+            map.put("maxWaitMs", Long.toString(entry.getValue().maxWaitTime.get()));
+            results.add(map);
+        }
+        return results;
+    }
+
+    @Override
+    public long getTotalLockWaits() {
+        return _totalWaits.get();
+    }
+
+    @Override
+    public long getTotalLockWaitTime() {
+        return _totalWaitTime.get();
+    }
+
+    @Override
+    public int getLockWaiters() {
+        int waiting = 0;
+        for (Waiters waiters : _waiters.values()) {
+            waiting += waiters.getWaiting();
+        }
+        return waiting;
+    }
+
+    @Override
+    public long getLockWaitPollInterval() {
+        return _waitPollInterval;
+    }
+
+    @Override
+    public void setLockWaitPollInterval(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("The lock wait poll interval must be positive: " + interval);
+        }
+        _waitPollInterval = interval;
+    }
+
+    @Override
+    public void resetLockWaitStatistics() {
+        _waitStats.clear();
+        _totalWaits.set(0);
+        _totalWaitTime.set(0);
+    }
+
     protected static class Count {
         public int count = 0;
     }
+
+    /**
+     * Threads of this server trying to acquire the same lock.
+     */
+    protected static class Waiters {
+        // Number of threads using this entry, -1 once it has been dropped from the map
+        private final AtomicInteger _refs = new AtomicInteger(0);
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final Condition _released = _lock.newCondition();
+        private long _releases = 0;
+        private int _waiting = 0;
+        // Peer asked to tell this server about the next release, 0 if none
+        private long _notifier = 0;
+
+        boolean retain() {
+            while (true) {
+                int refs = _refs.get();
+                if (refs < 0) {
+                    return false;
+                }
+                if (_refs.compareAndSet(refs, refs + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if this was the last thread using the entry
+         */
+        boolean release() {
+            return _refs.decrementAndGet() == 0 && _refs.compareAndSet(0, -1);
+        }
+
+        long getReleases() {
+            _lock.lock();
+            try {
+                return _releases;
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        int getWaiting() {
+            _lock.lock();
+            try {
+                return _waiting;
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        /**
+         * Records that the lock is held by the given peer.
+         *
+         * @return true if the peer has not been asked yet to tell this server about its release
+         */
+        boolean waitFor(long ownerMsId) {
+            _lock.lock();
+            try {
+                if (_notifier == ownerMsId) {
+                    return false;
+                }
+                _notifier = ownerMsId;
+                return true;
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        /**
+         * Waits for a release unless one happened since releases was read.
+         */
+        void await(long releases, long timeout) {
+            _lock.lock();
+            try {
+                if (_releases != releases) {
+                    return;
+                }
+                _waiting++;
+                try {
+                    _released.await(timeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    s_logger.debug("[ignored] interupted while waiting for a lock release");
+                } finally {
+                    _waiting--;
+                }
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        void signal(boolean all) {
+            _lock.lock();
+            try {
+                _releases++;
+                // the peer forgets about us once it has told us, the next owner has to be asked again
+                _notifier = 0;
+                if (all) {
+                    _released.signalAll();
+                } else {
+                    _released.signal();
+                }
+            } finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    protected static class WaitStatistics {
+        final AtomicLong waits = new AtomicLong();
+        final AtomicLong totalWaitTime = new AtomicLong();
+        final AtomicLong maxWaitTime = new AtomicLong();
+
+        void record(long waited) {
+            waits.incrementAndGet();
+            totalWaitTime.addAndGet(waited);
+            NumbersUtil.updateMax(maxWaitTime, waited);
+        }
+    }
 }
@@ -28,4 +28,24 @@ public interface MerovingianMBean {
     boolean releaseLockAsLastResortAndIReallyKnowWhatIAmDoing(String key);
 
     void cleanupForServer(long msId);
+
+    /**
+     * @return per lock key: threads waiting right now, number of waits, total and max wait time in ms
+     */
+    List<Map<String, String>> getLockWaitStatistics();
+
+    long getTotalLockWaits();
+
+    long getTotalLockWaitTime();
+
+    int getLockWaiters();
+
+    /**
+     * @return how long, in ms, a waiter sleeps before checking the lock again if no release notification came in
+     */
+    long getLockWaitPollInterval();
+
+    void setLockWaitPollInterval(long interval);
+
+    void resetLockWaitStatistics();
 }
@@ -25,6 +25,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -96,6 +97,7 @@ public class TransactionLegacy implements Closeable {
     private long _id;
 
     private final LinkedList<Pair<String, Long>> _lockTimes = new LinkedList<Pair<String, Long>>();
+    private final List<Runnable> _afterCommitActions = new ArrayList<Runnable>();
 
     private String _name;
     private Connection _conn;
@@ -735,11 +737,41 @@ public class TransactionLegacy implements Closeable {
                 clearLockTimes();
                 closeConnection();
             }
-            return true;
         } catch (final SQLException e) {
+            _afterCommitActions.clear();
             rollbackTransaction();
             throw new CloudRuntimeException("Unable to commit or close the connection. ", e);
         }
+        runAfterCommitActions();
+        return true;
+    }
+
+    /**
+     * Runs the action once the changes of the current transaction are committed, or right away when no
+     * transaction is started.  Actions of a transaction that is rolled back are dropped.
+     */
+    public void runAfterCommit(final Runnable action) {
+        if (!_txn) {
+            action.run();
+            return;
+        }
+        _afterCommitActions.add(action);
+    }
+
+    protected void runAfterCommitActions() {
+        if (_afterCommitActions.isEmpty()) {
+            return;
+        }
+
+        final List<Runnable> actions = new ArrayList<Runnable>(_afterCommitActions);
+        _afterCommitActions.clear();
+        for (final Runnable action : actions) {
+            try {
+                action.run();
+            } catch (final Exception e) {
+                s_logger.warn("Unable to run action after commit: " + action, e);
+            }
+        }
     }
 
     protected void closeConnection() {
@@ -844,6 +876,7 @@ public class TransactionLegacy implements Closeable {
         }
         assert (!hasTxnInStack()) : "Who's rolling back transaction when there's still txn in stack?";
         _txn = false;
+        _afterCommitActions.clear();
         try {
             if (_conn != null) {
                 if (s_logger.isDebugEnabled()) {
@@ -869,6 +902,7 @@ public class TransactionLegacy implements Closeable {
 
         if (!hasTxnInStack()) {
             _txn = false;
+            _afterCommitActions.clear();
             closeConnection();
         }
     }
@@ -921,6 +955,7 @@ public class TransactionLegacy implements Closeable {
         if (!hasTxnInStack()) {
             _txn = false;
             closeConnection();
+            runAfterCommitActions();
         }
     }
 
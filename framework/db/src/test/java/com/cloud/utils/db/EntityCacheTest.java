@@ -0,0 +1,161 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.ehcache.Element;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class EntityCacheTest {
+    private static final AtomicInteger s_caches = new AtomicInteger();
+
+    private DbTestDao dao;
+    private EntityCacheInvalidationListener listener;
+    private TransactionLegacy txn;
+
+    @Before
+    public void setUp() throws Exception {
+        dao = spy(new DbTestDao());
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("cache.size", "100");
+        params.put("cache.time.to.live", "300");
+        dao.configure("DbTestDao-" + s_caches.incrementAndGet(), params);
+
+        // stands in for the row read from the database, which lockRow puts in the cache
+        doAnswer(new Answer<DbTestVO>() {
+            @Override
+            public DbTestVO answer(InvocationOnMock invocation) {
+                Long id = (Long)invocation.getArguments()[0];
+                DbTestVO vo = new DbTestVO();
+                vo.id = id;
+                dao._cache.put(new Element(id, vo));
+                return vo;
+            }
+        }).when(dao).lockRow(anyLong(), any(Boolean.class));
+
+        listener = mock(EntityCacheInvalidationListener.class);
+        GenericDaoBase.setCacheInvalidationListener(listener);
+        txn = TransactionLegacy.open("EntityCacheTest");
+    }
+
+    @After
+    public void tearDown() {
+        GenericDaoBase.setCacheInvalidationListener(null);
+        txn.close();
+    }
+
+    @Test
+    public void readsGoThroughTheCache() {
+        DbTestVO first = dao.findById(1L);
+        Assert.assertSame(first, dao.findById(1L));
+        verify(dao, times(1)).lockRow(1L, null);
+
+        dao.findById(2L);
+        verify(dao, times(1)).lockRow(2L, null);
+    }
+
+    @Test
+    public void evictedEntitiesAreReadAgain() {
+        dao.findById(1L);
+        dao.findById(2L);
+
+        dao.invalidateCache(1L);
+        dao.findById(1L);
+        dao.findById(2L);
+        verify(dao, times(2)).lockRow(1L, null);
+        verify(dao, times(1)).lockRow(2L, null);
+
+        // an eviction received from another management server
+        GenericDaoBase.invalidateCachedEntity(dao.getName(), "2");
+        dao.findById(2L);
+        verify(dao, times(2)).lockRow(2L, null);
+    }
+
+    @Test
+    public void peersAreToldAfterCommit() {
+        txn.start();
+        dao.invalidateCache(1L);
+        verify(listener, never()).onEntityCacheInvalidated(dao.getName(), 1L);
+
+        // a reader between the change and the commit caches the row as it was before the change
+        dao.findById(1L);
+        verify(dao, times(1)).lockRow(1L, null);
+
+        txn.commit();
+        verify(listener, times(1)).onEntityCacheInvalidated(dao.getName(), 1L);
+
+        // the row cached before the commit has been evicted again
+        dao.findById(1L);
+        verify(dao, times(2)).lockRow(1L, null);
+    }
+
+    @Test
+    public void peersAreToldAfterTheOutermostCommit() {
+        txn.start();
+        txn.start();
+        dao.invalidateCache(1L);
+        txn.commit();
+        verify(listener, never()).onEntityCacheInvalidated(dao.getName(), 1L);
+
+        txn.commit();
+        verify(listener, times(1)).onEntityCacheInvalidated(dao.getName(), 1L);
+    }
+
+    @Test
+    public void peersAreNotToldOfRolledBackChanges() {
+        txn.start();
+        dao.invalidateCache(1L);
+        txn.rollback();
+        verify(listener, never()).onEntityCacheInvalidated(dao.getName(), 1L);
+
+        txn.start();
+        txn.commit();
+        verify(listener, never()).onEntityCacheInvalidated(dao.getName(), 1L);
+    }
+
+    @Test
+    public void peersAreToldRightAwayOutsideOfTransactions() {
+        dao.findById(1L);
+        dao.invalidateCache(1L);
+        verify(listener, times(1)).onEntityCacheInvalidated(dao.getName(), 1L);
+
+        InOrder inOrder = Mockito.inOrder(dao, listener);
+        dao.invalidateCache(2L);
+        inOrder.verify(dao, times(2)).evict(2L);
+        inOrder.verify(listener).onEntityCacheInvalidated(dao.getName(), 2L);
+    }
+}
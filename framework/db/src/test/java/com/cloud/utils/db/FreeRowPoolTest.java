@@ -0,0 +1,99 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// the License.  You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FreeRowPoolTest {
+
+    private static class TableLoader implements FreeRowPool.Loader<String> {
+        final Set<Long> free = new HashSet<Long>();
+        int loads = 0;
+
+        @Override
+        public List<Long> listFreeIds(String key) {
+            loads++;
+            return new ArrayList<Long>(free);
+        }
+    }
+
+    private static class TableClaimer implements FreeRowPool.Claimer {
+        final TableLoader table;
+
+        TableClaimer(TableLoader table) {
+            this.table = table;
+        }
+
+        @Override
+        public boolean claim(long id) {
+            return table.free.remove(id);
+        }
+    }
+
+    @Test
+    public void testAllocatesEveryFreeRowOnce() {
+        TableLoader table = new TableLoader();
+        table.free.addAll(Arrays.asList(1L, 2L, 3L));
+        FreeRowPool<String> pool = new FreeRowPool<String>("test", table);
+        TableClaimer claimer = new TableClaimer(table);
+
+        Set<Long> allocated = new HashSet<Long>();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(allocated.add(pool.allocate("range", claimer)));
+        }
+        Assert.assertEquals(1, table.loads);
+
+        Assert.assertNull(pool.allocate("range", claimer));
+        Assert.assertEquals(2, table.loads);
+    }
+
+    @Test
+    public void testSkipsRowsTakenElsewhere() {
+        TableLoader table = new TableLoader();
+        table.free.addAll(Arrays.asList(1L, 2L, 3L));
+        FreeRowPool<String> pool = new FreeRowPool<String>("test", table);
+        TableClaimer claimer = new TableClaimer(table);
+
+        Long first = pool.allocate("range", claimer);
+        // another server takes everything but one row
+        table.free.clear();
+        table.free.add(first.equals(3L) ? 2L : 3L);
+
+        Long second = pool.allocate("range", claimer);
+        Assert.assertNotNull(second);
+        Assert.assertTrue(table.free.isEmpty());
+    }
+
+    @Test
+    public void testReleasedRowsAreFoundOnReload() {
+        TableLoader table = new TableLoader();
+        table.free.add(1L);
+        FreeRowPool<String> pool = new FreeRowPool<String>("test", table);
+        TableClaimer claimer = new TableClaimer(table);
+
+        Assert.assertEquals(Long.valueOf(1L), pool.allocate("range", claimer));
+        table.free.add(1L);
+        Assert.assertEquals(Long.valueOf(1L), pool.allocate("range", claimer));
+    }
+}
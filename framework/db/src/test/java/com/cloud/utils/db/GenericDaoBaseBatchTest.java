@@ -0,0 +1,360 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.utils.db;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.math.BigInteger;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.EntityExistsException;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Inheritance;
+import javax.persistence.InheritanceType;
+import javax.persistence.JoinColumn;
+import javax.persistence.PrimaryKeyJoinColumn;
+import javax.persistence.Table;
+
+import net.sf.ehcache.Element;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.cloud.utils.Pair;
+
+public class GenericDaoBaseBatchTest {
+    private static final AtomicInteger s_caches = new AtomicInteger();
+
+    @Entity
+    @Table(name = "batch_parent")
+    @Inheritance(strategy = InheritanceType.JOINED)
+    public static class BatchParentVO {
+        @Id
+        @GeneratedValue(strategy = GenerationType.IDENTITY)
+        @Column(name = "id")
+        long id;
+
+        @Column(name = "name")
+        String name;
+
+        public BatchParentVO() {
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    @Entity
+    @Table(name = "batch_child")
+    @PrimaryKeyJoinColumn(name = "id")
+    public static class BatchChildVO extends BatchParentVO {
+        @Column(name = "value")
+        Long value;
+
+        @ElementCollection(targetClass = String.class, fetch = FetchType.EAGER)
+        @Column(name = "tag")
+        @CollectionTable(name = "batch_child_tags", joinColumns = @JoinColumn(name = "child_id"))
+        List<String> tags;
+
+        public BatchChildVO() {
+        }
+
+        public BatchChildVO(String name, Long value, String... tags) {
+            this.name = name;
+            this.value = value;
+            this.tags = tags.length == 0 ? null : Arrays.asList(tags);
+        }
+
+        public Long getValue() {
+            return value;
+        }
+
+        public void setValue(Long value) {
+            this.value = value;
+        }
+    }
+
+    public static class BatchChildDao extends GenericDaoBase<BatchChildVO, Long> {
+    }
+
+    private BatchChildDao dao;
+    private TransactionLegacy txn;
+    private Connection conn;
+    // statements by sql, in the order in which they were first prepared
+    private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>();
+    private final Map<PreparedStatement, AtomicInteger> batchSizes = new HashMap<PreparedStatement, AtomicInteger>();
+
+    @Before
+    public void setUp() throws Exception {
+        dao = new BatchChildDao();
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("cache.size", "100");
+        dao.configure("BatchChildDao-" + s_caches.incrementAndGet(), params);
+
+        conn = mock(Connection.class);
+        Answer<PreparedStatement> prepare = new Answer<PreparedStatement>() {
+            @Override
+            public PreparedStatement answer(InvocationOnMock invocation) throws Throwable {
+                return statement((String)invocation.getArguments()[0]);
+            }
+        };
+        when(conn.prepareStatement(anyString())).thenAnswer(prepare);
+        when(conn.prepareStatement(anyString(), anyInt())).thenAnswer(prepare);
+
+        txn = TransactionLegacy.open("GenericDaoBaseBatchTest");
+        txn.transitToUserManagedConnection(conn);
+    }
+
+    @After
+    public void tearDown() {
+        txn.close();
+    }
+
+    private PreparedStatement statement(String sql) throws SQLException {
+        PreparedStatement pstmt = statements.get(sql);
+        if (pstmt == null) {
+            pstmt = mock(PreparedStatement.class);
+            final AtomicInteger batchSize = new AtomicInteger();
+            batchSizes.put(pstmt, batchSize);
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    batchSize.incrementAndGet();
+                    return null;
+                }
+            }).when(pstmt).addBatch();
+            when(pstmt.executeBatch()).thenAnswer(new Answer<int[]>() {
+                @Override
+                public int[] answer(InvocationOnMock invocation) {
+                    int[] counts = new int[batchSize.getAndSet(0)];
+                    Arrays.fill(counts, 1);
+                    return counts;
+                }
+            });
+            statements.put(sql, pstmt);
+        }
+        return pstmt;
+    }
+
+    private PreparedStatement statementStartingWith(String prefix) {
+        PreparedStatement found = null;
+        for (Map.Entry<String, PreparedStatement> entry : statements.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                Assert.assertNull("More than one statement starts with " + prefix, found);
+                found = entry.getValue();
+            }
+        }
+        Assert.assertNotNull("No statement starts with " + prefix, found);
+        return found;
+    }
+
+    private List<String> statementsStartingWith(String prefix) {
+        List<String> sqls = new ArrayList<String>();
+        for (String sql : statements.keySet()) {
+            if (sql.startsWith(prefix)) {
+                sqls.add(sql);
+            }
+        }
+        return sqls;
+    }
+
+    private void generatedKeys(String insertPrefix, Object... keys) throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        Boolean[] nexts = new Boolean[keys.length];
+        Arrays.fill(nexts, Boolean.TRUE);
+        nexts[keys.length - 1] = Boolean.FALSE;
+        when(rs.next()).thenReturn(Boolean.TRUE, nexts);
+        when(rs.getObject(1)).thenReturn(keys[0], Arrays.copyOfRange(keys, 1, keys.length));
+        when(statement(insertPrefix).getGeneratedKeys()).thenReturn(rs);
+    }
+
+    private String insertSql(String table) {
+        for (Pair<String, Attribute[]> insert : dao._insertSqls) {
+            if (insert.first().startsWith("INSERT INTO " + table + " ")) {
+                return insert.first();
+            }
+        }
+        throw new AssertionError("No insert into " + table);
+    }
+
+    @Test
+    public void persistAllAssignsIdsInGeneratedKeyOrder() throws Exception {
+        generatedKeys(insertSql("batch_parent"), BigInteger.valueOf(11), BigInteger.valueOf(12), BigInteger.valueOf(13));
+        List<BatchChildVO> vos = Arrays.asList(new BatchChildVO("a", 1L), new BatchChildVO("b", 2L), new BatchChildVO("c", 3L));
+
+        Assert.assertSame(vos, dao.persistAll(vos));
+        Assert.assertEquals(11L, vos.get(0).getId());
+        Assert.assertEquals(12L, vos.get(1).getId());
+        Assert.assertEquals(13L, vos.get(2).getId());
+
+        PreparedStatement parent = statement(insertSql("batch_parent"));
+        verify(parent, times(3)).addBatch();
+        verify(parent, times(1)).executeBatch();
+        verify(parent, never()).executeUpdate();
+    }
+
+    @Test
+    public void persistAllInsertsEveryTableInOneBatch() throws Exception {
+        generatedKeys(insertSql("batch_parent"), 11L, 12L);
+        dao.persistAll(Arrays.asList(new BatchChildVO("a", 1L), new BatchChildVO("b", 2L)));
+
+        Assert.assertTrue(dao._insertSqls.size() > 1);
+        Assert.assertEquals(dao._insertSqls.size(), statementsStartingWith("INSERT INTO batch_").size());
+
+        // the secondary table gets the ids generated by the first one
+        PreparedStatement child = statement(insertSql("batch_child"));
+        verify(child, times(2)).addBatch();
+        verify(child, times(1)).executeBatch();
+        verify(child).setObject(anyInt(), eq(11L));
+        verify(child).setObject(anyInt(), eq(12L));
+        verify(child).setObject(anyInt(), eq(1L));
+        verify(child).setObject(anyInt(), eq(2L));
+    }
+
+    @Test
+    public void persistAllInsertsElementCollections() throws Exception {
+        generatedKeys(insertSql("batch_parent"), 11L, 12L);
+        dao.persistAll(Arrays.asList(new BatchChildVO("a", 1L, "x", "y"), new BatchChildVO("b", 2L)));
+
+        PreparedStatement clear = statementStartingWith("DELETE FROM batch_child_tags");
+        verify(clear, times(1)).setObject(1, 11L);
+        verify(clear, never()).setObject(1, 12L);
+
+        PreparedStatement insert = statementStartingWith("INSERT INTO batch_child_tags");
+        verify(insert).setObject(1, "x");
+        verify(insert).setObject(1, "y");
+        verify(insert, times(2)).setObject(2, 11L);
+        verify(insert, times(2)).executeUpdate();
+    }
+
+    @Test(expected = EntityExistsException.class)
+    public void persistAllReportsDuplicates() throws Exception {
+        when(statement(insertSql("batch_parent")).executeBatch()).thenThrow(new BatchUpdateException("Duplicate entry", "23000", 1062, new int[0]));
+        dao.persistAll(Arrays.asList(new BatchChildVO("a", 1L), new BatchChildVO("a", 1L)));
+    }
+
+    @Test
+    public void updateAllGroupsEntitiesByStatement() throws Exception {
+        BatchChildVO first = dao.createForUpdate(1L);
+        first.setName("first");
+        BatchChildVO second = dao.createForUpdate(2L);
+        second.setName("second");
+        BatchChildVO third = dao.createForUpdate(3L);
+        third.setName("third");
+        third.setValue(3L);
+        BatchChildVO unchanged = dao.createForUpdate(4L);
+
+        Assert.assertEquals(3, dao.updateAll(Arrays.asList(first, second, third, unchanged)));
+
+        List<String> updates = statementsStartingWith("UPDATE ");
+        Assert.assertEquals(2, updates.size());
+        PreparedStatement names = null;
+        PreparedStatement namesAndValues = null;
+        for (String sql : updates) {
+            if (sql.contains(".value=")) {
+                namesAndValues = statements.get(sql);
+            } else {
+                names = statements.get(sql);
+            }
+        }
+        verify(names, times(2)).addBatch();
+        verify(names, times(1)).executeBatch();
+        verify(namesAndValues, times(1)).addBatch();
+        verify(namesAndValues, times(1)).executeBatch();
+
+        // the entity without changes is not part of any batch
+        for (String sql : updates) {
+            verify(statements.get(sql), never()).setObject(anyInt(), eq(4L));
+        }
+        Assert.assertTrue(GenericDaoBase.getUpdateBuilder(first).getChanges().isEmpty());
+    }
+
+    @Test
+    public void updateAllEvictsAfterTheBatchRan() throws Exception {
+        final BatchChildVO cached = new BatchChildVO("cached", 1L);
+        cached.id = 1L;
+        dao._cache.put(new Element(1L, cached));
+
+        BatchChildVO changed = dao.createForUpdate(1L);
+        changed.setName("changed");
+
+        final List<Boolean> cachedWhenBatchRan = new ArrayList<Boolean>();
+        String sql = GenericDaoBase.getUpdateBuilder(changed).toSql(dao._tables).toString();
+        final SearchCriteria<BatchChildVO> sc = dao.createSearchCriteria();
+        sc.addAnd(dao._idAttributes.get(dao._table)[0], SearchCriteria.Op.EQ, 1L);
+        when(statement(sql + sc.getWhereClause()).executeBatch()).thenAnswer(new Answer<int[]>() {
+            @Override
+            public int[] answer(InvocationOnMock invocation) {
+                cachedWhenBatchRan.add(dao._cache.get(1L) != null);
+                return new int[] {1};
+            }
+        });
+
+        dao.updateAll(Arrays.asList(changed));
+        Assert.assertEquals(Arrays.asList(Boolean.TRUE), cachedWhenBatchRan);
+        Assert.assertNull(dao._cache.get(1L));
+    }
+
+    @Test
+    public void emptyListsDoNothing() throws Exception {
+        Assert.assertTrue(dao.persistAll(new ArrayList<BatchChildVO>()).isEmpty());
+        Assert.assertEquals(0, dao.updateAll(new ArrayList<BatchChildVO>()));
+        verify(conn, never()).prepareStatement(anyString());
+        verify(conn, never()).prepareStatement(anyString(), anyInt());
+        verify(conn, never()).commit();
+        Assert.assertTrue(statements.isEmpty());
+    }
+}
@@ -16,6 +16,11 @@
 // under the License.
 package com.cloud.utils.db;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -26,7 +31,7 @@ import org.junit.Test;
 
 public class Merovingian2Test extends TestCase {
     static final Logger s_logger = Logger.getLogger(Merovingian2Test.class);
-    Merovingian2 _lockMaster = Merovingian2.createLockMaster(1234);
+    Merovingian2 _lockMaster = Merovingian2.getLockMaster() != null ? Merovingian2.getLockMaster() : Merovingian2.createLockMaster(1234);
 
     @Override
     @Before
@@ -37,6 +42,8 @@ public class Merovingian2Test extends TestCase {
     @Override
     @After
     protected void tearDown() throws Exception {
+        Merovingian2.setLockReleaseListener(null);
+        _lockMaster.setLockWaitPollInterval(Merovingian2.DEFAULT_WAIT_POLL_INTERVAL);
         _lockMaster.cleanupThisServer();
     }
 
@@ -76,4 +83,71 @@ public class Merovingian2Test extends TestCase {
         Assert.assertTrue(result);
     }
 
+    @Test
+    public void testWaiterIsHandedTheLockOnRelease() throws Exception {
+        final String key = "handoff" + 1234;
+        // a poll long enough that only the release can hand the lock over in time
+        _lockMaster.setLockWaitPollInterval(10000);
+        Assert.assertTrue(_lockMaster.acquire(key, 5));
+
+        final AtomicLong acquiredAt = new AtomicLong(0);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (_lockMaster.acquire(key, 30)) {
+                    acquiredAt.set(System.currentTimeMillis());
+                    _lockMaster.release(key);
+                }
+            }
+        }, "Merovingian2Test-waiter");
+        waiter.start();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (_lockMaster.getLockWaiters() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, _lockMaster.getLockWaiters());
+
+        long releasedAt = System.currentTimeMillis();
+        Assert.assertTrue(_lockMaster.release(key));
+        waiter.join(30000);
+
+        Assert.assertTrue("The waiter did not get the lock", acquiredAt.get() != 0);
+        Assert.assertTrue("The waiter waited for its poll instead of being woken up", acquiredAt.get() - releasedAt < 1000);
+        Assert.assertEquals(0, _lockMaster.owns(key));
+    }
+
+    @Test
+    public void testRemoteWaitersAreToldAboutTheRelease() {
+        final List<String> released = new ArrayList<String>();
+        Merovingian2.setLockReleaseListener(new LockReleaseListener() {
+            @Override
+            public void onLockReleased(String key, Set<Long> waitingMsIds) {
+                released.add(key + waitingMsIds);
+            }
+
+            @Override
+            public void onLockWaiting(String key, long ownerMsId) {
+            }
+        });
+
+        s_logger.info("Testing a peer waiting for a lock that is not held");
+        _lockMaster.addRemoteWaiter("free" + 1234, 99);
+        Assert.assertEquals("[free1234[99]]", released.toString());
+        released.clear();
+
+        s_logger.info("Testing a peer waiting for a held lock");
+        Assert.assertTrue(_lockMaster.acquire("held" + 1234, 5));
+        _lockMaster.addRemoteWaiter("held" + 1234, 99);
+        Assert.assertTrue(released.isEmpty());
+
+        Assert.assertTrue(_lockMaster.release("held" + 1234));
+        Assert.assertEquals("[held1234[99]]", released.toString());
+        released.clear();
+
+        s_logger.info("Testing the peer is told only once");
+        Assert.assertTrue(_lockMaster.acquire("held" + 1234, 5));
+        Assert.assertTrue(_lockMaster.release("held" + 1234));
+        Assert.assertTrue(released.isEmpty());
+    }
 }
@@ -17,7 +17,9 @@
 package org.apache.cloudstack.framework.jobs;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.cloudstack.framework.jobs.impl.AsyncJobVO;
 import org.apache.cloudstack.jobs.JobInfo;
@@ -34,6 +36,11 @@ public interface AsyncJobManager extends Manager {
 
     List<? extends AsyncJob> findInstancePendingAsyncJobs(String instanceType, Long accountId);
 
+    /**
+     * @return map of instance uuid to the pending job of that instance, only looking at the given instances
+     */
+    Map<String, ? extends AsyncJob> findInstancePendingAsyncJobs(String instanceType, Long accountId, String instanceTable, Collection<String> instanceUuids);
+
     long submitAsyncJob(AsyncJob job);
 
     long submitAsyncJob(AsyncJob job, String syncObjType, long syncObjId);
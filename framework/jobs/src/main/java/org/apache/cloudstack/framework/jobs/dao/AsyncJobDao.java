@@ -16,8 +16,10 @@
 // under the License.
 package org.apache.cloudstack.framework.jobs.dao;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.cloudstack.framework.jobs.impl.AsyncJobVO;
 
@@ -29,6 +31,14 @@ public interface AsyncJobDao extends GenericDao<AsyncJobVO, Long> {
 
     List<AsyncJobVO> findInstancePendingAsyncJobs(String instanceType, Long accountId);
 
+    /**
+     * Finds the pending jobs of a set of instances, joining the jobs with the table holding the instances
+     * so that only jobs of the given instances are loaded.
+     * @param instanceTable table of the instance entity, it must have an id and a uuid column
+     * @return map of instance uuid to its pending job
+     */
+    Map<String, AsyncJobVO> findInstancePendingAsyncJobs(String instanceType, Long accountId, String instanceTable, Collection<String> instanceUuids);
+
     AsyncJobVO findPseudoJob(long threadId, long msid);
 
     void cleanupPseduoJobs(long msid);
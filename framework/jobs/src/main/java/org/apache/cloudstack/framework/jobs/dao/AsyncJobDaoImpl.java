@@ -17,9 +17,14 @@
 package org.apache.cloudstack.framework.jobs.dao;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.apache.cloudstack.api.ApiConstants;
 import org.apache.log4j.Logger;
@@ -34,6 +39,7 @@ import com.cloud.utils.db.SearchBuilder;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.SearchCriteria.Op;
 import com.cloud.utils.db.TransactionLegacy;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements AsyncJobDao {
     private static final Logger s_logger = Logger.getLogger(AsyncJobDaoImpl.class.getName());
@@ -46,6 +52,11 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
     private final SearchBuilder<AsyncJobVO> expiringUnfinishedAsyncJobSearch;
     private final SearchBuilder<AsyncJobVO> expiringCompletedAsyncJobSearch;
     private final SearchBuilder<AsyncJobVO> failureMsidAsyncJobSearch;
+    private final SearchBuilder<AsyncJobVO> idsSearch;
+
+    private static final Pattern TABLE_NAME_PATTERN = Pattern.compile("[a-zA-Z0-9_]+");
+    private static final String PENDING_INSTANCE_JOBS_SQL = "SELECT async_job.id, instance.uuid FROM async_job INNER JOIN `%s` instance ON instance.id = async_job.instance_id"
+            + " WHERE async_job.instance_type = ? AND async_job.job_status = ? AND async_job.removed IS NULL";
 
     public AsyncJobDaoImpl() {
         pendingAsyncJobSearch = createSearchBuilder();
@@ -54,6 +65,10 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
         pendingAsyncJobSearch.and("status", pendingAsyncJobSearch.entity().getStatus(), SearchCriteria.Op.EQ);
         pendingAsyncJobSearch.done();
 
+        idsSearch = createSearchBuilder();
+        idsSearch.and("ids", idsSearch.entity().getId(), SearchCriteria.Op.IN);
+        idsSearch.done();
+
         expiringAsyncJobSearch = createSearchBuilder();
         expiringAsyncJobSearch.and("created", expiringAsyncJobSearch.entity().getCreated(), SearchCriteria.Op.LTEQ);
         expiringAsyncJobSearch.done();
@@ -127,6 +142,59 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
         return listBy(sc);
     }
 
+    @Override
+    public Map<String, AsyncJobVO> findInstancePendingAsyncJobs(String instanceType, Long accountId, String instanceTable, Collection<String> instanceUuids) {
+        Map<String, AsyncJobVO> jobs = new HashMap<String, AsyncJobVO>();
+        if (instanceUuids.isEmpty()) {
+            return jobs;
+        }
+        if (!TABLE_NAME_PATTERN.matcher(instanceTable).matches()) {
+            throw new CloudRuntimeException("Invalid instance table name " + instanceTable);
+        }
+
+        StringBuilder sql = new StringBuilder(String.format(PENDING_INSTANCE_JOBS_SQL, instanceTable));
+        if (accountId != null) {
+            sql.append(" AND async_job.account_id = ?");
+        }
+        sql.append(" AND instance.uuid IN (");
+        for (int i = 0; i < instanceUuids.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+
+        Map<Long, String> instanceUuidsByJobId = new HashMap<Long, String>();
+        TransactionLegacy txn = TransactionLegacy.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            int i = 1;
+            pstmt.setString(i++, instanceType);
+            pstmt.setInt(i++, JobInfo.Status.IN_PROGRESS.ordinal());
+            if (accountId != null) {
+                pstmt.setLong(i++, accountId);
+            }
+            for (String instanceUuid : instanceUuids) {
+                pstmt.setString(i++, instanceUuid);
+            }
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                instanceUuidsByJobId.put(rs.getLong(1), rs.getString(2));
+            }
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to find pending jobs of " + instanceType + " instances", e);
+        }
+
+        if (instanceUuidsByJobId.isEmpty()) {
+            return jobs;
+        }
+        SearchCriteria<AsyncJobVO> sc = idsSearch.create();
+        sc.setParameters("ids", instanceUuidsByJobId.keySet().toArray());
+        for (AsyncJobVO job : listBy(sc)) {
+            jobs.put(instanceUuidsByJobId.get(job.getId()), job);
+        }
+        return jobs;
+    }
+
     @Override
     public AsyncJobVO findPseudoJob(long threadId, long msid) {
         SearchCriteria<AsyncJobVO> sc = pseudoJobSearch.create();
@@ -19,11 +19,13 @@ package org.apache.cloudstack.framework.jobs.impl;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -100,6 +102,8 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         "Time (in minutes) for async-jobs to be kept in system", true, ConfigKey.Scope.Global);
     public static final ConfigKey<Long> JobCancelThresholdMinutes = new ConfigKey<Long>("Advanced", Long.class, "job.cancel.threshold.minutes", "60",
         "Time (in minutes) for async-jobs to be forcely cancelled if it has been in process for long", true, ConfigKey.Scope.Global);
+    public static final ConfigKey<Integer> JobQueueSweepInterval = new ConfigKey<Integer>("Advanced", Integer.class, "job.queue.sweep.interval", "2",
+        "Interval (in seconds) at which sync queues are swept for items that were not dispatched when they were queued or released", true, ConfigKey.Scope.Global);
     private static final ConfigKey<Integer> VmJobLockTimeout = new ConfigKey<Integer>("Advanced",
             Integer.class, "vm.job.lock.timeout", "1800",
             "Time in seconds to wait in acquiring lock to submit a vm worker job", false);
@@ -111,6 +115,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
     private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;                // 10 seconds
+    private static final int QUEUE_DISPATCH_WORKERS = 2;
 
     @Inject
     private SyncQueueItemDao _queueItemDao;
@@ -148,6 +153,11 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
     private ExecutorService _apiJobExecutor;
     private ExecutorService _workerJobExecutor;
+    private final ExecutorService _queueDispatchExecutor = Executors.newFixedThreadPool(QUEUE_DISPATCH_WORKERS, new NamedThreadFactory("AsyncJobMgr-QueueDispatcher"));
+    // queues that have a dispatch pending on _queueDispatchExecutor, signals for the same queue are coalesced
+    private final Map<Long, Boolean> _signalledQueues = new ConcurrentHashMap<Long, Boolean>();
+    private final SyncQueueDispatchMBeanImpl _queueDispatchStats = new SyncQueueDispatchMBeanImpl(_signalledQueues);
+    private volatile long _lastQueueSweep = 0;
 
     @Override
     public String getConfigComponentName() {
@@ -156,7 +166,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes, VmJobLockTimeout};
+        return new ConfigKey<?>[] {JobExpireMinutes, JobCancelThresholdMinutes, JobQueueSweepInterval, VmJobLockTimeout, JobSerializerHelper.JobPayloadCompactEncoding};
     }
 
     @Override
@@ -169,6 +179,11 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         return _jobDao.findInstancePendingAsyncJobs(instanceType, accountId);
     }
 
+    @Override
+    public Map<String, AsyncJobVO> findInstancePendingAsyncJobs(String instanceType, Long accountId, String instanceTable, Collection<String> instanceUuids) {
+        return _jobDao.findInstancePendingAsyncJobs(instanceType, accountId, instanceTable, instanceUuids);
+    }
+
     @Override
     @DB
     public AsyncJob getPseudoJob(long accountId, long userId) {
@@ -226,21 +241,25 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 throw new CloudRuntimeException("Failed to acquire lock in submitting async job: " + job.getCmd() + " with timeout value = " + VmJobLockTimeout.value());
             }
 
+            final Long queueId;
             try {
                 // lock is acquired
-                return Transaction.execute(new TransactionCallback<Long>() {
+                queueId = Transaction.execute(new TransactionCallback<Long>() {
                     @Override
                     public Long doInTransaction(TransactionStatus status) {
                         job.setInitMsid(getMsid());
                         dao.persist(job);
 
-                        syncAsyncJobExecution(job, syncObjType, syncObjId, 1);
-                        return job.getId();
+                        return queueAsyncJob(job, syncObjType, syncObjId, 1);
                     }
                 });
             } finally {
                 _vmInstanceDao.unlockFromLockTable(String.valueOf(syncObjId));
             }
+
+            // the queue item is committed now, dispatch it without waiting for the next sweep
+            signalQueue(queueId);
+            return job.getId();
         } catch (Exception e) {
             String errMsg = "Unable to schedule async job for command " + job.getCmd() + ", unexpected exception.";
             s_logger.warn(errMsg, e);
@@ -262,7 +281,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                     resultObject);
             }
             // still purge item from queue to avoid any blocking
-            _queueMgr.purgeAsyncJobQueueItemId(jobId);
+            signalQueue(_queueMgr.purgeAsyncJobQueueItemId(jobId));
             return;
         }
 
@@ -271,7 +290,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 s_logger.debug("job-" + jobId + " is already completed.");
             }
             // still purge item from queue to avoid any blocking
-            _queueMgr.purgeAsyncJobQueueItemId(jobId);
+            signalQueue(_queueMgr.purgeAsyncJobQueueItemId(jobId));
             return;
         }
 
@@ -286,9 +305,9 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Wake up jobs related to job-" + jobId);
         }
-        final List<Long> wakeupList = Transaction.execute(new TransactionCallback<List<Long>>() {
+        final Pair<List<Long>, Long> completion = Transaction.execute(new TransactionCallback<Pair<List<Long>, Long>>() {
             @Override
-            public List<Long> doInTransaction(final TransactionStatus status) {
+            public Pair<List<Long>, Long> doInTransaction(final TransactionStatus status) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Update db status for job-" + jobId);
                 }
@@ -315,11 +334,15 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                 _joinMapDao.disjoinAllJobs(jobId);
 
                 // purge the job sync item from queue
-                _queueMgr.purgeAsyncJobQueueItemId(jobId);
+                final Long queueId = _queueMgr.purgeAsyncJobQueueItemId(jobId);
 
-                return wakeupList;
+                return new Pair<List<Long>, Long>(wakeupList, queueId);
             }
         });
+        final List<Long> wakeupList = completion.first();
+
+        // the queue slot of the job is free now, hand it to the next queued item
+        signalQueue(completion.second());
 
         publishOnEventBus(job, "complete"); // publish before the instance type and ID are wiped out
 
@@ -436,6 +459,11 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
     @Override
     public void syncAsyncJobExecution(AsyncJob job, String syncObjType, long syncObjId, long queueSizeLimit) {
+        long queueId = queueAsyncJob(job, syncObjType, syncObjId, queueSizeLimit);
+        signalQueue(queueId);
+    }
+
+    private long queueAsyncJob(AsyncJob job, String syncObjType, long syncObjId, long queueSizeLimit) {
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Sync job-" + job.getId() + " execution on object " + syncObjType + "." + syncObjId);
         }
@@ -444,6 +472,34 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         queue = _queueMgr.queue(syncObjType, syncObjId, SyncQueueItem.AsyncJobContentType, job.getId(), queueSizeLimit);
         if (queue == null)
             throw new CloudRuntimeException("Unable to insert queue item into database, DB is full?");
+        return queue.getId();
+    }
+
+    /**
+     * Kicks the dispatch of a sync queue after an item was queued into it or one of its items was released.
+     * The heartbeat sweep still picks up anything a signal missed, e.g. items queued in a transaction that
+     * had not committed yet or items released on another management server.
+     */
+    private void signalQueue(final Long queueId) {
+        if (queueId == null || _signalledQueues.put(queueId, Boolean.TRUE) != null) {
+            return;
+        }
+
+        try {
+            _queueDispatchExecutor.submit(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    // clear the signal first, so that a release during the check schedules another round
+                    _signalledQueues.remove(queueId);
+                    checkQueue(queueId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            _signalledQueues.remove(queueId);
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Dispatch of sync queue-" + queueId + " is rejected, leave it to the next sweep");
+            }
+        }
     }
 
     @Override
@@ -600,6 +656,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                         if (job.getSyncSource() != null) {
                             // here check queue item one more time to double make sure that queue item is removed in case of any uncaught exception
                             _queueMgr.purgeItem(job.getSyncSource().getId());
+                            signalQueue(job.getSyncSource().getQueueId());
                         }
 
                         try {
@@ -635,13 +692,17 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         return signals;
     }
 
-    private void executeQueueItem(SyncQueueItemVO item, boolean fromPreviousSession) {
+    private void executeQueueItem(SyncQueueItemVO item, boolean signalled) {
         AsyncJobVO job = _jobDao.findById(item.getContentId());
         if (job != null) {
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Schedule queued job-" + job.getId());
             }
 
+            if (item.getCreated() != null) {
+                _queueDispatchStats.recordDispatch(job.getDispatcher(), DateUtil.currentGMTTime().getTime() - item.getCreated().getTime(), signalled);
+            }
+
             job.setSyncSource(item);
 
             //
@@ -758,7 +819,7 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
                         s_logger.debug("Executing sync queue item: " + item.toString());
                     }
 
-                    executeQueueItem(item, false);
+                    executeQueueItem(item, true);
                 } else {
                     break;
                 }
@@ -769,6 +830,14 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         }
     }
 
+    /**
+     * The sweep runs on heartbeats, which may fire a little early, so a sweep is due half a heartbeat before the
+     * interval is over: otherwise an interval equal to the heartbeat would only sweep on every other one.
+     */
+    boolean isQueueSweepDue(long now) {
+        return now - _lastQueueSweep >= JobQueueSweepInterval.value() * 1000L - HEARTBEAT_INTERVAL / 2;
+    }
+
     private Runnable getHeartbeatTask() {
         return new ManagedContextRunnable() {
 
@@ -790,13 +859,19 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
 
             protected void reallyRun() {
                 try {
-                    List<SyncQueueItemVO> l = _queueMgr.dequeueFromAny(getMsid(), MAX_ONETIME_SCHEDULE_SIZE);
-                    if (l != null && l.size() > 0) {
-                        for (SyncQueueItemVO item : l) {
-                            if (s_logger.isDebugEnabled()) {
-                                s_logger.debug("Execute sync-queue item: " + item.toString());
+                    // queue items are dispatched when they are queued or released, the sweep only recovers
+                    // those that were missed, so it does not need to run on every heartbeat
+                    long now = System.currentTimeMillis();
+                    if (isQueueSweepDue(now)) {
+                        _lastQueueSweep = now;
+                        List<SyncQueueItemVO> l = _queueMgr.dequeueFromAny(getMsid(), MAX_ONETIME_SCHEDULE_SIZE);
+                        if (l != null && l.size() > 0) {
+                            for (SyncQueueItemVO item : l) {
+                                if (s_logger.isDebugEnabled()) {
+                                    s_logger.debug("Execute sync-queue item: " + item.toString());
+                                }
+                                executeQueueItem(item, false);
                             }
-                            executeQueueItem(item, false);
                         }
                     }
 
@@ -1089,12 +1164,19 @@ public class AsyncJobManagerImpl extends ManagerBase implements AsyncJobManager,
         _heartbeatScheduler.scheduleAtFixedRate(getHeartbeatTask(), HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
         _heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL, GC_INTERVAL, TimeUnit.MILLISECONDS);
 
+        try {
+            JmxUtil.registerMBean("AsyncJobManager", "Sync Queue Dispatch", _queueDispatchStats);
+        } catch (Exception e) {
+            s_logger.warn("Unable to register sync queue dispatch statistics to JMX monitoring due to exception " + ExceptionUtil.toString(e));
+        }
+
         return true;
     }
 
     @Override
     public boolean stop() {
         _heartbeatScheduler.shutdown();
+        _queueDispatchExecutor.shutdown();
         _apiJobExecutor.shutdown();
         _workerJobExecutor.shutdown();
         return true;
@@ -0,0 +1,390 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Java serialization with a compact, versioned framing. Class descriptors of registered classes
+ * are written as a numeric id, the serialVersionUID and a hash of the serializable fields instead
+ * of the full descriptor, and bodies above the compression threshold are deflated.
+ *
+ * As the fields of a registered class are not in the payload, they are taken from the local class.
+ * The field hash makes decoding fail when they differ from the fields of the class that wrote the
+ * payload, rather than reading values into the wrong fields when a field is added, removed or
+ * renamed without changing the serialVersionUID.
+ *
+ * Encoded payloads look like: PREFIX + base64url(version, flags, [inflated length], body). The
+ * prefix is outside of the URL safe Base64 alphabet, so payloads of {@link LegacyJobPayloadCodec}
+ * are never mistaken for compact ones.
+ *
+ * Class ids are persisted with the payloads, once assigned an id must never be reused for another class.
+ */
+public class CompactJobPayloadCodec implements JobPayloadCodec {
+    public static final String PREFIX = "~";
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+
+    static final byte FORMAT_VERSION = 1;
+    static final byte FLAG_DEFLATED = 0x01;
+
+    private static final int STREAM_VERSION = 1;
+    private static final int FULL_DESCRIPTOR = 0;
+    private static final int REGISTERED_DESCRIPTOR = 1;
+    private static final int MAX_CLASS_ID = 0xffff;
+
+    private static final Map<String, Integer> s_classIds = new ConcurrentHashMap<String, Integer>();
+    private static final Map<Integer, String> s_classNames = new ConcurrentHashMap<Integer, String>();
+    private static final Map<Integer, ObjectStreamClass> s_descriptors = new ConcurrentHashMap<Integer, ObjectStreamClass>();
+    private static final Map<String, Long> s_fieldHashes = new ConcurrentHashMap<String, Long>();
+
+    static {
+        // ids below 100 are reserved for JDK classes commonly found in job payloads
+        registerClass(1, "java.lang.Number");
+        registerClass(2, "java.lang.Long");
+        registerClass(3, "java.lang.Integer");
+        registerClass(4, "java.lang.Short");
+        registerClass(5, "java.lang.Double");
+        registerClass(6, "java.lang.Float");
+        registerClass(7, "java.lang.Boolean");
+        registerClass(8, "java.lang.Enum");
+        registerClass(9, "java.util.Date");
+        registerClass(10, "java.util.ArrayList");
+        registerClass(11, "java.util.LinkedList");
+        registerClass(12, "java.util.HashMap");
+        registerClass(13, "java.util.LinkedHashMap");
+        registerClass(14, "java.util.HashSet");
+        registerClass(15, "java.util.LinkedHashSet");
+        registerClass(16, "java.util.TreeMap");
+
+        // VM work payloads, registered by name as they live in modules above the job framework.
+        // The table is kept here so that any node can decode them regardless of class loading order
+        String[] workClasses = new String[] {
+            "com.cloud.vm.VmWork",
+            "com.cloud.vm.VmWorkStart",
+            "com.cloud.vm.VmWorkStop",
+            "com.cloud.vm.VmWorkReboot",
+            "com.cloud.vm.VmWorkMigrate",
+            "com.cloud.vm.VmWorkMigrateAway",
+            "com.cloud.vm.VmWorkMigrateWithStorage",
+            "com.cloud.vm.VmWorkMigrateForScale",
+            "com.cloud.vm.VmWorkReconfigure",
+            "com.cloud.vm.VmWorkStorageMigration",
+            "com.cloud.vm.VmWorkAddVmToNetwork",
+            "com.cloud.vm.VmWorkRemoveVmFromNetwork",
+            "com.cloud.vm.VmWorkRemoveNicFromVm",
+            "com.cloud.vm.VmWorkAttachVolume",
+            "com.cloud.vm.VmWorkDetachVolume",
+            "com.cloud.vm.VmWorkResizeVolume",
+            "com.cloud.vm.VmWorkMigrateVolume",
+            "com.cloud.vm.VmWorkExtractVolume",
+            "com.cloud.vm.VmWorkTakeVolumeSnapshot",
+            "com.cloud.vm.snapshot.VmWorkCreateVMSnapshot",
+            "com.cloud.vm.snapshot.VmWorkDeleteVMSnapshot",
+            "com.cloud.vm.snapshot.VmWorkRevertToVMSnapshot",
+            "com.cloud.vm.snapshot.VmWorkDeleteAllVMSnapshots",
+            "com.cloud.deploy.DeploymentPlanner$ExcludeList"
+        };
+        for (int i = 0; i < workClasses.length; i++) {
+            registerClass(100 + i, workClasses[i]);
+        }
+    }
+
+    /**
+     * Registers a class to be written as a numeric id. Ids from 1000 on are free for plugins, they
+     * have to be registered before any payload using them is decoded.
+     */
+    public static void registerClass(int id, String className) {
+        if (id <= 0 || id > MAX_CLASS_ID) {
+            throw new CloudRuntimeException("Job payload class id " + id + " is out of range");
+        }
+
+        synchronized (s_classIds) {
+            String registered = s_classNames.get(id);
+            if (registered != null && !registered.equals(className)) {
+                throw new CloudRuntimeException("Job payload class id " + id + " is already registered to " + registered);
+            }
+            Integer registeredId = s_classIds.get(className);
+            if (registeredId != null && registeredId.intValue() != id) {
+                throw new CloudRuntimeException("Job payload class " + className + " is already registered with id " + registeredId);
+            }
+
+            s_classNames.put(id, className);
+            s_classIds.put(className, id);
+        }
+    }
+
+    static Integer getClassId(String className) {
+        return s_classIds.get(className);
+    }
+
+    /**
+     * Hash of the name and type of the serializable fields of a class, in the order in which they
+     * are serialized.
+     */
+    static long getFieldHash(ObjectStreamClass desc) {
+        Long hash = s_fieldHashes.get(desc.getName());
+        if (hash == null) {
+            StringBuilder schema = new StringBuilder(desc.getName());
+            for (ObjectStreamField field : desc.getFields()) {
+                schema.append(';').append(field.getName()).append(':').append(field.getTypeCode());
+                if (field.getTypeString() != null) {
+                    schema.append(field.getTypeString());
+                }
+            }
+
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-1").digest(schema.toString().getBytes(StandardCharsets.UTF_8));
+                long value = 0;
+                for (int i = 0; i < 8; i++) {
+                    value = (value << 8) | (digest[i] & 0xff);
+                }
+                hash = value;
+            } catch (NoSuchAlgorithmException e) {
+                throw new CloudRuntimeException("Unable to hash the fields of " + desc.getName(), e);
+            }
+            s_fieldHashes.put(desc.getName(), hash);
+        }
+        return hash;
+    }
+
+    private final int _compressionThreshold;
+
+    public CompactJobPayloadCodec() {
+        this(DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    /**
+     * @param compressionThreshold bodies of at least this many bytes are deflated, a negative value disables compression
+     */
+    public CompactJobPayloadCodec(int compressionThreshold) {
+        _compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public String encode(Serializable object) {
+        assert (object != null);
+
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            ObjectOutputStream os = new CompactObjectOutputStream(body);
+            os.writeObject(object);
+            os.close();
+
+            byte[] content = body.toByteArray();
+            byte flags = 0;
+            byte[] deflated = null;
+            if (_compressionThreshold >= 0 && content.length >= _compressionThreshold) {
+                deflated = deflate(content);
+                if (deflated.length < content.length) {
+                    flags |= FLAG_DEFLATED;
+                }
+            }
+
+            ByteArrayOutputStream bs = new ByteArrayOutputStream(content.length + 6);
+            DataOutputStream out = new DataOutputStream(bs);
+            out.writeByte(FORMAT_VERSION);
+            out.writeByte(flags);
+            if ((flags & FLAG_DEFLATED) != 0) {
+                out.writeInt(content.length);
+                out.write(deflated);
+            } else {
+                out.write(content);
+            }
+            out.close();
+
+            return PREFIX + Base64.encodeBase64URLSafeString(bs.toByteArray());
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize: " + object, e);
+        }
+    }
+
+    @Override
+    public boolean canDecode(String payload) {
+        return payload != null && payload.startsWith(PREFIX);
+    }
+
+    @Override
+    public Object decode(String payload) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.decodeBase64(payload.substring(PREFIX.length()))));
+            byte version = in.readByte();
+            if (version != FORMAT_VERSION) {
+                throw new CloudRuntimeException("Unsupported job payload format version " + version);
+            }
+
+            byte flags = in.readByte();
+            InputStream body = in;
+            if ((flags & FLAG_DEFLATED) != 0) {
+                int length = in.readInt();
+                byte[] deflated = new byte[in.available()];
+                in.readFully(deflated);
+                body = new ByteArrayInputStream(inflate(deflated, length));
+            }
+
+            ObjectInputStream is = new CompactObjectInputStream(body);
+            Object obj = is.readObject();
+            is.close();
+            return obj;
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to deserialize: " + payload, e);
+        } catch (ClassNotFoundException e) {
+            throw new CloudRuntimeException("Unable to deserialize: " + payload, e);
+        } catch (DataFormatException e) {
+            throw new CloudRuntimeException("Unable to deserialize: " + payload, e);
+        }
+    }
+
+    private static byte[] deflate(byte[] content) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] deflated, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] content = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                int count = inflater.inflate(content, offset, length - offset);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += count;
+            }
+            if (offset != length) {
+                throw new DataFormatException("Inflated " + offset + " bytes while " + length + " bytes were expected");
+            }
+            return content;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static class CompactObjectOutputStream extends ObjectOutputStream {
+        CompactObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeStreamHeader() throws IOException {
+            writeByte(STREAM_VERSION);
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            Integer id = s_classIds.get(desc.getName());
+            if (id != null) {
+                write(REGISTERED_DESCRIPTOR);
+                writeShort(id);
+                writeLong(desc.getSerialVersionUID());
+                writeLong(getFieldHash(desc));
+            } else {
+                write(FULL_DESCRIPTOR);
+                super.writeClassDescriptor(desc);
+            }
+        }
+    }
+
+    static class CompactObjectInputStream extends ObjectInputStream {
+        CompactObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected void readStreamHeader() throws IOException {
+            int version = readByte() & 0xff;
+            if (version != STREAM_VERSION) {
+                throw new StreamCorruptedException("Unsupported job payload stream version " + version);
+            }
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            int type = read();
+            if (type == FULL_DESCRIPTOR) {
+                return super.readClassDescriptor();
+            }
+            if (type != REGISTERED_DESCRIPTOR) {
+                throw new StreamCorruptedException("Unexpected class descriptor type " + type);
+            }
+
+            int id = readUnsignedShort();
+            long serialVersionUID = readLong();
+            ObjectStreamClass desc = lookupDescriptor(id);
+            if (desc.getSerialVersionUID() != serialVersionUID) {
+                throw new InvalidClassException(desc.getName(), "serialVersionUID " + serialVersionUID + " in payload does not match local class "
+                        + desc.getSerialVersionUID());
+            }
+            long fieldHash = readLong();
+            if (getFieldHash(desc) != fieldHash) {
+                throw new InvalidClassException(desc.getName(), "serializable fields of the class that wrote the payload do not match the local class");
+            }
+            return desc;
+        }
+
+        private static ObjectStreamClass lookupDescriptor(int id) throws ClassNotFoundException {
+            ObjectStreamClass desc = s_descriptors.get(id);
+            if (desc == null) {
+                String className = s_classNames.get(id);
+                if (className == null) {
+                    throw new ClassNotFoundException("No job payload class is registered with id " + id);
+                }
+                desc = ObjectStreamClass.lookupAny(Class.forName(className));
+                s_descriptors.put(id, desc);
+            }
+            return desc;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.io.Serializable;
+
+/**
+ * Turns serializable job payloads (work commands and result objects) into the text stored in the
+ * job tables and back. Each codec must be able to tell its own output apart from the output of
+ * other codecs, so that rows written by an older codec stay readable.
+ */
+public interface JobPayloadCodec {
+    String encode(Serializable object);
+
+    boolean canDecode(String payload);
+
+    Object decode(String payload);
+}
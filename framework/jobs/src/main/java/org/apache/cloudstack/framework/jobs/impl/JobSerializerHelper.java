@@ -16,17 +16,12 @@
 // under the License.
 package org.apache.cloudstack.framework.jobs.impl;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Type;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.cloudstack.framework.config.ConfigKey;
 import org.apache.log4j.Logger;
 
 import com.cloud.utils.exception.CloudRuntimeException;
@@ -102,39 +97,48 @@ public class JobSerializerHelper {
         }
     }
 
+    public static final ConfigKey<Boolean> JobPayloadCompactEncoding = new ConfigKey<Boolean>("Advanced", Boolean.class, "job.payload.compact.encoding", "false",
+        "If set to true, job payloads are written in the compact encoding. Only enable once every management server of the cluster is able to read it", true);
+
+    /**
+     * Newly written payloads use the compact codec when job.payload.compact.encoding is set, the legacy one
+     * otherwise. Payloads are decoded by the compact codec when they are in its format, whatever the setting,
+     * so that a node reads what its peers wrote.
+     */
+    private static volatile JobPayloadCodec s_payloadCodec = null;
+    private static final JobPayloadCodec s_compactPayloadCodec = new CompactJobPayloadCodec();
+    private static final JobPayloadCodec s_legacyPayloadCodec = new LegacyJobPayloadCodec();
+
+    /**
+     * Overrides the codec chosen by job.payload.compact.encoding, null to go back to the setting.
+     */
+    public static void setPayloadCodec(JobPayloadCodec codec) {
+        s_payloadCodec = codec;
+    }
+
+    public static JobPayloadCodec getPayloadCodec() {
+        JobPayloadCodec codec = s_payloadCodec;
+        if (codec == null) {
+            codec = JobPayloadCompactEncoding.value() ? s_compactPayloadCodec : s_legacyPayloadCodec;
+        }
+        return codec;
+    }
+
     public static String toObjectSerializedString(Serializable object) {
         assert (object != null);
 
-        ByteArrayOutputStream bs = new ByteArrayOutputStream();
-        try {
-            ObjectOutputStream os = new ObjectOutputStream(bs);
-            os.writeObject(object);
-            os.close();
-            bs.close();
-
-            return Base64.encodeBase64URLSafeString(bs.toByteArray());
-        } catch (IOException e) {
-            throw new CloudRuntimeException("Unable to serialize: " + object, e);
-        }
+        return getPayloadCodec().encode(object);
     }
 
-    public static Object fromObjectSerializedString(String base64EncodedString) {
-        if (base64EncodedString == null)
+    public static Object fromObjectSerializedString(String serializedString) {
+        if (serializedString == null)
             return null;
 
-        byte[] content = Base64.decodeBase64(base64EncodedString);
-        ByteArrayInputStream bs = new ByteArrayInputStream(content);
-        try {
-            ObjectInputStream is = new ObjectInputStream(bs);
-            Object obj = is.readObject();
-            is.close();
-            bs.close();
-            return obj;
-        } catch (IOException e) {
-            throw new CloudRuntimeException("Unable to serialize: " + base64EncodedString, e);
-        } catch (ClassNotFoundException e) {
-            throw new CloudRuntimeException("Unable to serialize: " + base64EncodedString, e);
+        JobPayloadCodec codec = s_payloadCodec;
+        if (codec == null || !codec.canDecode(serializedString)) {
+            codec = s_compactPayloadCodec.canDecode(serializedString) ? s_compactPayloadCodec : s_legacyPayloadCodec;
         }
+        return codec.decode(serializedString);
     }
 
     public static class ClassTypeAdapter implements JsonSerializer<Class<?>>, JsonDeserializer<Class<?>> {
@@ -0,0 +1,73 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Plain java serialization in URL safe Base64, the format job payloads were always stored in
+ */
+public class LegacyJobPayloadCodec implements JobPayloadCodec {
+
+    @Override
+    public String encode(Serializable object) {
+        assert (object != null);
+
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        try {
+            ObjectOutputStream os = new ObjectOutputStream(bs);
+            os.writeObject(object);
+            os.close();
+            bs.close();
+
+            return Base64.encodeBase64URLSafeString(bs.toByteArray());
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize: " + object, e);
+        }
+    }
+
+    @Override
+    public boolean canDecode(String payload) {
+        return payload != null;
+    }
+
+    @Override
+    public Object decode(String payload) {
+        byte[] content = Base64.decodeBase64(payload);
+        ByteArrayInputStream bs = new ByteArrayInputStream(content);
+        try {
+            ObjectInputStream is = new ObjectInputStream(bs);
+            Object obj = is.readObject();
+            is.close();
+            bs.close();
+            return obj;
+        } catch (IOException e) {
+            throw new CloudRuntimeException("Unable to serialize: " + payload, e);
+        } catch (ClassNotFoundException e) {
+            throw new CloudRuntimeException("Unable to serialize: " + payload, e);
+        }
+    }
+}
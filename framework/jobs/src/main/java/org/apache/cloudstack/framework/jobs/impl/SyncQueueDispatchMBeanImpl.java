@@ -0,0 +1,154 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.StandardMBean;
+
+import org.apache.cloudstack.framework.jobs.SyncQueueDispatchMBean;
+
+import com.cloud.utils.NumbersUtil;
+
+public class SyncQueueDispatchMBeanImpl extends StandardMBean implements SyncQueueDispatchMBean {
+    // upper bounds (in milliseconds) of the latency buckets, the last bucket takes everything above
+    static final long[] LATENCY_BUCKETS = {10, 100, 1000, 5000, 30000, 60000};
+
+    /**
+     * Queue wait time of the items of one queue, from enqueue to dispatch. Updated concurrently by
+     * the signalled dispatch workers and the heartbeat sweep.
+     */
+    static class LatencyHistogram {
+        private final AtomicLongArray _buckets = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _totalLatency = new AtomicLong();
+        private final AtomicLong _maxLatency = new AtomicLong();
+
+        void record(long latency) {
+            if (latency < 0) {
+                latency = 0;
+            }
+
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS.length && latency > LATENCY_BUCKETS[bucket]) {
+                bucket++;
+            }
+            _buckets.incrementAndGet(bucket);
+            _count.incrementAndGet();
+            _totalLatency.addAndGet(latency);
+            NumbersUtil.updateMax(_maxLatency, latency);
+        }
+
+        long getCount() {
+            return _count.get();
+        }
+
+        long getBucketCount(int bucket) {
+            return _buckets.get(bucket);
+        }
+
+        long getAverageLatency() {
+            long count = _count.get();
+            return count == 0 ? 0 : _totalLatency.get() / count;
+        }
+
+        long getMaxLatency() {
+            return _maxLatency.get();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("count: ").append(getCount());
+            sb.append(", avg: ").append(getAverageLatency()).append("ms");
+            sb.append(", max: ").append(getMaxLatency()).append("ms");
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                sb.append(", <=").append(LATENCY_BUCKETS[i]).append("ms: ").append(_buckets.get(i));
+            }
+            sb.append(", >").append(LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1]).append("ms: ").append(_buckets.get(LATENCY_BUCKETS.length));
+            return sb.toString();
+        }
+    }
+
+    private final AtomicLong _signalledDispatchCount = new AtomicLong();
+    private final AtomicLong _sweepDispatchCount = new AtomicLong();
+    private final ConcurrentHashMap<String, LatencyHistogram> _histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final Map<Long, Boolean> _pendingSignals;
+
+    protected SyncQueueDispatchMBeanImpl(Map<Long, Boolean> pendingSignals) {
+        super(SyncQueueDispatchMBean.class, false);
+        _pendingSignals = pendingSignals;
+    }
+
+    void recordDispatch(String queueName, long latency, boolean signalled) {
+        if (signalled) {
+            _signalledDispatchCount.incrementAndGet();
+        } else {
+            _sweepDispatchCount.incrementAndGet();
+        }
+
+        LatencyHistogram histogram = _histograms.get(queueName);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = _histograms.putIfAbsent(queueName, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(latency);
+    }
+
+    LatencyHistogram getHistogram(String queueName) {
+        return _histograms.get(queueName);
+    }
+
+    @Override
+    public long getSignalledDispatchCount() {
+        return _signalledDispatchCount.get();
+    }
+
+    @Override
+    public long getSweepDispatchCount() {
+        return _sweepDispatchCount.get();
+    }
+
+    @Override
+    public long getPendingSignals() {
+        return _pendingSignals.size();
+    }
+
+    @Override
+    public String[] getQueueLatencyHistograms() {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, LatencyHistogram> entry : _histograms.entrySet()) {
+            result.add(entry.getKey() + " - " + entry.getValue().toString());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public void resetStatistics() {
+        _signalledDispatchCount.set(0);
+        _sweepDispatchCount.set(0);
+        _histograms.clear();
+    }
+}
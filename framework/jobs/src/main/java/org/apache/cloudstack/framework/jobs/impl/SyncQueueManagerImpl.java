@@ -178,10 +178,14 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
     @Override
     @DB
     public void purgeItem(final long queueItemId) {
+        purgeItemAndGetQueueId(queueItemId);
+    }
+
+    private Long purgeItemAndGetQueueId(final long queueItemId) {
         try {
-            Transaction.execute(new TransactionCallbackNoReturn() {
+            return Transaction.execute(new TransactionCallback<Long>() {
                 @Override
-                public void doInTransactionWithoutResult(TransactionStatus status) {
+                public Long doInTransaction(TransactionStatus status) {
                     SyncQueueItemVO itemVO = _syncQueueItemDao.findById(queueItemId);
                     if(itemVO != null) {
                         SyncQueueVO queueVO = _syncQueueDao.findById(itemVO.getQueueId());
@@ -196,12 +200,15 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
                             queueVO.setQueueSize(queueVO.getQueueSize() - 1);
                             _syncQueueDao.update(queueVO.getId(), queueVO);
                         }
+                        return itemVO.getQueueId();
                     }
+                    return null;
                 }
             });
         } catch (Exception e) {
             s_logger.error("Unexpected exception: ", e);
         }
+        return null;
     }
 
     @Override
@@ -255,11 +262,12 @@ public class SyncQueueManagerImpl extends ManagerBase implements SyncQueueManage
     }
 
     @Override
-    public void purgeAsyncJobQueueItemId(long asyncJobId) {
+    public Long purgeAsyncJobQueueItemId(long asyncJobId) {
         Long itemId = _syncQueueItemDao.getQueueItemIdByContentIdAndType(asyncJobId, SyncQueueItem.AsyncJobContentType);
         if (itemId != null) {
-            purgeItem(itemId);
+            return purgeItemAndGetQueueId(itemId);
         }
+        return null;
     }
 
     @Override
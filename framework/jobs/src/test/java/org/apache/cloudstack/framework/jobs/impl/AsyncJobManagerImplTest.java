@@ -0,0 +1,115 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.cloudstack.framework.jobs.AsyncJob;
+import org.apache.cloudstack.framework.jobs.dao.AsyncJobDao;
+import org.apache.cloudstack.jobs.JobInfo;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.internal.util.reflection.Whitebox;
+
+public class AsyncJobManagerImplTest {
+    private static final long QUEUE_ID = 7L;
+
+    private AsyncJobManagerImpl asyncJobManager;
+    private SyncQueueManager queueMgr;
+    private AsyncJobDao jobDao;
+    private ExecutorService queueDispatchExecutor;
+
+    @Before
+    public void setUp() {
+        asyncJobManager = new AsyncJobManagerImpl();
+        queueMgr = mock(SyncQueueManager.class);
+        jobDao = mock(AsyncJobDao.class);
+        queueDispatchExecutor = mock(ExecutorService.class);
+        Whitebox.setInternalState(asyncJobManager, "_queueMgr", queueMgr);
+        Whitebox.setInternalState(asyncJobManager, "_jobDao", jobDao);
+        Whitebox.setInternalState(asyncJobManager, "_queueDispatchExecutor", queueDispatchExecutor);
+
+        SyncQueueVO queue = mock(SyncQueueVO.class);
+        when(queue.getId()).thenReturn(QUEUE_ID);
+        when(queueMgr.queue(anyString(), anyLong(), anyString(), anyLong(), anyLong())).thenReturn(queue);
+        when(queueMgr.purgeAsyncJobQueueItemId(anyLong())).thenReturn(QUEUE_ID);
+    }
+
+    private List<Runnable> verifyDispatches(int count) {
+        ArgumentCaptor<Runnable> dispatches = ArgumentCaptor.forClass(Runnable.class);
+        verify(queueDispatchExecutor, times(count)).submit(dispatches.capture());
+        return dispatches.getAllValues();
+    }
+
+    @Test
+    public void testEnqueueDispatchesTheQueue() {
+        asyncJobManager.syncAsyncJobExecution(mock(AsyncJob.class), "VmInstance", 1L, 1);
+
+        List<Runnable> dispatches = verifyDispatches(1);
+        verify(queueMgr, never()).dequeueFromOne(anyLong(), anyLong());
+        dispatches.get(0).run();
+        verify(queueMgr, times(1)).dequeueFromOne(eq(QUEUE_ID), anyLong());
+    }
+
+    @Test
+    public void testCompletionDispatchesTheQueue() {
+        when(jobDao.findById(5L)).thenReturn(null);
+
+        asyncJobManager.completeAsyncJob(5L, JobInfo.Status.SUCCEEDED, 0, null);
+
+        verify(queueMgr).purgeAsyncJobQueueItemId(5L);
+        verifyDispatches(1).get(0).run();
+        verify(queueMgr, times(1)).dequeueFromOne(eq(QUEUE_ID), anyLong());
+    }
+
+    @Test
+    public void testSignalsForOneQueueAreMerged() {
+        asyncJobManager.syncAsyncJobExecution(mock(AsyncJob.class), "VmInstance", 1L, 1);
+        asyncJobManager.syncAsyncJobExecution(mock(AsyncJob.class), "VmInstance", 1L, 1);
+        when(jobDao.findById(5L)).thenReturn(null);
+        asyncJobManager.completeAsyncJob(5L, JobInfo.Status.SUCCEEDED, 0, null);
+
+        List<Runnable> dispatches = verifyDispatches(1);
+
+        // once the dispatch started, a new signal needs another round
+        dispatches.get(0).run();
+        asyncJobManager.syncAsyncJobExecution(mock(AsyncJob.class), "VmInstance", 1L, 1);
+        verifyDispatches(2);
+    }
+
+    @Test
+    public void testQueueSweepToleratesAnEarlyHeartbeat() {
+        Whitebox.setInternalState(asyncJobManager, "_lastQueueSweep", 10000L);
+        // the sweep interval defaults to the 2 second heartbeat
+        assertTrue(asyncJobManager.isQueueSweepDue(12000L));
+        assertTrue(asyncJobManager.isQueueSweepDue(11999L));
+        assertFalse(asyncJobManager.isQueueSweepDue(10500L));
+    }
+}
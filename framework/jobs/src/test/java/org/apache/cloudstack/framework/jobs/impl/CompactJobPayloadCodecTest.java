@@ -0,0 +1,169 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class CompactJobPayloadCodecTest {
+
+    public static class Payload implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        String name;
+        List<Long> ids = new ArrayList<Long>();
+    }
+
+    public static class ChangedPayload implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        String name;
+        Long id;
+    }
+
+    public static class RegisteredPayload implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        String name;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("count", 3L);
+        map.put("enabled", Boolean.TRUE);
+        map.put("state", Thread.State.RUNNABLE);
+
+        CompactJobPayloadCodec codec = new CompactJobPayloadCodec();
+        String encoded = codec.encode(map);
+
+        assertTrue(codec.canDecode(encoded));
+        assertEquals(map, codec.decode(encoded));
+    }
+
+    @Test
+    public void testCompressionIsOptional() {
+        Payload payload = new Payload();
+        payload.name = "payload";
+        for (long i = 0; i < 500; i++) {
+            payload.ids.add(i);
+        }
+
+        String deflated = new CompactJobPayloadCodec().encode(payload);
+        String plain = new CompactJobPayloadCodec(-1).encode(payload);
+        assertTrue(deflated.length() < plain.length());
+
+        Payload decoded = (Payload)new CompactJobPayloadCodec(-1).decode(deflated);
+        assertEquals("payload", decoded.name);
+        assertEquals(payload.ids, decoded.ids);
+        assertEquals(payload.ids, ((Payload)new CompactJobPayloadCodec().decode(plain)).ids);
+    }
+
+    @Test
+    public void testSmallerThanLegacyEncoding() {
+        ArrayList<Object> list = new ArrayList<Object>();
+        for (long i = 0; i < 20; i++) {
+            list.add(i);
+        }
+
+        String compact = new CompactJobPayloadCodec(-1).encode(list);
+        String legacy = new LegacyJobPayloadCodec().encode(list);
+        assertTrue(compact.length() < legacy.length());
+    }
+
+    @Test
+    public void testLegacyPayloadsStayReadable() {
+        String legacy = new LegacyJobPayloadCodec().encode("legacy result");
+
+        assertFalse(new CompactJobPayloadCodec().canDecode(legacy));
+        assertEquals("legacy result", JobSerializerHelper.fromObjectSerializedString(legacy));
+        assertEquals("new result", JobSerializerHelper.fromObjectSerializedString(JobSerializerHelper.toObjectSerializedString("new result")));
+    }
+
+    @Test
+    public void testLegacyEncodingIsTheDefault() {
+        String encoded = JobSerializerHelper.toObjectSerializedString("result");
+        assertFalse(new CompactJobPayloadCodec().canDecode(encoded));
+        assertTrue(JobSerializerHelper.getPayloadCodec() instanceof LegacyJobPayloadCodec);
+
+        // Compact payloads written by peers are read whatever the local setting
+        assertEquals("compact", JobSerializerHelper.fromObjectSerializedString(new CompactJobPayloadCodec().encode("compact")));
+    }
+
+    @Test
+    public void testFieldHashFollowsFields() {
+        long hash = CompactJobPayloadCodec.getFieldHash(ObjectStreamClass.lookup(Payload.class));
+        assertEquals(hash, CompactJobPayloadCodec.getFieldHash(ObjectStreamClass.lookup(Payload.class)));
+        assertFalse(hash == CompactJobPayloadCodec.getFieldHash(ObjectStreamClass.lookup(ChangedPayload.class)));
+    }
+
+    @Test(expected = CloudRuntimeException.class)
+    public void testDecodeRejectsChangedFields() {
+        CompactJobPayloadCodec.registerClass(1001, RegisteredPayload.class.getName());
+        RegisteredPayload payload = new RegisteredPayload();
+        payload.name = "payload";
+        String encoded = new CompactJobPayloadCodec(-1).encode(payload);
+
+        // Stand in for a payload written by a version of the class with other fields under the same serialVersionUID
+        byte[] bytes = Base64.decodeBase64(encoded.substring(CompactJobPayloadCodec.PREFIX.length()));
+        long hash = CompactJobPayloadCodec.getFieldHash(ObjectStreamClass.lookup(RegisteredPayload.class));
+        int offset = -1;
+        for (int i = 0; i + 8 <= bytes.length && offset < 0; i++) {
+            long value = 0;
+            for (int j = 0; j < 8; j++) {
+                value = (value << 8) | (bytes[i + j] & 0xff);
+            }
+            if (value == hash) {
+                offset = i;
+            }
+        }
+        assertTrue(offset >= 0);
+        bytes[offset] ^= 0x01;
+
+        new CompactJobPayloadCodec().decode(CompactJobPayloadCodec.PREFIX + Base64.encodeBase64URLSafeString(bytes));
+    }
+
+    @Test
+    public void testRegisterClass() {
+        CompactJobPayloadCodec.registerClass(1000, Payload.class.getName());
+        CompactJobPayloadCodec.registerClass(1000, Payload.class.getName());
+        assertEquals(Integer.valueOf(1000), CompactJobPayloadCodec.getClassId(Payload.class.getName()));
+        assertEquals(Integer.valueOf(2), CompactJobPayloadCodec.getClassId(Long.class.getName()));
+    }
+
+    @Test(expected = CloudRuntimeException.class)
+    public void testRegisterClassRejectsTakenId() {
+        CompactJobPayloadCodec.registerClass(2, Payload.class.getName());
+    }
+
+    @Test(expected = CloudRuntimeException.class)
+    public void testDecodeRejectsUnknownVersion() {
+        new CompactJobPayloadCodec().decode(CompactJobPayloadCodec.PREFIX + "CQA");
+    }
+}
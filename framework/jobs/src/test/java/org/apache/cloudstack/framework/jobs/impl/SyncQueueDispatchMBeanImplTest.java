@@ -0,0 +1,74 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package org.apache.cloudstack.framework.jobs.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class SyncQueueDispatchMBeanImplTest {
+
+    @Test
+    public void testRecordDispatchFillsHistogramBuckets() {
+        SyncQueueDispatchMBeanImpl stats = new SyncQueueDispatchMBeanImpl(new ConcurrentHashMap<Long, Boolean>());
+
+        stats.recordDispatch("VmWorkJobDispatcher", 5, true);
+        stats.recordDispatch("VmWorkJobDispatcher", 10, true);
+        stats.recordDispatch("VmWorkJobDispatcher", 250, false);
+        stats.recordDispatch("VmWorkJobDispatcher", 120000, false);
+        stats.recordDispatch("VmWorkJobDispatcher", -3, true);
+
+        SyncQueueDispatchMBeanImpl.LatencyHistogram histogram = stats.getHistogram("VmWorkJobDispatcher");
+        assertEquals(5, histogram.getCount());
+        assertEquals(3, histogram.getBucketCount(0));
+        assertEquals(0, histogram.getBucketCount(1));
+        assertEquals(1, histogram.getBucketCount(2));
+        assertEquals(1, histogram.getBucketCount(SyncQueueDispatchMBeanImpl.LATENCY_BUCKETS.length));
+        assertEquals(120000, histogram.getMaxLatency());
+        assertEquals((5 + 10 + 250 + 120000) / 5, histogram.getAverageLatency());
+
+        assertEquals(3, stats.getSignalledDispatchCount());
+        assertEquals(2, stats.getSweepDispatchCount());
+    }
+
+    @Test
+    public void testHistogramsArePerQueue() {
+        Map<Long, Boolean> pending = new ConcurrentHashMap<Long, Boolean>();
+        SyncQueueDispatchMBeanImpl stats = new SyncQueueDispatchMBeanImpl(pending);
+
+        stats.recordDispatch("ApiAsyncJobDispatcher", 50, true);
+        stats.recordDispatch("VmWorkJobDispatcher", 2000, true);
+        pending.put(1L, Boolean.TRUE);
+
+        String[] histograms = stats.getQueueLatencyHistograms();
+        assertEquals(2, histograms.length);
+        for (String histogram : histograms) {
+            assertTrue(histogram.startsWith("ApiAsyncJobDispatcher - count: 1") || histogram.startsWith("VmWorkJobDispatcher - count: 1"));
+        }
+        assertEquals(1, stats.getPendingSignals());
+
+        stats.resetStatistics();
+        assertEquals(0, stats.getQueueLatencyHistograms().length);
+        assertEquals(0, stats.getSignalledDispatchCount());
+        assertNull(stats.getHistogram("ApiAsyncJobDispatcher"));
+    }
+}
@@ -21,6 +21,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -45,6 +46,11 @@ public class DynamicRoleBasedAPIAccessChecker extends AdapterBase implements API
 
     private List<PluggableService> services;
     private Map<RoleType, Set<String>> annotationRoleBasedApisMap = new HashMap<>();
+    private Map<Long, RolePermissionMatcher> rolePermissionMatchers = new ConcurrentHashMap<>();
+
+    // Compiled permissions are rebuilt after this long even if no change was seen, in case a change raced with
+    // loading them or its notification from another management server was lost
+    static final long PERMISSION_MATCHER_MAX_AGE = 30 * 1000L;
 
     protected DynamicRoleBasedAPIAccessChecker() {
         super();
@@ -82,13 +88,12 @@ public class DynamicRoleBasedAPIAccessChecker extends AdapterBase implements API
         }
 
         // Check against current list of permissions
-        for (final RolePermission permission : roleService.findAllPermissionsBy(accountRole.getId())) {
-            if (permission.getRule().matches(commandName)) {
-                if (RolePermission.Permission.ALLOW.equals(permission.getPermission())) {
-                    return true;
-                } else {
-                    denyApiAccess(commandName);
-                }
+        final RolePermission permission = getPermissionMatcher(accountRole.getId()).findFirstMatch(commandName);
+        if (permission != null) {
+            if (RolePermission.Permission.ALLOW.equals(permission.getPermission())) {
+                return true;
+            } else {
+                denyApiAccess(commandName);
             }
         }
 
@@ -102,6 +107,20 @@ public class DynamicRoleBasedAPIAccessChecker extends AdapterBase implements API
         throw new UnavailableCommandException("The API " + commandName + " does not exist or is not available for this account.");
     }
 
+    /**
+     * Returns the compiled permissions of the role, built again when the role permissions have changed.
+     */
+    protected RolePermissionMatcher getPermissionMatcher(final long roleId) {
+        // Read the version first so that a change made while loading gets the permissions loaded again
+        final long version = roleService.getPermissionsVersion();
+        RolePermissionMatcher matcher = rolePermissionMatchers.get(roleId);
+        if (matcher == null || matcher.getVersion() != version || matcher.getAge() > PERMISSION_MATCHER_MAX_AGE) {
+            matcher = new RolePermissionMatcher(version, roleService.findAllPermissionsBy(roleId));
+            rolePermissionMatchers.put(roleId, matcher);
+        }
+        return matcher;
+    }
+
     public void addApiToRoleBasedAnnotationsMap(final RoleType roleType, final String commandName) {
         if (roleType == null || Strings.isNullOrEmpty(commandName)) {
             return;
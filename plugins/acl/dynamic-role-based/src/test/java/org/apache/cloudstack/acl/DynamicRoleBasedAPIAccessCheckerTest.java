@@ -154,6 +154,36 @@ public class DynamicRoleBasedAPIAccessCheckerTest extends TestCase {
         }
     }
 
+    @Test
+    public void testRolePermissionsCompiledOncePerVersion() {
+        final String allowedApiName = "someAllowedApi";
+        final RolePermission permission = new RolePermissionVO(1L, "some*", RolePermission.Permission.ALLOW, null);
+        Mockito.when(roleService.findAllPermissionsBy(Mockito.anyLong())).thenReturn(Collections.singletonList(permission));
+        Mockito.when(roleService.getPermissionsVersion()).thenReturn(1L);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(apiAccessChecker.checkAccess(getTestUser(), allowedApiName));
+        }
+        Mockito.verify(roleService, Mockito.times(1)).findAllPermissionsBy(Mockito.anyLong());
+    }
+
+    @Test
+    public void testRolePermissionsReloadedOnNewVersion() {
+        final String apiName = "someApi";
+        final RolePermission allow = new RolePermissionVO(1L, apiName, RolePermission.Permission.ALLOW, null);
+        final RolePermission deny = new RolePermissionVO(1L, apiName, RolePermission.Permission.DENY, null);
+        Mockito.when(roleService.findAllPermissionsBy(Mockito.anyLong())).thenReturn(Collections.singletonList(allow));
+        Mockito.when(roleService.getPermissionsVersion()).thenReturn(1L);
+        assertTrue(apiAccessChecker.checkAccess(getTestUser(), apiName));
+
+        Mockito.when(roleService.findAllPermissionsBy(Mockito.anyLong())).thenReturn(Collections.singletonList(deny));
+        Mockito.when(roleService.getPermissionsVersion()).thenReturn(2L);
+        try {
+            apiAccessChecker.checkAccess(getTestUser(), apiName);
+            fail("Exception was expected");
+        } catch (PermissionDeniedException ignored) {
+        }
+    }
+
     @Test
     public void testAnnotationFallbackCheckAccess() {
         final String allowedApiName = "someApiWithAnnotations";
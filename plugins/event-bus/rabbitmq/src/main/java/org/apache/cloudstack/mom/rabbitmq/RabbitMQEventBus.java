@@ -40,7 +40,6 @@ import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
-import com.rabbitmq.client.MessageProperties;
 import com.rabbitmq.client.ShutdownListener;
 import com.rabbitmq.client.ShutdownSignalException;
 
@@ -53,6 +52,7 @@ import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 
 import com.cloud.utils.Ternary;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.mgmt.JmxUtil;
 
 public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
@@ -82,11 +82,18 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
 
     private static Integer retryInterval;
 
+    // bounds of the in-memory event queue and the batching of published events
+    private static Integer publishQueueSize;
+    private static Integer publishBatchSize;
+    private static Integer publishChannels;
+
     // hashmap to book keep the registered subscribers
     private static ConcurrentHashMap<String, Ternary<String, Channel, EventSubscriber>> s_subscribers;
 
     // connection to AMQP server,
-    private static Connection s_connection = null;
+    private static volatile Connection s_connection = null;
+
+    private static RabbitMQEventPublisher s_publisher;
 
     // AMQP server should consider messages acknowledged once delivered if _autoAck is true
     private static boolean s_autoAck = true;
@@ -130,6 +137,22 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
                 retryInterval = 10000;// default to 10s to try out reconnect
             }
 
+            if (publishQueueSize == null) {
+                publishQueueSize = 10000;
+            }
+
+            if (publishBatchSize == null) {
+                publishBatchSize = 100;
+            }
+
+            if (publishChannels == null) {
+                publishChannels = 2;
+            }
+
+            if (publishQueueSize <= 0 || publishBatchSize <= 0 || publishChannels <= 0) {
+                throw new ConfigurationException("Invalid publish queue size/batch size/channels, they must be positive");
+            }
+
         } catch (NumberFormatException e) {
             throw new ConfigurationException("Invalid port number/retry interval");
         }
@@ -138,6 +161,20 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         executorService = Executors.newCachedThreadPool();
         disconnectHandler = new DisconnectHandler();
         blockedConnectionHandler = new BlockedConnectionHandler();
+        s_publisher = new RabbitMQEventPublisher(new RabbitMQEventPublisher.ConnectionProvider() {
+            @Override
+            public Connection getConnection() throws Exception {
+                return RabbitMQEventBus.this.getConnection();
+            }
+
+            @Override
+            public void publishFailed(Exception e) {
+                Connection connection = s_connection;
+                if (e instanceof AlreadyClosedException || (connection != null && !connection.isOpen())) {
+                    closeConnection();
+                }
+            }
+        }, amqpExchangeName, publishQueueSize, publishBatchSize, publishChannels, retryInterval);
 
         return true;
     }
@@ -175,6 +212,18 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         RabbitMQEventBus.retryInterval = retryInterval;
     }
 
+    public static void setPublishQueueSize(Integer publishQueueSize) {
+        RabbitMQEventBus.publishQueueSize = publishQueueSize;
+    }
+
+    public static void setPublishBatchSize(Integer publishBatchSize) {
+        RabbitMQEventBus.publishBatchSize = publishBatchSize;
+    }
+
+    public static void setPublishChannels(Integer publishChannels) {
+        RabbitMQEventBus.publishChannels = publishChannels;
+    }
+
     /** Call to subscribe to interested set of events
      *
      * @param topic defines category and type of the events being subscribed to
@@ -261,24 +310,17 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
-    // publish event on to the exchange created on AMQP server
+    // queue event for publishing on to the exchange created on AMQP server, events are kept
+    // in memory while the AMQP server is not reachable
     @Override
     public void publish(Event event) throws EventBusException {
 
         String routingKey = createRoutingKey(event);
         String eventDescription = event.getDescription();
 
-        try {
-            Connection connection = getConnection();
-            Channel channel = createChannel(connection);
-            createExchange(channel, amqpExchangeName);
-            publishEventToExchange(channel, amqpExchangeName, routingKey, eventDescription);
-            channel.close();
-        } catch (AlreadyClosedException e) {
-            closeConnection();
-            throw new EventBusException("Failed to publish event to message broker as connection to AMQP broker in lost");
-        } catch (Exception e) {
-            throw new EventBusException("Failed to publish event to message broker due to " + e.getMessage());
+        if (!s_publisher.offer(routingKey, eventDescription.getBytes())) {
+            throw new EventBusException("Failed to publish event " + routingKey + " to message broker as " + s_publisher.getQueueSize()
+                    + " events are already waiting to be published");
         }
     }
 
@@ -354,16 +396,23 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         return bindingKey.toString();
     }
 
-    private synchronized Connection getConnection() throws Exception {
-        if (s_connection == null) {
-            try {
-                return createConnection();
-            } catch (Exception e) {
-                s_logger.error("Failed to create a connection to AMQP server due to " + e.getMessage());
-                throw e;
+    private Connection getConnection() throws Exception {
+        Connection connection = s_connection;
+        if (connection != null) {
+            return connection;
+        }
+
+        synchronized (this) {
+            if (s_connection == null) {
+                try {
+                    return createConnection();
+                } catch (Exception e) {
+                    s_logger.error("Failed to create a connection to AMQP server due to " + e.getMessage());
+                    throw e;
+                }
+            } else {
+                return s_connection;
             }
-        } else {
-            return s_connection;
         }
     }
 
@@ -443,16 +492,6 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
         }
     }
 
-    private void publishEventToExchange(Channel channel, String exchangeName, String routingKey, String eventDescription) throws Exception {
-        try {
-            byte[] messageBodyBytes = eventDescription.getBytes();
-            channel.basicPublish(exchangeName, routingKey, MessageProperties.PERSISTENT_TEXT_PLAIN, messageBodyBytes);
-        } catch (Exception e) {
-            s_logger.error("Failed to publish event " + routingKey + " on exchange " + exchangeName + "  of message broker due to " + e.getMessage());
-            throw e;
-        }
-    }
-
     private String getEventCategoryFromRoutingKey(String routingKey) {
         String[] keyParts = routingKey.split("\\.");
         return keyParts[1];
@@ -487,12 +526,22 @@ public class RabbitMQEventBus extends ManagerBase implements EventBus {
     public boolean start() {
         ReconnectionTask reconnect = new ReconnectionTask(); // initiate connection to AMQP server
         executorService.submit(reconnect);
+        s_publisher.start();
+
+        try {
+            JmxUtil.registerMBean("RabbitMQEventBus", "Event Publisher", new RabbitMQEventPublisherMBeanImpl(s_publisher));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register event publisher statistics to JMX monitoring due to " + e.getMessage());
+        }
         return true;
     }
 
     @Override
     public synchronized boolean stop() {
-        if (s_connection.isOpen()) {
+        // give queued events a chance to reach the AMQP server before the connection is closed
+        s_publisher.stop(retryInterval);
+
+        if (s_connection != null && s_connection.isOpen()) {
             for (String subscriberId : s_subscribers.keySet()) {
                 Ternary<String, Channel, EventSubscriber> subscriberDetails = s_subscribers.get(subscriberId);
                 Channel channel = subscriberDetails.second();
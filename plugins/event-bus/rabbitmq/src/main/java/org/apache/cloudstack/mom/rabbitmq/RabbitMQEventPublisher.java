@@ -0,0 +1,405 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.MessageProperties;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Publishes events to the exchange from a bounded in-memory queue. Worker threads drain the queue
+ * in batches onto pooled channels in confirm mode, so channels are not opened per event and
+ * publishers do not wait for the broker. Events stay queued while the broker is unavailable and
+ * events nacked by the broker or left unconfirmed on a closed channel are queued again.
+ */
+public class RabbitMQEventPublisher {
+    private static final Logger s_logger = Logger.getLogger(RabbitMQEventPublisher.class);
+
+    private static final long POLL_INTERVAL = 500; // ms
+
+    public interface ConnectionProvider {
+        Connection getConnection() throws Exception;
+
+        /**
+         * Called when publishing on a channel of the connection failed, gives the provider a chance to drop a broken connection
+         */
+        void publishFailed(Exception e);
+    }
+
+    static class PendingEvent {
+        final String routingKey;
+        final byte[] body;
+        final long queuedAt;
+
+        PendingEvent(String routingKey, byte[] body) {
+            this.routingKey = routingKey;
+            this.body = body;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * A pooled channel in confirm mode with the events it published but the broker did not confirm yet
+     */
+    class PublisherChannel implements ConfirmListener, ShutdownListener {
+        private final Channel _channel;
+        private final ConcurrentNavigableMap<Long, PendingEvent> _unconfirmed = new ConcurrentSkipListMap<Long, PendingEvent>();
+
+        PublisherChannel(Channel channel) {
+            _channel = channel;
+        }
+
+        void publish(PendingEvent event) throws Exception {
+            long seqNo = _channel.getNextPublishSeqNo();
+            _unconfirmed.put(seqNo, event);
+            _channel.basicPublish(_exchange, event.routingKey, MessageProperties.PERSISTENT_TEXT_PLAIN, event.body);
+        }
+
+        boolean isOpen() {
+            return _channel.isOpen();
+        }
+
+        int getUnconfirmedCount() {
+            return _unconfirmed.size();
+        }
+
+        @Override
+        public void handleAck(long deliveryTag, boolean multiple) {
+            for (PendingEvent event : confirmed(deliveryTag, multiple)) {
+                recordPublished(event);
+            }
+        }
+
+        @Override
+        public void handleNack(long deliveryTag, boolean multiple) {
+            List<PendingEvent> events = confirmed(deliveryTag, multiple);
+            _nackedCount.addAndGet(events.size());
+            requeue(events);
+        }
+
+        @Override
+        public void shutdownCompleted(ShutdownSignalException cause) {
+            _channels.remove(this);
+            _idleChannels.remove(this);
+            requeueUnconfirmed();
+        }
+
+        void requeueUnconfirmed() {
+            List<PendingEvent> events = new ArrayList<PendingEvent>();
+            Map.Entry<Long, PendingEvent> entry;
+            while ((entry = _unconfirmed.pollFirstEntry()) != null) {
+                events.add(entry.getValue());
+            }
+            requeue(events);
+        }
+
+        void discard() {
+            try {
+                _channel.abort();
+            } catch (Exception e) {
+                s_logger.debug("Failed to abort event publisher channel due to " + e.getMessage());
+            }
+            shutdownCompleted(null);
+        }
+
+        private List<PendingEvent> confirmed(long deliveryTag, boolean multiple) {
+            List<PendingEvent> events = new ArrayList<PendingEvent>();
+            if (multiple) {
+                Map.Entry<Long, PendingEvent> entry;
+                while ((entry = _unconfirmed.firstEntry()) != null && entry.getKey() <= deliveryTag) {
+                    if (_unconfirmed.remove(entry.getKey(), entry.getValue())) {
+                        events.add(entry.getValue());
+                    }
+                }
+            } else {
+                PendingEvent event = _unconfirmed.remove(deliveryTag);
+                if (event != null) {
+                    events.add(event);
+                }
+            }
+            return events;
+        }
+    }
+
+    private final ConnectionProvider _connectionProvider;
+    private final String _exchange;
+    private final int _batchSize;
+    private final int _workers;
+    private final long _retryInterval;
+
+    private final LinkedBlockingDeque<PendingEvent> _queue;
+    private final BlockingQueue<PublisherChannel> _idleChannels = new LinkedBlockingQueue<PublisherChannel>();
+    private final List<PublisherChannel> _channels = new CopyOnWriteArrayList<PublisherChannel>();
+    private ExecutorService _workerExecutor;
+    private volatile boolean _running = false;
+
+    private final AtomicLong _publishedCount = new AtomicLong();
+    private final AtomicLong _droppedCount = new AtomicLong();
+    private final AtomicLong _nackedCount = new AtomicLong();
+    private final AtomicLong _failedBatchCount = new AtomicLong();
+    private final AtomicLong _totalPublishLatency = new AtomicLong();
+    private final AtomicLong _maxPublishLatency = new AtomicLong();
+
+    /**
+     * @param queueSize maximum number of events kept in memory waiting to be published
+     * @param batchSize maximum number of events published in one go on a channel
+     * @param workers number of publishing threads, each of them uses one pooled channel at a time
+     * @param retryInterval time in ms to wait before publishing again after a failure
+     */
+    public RabbitMQEventPublisher(ConnectionProvider connectionProvider, String exchange, int queueSize, int batchSize, int workers, long retryInterval) {
+        _connectionProvider = connectionProvider;
+        _exchange = exchange;
+        _queue = new LinkedBlockingDeque<PendingEvent>(queueSize);
+        _batchSize = batchSize;
+        _workers = workers;
+        _retryInterval = retryInterval;
+    }
+
+    public synchronized void start() {
+        if (_running) {
+            return;
+        }
+
+        _running = true;
+        _workerExecutor = Executors.newFixedThreadPool(_workers, new NamedThreadFactory("RabbitMQ-EventPublisher"));
+        for (int i = 0; i < _workers; i++) {
+            _workerExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    while (_running) {
+                        try {
+                            if (!publishNextBatch(POLL_INTERVAL)) {
+                                Thread.sleep(_retryInterval);
+                            }
+                        } catch (InterruptedException e) {
+                            break;
+                        } catch (Throwable e) {
+                            s_logger.warn("Unexpected exception while publishing events to message broker", e);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the workers after giving them up to timeout ms to publish what is queued
+     */
+    public synchronized void stop(long timeout) {
+        if (!_running) {
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!_queue.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        _running = false;
+        _workerExecutor.shutdownNow();
+        try {
+            _workerExecutor.awaitTermination(POLL_INTERVAL * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            s_logger.debug("[ignored] interrupted while waiting for event publishers to stop");
+        }
+
+        if (!_queue.isEmpty()) {
+            s_logger.warn("Event bus is stopping with " + _queue.size() + " events not published to message broker");
+        }
+
+        for (PublisherChannel channel : _channels) {
+            try {
+                channel._channel.close();
+            } catch (Exception e) {
+                s_logger.debug("Failed to close event publisher channel due to " + e.getMessage());
+            }
+        }
+        _channels.clear();
+        _idleChannels.clear();
+    }
+
+    /**
+     * Queues an event for publishing
+     *
+     * @return false if the event was dropped because the queue is full
+     */
+    public boolean offer(String routingKey, byte[] body) {
+        if (_queue.offerLast(new PendingEvent(routingKey, body))) {
+            return true;
+        }
+
+        _droppedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Publishes the next batch of queued events, waiting up to waitTime ms for an event to arrive
+     *
+     * @return false if publishing failed and the batch was put back into the queue
+     */
+    boolean publishNextBatch(long waitTime) throws InterruptedException {
+        PendingEvent first = _queue.pollFirst(waitTime, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return true;
+        }
+
+        List<PendingEvent> batch = new ArrayList<PendingEvent>(_batchSize);
+        batch.add(first);
+        _queue.drainTo(batch, _batchSize - 1);
+
+        PublisherChannel channel = null;
+        int published = 0;
+        try {
+            channel = borrowChannel();
+            for (PendingEvent event : batch) {
+                published++;
+                channel.publish(event);
+            }
+            _idleChannels.offer(channel);
+            return true;
+        } catch (Exception e) {
+            _failedBatchCount.incrementAndGet();
+            s_logger.warn("Failed to publish " + batch.size() + " events to message broker due to " + e.getMessage() + ", they will be retried");
+
+            // events after the failed one go back first, events handed to the channel follow once it is discarded
+            requeue(batch.subList(published, batch.size()));
+            if (channel != null) {
+                channel.discard();
+            }
+            _connectionProvider.publishFailed(e);
+            return false;
+        }
+    }
+
+    private PublisherChannel borrowChannel() throws Exception {
+        PublisherChannel channel;
+        while ((channel = _idleChannels.poll()) != null) {
+            if (channel.isOpen()) {
+                return channel;
+            }
+            channel.discard();
+        }
+
+        Connection connection = _connectionProvider.getConnection();
+        Channel amqpChannel = connection.createChannel();
+        channel = new PublisherChannel(amqpChannel);
+        try {
+            amqpChannel.confirmSelect();
+            amqpChannel.exchangeDeclare(_exchange, "topic", true);
+            amqpChannel.addConfirmListener(channel);
+            amqpChannel.addShutdownListener(channel);
+        } catch (Exception e) {
+            channel.discard();
+            throw e;
+        }
+        _channels.add(channel);
+        return channel;
+    }
+
+    private void requeue(List<PendingEvent> events) {
+        for (int i = events.size() - 1; i >= 0; i--) {
+            if (!_queue.offerFirst(events.get(i))) {
+                _droppedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void recordPublished(PendingEvent event) {
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - event.queuedAt);
+        _publishedCount.incrementAndGet();
+        _totalPublishLatency.addAndGet(latency);
+        NumbersUtil.updateMax(_maxPublishLatency, latency);
+    }
+
+    public int getQueueSize() {
+        return _queue.size();
+    }
+
+    public int getChannelCount() {
+        return _channels.size();
+    }
+
+    public long getUnconfirmedCount() {
+        long count = 0;
+        for (PublisherChannel channel : _channels) {
+            count += channel.getUnconfirmedCount();
+        }
+        return count;
+    }
+
+    public long getPublishedCount() {
+        return _publishedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return _droppedCount.get();
+    }
+
+    public long getNackedCount() {
+        return _nackedCount.get();
+    }
+
+    public long getFailedBatchCount() {
+        return _failedBatchCount.get();
+    }
+
+    public long getAveragePublishLatency() {
+        long count = _publishedCount.get();
+        return count == 0 ? 0 : _totalPublishLatency.get() / count;
+    }
+
+    public long getMaxPublishLatency() {
+        return _maxPublishLatency.get();
+    }
+
+    public void resetStatistics() {
+        _publishedCount.set(0);
+        _droppedCount.set(0);
+        _nackedCount.set(0);
+        _failedBatchCount.set(0);
+        _totalPublishLatency.set(0);
+        _maxPublishLatency.set(0);
+    }
+}
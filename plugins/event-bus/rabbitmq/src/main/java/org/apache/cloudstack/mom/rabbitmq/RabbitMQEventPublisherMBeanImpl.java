@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import javax.management.StandardMBean;
+
+public class RabbitMQEventPublisherMBeanImpl extends StandardMBean implements RabbitMQEventPublisherMBean {
+    private final RabbitMQEventPublisher _publisher;
+
+    public RabbitMQEventPublisherMBeanImpl(RabbitMQEventPublisher publisher) {
+        super(RabbitMQEventPublisherMBean.class, false);
+        _publisher = publisher;
+    }
+
+    @Override
+    public int getQueueSize() {
+        return _publisher.getQueueSize();
+    }
+
+    @Override
+    public int getChannelCount() {
+        return _publisher.getChannelCount();
+    }
+
+    @Override
+    public long getUnconfirmedCount() {
+        return _publisher.getUnconfirmedCount();
+    }
+
+    @Override
+    public long getPublishedCount() {
+        return _publisher.getPublishedCount();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return _publisher.getDroppedCount();
+    }
+
+    @Override
+    public long getNackedCount() {
+        return _publisher.getNackedCount();
+    }
+
+    @Override
+    public long getFailedBatchCount() {
+        return _publisher.getFailedBatchCount();
+    }
+
+    @Override
+    public long getAveragePublishLatency() {
+        return _publisher.getAveragePublishLatency();
+    }
+
+    @Override
+    public long getMaxPublishLatency() {
+        return _publisher.getMaxPublishLatency();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _publisher.resetStatistics();
+    }
+}
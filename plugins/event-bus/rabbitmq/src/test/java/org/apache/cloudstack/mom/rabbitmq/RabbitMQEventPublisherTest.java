@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.cloudstack.mom.rabbitmq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+
+public class RabbitMQEventPublisherTest {
+
+    /**
+     * In-memory stand-in for an AMQP broker. Channels record what is published on them and
+     * confirms are sent by the test, the broker can be taken down to simulate an outage.
+     */
+    static class StandInBroker implements RabbitMQEventPublisher.ConnectionProvider {
+        boolean available = true;
+        int channelsCreated = 0;
+        int failures = 0;
+        final List<String> published = new ArrayList<String>();
+        final List<ConfirmListener> confirmListeners = new ArrayList<ConfirmListener>();
+        final List<ShutdownListener> shutdownListeners = new ArrayList<ShutdownListener>();
+
+        @Override
+        public Connection getConnection() throws Exception {
+            if (!available) {
+                throw new IOException("broker is down");
+            }
+
+            Connection connection = mock(Connection.class);
+            when(connection.isOpen()).thenReturn(true);
+            when(connection.createChannel()).thenAnswer(new Answer<Channel>() {
+                @Override
+                public Channel answer(InvocationOnMock invocation) throws Throwable {
+                    return createChannel();
+                }
+            });
+            return connection;
+        }
+
+        @Override
+        public void publishFailed(Exception e) {
+            failures++;
+        }
+
+        private Channel createChannel() throws Exception {
+            channelsCreated++;
+            final long[] nextSeqNo = new long[] {1};
+            final Channel channel = mock(Channel.class);
+            when(channel.isOpen()).thenAnswer(new Answer<Boolean>() {
+                @Override
+                public Boolean answer(InvocationOnMock invocation) {
+                    return available;
+                }
+            });
+            when(channel.getNextPublishSeqNo()).thenAnswer(new Answer<Long>() {
+                @Override
+                public Long answer(InvocationOnMock invocation) {
+                    return nextSeqNo[0];
+                }
+            });
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) throws Throwable {
+                    if (!available) {
+                        throw new IOException("broker is down");
+                    }
+                    nextSeqNo[0]++;
+                    published.add((String)invocation.getArguments()[1]);
+                    return null;
+                }
+            }).when(channel).basicPublish(anyString(), anyString(), any(AMQP.BasicProperties.class), any(byte[].class));
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    confirmListeners.add((ConfirmListener)invocation.getArguments()[0]);
+                    return null;
+                }
+            }).when(channel).addConfirmListener(any(ConfirmListener.class));
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) {
+                    shutdownListeners.add((ShutdownListener)invocation.getArguments()[0]);
+                    return null;
+                }
+            }).when(channel).addShutdownListener(any(ShutdownListener.class));
+            return channel;
+        }
+    }
+
+    private StandInBroker broker;
+    private RabbitMQEventPublisher publisher;
+
+    @Before
+    public void setUp() {
+        broker = new StandInBroker();
+        publisher = new RabbitMQEventPublisher(broker, "cloudstack-events", 5, 3, 1, 10);
+    }
+
+    @Test
+    public void testEventsArePublishedInBatchesOnPooledChannel() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(publisher.offer("event" + i, new byte[0]));
+        }
+
+        assertTrue(publisher.publishNextBatch(1));
+        assertTrue(publisher.publishNextBatch(1));
+
+        assertEquals(5, broker.published.size());
+        assertEquals(1, broker.channelsCreated);
+        assertEquals(0, publisher.getQueueSize());
+        assertEquals(5, publisher.getUnconfirmedCount());
+
+        broker.confirmListeners.get(0).handleAck(5, true);
+        assertEquals(5, publisher.getPublishedCount());
+        assertEquals(0, publisher.getUnconfirmedCount());
+    }
+
+    @Test
+    public void testEventsAreKeptWhileBrokerIsUnavailable() throws Exception {
+        broker.available = false;
+        publisher.offer("event0", new byte[0]);
+        publisher.offer("event1", new byte[0]);
+
+        assertFalse(publisher.publishNextBatch(1));
+        assertEquals(2, publisher.getQueueSize());
+        assertEquals(1, publisher.getFailedBatchCount());
+        assertEquals(1, broker.failures);
+
+        broker.available = true;
+        assertTrue(publisher.publishNextBatch(1));
+        assertEquals(0, publisher.getQueueSize());
+        assertEquals("event0", broker.published.get(0));
+        assertEquals("event1", broker.published.get(1));
+    }
+
+    @Test
+    public void testEventsAreDroppedWhenQueueIsFull() {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(publisher.offer("event" + i, new byte[0]));
+        }
+
+        assertFalse(publisher.offer("event5", new byte[0]));
+        assertEquals(1, publisher.getDroppedCount());
+        assertEquals(5, publisher.getQueueSize());
+    }
+
+    @Test
+    public void testNackedEventsArePublishedAgain() throws Exception {
+        publisher.offer("event0", new byte[0]);
+        publisher.offer("event1", new byte[0]);
+        publisher.publishNextBatch(1);
+
+        broker.confirmListeners.get(0).handleAck(1, false);
+        broker.confirmListeners.get(0).handleNack(2, false);
+        assertEquals(1, publisher.getPublishedCount());
+        assertEquals(1, publisher.getNackedCount());
+        assertEquals(1, publisher.getQueueSize());
+
+        publisher.publishNextBatch(1);
+        assertEquals("event1", broker.published.get(2));
+        assertEquals(1, broker.channelsCreated);
+    }
+
+    @Test
+    public void testUnconfirmedEventsAreRequeuedWhenChannelCloses() throws Exception {
+        publisher.offer("event0", new byte[0]);
+        publisher.offer("event1", new byte[0]);
+        publisher.publishNextBatch(1);
+
+        broker.shutdownListeners.get(0).shutdownCompleted(null);
+        assertEquals(2, publisher.getQueueSize());
+        assertEquals(0, publisher.getChannelCount());
+
+        publisher.publishNextBatch(1);
+        assertEquals(4, broker.published.size());
+        assertEquals(2, broker.channelsCreated);
+    }
+}
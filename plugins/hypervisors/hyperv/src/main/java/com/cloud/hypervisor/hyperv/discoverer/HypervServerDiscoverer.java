@@ -288,6 +288,7 @@ public class HypervServerDiscoverer extends DiscovererBase implements Discoverer
             params.putAll(details);
 
             params.put("router.aggregation.command.each.timeout", _configDao.getValue(Config.RouterAggregationCommandEachTimeout.toString()));
+            params.put("router.config.bundle", _configDao.getValue(Config.RouterConfigBundle.toString()));
 
             HypervDirectConnectResource resource = new HypervDirectConnectResource();
             resource.configure(agentIp, params);
@@ -149,6 +149,7 @@ import com.cloud.utils.ExecutionResult;
 import com.cloud.utils.Pair;
 import com.cloud.utils.StringUtils;
 import com.cloud.utils.net.NetUtils;
+import com.cloud.utils.ssh.SshConnectionPool;
 import com.cloud.utils.ssh.SshHelper;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachine.PowerState;
@@ -634,8 +635,8 @@ public class HypervDirectConnectResource extends ServerResourceBase implements S
         }
 
         try {
-            result = SshHelper.sshExecute(routerIP, DEFAULT_DOMR_SSHPORT, "root", getSystemVMKeyFile(), null, "/opt/cloud/bin/" + script + " " + args, VRScripts.CONNECTION_TIMEOUT,
-                    VRScripts.CONNECTION_TIMEOUT, timeout);
+            result = SshHelper.sshExecute(SshConnectionPool.getDefault(), routerIP, DEFAULT_DOMR_SSHPORT, "root", getSystemVMKeyFile(), null, "/opt/cloud/bin/" + script + " " + args,
+                    VRScripts.CONNECTION_TIMEOUT, VRScripts.CONNECTION_TIMEOUT, timeout);
         } catch (final Exception e) {
             final String msg = "Command failed due to " + e ;
             s_logger.error(msg);
@@ -651,7 +652,7 @@ public class HypervDirectConnectResource extends ServerResourceBase implements S
     public ExecutionResult createFileInVR(final String routerIp, final String filePath, final String fileName, final String content) {
         final File keyFile = getSystemVMKeyFile();
         try {
-            SshHelper.scpTo(routerIp, 3922, "root", keyFile, null, filePath, content.getBytes(Charset.forName("UTF-8")), fileName, null);
+            SshHelper.scpTo(SshConnectionPool.getDefault(), routerIp, 3922, "root", keyFile, null, filePath, content.getBytes(Charset.forName("UTF-8")), fileName, null);
         } catch (final Exception e) {
             s_logger.warn("Fail to create file " + filePath + fileName + " in VR " + routerIp, e);
             return new ExecutionResult(false, e.getMessage());
@@ -2348,7 +2349,7 @@ public class HypervDirectConnectResource extends ServerResourceBase implements S
         }
 
         _vrResource = new VirtualRoutingResource(this);
-        if (!_vrResource.configure(name, new HashMap<String, Object>())) {
+        if (!_vrResource.configure(name, params != null ? params : new HashMap<String, Object>())) {
             throw new ConfigurationException("Unable to configure VirtualRoutingResource");
         }
         return true;
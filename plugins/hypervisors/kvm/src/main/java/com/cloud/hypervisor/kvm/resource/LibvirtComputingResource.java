@@ -3579,6 +3579,28 @@ public class LibvirtComputingResource extends ServerResourceBase implements Serv
         return true;
     }
 
+    public boolean updateSecurityGroupMembers(final String setName, final boolean replace, final List<String> addedCidrs, final List<String> removedCidrs) {
+        if (!_canBridgeFirewall) {
+            return false;
+        }
+
+        final Script cmd = new Script(_securityGroupPath, _timeout, s_logger);
+        cmd.add("update_group_members");
+        cmd.add("--setname", setName);
+        cmd.add("--action", replace ? "replace" : "delta");
+        if (!addedCidrs.isEmpty()) {
+            cmd.add("--addips", StringUtils.join(addedCidrs, ","));
+        }
+        if (!removedCidrs.isEmpty()) {
+            cmd.add("--delips", StringUtils.join(removedCidrs, ","));
+        }
+        final String result = cmd.execute();
+        if (result != null) {
+            return false;
+        }
+        return true;
+    }
+
     public boolean configureNetworkRulesVMSecondaryIP(final Connect conn, final String vmName, final String secIp, final String action) {
 
         if (!_canBridgeFirewall) {
@@ -0,0 +1,49 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.hypervisor.kvm.resource.wrapper;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.SecurityGroupMembersAnswer;
+import com.cloud.agent.api.SecurityGroupMembersCmd;
+import com.cloud.agent.api.SecurityGroupMembersCmd.GroupMembers;
+import com.cloud.hypervisor.kvm.resource.LibvirtComputingResource;
+import com.cloud.resource.CommandWrapper;
+import com.cloud.resource.ResourceWrapper;
+
+@ResourceWrapper(handles =  SecurityGroupMembersCmd.class)
+public final class LibvirtSecurityGroupMembersCommandWrapper extends CommandWrapper<SecurityGroupMembersCmd, Answer, LibvirtComputingResource> {
+
+    private static final Logger s_logger = Logger.getLogger(LibvirtSecurityGroupMembersCommandWrapper.class);
+
+    @Override
+    public Answer execute(final SecurityGroupMembersCmd command, final LibvirtComputingResource libvirtComputingResource) {
+        for (final GroupMembers group : command.getGroups()) {
+            final boolean result = libvirtComputingResource.updateSecurityGroupMembers(group.getSetName(), group.isReplace(), group.getAddedCidrs(), group.getRemovedCidrs());
+            if (!result) {
+                s_logger.warn("Failed to program the members of security group set " + group.getSetName());
+                return new SecurityGroupMembersAnswer(command, false, "programming members of " + group.getSetName() + " failed");
+            }
+        }
+        s_logger.debug("Programmed security group members for " + command.getGroups().size() + " sets, num cidrs=" + command.getTotalNumCidrs());
+        return new SecurityGroupMembersAnswer(command);
+    }
+}
@@ -119,6 +119,9 @@ import com.cloud.agent.api.PvlanSetupCommand;
 import com.cloud.agent.api.ReadyCommand;
 import com.cloud.agent.api.RebootCommand;
 import com.cloud.agent.api.RebootRouterCommand;
+import com.cloud.agent.api.SecurityGroupMembersAnswer;
+import com.cloud.agent.api.SecurityGroupMembersCmd;
+import com.cloud.agent.api.SecurityGroupMembersCmd.GroupMembers;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
 import com.cloud.agent.api.StartCommand;
@@ -178,6 +181,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -3084,6 +3088,46 @@ public class LibvirtComputingResourceTest {
         }
     }
 
+    @Test
+    public void testSecurityGroupMembersCmd() {
+        final List<String> added = Arrays.asList("10.1.1.1/32", "10.1.1.2/32");
+        final List<String> removed = Arrays.asList("10.1.1.3/32");
+        final GroupMembers full = new GroupMembers("sg_1", true, added, new ArrayList<String>());
+        final GroupMembers delta = new GroupMembers("sg_2", false, added, removed);
+        final SecurityGroupMembersCmd command = new SecurityGroupMembersCmd(Arrays.asList(full, delta), Arrays.asList(1l, 2l));
+
+        when(libvirtComputingResource.updateSecurityGroupMembers("sg_1", true, added, new ArrayList<String>())).thenReturn(true);
+        when(libvirtComputingResource.updateSecurityGroupMembers("sg_2", false, added, removed)).thenReturn(true);
+
+        final LibvirtRequestWrapper wrapper = LibvirtRequestWrapper.getInstance();
+        assertNotNull(wrapper);
+
+        final Answer answer = wrapper.execute(command, libvirtComputingResource);
+        assertTrue(answer.getResult());
+
+        verify(libvirtComputingResource, times(1)).updateSecurityGroupMembers("sg_1", true, added, new ArrayList<String>());
+        verify(libvirtComputingResource, times(1)).updateSecurityGroupMembers("sg_2", false, added, removed);
+    }
+
+    @Test
+    public void testSecurityGroupMembersCmdFalse() {
+        final List<String> added = Arrays.asList("10.1.1.1/32");
+        final GroupMembers first = new GroupMembers("sg_1", false, added, new ArrayList<String>());
+        final GroupMembers second = new GroupMembers("sg_2", false, added, new ArrayList<String>());
+        final SecurityGroupMembersCmd command = new SecurityGroupMembersCmd(Arrays.asList(first, second), Arrays.asList(1l, 2l));
+
+        when(libvirtComputingResource.updateSecurityGroupMembers("sg_1", false, added, new ArrayList<String>())).thenReturn(false);
+
+        final LibvirtRequestWrapper wrapper = LibvirtRequestWrapper.getInstance();
+        assertNotNull(wrapper);
+
+        final Answer answer = wrapper.execute(command, libvirtComputingResource);
+        assertFalse(answer.getResult());
+        Assert.assertEquals(Arrays.asList(1l, 2l), ((SecurityGroupMembersAnswer)answer).getVmIds());
+
+        verify(libvirtComputingResource, never()).updateSecurityGroupMembers("sg_2", false, added, new ArrayList<String>());
+    }
+
     @Test
     public void testPlugNicCommandMatchMack() {
         final NicTO nic = Mockito.mock(NicTO.class);
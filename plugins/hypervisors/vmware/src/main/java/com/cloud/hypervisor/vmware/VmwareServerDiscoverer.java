@@ -384,6 +384,7 @@ public class VmwareServerDiscoverer extends DiscovererBase implements Discoverer
                 params.put("publicTrafficInfo", publicTrafficLabelObj);
 
                 params.put("router.aggregation.command.each.timeout", _configDao.getValue(Config.RouterAggregationCommandEachTimeout.toString()));
+                params.put("router.config.bundle", _configDao.getValue(Config.RouterConfigBundle.toString()));
 
                 VmwareResource resource = new VmwareResource();
                 try {
@@ -28,6 +28,7 @@ import re
 import libvirt
 import fcntl
 import time
+import tempfile
 from netaddr import IPAddress, IPNetwork
 from netaddr.core import AddrFormatError
 
@@ -398,6 +399,56 @@ def add_to_ipset(ipsetname, ips, action):
     return result
 
 
+def restore_ipset(lines):
+    restore_file = tempfile.NamedTemporaryFile(mode='w', prefix='ipset-', delete=False)
+    try:
+        restore_file.write('\n'.join(lines) + '\n')
+        restore_file.close()
+        logging.debug("ipset restore of %d lines" % len(lines))
+        check_output('ipset -exist restore < ' + restore_file.name, shell=True)
+    finally:
+        os.remove(restore_file.name)
+
+
+def update_group_members(set_name, action, add_ips, del_ips):
+    add_ips = [ip for ip in (add_ips or '').split(',') if ip]
+    del_ips = [ip for ip in (del_ips or '').split(',') if ip]
+    try:
+        if action == 'replace':
+            # fill a spare set and swap it in, rules matching on the set never see it half filled
+            new_set_name = set_name + '-n'
+            lines = ['create ' + name + ' hash:net family inet' for name in [set_name, new_set_name]]
+            lines.append('flush ' + new_set_name)
+            lines += ['add ' + new_set_name + ' ' + ip for ip in add_ips]
+            restore_ipset(lines)
+            check_output('ipset swap ' + new_set_name + ' ' + set_name, shell=True)
+            execute('ipset destroy ' + new_set_name)
+        else:
+            if not execute("ipset list -n | grep -x '" + set_name + "'"):
+                logging.debug("ipset " + set_name + " is not programmed on this host, the whole group has to be sent")
+                return False
+            lines = ['add ' + set_name + ' ' + ip for ip in add_ips]
+            lines += ['del ' + set_name + ' ' + ip for ip in del_ips]
+            if lines:
+                restore_ipset(lines)
+    except:
+        logging.exception("Failed to update the members of ipset " + set_name)
+        return False
+
+    logging.debug("Updated ipset %s: %s, added %d, removed %d" % (set_name, action, len(add_ips), len(del_ips)))
+    return True
+
+
+def cleanup_group_sets():
+    sets = execute('ipset list -n')
+    if not sets:
+        return
+    for set_name in sets.split('\n'):
+        if set_name.startswith('sg_'):
+            # destroying a set fails while a vm rule still refers to it
+            execute('ipset destroy ' + set_name + ' 2>/dev/null')
+
+
 def network_rules_vmSecondaryIp(vm_name, ip_secondary, action):
     logging.debug("vmName = "+ vm_name)
     logging.debug("action = "+ action)
@@ -858,6 +909,8 @@ def cleanup_rules():
         for vmname in cleanup:
             destroy_network_rules_for_vm(vmname)
 
+        cleanup_group_sets()
+
         logging.debug("Cleaned up rules for " + str(len(cleanup)) + " chains")
     except:
         logging.debug("Failed to cleanup rules !")
@@ -967,7 +1020,11 @@ def parse_network_rules(rules):
 
     ipv4 = []
     ipv6 = []
+    sets = []
     for ip in cidrs.split(","):
+        if ip.startswith('set:'):
+            sets.append(ip[len('set:'):])
+            continue
         try:
             network = IPNetwork(ip)
             if network.version == 4:
@@ -977,7 +1034,7 @@ def parse_network_rules(rules):
         except:
             pass
 
-    ret.append({'ipv4': ipv4, 'ipv6': ipv6, 'ruletype': ruletype,
+    ret.append({'ipv4': ipv4, 'ipv6': ipv6, 'sets': sets, 'ruletype': ruletype,
                 'start': start, 'end': end, 'protocol': protocol})
 
   return ret
@@ -1023,7 +1080,7 @@ def add_network_rules(vm_name, vm_id, vm_ip, vm_ip6, signature, seqno, vmMac, ru
             vmchain = egress_vmchain
             direction = "-d"
             action = "RETURN"
-            if rule['ipv4']:
+            if rule['ipv4'] or rule['sets']:
                 egressrule_v4 =+ 1
 
             if rule['ipv6']:
@@ -1048,6 +1105,15 @@ def add_network_rules(vm_name, vm_id, vm_ip, vm_ip6, signature, seqno, vmMac, ru
             else:
                 execute('iptables -I ' + vmchain + ' -p icmp --icmp-type ' + range + ' ' + direction + ' ' + ip + ' -j ' + action)
 
+        for set_name in rule['sets']:
+            match = ' -m set --set ' + set_name + (' src' if direction == '-s' else ' dst')
+            if protocol == 'all':
+                execute('iptables -I ' + vmchain + ' -m state --state NEW' + match + ' -j ' + action)
+            elif protocol != 'icmp':
+                execute('iptables -I ' + vmchain + ' -p ' + protocol + ' -m ' + protocol + ' --dport ' + range + ' -m state --state NEW' + match + ' -j ' + action)
+            else:
+                execute('iptables -I ' + vmchain + ' -p icmp --icmp-type ' + range + match + ' -j ' + action)
+
         for ip in rule['ipv6']:
             if protocol == 'all':
                 execute('ip6tables -I ' + vmchain + ' -m state --state NEW ' + direction + ' ' + ip + ' -j ' + action)
@@ -1255,6 +1321,9 @@ if __name__ == '__main__':
     parser.add_option("--hostMacAddr", dest="hostMacAddr")
     parser.add_option("--nicsecips", dest="nicSecIps")
     parser.add_option("--action", dest="action")
+    parser.add_option("--setname", dest="setName")
+    parser.add_option("--addips", dest="addIps")
+    parser.add_option("--delips", dest="delIps")
     (option, args) = parser.parse_args()
     if len(args) == 0:
         logging.debug("No command to execute")
@@ -1281,6 +1350,9 @@ if __name__ == '__main__':
         get_rule_logs_for_vms()
     elif cmd == "add_network_rules":
         add_network_rules(option.vmName, option.vmID, option.vmIP, option.vmIP6, option.sig, option.seq, option.vmMAC, option.rules, option.vif, option.brname, option.nicSecIps)
+    elif cmd == "update_group_members":
+        if not update_group_members(option.setName, option.action, option.addIps, option.delIps):
+            sys.exit(1)
     elif cmd == "network_rules_vmSecondaryIp":
         network_rules_vmSecondaryIp(option.vmName, option.nicSecIps, option.action)
     elif cmd == "cleanup_rules":
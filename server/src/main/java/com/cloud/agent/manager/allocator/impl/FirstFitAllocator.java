@@ -21,6 +21,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -49,7 +50,6 @@ import com.cloud.host.HostVO;
 import com.cloud.host.dao.HostDao;
 import com.cloud.host.dao.HostDetailsDao;
 import com.cloud.offering.ServiceOffering;
-import com.cloud.org.Cluster;
 import com.cloud.resource.ResourceManager;
 import com.cloud.service.ServiceOfferingDetailsVO;
 import com.cloud.service.dao.ServiceOfferingDetailsDao;
@@ -59,6 +59,7 @@ import com.cloud.storage.VMTemplateVO;
 import com.cloud.storage.dao.GuestOSCategoryDao;
 import com.cloud.storage.dao.GuestOSDao;
 import com.cloud.user.Account;
+import com.cloud.utils.Pair;
 import com.cloud.utils.component.AdapterBase;
 import com.cloud.vm.VirtualMachine;
 import com.cloud.vm.VirtualMachineProfile;
@@ -95,6 +96,8 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
     @Inject
     CapacityDao _capacityDao;
 
+    static final int HOST_BATCH_SIZE = 100;
+
     boolean _checkHvm = true;
     protected String _allocationAlgorithm = "random";
 
@@ -278,61 +281,82 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
 
         long serviceOfferingId = offering.getId();
         List<Host> suitableHosts = new ArrayList<Host>();
-        ServiceOfferingDetailsVO offeringDetails = null;
-
-        for (Host host : hosts) {
-            if (suitableHosts.size() == returnUpTo) {
-                break;
-            }
-            if (avoid.shouldAvoid(host)) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Host name: " + host.getName() + ", hostId: " + host.getId() + " is in avoid set, skipping this and trying other available hosts");
+        int cpu_requested = offering.getCpu() * offering.getSpeed();
+        long ram_requested = offering.getRamSize() * 1024L * 1024L;
+
+        // Offering GPU details and cluster overcommit ratios do not change from one host to the next, look them up once
+        ServiceOfferingDetailsVO offeringDetails = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.vgpuType.toString());
+        ServiceOfferingDetailsVO groupName = null;
+        if (offeringDetails != null) {
+            groupName = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.pciDevice.toString());
+        }
+        Map<Long, Pair<Float, Float>> clusterOvercommitRatios = new HashMap<Long, Pair<Float, Float>>();
+
+        // Capacity rows and running VM counts are loaded for a batch of hosts at a time instead of a few queries per host.
+        // As before they are read without locking; allocateVmCapacity() updates them under row lock once a host is picked.
+        for (int from = 0; from < hosts.size() && suitableHosts.size() != returnUpTo; from += HOST_BATCH_SIZE) {
+            List<Host> batch = new ArrayList<Host>();
+            for (Host host : hosts.subList(from, Math.min(from + HOST_BATCH_SIZE, hosts.size()))) {
+                if (avoid.shouldAvoid(host)) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Host name: " + host.getName() + ", hostId: " + host.getId() + " is in avoid set, skipping this and trying other available hosts");
+                    }
+                    continue;
                 }
+                batch.add(host);
+            }
+            if (batch.isEmpty()) {
                 continue;
             }
 
-            //find number of guest VMs occupying capacity on this host.
-            if (_capacityMgr.checkIfHostReachMaxGuestLimit(host)) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Host name: " + host.getName() + ", hostId: " + host.getId() +
-                        " already has max Running VMs(count includes system VMs), skipping this and trying other available hosts");
+            Set<Long> hostsAtGuestLimit = _capacityMgr.listHostsReachedMaxGuestLimit(batch);
+            Map<Long, CapacityVO> cpuCapacities = new HashMap<Long, CapacityVO>();
+            Map<Long, CapacityVO> memCapacities = new HashMap<Long, CapacityVO>();
+            loadHostCapacities(batch, cpuCapacities, memCapacities);
+
+            for (Host host : batch) {
+                if (suitableHosts.size() == returnUpTo) {
+                    break;
                 }
-                avoid.addHost(host.getId());
-                continue;
-            }
 
-            // Check if GPU device is required by offering and host has the availability
-            if ((offeringDetails   = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.vgpuType.toString())) != null) {
-                ServiceOfferingDetailsVO groupName = _serviceOfferingDetailsDao.findDetail(serviceOfferingId, GPU.Keys.pciDevice.toString());
-                if(!_resourceMgr.isGPUDeviceAvailable(host.getId(), groupName.getValue(), offeringDetails.getValue())){
-                    s_logger.info("Host name: " + host.getName() + ", hostId: "+ host.getId() +" does not have required GPU devices available");
+                //find number of guest VMs occupying capacity on this host.
+                if (hostsAtGuestLimit.contains(host.getId())) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Host name: " + host.getName() + ", hostId: " + host.getId() +
+                            " already has max Running VMs(count includes system VMs), skipping this and trying other available hosts");
+                    }
                     avoid.addHost(host.getId());
                     continue;
                 }
-            }
 
-            int cpu_requested = offering.getCpu() * offering.getSpeed();
-            long ram_requested = offering.getRamSize() * 1024L * 1024L;
-            Cluster cluster = _clusterDao.findById(host.getClusterId());
-            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
-            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
-            Float cpuOvercommitRatio = Float.parseFloat(clusterDetailsCpuOvercommit.getValue());
-            Float memoryOvercommitRatio = Float.parseFloat(clusterDetailsRamOvercommmt.getValue());
-
-            boolean hostHasCpuCapability = _capacityMgr.checkIfHostHasCpuCapability(host.getId(), offering.getCpu(), offering.getSpeed());
-            boolean hostHasCapacity = _capacityMgr.checkIfHostHasCapacity(host.getId(), cpu_requested, ram_requested, false, cpuOvercommitRatio, memoryOvercommitRatio,
-                considerReservedCapacity);
-
-            if (hostHasCpuCapability && hostHasCapacity) {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Found a suitable host, adding to list: " + host.getId());
+                // Check if GPU device is required by offering and host has the availability
+                if (offeringDetails != null) {
+                    if(!_resourceMgr.isGPUDeviceAvailable(host.getId(), groupName.getValue(), offeringDetails.getValue())){
+                        s_logger.info("Host name: " + host.getName() + ", hostId: "+ host.getId() +" does not have required GPU devices available");
+                        avoid.addHost(host.getId());
+                        continue;
+                    }
                 }
-                suitableHosts.add(host);
-            } else {
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Not using host " + host.getId() + "; host has cpu capability? " + hostHasCpuCapability + ", host has capacity?" + hostHasCapacity);
+
+                Pair<Float, Float> overcommitRatios = getClusterOvercommitRatios(host.getClusterId(), clusterOvercommitRatios);
+                Float cpuOvercommitRatio = overcommitRatios.first();
+                Float memoryOvercommitRatio = overcommitRatios.second();
+
+                boolean hostHasCpuCapability = _capacityMgr.checkIfHostHasCpuCapability(host, offering.getCpu(), offering.getSpeed());
+                boolean hostHasCapacity = _capacityMgr.checkIfHostHasCapacity(host.getId(), cpuCapacities.get(host.getId()), memCapacities.get(host.getId()),
+                    cpu_requested, ram_requested, false, cpuOvercommitRatio, memoryOvercommitRatio, considerReservedCapacity);
+
+                if (hostHasCpuCapability && hostHasCapacity) {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Found a suitable host, adding to list: " + host.getId());
+                    }
+                    suitableHosts.add(host);
+                } else {
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("Not using host " + host.getId() + "; host has cpu capability? " + hostHasCpuCapability + ", host has capacity?" + hostHasCapacity);
+                    }
+                    avoid.addHost(host.getId());
                 }
-                avoid.addHost(host.getId());
             }
         }
 
@@ -343,6 +367,31 @@ public class FirstFitAllocator extends AdapterBase implements HostAllocator {
         return suitableHosts;
     }
 
+    private void loadHostCapacities(List<Host> hosts, Map<Long, CapacityVO> cpuCapacities, Map<Long, CapacityVO> memCapacities) {
+        List<Long> hostIds = new ArrayList<Long>(hosts.size());
+        for (Host host : hosts) {
+            hostIds.add(host.getId());
+        }
+        for (CapacityVO capacity : _capacityDao.listByHostIdsTypes(hostIds, CapacityVO.CAPACITY_TYPE_CPU, CapacityVO.CAPACITY_TYPE_MEMORY)) {
+            if (capacity.getCapacityType() == CapacityVO.CAPACITY_TYPE_CPU) {
+                cpuCapacities.put(capacity.getHostOrPoolId(), capacity);
+            } else {
+                memCapacities.put(capacity.getHostOrPoolId(), capacity);
+            }
+        }
+    }
+
+    private Pair<Float, Float> getClusterOvercommitRatios(Long clusterId, Map<Long, Pair<Float, Float>> clusterOvercommitRatios) {
+        Pair<Float, Float> ratios = clusterOvercommitRatios.get(clusterId);
+        if (ratios == null) {
+            ClusterDetailsVO clusterDetailsCpuOvercommit = _clusterDetailsDao.findDetail(clusterId, "cpuOvercommitRatio");
+            ClusterDetailsVO clusterDetailsRamOvercommmt = _clusterDetailsDao.findDetail(clusterId, "memoryOvercommitRatio");
+            ratios = new Pair<Float, Float>(Float.parseFloat(clusterDetailsCpuOvercommit.getValue()), Float.parseFloat(clusterDetailsRamOvercommmt.getValue()));
+            clusterOvercommitRatios.put(clusterId, ratios);
+        }
+        return ratios;
+    }
+
     // Reorder hosts in the decreasing order of free capacity.
     private List<? extends Host> reorderHostsByCapacity(DeploymentPlan plan, List<? extends Host> hosts) {
         Long clusterId = plan.getClusterId();
@@ -17,6 +17,7 @@
 package com.cloud.api;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -26,6 +27,7 @@ import java.util.Set;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
+import javax.persistence.Table;
 
 import org.apache.cloudstack.acl.Role;
 import org.apache.cloudstack.acl.RoleService;
@@ -1661,6 +1663,49 @@ public class ApiDBUtils {
         return jobInstanceId;
     }
 
+    private static final Map<ApiCommandJobType, Class<?>> s_jobInstanceEntities = new EnumMap<ApiCommandJobType, Class<?>>(ApiCommandJobType.class);
+    static {
+        s_jobInstanceEntities.put(ApiCommandJobType.Volume, VolumeVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.Template, VMTemplateVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.Iso, VMTemplateVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.VirtualMachine, VMInstanceVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.ConsoleProxy, VMInstanceVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.SystemVm, VMInstanceVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.DomainRouter, VMInstanceVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.Snapshot, SnapshotVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.Host, HostVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.StoragePool, StoragePoolVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.IpAddress, IPAddressVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.SecurityGroup, SecurityGroupVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.PhysicalNetwork, PhysicalNetworkVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.TrafficType, PhysicalNetworkTrafficTypeVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.PhysicalNetworkServiceProvider, PhysicalNetworkServiceProviderVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.FirewallRule, FirewallRuleVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.Account, AccountVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.User, UserVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.StaticRoute, StaticRouteVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.PrivateGateway, VpcGatewayVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.Counter, CounterVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.Condition, ConditionVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.AutoScalePolicy, AutoScalePolicyVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.AutoScaleVmProfile, AutoScaleVmProfileVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.AutoScaleVmGroup, AutoScaleVmGroupVO.class);
+        s_jobInstanceEntities.put(ApiCommandJobType.Network, NetworkVO.class);
+    }
+
+    /**
+     * @return the table holding the instances of the given job instance type, or null if the type has no
+     * entity table mapping
+     */
+    public static String findJobInstanceTable(ApiCommandJobType jobInstanceType) {
+        Class<?> entity = s_jobInstanceEntities.get(jobInstanceType);
+        if (entity == null) {
+            return null;
+        }
+        Table table = entity.getAnnotation(Table.class);
+        return table != null ? table.name() : null;
+    }
+
     ///////////////////////////////////////////////////////////////////////
     //  Newly Added Utility Methods for List API refactoring             //
     ///////////////////////////////////////////////////////////////////////
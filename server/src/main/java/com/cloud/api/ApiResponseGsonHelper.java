@@ -16,14 +16,18 @@
 // under the License.
 package com.cloud.api;
 
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.cloudstack.acl.RoleType;
 import org.apache.cloudstack.api.ResponseObject;
 import org.apache.cloudstack.context.CallContext;
 
 import com.cloud.serializer.Param;
-import com.cloud.user.Account;
 import com.google.gson.ExclusionStrategy;
 import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 /**
@@ -32,19 +36,23 @@ import com.google.gson.GsonBuilder;
 public class ApiResponseGsonHelper {
     private static final GsonBuilder s_gBuilder;
     private static final GsonBuilder s_gLogBuilder;
+    // Gson decides once per class which fields to skip and reuses that decision, so a shared instance may only
+    // serve callers that see the same role restricted fields: there is one per calling account type.
+    private static final ConcurrentMap<Short, Gson> s_gsonByAccountType = new ConcurrentHashMap<Short, Gson>();
+    private static final ConcurrentMap<Short, Gson> s_logGsonByAccountType = new ConcurrentHashMap<Short, Gson>();
 
     static {
-        s_gBuilder = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-        s_gBuilder.setVersion(1.3);
-        s_gBuilder.registerTypeAdapter(ResponseObject.class, new ResponseObjectTypeAdapter());
-        s_gBuilder.registerTypeAdapter(String.class, new EncodedStringTypeAdapter());
-        s_gBuilder.setExclusionStrategies(new ApiResponseExclusionStrategy());
-
-        s_gLogBuilder = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-        s_gLogBuilder.setVersion(1.3);
-        s_gLogBuilder.registerTypeAdapter(ResponseObject.class, new ResponseObjectTypeAdapter());
-        s_gLogBuilder.registerTypeAdapter(String.class, new EncodedStringTypeAdapter());
-        s_gLogBuilder.setExclusionStrategies(new LogExclusionStrategy());
+        s_gBuilder = createBuilder(new ApiResponseExclusionStrategy(null));
+        s_gLogBuilder = createBuilder(new LogExclusionStrategy(null));
+    }
+
+    private static GsonBuilder createBuilder(ExclusionStrategy exclusionStrategy) {
+        GsonBuilder builder = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        builder.setVersion(1.3);
+        builder.registerTypeAdapter(ResponseObject.class, new ResponseObjectTypeAdapter());
+        builder.registerTypeAdapter(String.class, new EncodedStringTypeAdapter());
+        builder.setExclusionStrategies(exclusionStrategy);
+        return builder;
     }
 
     public static GsonBuilder getBuilder() {
@@ -55,7 +63,51 @@ public class ApiResponseGsonHelper {
         return s_gLogBuilder;
     }
 
+    /**
+     * @return shared Gson instance used to serialize API responses for the account type of the calling context
+     */
+    public static Gson getGson() {
+        short accountType = getCallerAccountType();
+        Gson gson = s_gsonByAccountType.get(accountType);
+        if (gson == null) {
+            gson = createBuilder(new ApiResponseExclusionStrategy(accountType)).excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+            Gson existing = s_gsonByAccountType.putIfAbsent(accountType, gson);
+            if (existing != null) {
+                gson = existing;
+            }
+        }
+        return gson;
+    }
+
+    /**
+     * @return shared Gson instance used to serialize API responses for the logs for the account type of the
+     *         calling context, sensitive fields are skipped
+     */
+    public static Gson getLogGson() {
+        short accountType = getCallerAccountType();
+        Gson gson = s_logGsonByAccountType.get(accountType);
+        if (gson == null) {
+            gson = createBuilder(new LogExclusionStrategy(accountType)).excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
+            Gson existing = s_logGsonByAccountType.putIfAbsent(accountType, gson);
+            if (existing != null) {
+                gson = existing;
+            }
+        }
+        return gson;
+    }
+
+    private static short getCallerAccountType() {
+        return CallContext.current().getCallingAccount().getType();
+    }
+
     private static class ApiResponseExclusionStrategy implements ExclusionStrategy {
+        // account type the fields are filtered for, null to use the one of the calling context
+        private final Short _accountType;
+
+        ApiResponseExclusionStrategy(Short accountType) {
+            _accountType = accountType;
+        }
+
         public boolean shouldSkipClass(Class<?> arg0) {
             return false;
         }
@@ -66,9 +118,9 @@ public class ApiResponseGsonHelper {
                 RoleType[] allowedRoles = param.authorized();
                 if (allowedRoles.length > 0) {
                     boolean permittedParameter = false;
-                    Account caller = CallContext.current().getCallingAccount();
+                    short callerType = _accountType != null ? _accountType : getCallerAccountType();
                     for (RoleType allowedRole : allowedRoles) {
-                        if (allowedRole.getAccountType() == caller.getType()) {
+                        if (allowedRole.getAccountType() == callerType) {
                             permittedParameter = true;
                             break;
                         }
@@ -83,6 +135,10 @@ public class ApiResponseGsonHelper {
     }
 
     private static class LogExclusionStrategy extends ApiResponseExclusionStrategy implements ExclusionStrategy {
+        LogExclusionStrategy(Short accountType) {
+            super(accountType);
+        }
+
         public boolean shouldSkipClass(Class<?> arg0) {
             return false;
         }
@@ -754,28 +754,32 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
     private void buildAsyncListResponse(final BaseListCmd command, final Account account) {
         final List<ResponseObject> responses = ((ListResponse)command.getResponseObject()).getResponses();
         if (responses != null && responses.size() > 0) {
-            List<? extends AsyncJob> jobs = null;
-
             // list all jobs for ROOT admin
-            if (accountMgr.isRootAdmin(account.getId())) {
-                jobs = asyncMgr.findInstancePendingAsyncJobs(command.getInstanceType().toString(), null);
+            final Long accountId = accountMgr.isRootAdmin(account.getId()) ? null : account.getId();
+            final String instanceType = command.getInstanceType().toString();
+
+            final Map<String, ? extends AsyncJob> objectJobMap;
+            final String instanceTable = ApiDBUtils.findJobInstanceTable(command.getInstanceType());
+            if (instanceTable != null) {
+                // only look up the jobs of the objects in this page, resolving their uuids in the same query
+                final Set<String> objectIds = new HashSet<String>();
+                for (final ResponseObject response : responses) {
+                    if (response.getObjectId() != null) {
+                        objectIds.add(response.getObjectId());
+                    }
+                }
+                if (objectIds.isEmpty()) {
+                    return;
+                }
+                objectJobMap = asyncMgr.findInstancePendingAsyncJobs(instanceType, accountId, instanceTable, objectIds);
             } else {
-                jobs = asyncMgr.findInstancePendingAsyncJobs(command.getInstanceType().toString(), account.getId());
+                objectJobMap = findPendingJobsByInstanceUuid(instanceType, accountId);
             }
 
-            if (jobs.size() == 0) {
+            if (objectJobMap.isEmpty()) {
                 return;
             }
 
-            final Map<String, AsyncJob> objectJobMap = new HashMap<String, AsyncJob>();
-            for (final AsyncJob job : jobs) {
-                if (job.getInstanceId() == null) {
-                    continue;
-                }
-                final String instanceUuid = ApiDBUtils.findJobInstanceUuid(job);
-                objectJobMap.put(instanceUuid, job);
-            }
-
             for (final ResponseObject response : responses) {
                 if (response.getObjectId() != null && objectJobMap.containsKey(response.getObjectId())) {
                     final AsyncJob job = objectJobMap.get(response.getObjectId());
@@ -786,6 +790,19 @@ public class ApiServer extends ManagerBase implements HttpRequestHandler, ApiSer
         }
     }
 
+    private Map<String, AsyncJob> findPendingJobsByInstanceUuid(final String instanceType, final Long accountId) {
+        final List<? extends AsyncJob> jobs = asyncMgr.findInstancePendingAsyncJobs(instanceType, accountId);
+        final Map<String, AsyncJob> objectJobMap = new HashMap<String, AsyncJob>();
+        for (final AsyncJob job : jobs) {
+            if (job.getInstanceId() == null) {
+                continue;
+            }
+            final String instanceUuid = ApiDBUtils.findJobInstanceUuid(job);
+            objectJobMap.put(instanceUuid, job);
+        }
+        return objectJobMap;
+    }
+
     private void buildAuditTrail(final StringBuilder auditTrailSb, final String command, final String result) {
         if (result == null) {
             return;
@@ -25,7 +25,6 @@ import com.cloud.utils.HttpUtils;
 import com.cloud.utils.encoding.URLEncoder;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExceptionProxyObject;
-import com.google.gson.Gson;
 import com.google.gson.annotations.SerializedName;
 
 import org.apache.cloudstack.acl.RoleType;
@@ -43,16 +42,22 @@ import org.apache.log4j.Logger;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class ApiResponseSerializer {
     private static final Logger s_logger = Logger.getLogger(ApiResponseSerializer.class.getName());
+    private static final ConcurrentMap<Class<?>, Field[]> s_flattenFields = new ConcurrentHashMap<Class<?>, Field[]>();
+    private static final ConcurrentMap<Class<?>, Boolean> s_sensitiveClasses = new ConcurrentHashMap<Class<?>, Boolean>();
 
     public static String toSerializedString(ResponseObject result, String responseType) {
         s_logger.trace("===Serializing Response===");
@@ -72,98 +77,195 @@ public class ApiResponseSerializer {
         }
     }
 
-    private static final Pattern s_unicodeEscapePattern = Pattern.compile("\\\\u([0-9A-Fa-f]{4})");
-
+    /**
+     * Replaces the {@code \\uXXXX} escapes produced by Gson with the characters they stand for, in a single pass.
+     */
     public static String unescape(String escaped) {
-        String str = escaped;
-        Matcher matcher = s_unicodeEscapePattern.matcher(str);
-        while (matcher.find()) {
-            str = str.replaceAll("\\" + matcher.group(0), Character.toString((char)Integer.parseInt(matcher.group(1), 16)));
+        int idx = escaped.indexOf("\\u");
+        if (idx < 0) {
+            return escaped;
+        }
+        final int length = escaped.length();
+        final StringBuilder sb = new StringBuilder(length);
+        int last = 0;
+        while (idx >= 0) {
+            final int code = idx + 6 <= length ? parseHex(escaped, idx + 2) : -1;
+            if (code < 0) {
+                idx = escaped.indexOf("\\u", idx + 1);
+                continue;
+            }
+            sb.append(escaped, last, idx).append((char)code);
+            last = idx + 6;
+            idx = escaped.indexOf("\\u", last);
+        }
+        sb.append(escaped, last, length);
+        return sb.toString();
+    }
+
+    private static int parseHex(String str, int start) {
+        int code = 0;
+        for (int i = start; i < start + 4; i++) {
+            final char c = str.charAt(i);
+            final int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                digit = c - 'A' + 10;
+            } else {
+                return -1;
+            }
+            code = (code << 4) | digit;
         }
-        return str;
+        return code;
     }
 
+    /**
+     * Serializes the response, producing the log view in the same pass. Response objects without sensitive
+     * fields are serialized once and the result is shared with the log, the others are serialized a second
+     * time through the log Gson that skips the sensitive fields. The whole body is built in memory: handleRequest
+     * hands a String to the servlet as part of the ApiServerService contract.
+     */
     public static String toJSONSerializedString(ResponseObject result, StringBuilder log) {
         if (result != null && log != null) {
-            Gson responseBuilder = ApiResponseGsonHelper.getBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
-            Gson logBuilder = ApiResponseGsonHelper.getLogBuilder().excludeFieldsWithModifiers(Modifier.TRANSIENT).create();
-
             StringBuilder sb = new StringBuilder();
+            writeJSONSerializedString(result, sb, log);
+            return sb.toString();
+        }
+        return null;
+    }
 
-            sb.append("{\"").append(result.getResponseName()).append("\":");
-            log.append("{\"").append(result.getResponseName()).append("\":");
-            if (result instanceof ListResponse) {
-                List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
-                Integer count = ((ListResponse)result).getCount();
-                boolean nonZeroCount = (count != null && count.longValue() != 0);
+    private static void writeJSONSerializedString(ResponseObject result, StringBuilder sb, StringBuilder log) {
+        sb.append("{\"").append(result.getResponseName()).append("\":");
+        log.append("{\"").append(result.getResponseName()).append("\":");
+        if (result instanceof ListResponse) {
+            List<? extends ResponseObject> responses = ((ListResponse)result).getResponses();
+            Integer count = ((ListResponse)result).getCount();
+            boolean nonZeroCount = (count != null && count.longValue() != 0);
+            if (nonZeroCount) {
+                sb.append("{\"").append(ApiConstants.COUNT).append("\":").append(String.valueOf(count));
+                log.append("{\"").append(ApiConstants.COUNT).append("\":").append(count);
+            }
+
+            if ((responses != null) && !responses.isEmpty()) {
                 if (nonZeroCount) {
-                    sb.append("{\"").append(ApiConstants.COUNT).append("\":").append(count);
-                    log.append("{\"").append(ApiConstants.COUNT).append("\":").append(count);
+                    sb.append(",\"").append(responses.get(0).getObjectName()).append("\":[");
+                    log.append(",\"").append(responses.get(0).getObjectName()).append("\":[");
                 }
 
-                if ((responses != null) && !responses.isEmpty()) {
-                    String jsonStr = responseBuilder.toJson(responses.get(0));
-                    jsonStr = unescape(jsonStr);
-                    String logStr = logBuilder.toJson(responses.get(0));
-                    logStr = unescape(logStr);
-
-                    if (nonZeroCount) {
-                        sb.append(",\"").append(responses.get(0).getObjectName()).append("\":[").append(jsonStr);
-                        log.append(",\"").append(responses.get(0).getObjectName()).append("\":[").append(logStr);
-                    }
-
-                    for (int i = 1; i < ((ListResponse)result).getResponses().size(); i++) {
-                        jsonStr = responseBuilder.toJson(responses.get(i));
-                        jsonStr = unescape(jsonStr);
-                        logStr = logBuilder.toJson(responses.get(i));
-                        logStr = unescape(logStr);
-                        sb.append(",").append(jsonStr);
-                        log.append(",").append(logStr);
-                    }
-                    sb.append("]}");
-                    log.append("]}");
-                } else  {
-                    if (!nonZeroCount) {
-                        sb.append("{");
-                        log.append("{");
+                for (int i = 0; i < responses.size(); i++) {
+                    final ResponseObject response = responses.get(i);
+                    final String jsonStr = unescape(ApiResponseGsonHelper.getGson().toJson(response));
+                    final String logStr = hasSensitiveFields(response.getClass()) ? unescape(ApiResponseGsonHelper.getLogGson().toJson(response)) : jsonStr;
+                    if (i > 0) {
+                        sb.append(",");
+                        log.append(",");
                     }
+                    sb.append(jsonStr);
+                    log.append(logStr);
+                }
+                sb.append("]}");
+                log.append("]}");
+            } else  {
+                if (!nonZeroCount) {
+                    sb.append("{");
+                    log.append("{");
+                }
 
-                    sb.append("}");
-                    log.append("}");
+                sb.append("}");
+                log.append("}");
+            }
+        } else if (result instanceof SuccessResponse || result instanceof ExceptionResponse) {
+            final String jsonErrorText = unescape(ApiResponseGsonHelper.getGson().toJson(result));
+            sb.append(jsonErrorText);
+            log.append(jsonErrorText);
+        } else {
+            final boolean isAsyncResponse = result instanceof AsyncJobResponse || result instanceof CreateCmdResponse || result instanceof AuthenticationCmdResponse;
+            String jsonStr = ApiResponseGsonHelper.getGson().toJson(result);
+            if (jsonStr != null && !jsonStr.isEmpty()) {
+                jsonStr = unescape(jsonStr);
+                if (isAsyncResponse) {
+                    sb.append(jsonStr);
+                } else {
+                    sb.append("{\"").append(result.getObjectName()).append("\":").append(jsonStr).append("}");
                 }
-            } else if (result instanceof SuccessResponse || result instanceof ExceptionResponse) {
-                final String jsonErrorText = unescape(responseBuilder.toJson(result));
-                sb.append(jsonErrorText);
-                log.append(jsonErrorText);
             } else {
-                String jsonStr = responseBuilder.toJson(result);
-                if (jsonStr != null && !jsonStr.isEmpty()) {
-                    jsonStr = unescape(jsonStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse || result instanceof AuthenticationCmdResponse) {
-                        sb.append(jsonStr);
-                    } else {
-                        sb.append("{\"").append(result.getObjectName()).append("\":").append(jsonStr).append("}");
-                    }
+                sb.append("{}");
+            }
+            String logStr = hasSensitiveFields(result.getClass()) ? ApiResponseGsonHelper.getLogGson().toJson(result) : jsonStr;
+            if (logStr != null && !logStr.isEmpty()) {
+                logStr = unescape(logStr);
+                if (isAsyncResponse) {
+                    log.append(logStr);
                 } else {
-                    sb.append("{}");
+                    log.append("{\"").append(result.getObjectName()).append("\":").append(logStr).append("}");
                 }
-                String logStr = logBuilder.toJson(result);
-                if (logStr != null && !logStr.isEmpty()) {
-                    logStr = unescape(logStr);
-                    if (result instanceof AsyncJobResponse || result instanceof CreateCmdResponse || result instanceof AuthenticationCmdResponse) {
-                        log.append(logStr);
-                    } else {
-                        log.append("{\"").append(result.getObjectName()).append("\":").append(logStr).append("}");
-                    }
-                } else {
-                    log.append("{}");
+            } else {
+                log.append("{}");
+            }
+        }
+        sb.append("}");
+        log.append("}");
+    }
+
+    /**
+     * Tells whether the log view of the given response class can differ from the response itself. This is the
+     * case when the class, or any class it may nest, declares a sensitive field, or nests values whose type
+     * cannot be determined up front.
+     */
+    static boolean hasSensitiveFields(Class<?> clz) {
+        Boolean sensitive = s_sensitiveClasses.get(clz);
+        if (sensitive == null) {
+            sensitive = hasSensitiveFields(clz, new HashSet<Class<?>>());
+            s_sensitiveClasses.put(clz, sensitive);
+        }
+        return sensitive;
+    }
+
+    private static boolean hasSensitiveFields(Class<?> clz, Set<Class<?>> visited) {
+        if (!visited.add(clz)) {
+            return false;
+        }
+        for (Field field : getFlattenFields(clz)) {
+            if ((field.getModifiers() & (Modifier.TRANSIENT | Modifier.STATIC)) != 0) {
+                continue;
+            }
+            Param param = field.getAnnotation(Param.class);
+            if (param != null && param.isSensitive()) {
+                return true;
+            }
+            if (mayNestSensitiveFields(field.getGenericType(), visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean mayNestSensitiveFields(Type type, Set<Class<?>> visited) {
+        if (type instanceof ParameterizedType) {
+            for (Type argument : ((ParameterizedType)type).getActualTypeArguments()) {
+                if (mayNestSensitiveFields(argument, visited)) {
+                    return true;
                 }
             }
-            sb.append("}");
-            log.append("}");
-            return sb.toString();
+            return mayNestSensitiveFields(((ParameterizedType)type).getRawType(), visited);
         }
-        return null;
+        if (!(type instanceof Class)) {
+            // wildcards and type variables, the actual values are only known at serialization time
+            return true;
+        }
+        Class<?> clz = (Class<?>)type;
+        if (clz.isArray()) {
+            return mayNestSensitiveFields(clz.getComponentType(), visited);
+        }
+        if (clz.isPrimitive() || clz.isEnum() || clz.getName().startsWith("java.")) {
+            return clz == Object.class;
+        }
+        if (clz.isInterface() || Modifier.isAbstract(clz.getModifiers())) {
+            return true;
+        }
+        return hasSensitiveFields(clz, visited);
     }
 
     private static String toXMLSerializedString(ResponseObject result, StringBuilder log) {
@@ -215,12 +317,21 @@ public class ApiResponseSerializer {
     }
 
     private static Field[] getFlattenFields(Class<?> clz) {
+        Field[] cached = s_flattenFields.get(clz);
+        if (cached != null) {
+            return cached;
+        }
         List<Field> fields = new ArrayList<Field>();
         fields.addAll(Arrays.asList(clz.getDeclaredFields()));
         if (clz.getSuperclass() != null) {
             fields.addAll(Arrays.asList(getFlattenFields(clz.getSuperclass())));
         }
-        return fields.toArray(new Field[] {});
+        cached = fields.toArray(new Field[] {});
+        for (Field field : cached) {
+            field.setAccessible(true);
+        }
+        s_flattenFields.put(clz, cached);
+        return cached;
     }
 
     private static void serializeResponseObjFieldsXML(StringBuilder sb, StringBuilder log, ResponseObject obj) {
@@ -17,9 +17,20 @@
 package com.cloud.capacity;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.naming.ConfigurationException;
@@ -33,6 +44,7 @@ import org.apache.cloudstack.framework.config.Configurable;
 import org.apache.cloudstack.framework.config.dao.ConfigurationDao;
 import org.apache.cloudstack.framework.messagebus.MessageBus;
 import org.apache.cloudstack.framework.messagebus.PublishScope;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
 import org.apache.cloudstack.storage.datastore.db.StoragePoolVO;
 import org.apache.log4j.Logger;
 
@@ -75,6 +87,7 @@ import com.cloud.utils.DateUtil;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
@@ -133,6 +146,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Inject
     ClusterDetailsDao _clusterDetailsDao;
     private int _vmCapacityReleaseInterval;
+    private ExecutorService _capacityCalculateExecutor;
     long _extraBytesPerVolume = 0;
 
     @Inject
@@ -143,6 +157,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
         _vmCapacityReleaseInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacitySkipcountingHours.key()), 3600);
+        _capacityCalculateExecutor = Executors.newFixedThreadPool(Math.max(CapacityCalculateWorkers.value(), 1), new NamedThreadFactory("CapacityCalculator"));
 
         VirtualMachine.State.getStateMachine().registerListener(this);
         _agentManager.registerForHostEvents(new StorageCapacityListener(_capacityDao, _storageMgr), true, false, false);
@@ -160,6 +175,9 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     @Override
     public boolean stop() {
+        if (_capacityCalculateExecutor != null) {
+            _capacityCalculateExecutor.shutdown();
+        }
         return true;
     }
 
@@ -356,9 +374,14 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
 
     @Override
     public boolean checkIfHostHasCpuCapability(long hostId, Integer cpuNum, Integer cpuSpeed) {
+        return checkIfHostHasCpuCapability(_hostDao.findById(hostId), cpuNum, cpuSpeed);
+    }
+
+    @Override
+    public boolean checkIfHostHasCpuCapability(Host host, Integer cpuNum, Integer cpuSpeed) {
 
         // Check host can support the Cpu Number and Speed.
-        Host host = _hostDao.findById(hostId);
+        long hostId = host.getId();
         boolean isCpuNumGood = host.getCpus().intValue() >= cpuNum;
         boolean isCpuSpeedGood = host.getSpeed().intValue() >= cpuSpeed;
         if (isCpuNumGood && isCpuSpeedGood) {
@@ -379,6 +402,15 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Override
     public boolean checkIfHostHasCapacity(long hostId, Integer cpu, long ram, boolean checkFromReservedCapacity, float cpuOvercommitRatio, float memoryOvercommitRatio,
         boolean considerReservedCapacity) {
+        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU);
+        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
+        return checkIfHostHasCapacity(hostId, capacityCpu, capacityMem, cpu, ram, checkFromReservedCapacity, cpuOvercommitRatio, memoryOvercommitRatio,
+            considerReservedCapacity);
+    }
+
+    @Override
+    public boolean checkIfHostHasCapacity(long hostId, CapacityVO capacityCpu, CapacityVO capacityMem, Integer cpu, long ram, boolean checkFromReservedCapacity,
+        float cpuOvercommitRatio, float memoryOvercommitRatio, boolean considerReservedCapacity) {
         boolean hasCapacity = false;
 
         if (s_logger.isDebugEnabled()) {
@@ -386,9 +418,6 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                 " , cpuOverprovisioningFactor: " + cpuOvercommitRatio);
         }
 
-        CapacityVO capacityCpu = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_CPU);
-        CapacityVO capacityMem = _capacityDao.findByHostIdType(hostId, Capacity.CAPACITY_TYPE_MEMORY);
-
         if (capacityCpu == null || capacityMem == null) {
             if (capacityCpu == null) {
                 if (s_logger.isDebugEnabled()) {
@@ -571,35 +600,67 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @DB
     @Override
     public void updateCapacityForHost(final Host host) {
-        // prepare the service offerings
+        updateCapacityForCluster(host.getClusterId(), Collections.singletonList(host), listServiceOfferings());
+    }
+
+    @Override
+    public void updateCapacityForHosts(final List<? extends Host> hosts) {
+        final Map<Long, ServiceOfferingVO> offeringsMap = listServiceOfferings();
+
+        // hosts of a cluster share their vm and capacity lookups, clusters are independent of each other
+        final Map<Long, List<Host>> hostsByCluster = new LinkedHashMap<Long, List<Host>>();
+        for (Host host : hosts) {
+            List<Host> clusterHosts = hostsByCluster.get(host.getClusterId());
+            if (clusterHosts == null) {
+                clusterHosts = new ArrayList<Host>();
+                hostsByCluster.put(host.getClusterId(), clusterHosts);
+            }
+            clusterHosts.add(host);
+        }
+
+        final Map<Long, Future<?>> futures = new LinkedHashMap<Long, Future<?>>();
+        for (final Map.Entry<Long, List<Host>> entry : hostsByCluster.entrySet()) {
+            futures.put(entry.getKey(), _capacityCalculateExecutor.submit(new ManagedContextRunnable() {
+                @Override
+                protected void runInContext() {
+                    updateCapacityForCluster(entry.getKey(), entry.getValue(), offeringsMap);
+                }
+            }));
+        }
+
+        for (Map.Entry<Long, Future<?>> entry : futures.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (ExecutionException e) {
+                s_logger.error("Caught exception while updating cpu/memory capacity for the hosts of cluster " + entry.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CloudRuntimeException("Interrupted while updating cpu/memory capacity of hosts", e);
+            }
+        }
+    }
+
+    private Map<Long, ServiceOfferingVO> listServiceOfferings() {
         List<ServiceOfferingVO> offerings = _offeringsDao.listAllIncludingRemoved();
         Map<Long, ServiceOfferingVO> offeringsMap = new HashMap<Long, ServiceOfferingVO>();
         for (ServiceOfferingVO offering : offerings) {
             offeringsMap.put(offering.getId(), offering);
         }
+        return offeringsMap;
+    }
 
-        long usedCpuCore = 0;
-        long reservedCpuCore = 0;
-        long usedCpu = 0;
-        long usedMemory = 0;
-        long reservedMemory = 0;
-        long reservedCpu = 0;
-        final CapacityState capacityState = (host.getResourceState() == ResourceState.Enabled) ? CapacityState.Enabled : CapacityState.Disabled;
-
-        List<VMInstanceVO> vms = _vmDao.listUpByHostId(host.getId());
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug("Found " + vms.size() + " VMs on host " + host.getId());
-        }
+    /**
+     * Cpu, cpu cores and memory taken from a host by a set of vms.  The usage of each vm is scaled from
+     * the overcommit ratios the vm was deployed with to the current ratios of the cluster.
+     */
+    private static class HostCapacityUsage {
+        long cpu = 0;
+        long cpuCore = 0;
+        long memory = 0;
 
-        ClusterVO cluster = _clusterDao.findById(host.getClusterId());
-        ClusterDetailsVO clusterDetailCpu = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
-        ClusterDetailsVO clusterDetailRam = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
-        Float clusterCpuOvercommitRatio = Float.parseFloat(clusterDetailCpu.getValue());
-        Float clusterRamOvercommitRatio = Float.parseFloat(clusterDetailRam.getValue());
-        for (VMInstanceVO vm : vms) {
+        void add(ServiceOffering so, Map<String, String> vmDetails, Float clusterCpuOvercommitRatio, Float clusterRamOvercommitRatio) {
             Float cpuOvercommitRatio = 1.0f;
             Float ramOvercommitRatio = 1.0f;
-            Map<String, String> vmDetails = _userVmDetailsDao.listDetailsKeyPairs(vm.getId());
             String vmDetailCpu = vmDetails.get("cpuOvercommitRatio");
             String vmDetailRam = vmDetails.get("memoryOvercommitRatio");
             if (vmDetailCpu != null) {
@@ -607,73 +668,183 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                 cpuOvercommitRatio = Float.parseFloat(vmDetailCpu);
                 ramOvercommitRatio = Float.parseFloat(vmDetailRam);
             }
-            ServiceOffering so = offeringsMap.get(vm.getServiceOfferingId());
             if (so.isDynamic()) {
-                usedMemory +=
+                memory +=
                     ((Integer.parseInt(vmDetails.get(UsageEventVO.DynamicParameters.memory.name())) * 1024L * 1024L) / ramOvercommitRatio) *
                         clusterRamOvercommitRatio;
-                usedCpu +=
+                cpu +=
                     ((Integer.parseInt(vmDetails.get(UsageEventVO.DynamicParameters.cpuNumber.name())) * Integer.parseInt(vmDetails.get(UsageEventVO.DynamicParameters.cpuSpeed.name()))) / cpuOvercommitRatio) *
                         clusterCpuOvercommitRatio;
-                usedCpuCore += Integer.parseInt(vmDetails.get(UsageEventVO.DynamicParameters.cpuNumber.name()));
+                cpuCore += Integer.parseInt(vmDetails.get(UsageEventVO.DynamicParameters.cpuNumber.name()));
             } else {
-                usedMemory += ((so.getRamSize() * 1024L * 1024L) / ramOvercommitRatio) * clusterRamOvercommitRatio;
-                usedCpu += ((so.getCpu() * so.getSpeed()) / cpuOvercommitRatio) * clusterCpuOvercommitRatio;
-                usedCpuCore += so.getCpu();
+                memory += ((so.getRamSize() * 1024L * 1024L) / ramOvercommitRatio) * clusterRamOvercommitRatio;
+                cpu += ((so.getCpu() * so.getSpeed()) / cpuOvercommitRatio) * clusterCpuOvercommitRatio;
+                cpuCore += so.getCpu();
             }
         }
+    }
 
-        List<VMInstanceVO> vmsByLastHostId = _vmDao.listByLastHostId(host.getId());
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug("Found " + vmsByLastHostId.size() + " VM, not running on host " + host.getId());
+    /**
+     * Recalculates the cpu/memory capacity of hosts of one cluster.  Vms, their details and the existing
+     * capacity rows are loaded with one query each for all hosts, and the capacity rows are written back
+     * in one batch per host.
+     */
+    private void updateCapacityForCluster(final Long clusterId, final List<? extends Host> hosts, final Map<Long, ServiceOfferingVO> offeringsMap) {
+        ClusterVO cluster = _clusterDao.findById(clusterId);
+        ClusterDetailsVO clusterDetailCpu = _clusterDetailsDao.findDetail(cluster.getId(), "cpuOvercommitRatio");
+        ClusterDetailsVO clusterDetailRam = _clusterDetailsDao.findDetail(cluster.getId(), "memoryOvercommitRatio");
+        Float clusterCpuOvercommitRatio = Float.parseFloat(clusterDetailCpu.getValue());
+        Float clusterRamOvercommitRatio = Float.parseFloat(clusterDetailRam.getValue());
+
+        List<Long> hostIds = new ArrayList<Long>(hosts.size());
+        for (Host host : hosts) {
+            hostIds.add(host.getId());
         }
-        for (VMInstanceVO vm : vmsByLastHostId) {
-            Float cpuOvercommitRatio = 1.0f;
-            Float ramOvercommitRatio = 1.0f;
-            long secondsSinceLastUpdate = (DateUtil.currentGMTTime().getTime() - vm.getUpdateTime().getTime()) / 1000;
-            if (secondsSinceLastUpdate < _vmCapacityReleaseInterval) {
-                UserVmDetailVO vmDetailCpu = _userVmDetailsDao.findDetail(vm.getId(), "cpuOvercommitRatio");
-                UserVmDetailVO vmDetailRam = _userVmDetailsDao.findDetail(vm.getId(), "memoryOvercommitRatio");
-                if (vmDetailCpu != null) {
-                    //if vmDetail_cpu is not null it means it is running in a overcommited cluster.
-                    cpuOvercommitRatio = Float.parseFloat(vmDetailCpu.getValue());
-                    ramOvercommitRatio = Float.parseFloat(vmDetailRam.getValue());
-                }
-                ServiceOffering so = offeringsMap.get(vm.getServiceOfferingId());
-                Map<String, String> vmDetails = _userVmDetailsDao.listDetailsKeyPairs(vm.getId());
-                if (so.isDynamic()) {
-                    reservedMemory +=
-                        ((Integer.parseInt(vmDetails.get(UsageEventVO.DynamicParameters.memory.name())) * 1024L * 1024L) / ramOvercommitRatio) *
-                            clusterRamOvercommitRatio;
-                    reservedCpu +=
-                        ((Integer.parseInt(vmDetails.get(UsageEventVO.DynamicParameters.cpuNumber.name())) * Integer.parseInt(vmDetails.get(UsageEventVO.DynamicParameters.cpuSpeed.name()))) / cpuOvercommitRatio) *
-                            clusterCpuOvercommitRatio;
-                    reservedCpuCore += Integer.parseInt(vmDetails.get(UsageEventVO.DynamicParameters.cpuNumber.name()));
+
+        Set<Long> vmIds = new HashSet<Long>();
+        Map<Long, List<VMInstanceVO>> vmsByHostId = new HashMap<Long, List<VMInstanceVO>>();
+        for (VMInstanceVO vm : _vmDao.listUpByHostIds(hostIds)) {
+            addToHost(vmsByHostId, vm.getHostId(), vm);
+            vmIds.add(vm.getId());
+        }
+        Map<Long, List<VMInstanceVO>> vmsByLastHostId = new HashMap<Long, List<VMInstanceVO>>();
+        for (VMInstanceVO vm : _vmDao.listByLastHostIds(hostIds)) {
+            addToHost(vmsByLastHostId, vm.getLastHostId(), vm);
+            vmIds.add(vm.getId());
+        }
+        Map<Long, Map<String, String>> vmDetailsById = _userVmDetailsDao.listDetailsKeyPairsForResources(vmIds);
+
+        Map<Long, Map<Short, CapacityVO>> capacitiesByHostId = new HashMap<Long, Map<Short, CapacityVO>>();
+        for (CapacityVO capacity : _capacityDao.listByHostIdsTypes(hostIds, Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY, CapacityVO.CAPACITY_TYPE_CPU_CORE)) {
+            Map<Short, CapacityVO> hostCapacities = capacitiesByHostId.get(capacity.getHostOrPoolId());
+            if (hostCapacities == null) {
+                hostCapacities = new HashMap<Short, CapacityVO>();
+                capacitiesByHostId.put(capacity.getHostOrPoolId(), hostCapacities);
+            }
+            hostCapacities.put(capacity.getCapacityType(), capacity);
+        }
+
+        final List<CapacityVO> updated = new ArrayList<CapacityVO>();
+        final List<CapacityVO> created = new ArrayList<CapacityVO>();
+        for (Host host : hosts) {
+            HostCapacityUsage used = new HostCapacityUsage();
+            HostCapacityUsage reserved = new HostCapacityUsage();
+
+            List<VMInstanceVO> vms = listForHost(vmsByHostId, host.getId());
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Found " + vms.size() + " VMs on host " + host.getId());
+            }
+            for (VMInstanceVO vm : vms) {
+                used.add(offeringsMap.get(vm.getServiceOfferingId()), detailsOf(vmDetailsById, vm), clusterCpuOvercommitRatio, clusterRamOvercommitRatio);
+            }
+
+            List<VMInstanceVO> vmsByLastHost = listForHost(vmsByLastHostId, host.getId());
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Found " + vmsByLastHost.size() + " VM, not running on host " + host.getId());
+            }
+            for (VMInstanceVO vm : vmsByLastHost) {
+                Map<String, String> vmDetails = detailsOf(vmDetailsById, vm);
+                long secondsSinceLastUpdate = (DateUtil.currentGMTTime().getTime() - vm.getUpdateTime().getTime()) / 1000;
+                if (secondsSinceLastUpdate < _vmCapacityReleaseInterval) {
+                    reserved.add(offeringsMap.get(vm.getServiceOfferingId()), vmDetails, clusterCpuOvercommitRatio, clusterRamOvercommitRatio);
                 } else {
-                    reservedMemory += ((so.getRamSize() * 1024L * 1024L) / ramOvercommitRatio) * clusterRamOvercommitRatio;
-                    reservedCpu += (so.getCpu() * so.getSpeed() / cpuOvercommitRatio) * clusterCpuOvercommitRatio;
-                    reservedCpuCore += so.getCpu();
-                }
-            } else {
-                // signal if not done already, that the VM has been stopped for skip.counting.hours,
-                // hence capacity will not be reserved anymore.
-                UserVmDetailVO messageSentFlag = _userVmDetailsDao.findDetail(vm.getId(), MESSAGE_RESERVED_CAPACITY_FREED_FLAG);
-                if (messageSentFlag == null || !Boolean.valueOf(messageSentFlag.getValue())) {
-                    _messageBus.publish(_name, "VM_ReservedCapacity_Free", PublishScope.LOCAL, vm);
-
-                    if (vm.getType() == VirtualMachine.Type.User) {
-                        UserVmVO userVM = _userVMDao.findById(vm.getId());
-                        _userVMDao.loadDetails(userVM);
-                        userVM.setDetail(MESSAGE_RESERVED_CAPACITY_FREED_FLAG, "true");
-                        _userVMDao.saveDetails(userVM);
+                    // signal if not done already, that the VM has been stopped for skip.counting.hours,
+                    // hence capacity will not be reserved anymore.
+                    String messageSentFlag = vmDetails.get(MESSAGE_RESERVED_CAPACITY_FREED_FLAG);
+                    if (messageSentFlag == null || !Boolean.valueOf(messageSentFlag)) {
+                        _messageBus.publish(_name, "VM_ReservedCapacity_Free", PublishScope.LOCAL, vm);
+
+                        if (vm.getType() == VirtualMachine.Type.User) {
+                            UserVmVO userVM = _userVMDao.findById(vm.getId());
+                            _userVMDao.loadDetails(userVM);
+                            userVM.setDetail(MESSAGE_RESERVED_CAPACITY_FREED_FLAG, "true");
+                            _userVMDao.saveDetails(userVM);
+                        }
                     }
                 }
             }
+
+            Map<Short, CapacityVO> hostCapacities = capacitiesByHostId.get(host.getId());
+            if (hostCapacities == null) {
+                hostCapacities = new HashMap<Short, CapacityVO>();
+            }
+            calibrateHostCapacity(host, used, reserved, hostCapacities, updated, created);
+        }
+
+        updateHostCapacities(updated);
+        if (!created.isEmpty()) {
+            Transaction.execute(new TransactionCallbackNoReturn() {
+                @Override
+                public void doInTransactionWithoutResult(TransactionStatus status) {
+                    _capacityDao.persistAll(created);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the capacity rows back one host at a time, in host and row id order. allocateVmCapacity locks the rows of
+     * one host at a time, so a refresh never holds row locks of several hosts while waiting for another one, and a
+     * failing host does not keep the others from being refreshed.
+     */
+    private void updateHostCapacities(List<CapacityVO> capacities) {
+        Map<Long, List<CapacityVO>> capacitiesByHostId = new TreeMap<Long, List<CapacityVO>>();
+        for (CapacityVO capacity : capacities) {
+            List<CapacityVO> hostCapacities = capacitiesByHostId.get(capacity.getHostOrPoolId());
+            if (hostCapacities == null) {
+                hostCapacities = new ArrayList<CapacityVO>();
+                capacitiesByHostId.put(capacity.getHostOrPoolId(), hostCapacities);
+            }
+            hostCapacities.add(capacity);
+        }
+        for (Map.Entry<Long, List<CapacityVO>> entry : capacitiesByHostId.entrySet()) {
+            List<CapacityVO> hostCapacities = entry.getValue();
+            Collections.sort(hostCapacities, new Comparator<CapacityVO>() {
+                @Override
+                public int compare(CapacityVO c1, CapacityVO c2) {
+                    return Long.compare(c1.getId(), c2.getId());
+                }
+            });
+            try {
+                _capacityDao.updateAll(hostCapacities);
+            } catch (Exception e) {
+                s_logger.error("Caught exception while updating cpu/memory capacity for host " + entry.getKey(), e);
+            }
         }
+    }
+
+    private static void addToHost(Map<Long, List<VMInstanceVO>> vmsByHostId, Long hostId, VMInstanceVO vm) {
+        List<VMInstanceVO> vms = vmsByHostId.get(hostId);
+        if (vms == null) {
+            vms = new ArrayList<VMInstanceVO>();
+            vmsByHostId.put(hostId, vms);
+        }
+        vms.add(vm);
+    }
+
+    private static List<VMInstanceVO> listForHost(Map<Long, List<VMInstanceVO>> vmsByHostId, long hostId) {
+        List<VMInstanceVO> vms = vmsByHostId.get(hostId);
+        return vms != null ? vms : Collections.<VMInstanceVO>emptyList();
+    }
+
+    private static Map<String, String> detailsOf(Map<Long, Map<String, String>> vmDetailsById, VMInstanceVO vm) {
+        Map<String, String> vmDetails = vmDetailsById.get(vm.getId());
+        return vmDetails != null ? vmDetails : Collections.<String, String>emptyMap();
+    }
 
-        CapacityVO cpuCap = _capacityDao.findByHostIdType(host.getId(), Capacity.CAPACITY_TYPE_CPU);
-        CapacityVO memCap = _capacityDao.findByHostIdType(host.getId(), Capacity.CAPACITY_TYPE_MEMORY);
-        CapacityVO cpuCoreCap = _capacityDao.findByHostIdType(host.getId(), CapacityVO.CAPACITY_TYPE_CPU_CORE);
+    private void calibrateHostCapacity(final Host host, HostCapacityUsage used, HostCapacityUsage reserved, Map<Short, CapacityVO> hostCapacities,
+            List<CapacityVO> updated, List<CapacityVO> created) {
+        final CapacityState capacityState = (host.getResourceState() == ResourceState.Enabled) ? CapacityState.Enabled : CapacityState.Disabled;
+        final long usedCpuCore = used.cpuCore;
+        final long reservedCpuCore = reserved.cpuCore;
+        final long usedCpu = used.cpu;
+        final long reservedCpu = reserved.cpu;
+        final long usedMemory = used.memory;
+        final long reservedMemory = reserved.memory;
+
+        CapacityVO cpuCap = hostCapacities.get(Capacity.CAPACITY_TYPE_CPU);
+        CapacityVO memCap = hostCapacities.get(Capacity.CAPACITY_TYPE_MEMORY);
+        CapacityVO cpuCoreCap = hostCapacities.get(CapacityVO.CAPACITY_TYPE_CPU_CORE);
 
         if (cpuCoreCap != null) {
             long hostTotalCpuCore = host.getCpus().longValue();
@@ -700,24 +871,13 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                     cpuCoreCap.setUsedCapacity(usedCpuCore);
                 }
             }
-            try {
-                _capacityDao.update(cpuCoreCap.getId(), cpuCoreCap);
-            } catch (Exception e) {
-                s_logger.error("Caught exception while updating cpucore capacity for the host " +host.getId(), e);
-            }
+            updated.add(cpuCoreCap);
         } else {
-            final long usedCpuCoreFinal = usedCpuCore;
-            final long reservedCpuCoreFinal = reservedCpuCore;
-            Transaction.execute(new TransactionCallbackNoReturn() {
-                @Override
-                public void doInTransactionWithoutResult(TransactionStatus status) {
-                    CapacityVO capacity = new CapacityVO(host.getId(), host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedCpuCoreFinal, host.getCpus().longValue(),
-                            CapacityVO.CAPACITY_TYPE_CPU_CORE);
-                    capacity.setReservedCapacity(reservedCpuCoreFinal);
-                    capacity.setCapacityState(capacityState);
-                    _capacityDao.persist(capacity);
-                }
-            });
+            CapacityVO capacity = new CapacityVO(host.getId(), host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedCpuCore, host.getCpus().longValue(),
+                    CapacityVO.CAPACITY_TYPE_CPU_CORE);
+            capacity.setReservedCapacity(reservedCpuCore);
+            capacity.setCapacityState(capacityState);
+            created.add(capacity);
         }
 
         if (cpuCap != null && memCap != null) {
@@ -785,38 +945,23 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
                 }
             }
 
-            try {
-                _capacityDao.update(cpuCap.getId(), cpuCap);
-                _capacityDao.update(memCap.getId(), memCap);
-            } catch (Exception e) {
-                s_logger.error("Caught exception while updating cpu/memory capacity for the host " + host.getId(), e);
-            }
+            updated.add(cpuCap);
+            updated.add(memCap);
         } else {
-            final long usedMemoryFinal = usedMemory;
-            final long reservedMemoryFinal = reservedMemory;
-            final long usedCpuFinal = usedCpu;
-            final long reservedCpuFinal = reservedCpu;
-            Transaction.execute(new TransactionCallbackNoReturn() {
-                @Override
-                public void doInTransactionWithoutResult(TransactionStatus status) {
-                    CapacityVO capacity =
-                        new CapacityVO(host.getId(), host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedMemoryFinal, host.getTotalMemory(),
-                            Capacity.CAPACITY_TYPE_MEMORY);
-                    capacity.setReservedCapacity(reservedMemoryFinal);
-                    capacity.setCapacityState(capacityState);
-                    _capacityDao.persist(capacity);
-
-                    capacity =
-                        new CapacityVO(host.getId(), host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedCpuFinal, host.getCpus().longValue() *
-                            host.getSpeed().longValue(), Capacity.CAPACITY_TYPE_CPU);
-                    capacity.setReservedCapacity(reservedCpuFinal);
-                    capacity.setCapacityState(capacityState);
-                    _capacityDao.persist(capacity);
-                }
-            });
-
+            CapacityVO capacity =
+                new CapacityVO(host.getId(), host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedMemory, host.getTotalMemory(),
+                    Capacity.CAPACITY_TYPE_MEMORY);
+            capacity.setReservedCapacity(reservedMemory);
+            capacity.setCapacityState(capacityState);
+            created.add(capacity);
+
+            capacity =
+                new CapacityVO(host.getId(), host.getDataCenterId(), host.getPodId(), host.getClusterId(), usedCpu, host.getCpus().longValue() *
+                    host.getSpeed().longValue(), Capacity.CAPACITY_TYPE_CPU);
+            capacity.setReservedCapacity(reservedCpu);
+            capacity.setCapacityState(capacityState);
+            created.add(capacity);
         }
-
     }
 
     @Override
@@ -1135,6 +1280,38 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
         return false;
     }
 
+    @Override
+    public Set<Long> listHostsReachedMaxGuestLimit(List<? extends Host> hosts) {
+        Set<Long> result = new HashSet<Long>();
+        if (hosts.isEmpty()) {
+            return result;
+        }
+        List<Long> hostIds = new ArrayList<Long>(hosts.size());
+        for (Host host : hosts) {
+            hostIds.add(host.getId());
+        }
+        Map<Long, Long> vmCounts = _vmDao.countActiveByHostIds(hostIds);
+        Map<String, Long> maxGuestLimits = new HashMap<String, Long>();
+        for (Host host : hosts) {
+            String limitKey = host.getHypervisorType() + ":" + host.getHypervisorVersion();
+            Long maxGuestLimit = maxGuestLimits.get(limitKey);
+            if (maxGuestLimit == null) {
+                maxGuestLimit = _hypervisorCapabilitiesDao.getMaxGuestsLimit(host.getHypervisorType(), host.getHypervisorVersion());
+                maxGuestLimits.put(limitKey, maxGuestLimit);
+            }
+            Long vmCount = vmCounts.get(host.getId());
+            long runningVms = vmCount == null ? 0 : vmCount.longValue();
+            if (runningVms >= maxGuestLimit.longValue()) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Host name: " + host.getName() + ", hostId: " + host.getId() + " already reached max Running VMs(count includes system VMs), limit is: " +
+                        maxGuestLimit + ",Running VM counts is: " + runningVms);
+                }
+                result.add(host.getId());
+            }
+        }
+        return result;
+    }
+
     @Override
     public String getConfigComponentName() {
         return CapacityManager.class.getSimpleName();
@@ -1143,6 +1320,7 @@ public class CapacityManagerImpl extends ManagerBase implements CapacityManager,
     @Override
     public ConfigKey<?>[] getConfigKeys() {
         return new ConfigKey<?>[] {CpuOverprovisioningFactor, MemOverprovisioningFactor, StorageCapacityDisableThreshold, StorageOverprovisioningFactor,
-            StorageAllocatedCapacityDisableThreshold, StorageOperationsExcludeCluster, VmwareCreateCloneFull, ImageStoreNFSVersion};
+            StorageAllocatedCapacityDisableThreshold, StorageOperationsExcludeCluster, VmwareCreateCloneFull, ImageStoreNFSVersion,
+            CapacityCalculateWorkers};
     }
 }
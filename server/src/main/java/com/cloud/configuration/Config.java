@@ -346,6 +346,22 @@ public enum Config {
             "100",
             "The number of outstanding security group work items that can be queued to a host. If exceeded, work items will get dropped to conserve memory. Security Group Sync will take care of ensuring that the host gets updated eventually",
             null),
+    SecurityGroupWorkBatchSize(
+            "Network",
+            ManagementServer.class,
+            Integer.class,
+            "network.securitygroups.work.batch.size",
+            "10",
+            "The number of queued security group work items a worker thread takes at once. Items taken together share the lookup of the members of the security groups their rules allow",
+            null),
+    SecurityGroupMemberUpdateDelay(
+            "Network",
+            ManagementServer.class,
+            Integer.class,
+            "network.securitygroups.member.update.delay",
+            "100",
+            "The time in milliseconds that security group members joining and leaving are collected before they are sent to KVM hosts as address set updates. Changes of the same member within that time are merged",
+            null),
 
     SecurityGroupDefaultAdding(
             "Network",
@@ -1867,6 +1883,15 @@ public enum Config {
             "timeout in seconds for each Virtual Router command being aggregated. The final aggregation command timeout would be determined by this timeout * commands counts ",
             null),
 
+    RouterConfigBundle(
+            "Advanced",
+            NetworkOrchestrationService.class,
+            Boolean.class,
+            "router.config.bundle",
+            "false",
+            "if true, the config items of a Virtual Router command or aggregation are sent to the router as one compressed file and applied by a single script call. Requires a system VM template with bundle support in vr_cfg.sh",
+            null),
+
     ManagementServerVendor("Advanced", ManagementServer.class, String.class, "mgt.server.vendor", "ACS", "the vendor of management server", null),
     PublishActionEvent("Advanced", ManagementServer.class, Boolean.class, "publish.action.events", "true", "enable or disable publishing of action events on the event bus", null),
     PublishAlertEvent("Advanced", ManagementServer.class, Boolean.class, "publish.alert.events", "true", "enable or disable publishing of alert events on the event bus", null),
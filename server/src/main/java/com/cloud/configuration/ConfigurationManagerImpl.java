@@ -574,6 +574,7 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
             default:
                 throw new InvalidParameterValueException("Scope provided is invalid");
             }
+            _configDepot.invalidateConfigCache();
             return value;
         }
 
@@ -664,6 +665,7 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
         }
 
         txn.commit();
+        _configDepot.invalidateConfigCache();
         messageBus.publish(_name, EventTypes.EVENT_CONFIGURATION_VALUE_EDIT, PublishScope.GLOBAL, name);
         return _configDao.getValue(name);
     }
@@ -5557,11 +5559,12 @@ public class ConfigurationManagerImpl extends ManagerBase implements Configurati
 
                     long startIpLong = NetUtils.ip2Long(startIP);
                     final long endIpLong = NetUtils.ip2Long(endIP);
+                    final List<PortableIpVO> portableIps = new ArrayList<PortableIpVO>();
                     while (startIpLong <= endIpLong) {
-                        final PortableIpVO portableIP = new PortableIpVO(regionId, portableIpRange.getId(), vlanIdFinal, gateway, netmask, NetUtils.long2Ip(startIpLong));
-                        _portableIpDao.persist(portableIP);
+                        portableIps.add(new PortableIpVO(regionId, portableIpRange.getId(), vlanIdFinal, gateway, netmask, NetUtils.long2Ip(startIpLong)));
                         startIpLong++;
                     }
+                    _portableIpDao.persistAll(portableIps);
 
                     // implicitly enable portable IP service for the region
                     region.setPortableipEnabled(true);
@@ -0,0 +1,322 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package com.cloud.event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.ConfigurationException;
+
+import org.apache.cloudstack.framework.config.ConfigKey;
+import org.apache.cloudstack.framework.config.Configurable;
+import org.apache.cloudstack.managed.context.ManagedContextRunnable;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.component.ManagerBase;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.mgmt.JmxUtil;
+
+/**
+ * Publishes action events on the event bus from worker threads, so that API and job threads do not
+ * wait for the entity lookups and the message broker. Every worker owns a bounded ring buffer and
+ * events are routed to a worker by their resource, which keeps the events of a resource in order.
+ */
+public class ActionEventPipeline extends ManagerBase implements Configurable {
+    private static final Logger s_logger = Logger.getLogger(ActionEventPipeline.class);
+
+    public static final ConfigKey<Integer> PublishQueueSize = new ConfigKey<Integer>("Advanced", Integer.class, "event.bus.publish.queue.size", "10000",
+            "Maximum number of action events waiting to be published on the event bus", false);
+    public static final ConfigKey<Integer> PublishWorkers = new ConfigKey<Integer>("Advanced", Integer.class, "event.bus.publish.workers", "2",
+            "Number of threads publishing action events on the event bus, the events of a resource are always published by the same thread", false);
+    public static final ConfigKey<Integer> PublishBatchSize = new ConfigKey<Integer>("Advanced", Integer.class, "event.bus.publish.batch.size", "100",
+            "Maximum number of action events a publishing thread takes from its queue at once", true);
+    public static final ConfigKey<String> PublishOverflowPolicy = new ConfigKey<String>("Advanced", String.class, "event.bus.publish.overflow.policy", "Block",
+            "What to do with an action event when the publishing queue is full: Block waits up to a second for room in the queue and drops it after that, "
+            + "CallerRuns publishes it on the calling thread, possibly ahead of older events of the same resource still in the queue, Drop discards it", true);
+
+    public enum OverflowPolicy {
+        CallerRuns, Block, Drop;
+
+        public static OverflowPolicy fromString(String value) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(value)) {
+                    return policy;
+                }
+            }
+            return Block;
+        }
+    }
+
+    /**
+     * An event to be published. Tasks published in the same batch share the batch cache, e.g. for
+     * entities they would otherwise look up one by one.
+     */
+    public interface EventTask {
+        void publish(Map<Object, Object> batchCache);
+    }
+
+    static class QueuedTask {
+        final EventTask task;
+        final long queuedAt;
+
+        QueuedTask(EventTask task) {
+            this.task = task;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    private static final long POLL_INTERVAL = 1000; // ms
+    private static final long BLOCK_TIMEOUT = 1000; // ms
+
+    private final List<BlockingQueue<QueuedTask>> _queues = new ArrayList<BlockingQueue<QueuedTask>>();
+    private ExecutorService _workerExecutor;
+    private volatile boolean _running = false;
+
+    private final AtomicLong _publishedCount = new AtomicLong();
+    private final AtomicLong _failedCount = new AtomicLong();
+    private final AtomicLong _droppedCount = new AtomicLong();
+    private final AtomicLong _callerRunsCount = new AtomicLong();
+    private final AtomicLong _totalPublishLatency = new AtomicLong();
+    private final AtomicLong _maxPublishLatency = new AtomicLong();
+
+    @Override
+    public String getConfigComponentName() {
+        return ActionEventPipeline.class.getSimpleName();
+    }
+
+    @Override
+    public ConfigKey<?>[] getConfigKeys() {
+        return new ConfigKey<?>[] {PublishQueueSize, PublishWorkers, PublishBatchSize, PublishOverflowPolicy};
+    }
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        super.configure(name, params);
+        createQueues(PublishQueueSize.value(), PublishWorkers.value());
+        return true;
+    }
+
+    void createQueues(int queueSize, int workers) {
+        workers = Math.max(1, workers);
+        int capacity = Math.max(1, queueSize / workers);
+        _queues.clear();
+        for (int i = 0; i < workers; i++) {
+            _queues.add(new ArrayBlockingQueue<QueuedTask>(capacity));
+        }
+    }
+
+    @Override
+    public boolean start() {
+        _running = true;
+        _workerExecutor = Executors.newFixedThreadPool(_queues.size(), new NamedThreadFactory("ActionEvent-Publisher"));
+        for (final BlockingQueue<QueuedTask> queue : _queues) {
+            _workerExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    while (_running) {
+                        final List<QueuedTask> batch;
+                        try {
+                            batch = takeBatch(queue, POLL_INTERVAL);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+
+                        if (!batch.isEmpty()) {
+                            new ManagedContextRunnable() {
+                                @Override
+                                protected void runInContext() {
+                                    publishBatch(batch);
+                                }
+                            }.run();
+                        }
+                    }
+                }
+            });
+        }
+
+        try {
+            JmxUtil.registerMBean("ActionEventPipeline", "ActionEventPipeline", new ActionEventPipelineMBeanImpl(this));
+        } catch (Exception e) {
+            s_logger.warn("Unable to register action event pipeline statistics to JMX monitoring due to " + e.getMessage());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        _running = false;
+        if (_workerExecutor != null) {
+            _workerExecutor.shutdown();
+            try {
+                _workerExecutor.awaitTermination(POLL_INTERVAL * 2, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                s_logger.debug("[ignored] interrupted while waiting for action event publishers to stop");
+            }
+        }
+
+        int pending = getQueueSize();
+        if (pending > 0) {
+            s_logger.warn("Action event pipeline is stopping with " + pending + " events not published on the event bus");
+        }
+        return true;
+    }
+
+    /**
+     * Queues an event for publishing
+     *
+     * @param orderingKey events with equal keys are published in the order they were submitted
+     * @return false if the caller has to publish the event itself, because the pipeline is not
+     *         running or its queue is full under the CallerRuns policy, which gives up the ordering
+     */
+    public boolean submit(Object orderingKey, EventTask task) {
+        if (!_running || _queues.isEmpty()) {
+            return false;
+        }
+
+        BlockingQueue<QueuedTask> queue = _queues.get(getQueueIndex(orderingKey));
+        QueuedTask queuedTask = new QueuedTask(task);
+        if (queue.offer(queuedTask)) {
+            return true;
+        }
+
+        switch (getOverflowPolicy()) {
+        case Block:
+            try {
+                if (queue.offer(queuedTask, BLOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                s_logger.debug("[ignored] interrupted while waiting for room in the action event queue");
+            }
+            // no room after waiting, drop the event
+        case Drop:
+            _droppedCount.incrementAndGet();
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Action event queue is full, dropping the event");
+            }
+            return true;
+        default:
+            _callerRunsCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    OverflowPolicy getOverflowPolicy() {
+        return OverflowPolicy.fromString(PublishOverflowPolicy.value());
+    }
+
+    int getQueueIndex(Object orderingKey) {
+        if (orderingKey == null) {
+            return 0;
+        }
+        return (orderingKey.hashCode() & Integer.MAX_VALUE) % _queues.size();
+    }
+
+    BlockingQueue<QueuedTask> getQueue(int index) {
+        return _queues.get(index);
+    }
+
+    List<QueuedTask> takeBatch(BlockingQueue<QueuedTask> queue, long waitTime) throws InterruptedException {
+        List<QueuedTask> batch = new ArrayList<QueuedTask>();
+        QueuedTask first = queue.poll(waitTime, TimeUnit.MILLISECONDS);
+        if (first != null) {
+            batch.add(first);
+            queue.drainTo(batch, Math.max(1, PublishBatchSize.value()) - 1);
+        }
+        return batch;
+    }
+
+    void publishBatch(List<QueuedTask> batch) {
+        Map<Object, Object> batchCache = new HashMap<Object, Object>();
+        for (QueuedTask queuedTask : batch) {
+            try {
+                queuedTask.task.publish(batchCache);
+                recordPublished(queuedTask);
+            } catch (Exception e) {
+                _failedCount.incrementAndGet();
+                s_logger.warn("Failed to publish action event on the event bus due to " + e.getMessage());
+            }
+        }
+    }
+
+    private void recordPublished(QueuedTask queuedTask) {
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedTask.queuedAt);
+        _publishedCount.incrementAndGet();
+        _totalPublishLatency.addAndGet(latency);
+        NumbersUtil.updateMax(_maxPublishLatency, latency);
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (BlockingQueue<QueuedTask> queue : _queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    public int getWorkerCount() {
+        return _queues.size();
+    }
+
+    public long getPublishedCount() {
+        return _publishedCount.get();
+    }
+
+    public long getFailedCount() {
+        return _failedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return _droppedCount.get();
+    }
+
+    public long getCallerRunsCount() {
+        return _callerRunsCount.get();
+    }
+
+    public long getAveragePublishLatency() {
+        long count = _publishedCount.get();
+        return count == 0 ? 0 : _totalPublishLatency.get() / count;
+    }
+
+    public long getMaxPublishLatency() {
+        return _maxPublishLatency.get();
+    }
+
+    public void resetStatistics() {
+        _publishedCount.set(0);
+        _failedCount.set(0);
+        _droppedCount.set(0);
+        _callerRunsCount.set(0);
+        _totalPublishLatency.set(0);
+        _maxPublishLatency.set(0);
+    }
+
+    void setRunning(boolean running) {
+        _running = running;
+    }
+}
@@ -0,0 +1,79 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+
+package com.cloud.event;
+
+import javax.management.StandardMBean;
+
+public class ActionEventPipelineMBeanImpl extends StandardMBean implements ActionEventPipelineMBean {
+    private final ActionEventPipeline _pipeline;
+
+    protected ActionEventPipelineMBeanImpl(ActionEventPipeline pipeline) {
+        super(ActionEventPipelineMBean.class, false);
+        _pipeline = pipeline;
+    }
+
+    @Override
+    public int getWorkerCount() {
+        return _pipeline.getWorkerCount();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return _pipeline.getQueueSize();
+    }
+
+    @Override
+    public String getOverflowPolicy() {
+        return ActionEventPipeline.OverflowPolicy.fromString(ActionEventPipeline.PublishOverflowPolicy.value()).name();
+    }
+
+    @Override
+    public long getPublishedCount() {
+        return _pipeline.getPublishedCount();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return _pipeline.getFailedCount();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return _pipeline.getDroppedCount();
+    }
+
+    @Override
+    public long getCallerRunsCount() {
+        return _pipeline.getCallerRunsCount();
+    }
+
+    @Override
+    public long getAveragePublishLatency() {
+        return _pipeline.getAveragePublishLatency();
+    }
+
+    @Override
+    public long getMaxPublishLatency() {
+        return _pipeline.getMaxPublishLatency();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _pipeline.resetStatistics();
+    }
+}
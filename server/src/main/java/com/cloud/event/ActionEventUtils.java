@@ -58,6 +58,7 @@ public class ActionEventUtils {
     protected static EventBus s_eventBus = null;
     protected static EntityManager s_entityMgr;
     protected static ConfigurationDao s_configDao;
+    private static ActionEventPipeline s_eventPipeline;
 
     public static final String EventDetails = "event_details";
     public static final String EventId = "event_id";
@@ -77,6 +78,8 @@ public class ActionEventUtils {
     EntityManager entityMgr;
     @Inject
     ConfigurationDao configDao;
+    @Inject
+    ActionEventPipeline eventPipeline;
 
     public ActionEventUtils() {
     }
@@ -89,6 +92,7 @@ public class ActionEventUtils {
         s_projectDao = projectDao;
         s_entityMgr = entityMgr;
         s_configDao = configDao;
+        s_eventPipeline = eventPipeline;
     }
 
     public static Long onActionEvent(Long userId, Long accountId, Long domainId, String type, String description) {
@@ -187,7 +191,8 @@ public class ActionEventUtils {
         return event;
     }
 
-    private static void publishOnEventBus(long userId, long accountId, String eventCategory, String eventType, Event.State state, String description) {
+    private static void publishOnEventBus(final long userId, final long accountId, final String eventCategory, final String eventType, final Event.State state,
+            final String description) {
         String configKey = Config.PublishActionEvent.key();
         String value = s_configDao.getValue(configKey);
         boolean configValue = Boolean.parseBoolean(value);
@@ -198,23 +203,43 @@ public class ActionEventUtils {
         } catch (NoSuchBeanDefinitionException nbe) {
             return; // no provider is configured to provide events bus, so just return
         }
+        final EventBus eventBus = s_eventBus;
+
+        // the call context belongs to this thread, so take what the event needs before handing it over
+        CallContext context = CallContext.current();
+        //Get entity Class(Example - VirtualMachine.class) from the event Type eg. - VM.CREATE
+        final Class<?> entityClass = EventTypes.getEntityClassForEvent(eventType);
+        final Object entityParam = entityClass != null ? context.getContextParameter(entityClass) : null;
+        final Map<Object, Object> contextParams = new HashMap<Object, Object>(context.getContextParameters());
+        final String eventDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z").format(new Date());
+
+        ActionEventPipeline.EventTask task = new ActionEventPipeline.EventTask() {
+            @Override
+            public void publish(Map<Object, Object> batchCache) {
+                publishActionEvent(eventBus, userId, accountId, eventCategory, eventType, state, description, entityClass, entityParam, contextParams, eventDate,
+                        batchCache);
+            }
+        };
+
+        // events of the same entity, or of the same account when there is none, are published in order
+        Object orderingKey = entityParam != null ? entityClass.getName() + ":" + entityParam : accountId;
+        if (s_eventPipeline == null || !s_eventPipeline.submit(orderingKey, task)) {
+            task.publish(new HashMap<Object, Object>());
+        }
+    }
 
+    private static void publishActionEvent(EventBus eventBus, long userId, long accountId, String eventCategory, String eventType, Event.State state,
+            String description, Class<?> entityClass, Object entityParam, Map<Object, Object> contextParams, String eventDate, Map<Object, Object> batchCache) {
         // get the entity details for which ActionEvent is generated
         String entityType = null;
         String entityUuid = null;
-        CallContext context = CallContext.current();
-        //Get entity Class(Example - VirtualMachine.class) from the event Type eg. - VM.CREATE
-        Class<?> entityClass = EventTypes.getEntityClassForEvent(eventType);
-        if (entityClass != null){
+        if (entityParam != null) {
             //Get uuid from id
-            Object param = context.getContextParameter(entityClass);
-            if(param != null){
-                try {
-                    entityUuid = getEntityUuid(entityClass, param);
-                    entityType = entityClass.getName();
-                } catch (Exception e){
-                    s_logger.debug("Caught exception while finding entityUUID, moving on");
-                }
+            try {
+                entityUuid = getEntityUuid(entityClass, entityParam, batchCache);
+                entityType = entityClass.getName();
+            } catch (Exception e){
+                s_logger.debug("Caught exception while finding entityUUID, moving on");
             }
         }
 
@@ -222,9 +247,9 @@ public class ActionEventUtils {
             new org.apache.cloudstack.framework.events.Event(ManagementService.Name, eventCategory, eventType, EventTypes.getEntityForEvent(eventType), entityUuid);
 
         Map<String, String> eventDescription = new HashMap<String, String>();
-        Project project = s_projectDao.findByProjectAccountId(accountId);
-        Account account = s_accountDao.findById(accountId);
-        User user = s_userDao.findById(userId);
+        Project project = findProjectByAccountId(accountId, batchCache);
+        Account account = findAccount(accountId, batchCache);
+        User user = findUser(userId, batchCache);
         // if account has been deleted, this might be called during cleanup of resources and results in null pointer
         if (account == null)
             return;
@@ -239,21 +264,51 @@ public class ActionEventUtils {
         eventDescription.put("entity", entityType);
         eventDescription.put("entityuuid", entityUuid);
         //Put all the first class entities that are touched during the action. For now atleast put in the vmid.
-        populateFirstClassEntities(eventDescription);
+        populateFirstClassEntities(eventDescription, contextParams, batchCache);
         eventDescription.put("description", description);
-
-        String eventDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z").format(new Date());
         eventDescription.put("eventDateTime", eventDate);
 
         event.setDescription(eventDescription);
 
         try {
-            s_eventBus.publish(event);
+            eventBus.publish(event);
         } catch (EventBusException e) {
             s_logger.warn("Failed to publish action event on the the event bus.");
         }
     }
 
+    private static Project findProjectByAccountId(long accountId, Map<Object, Object> batchCache) {
+        String key = "project-account:" + accountId;
+        if (!batchCache.containsKey(key)) {
+            batchCache.put(key, s_projectDao.findByProjectAccountId(accountId));
+        }
+        return (Project)batchCache.get(key);
+    }
+
+    private static Account findAccount(long accountId, Map<Object, Object> batchCache) {
+        String key = "account:" + accountId;
+        if (!batchCache.containsKey(key)) {
+            batchCache.put(key, s_accountDao.findById(accountId));
+        }
+        return (Account)batchCache.get(key);
+    }
+
+    private static User findUser(long userId, Map<Object, Object> batchCache) {
+        String key = "user:" + userId;
+        if (!batchCache.containsKey(key)) {
+            batchCache.put(key, s_userDao.findById(userId));
+        }
+        return (User)batchCache.get(key);
+    }
+
+    private static String getEntityUuid(Class<?> entityType, Object entityId, Map<Object, Object> batchCache) {
+        String key = entityType.getName() + ":" + entityId;
+        if (!batchCache.containsKey(key)) {
+            batchCache.put(key, getEntityUuid(entityType, entityId));
+        }
+        return (String)batchCache.get(key);
+    }
+
     private static String getEntityUuid(Class<?> entityType, Object entityId){
 
         // entityId can be internal db id or UUID so accordingly call findbyId or return uuid directly
@@ -286,16 +341,13 @@ public class ActionEventUtils {
         return account.getDomainId();
     }
 
-    private static void populateFirstClassEntities(Map<String, String> eventDescription){
-
-        CallContext context = CallContext.current();
-        Map<Object, Object> contextMap = context.getContextParameters();
+    private static void populateFirstClassEntities(Map<String, String> eventDescription, Map<Object, Object> contextMap, Map<Object, Object> batchCache){
 
         for(Map.Entry<Object, Object> entry : contextMap.entrySet()){
             try{
                 Class<?> clz = (Class<?>)entry.getKey();
                 if(clz != null && Identity.class.isAssignableFrom(clz)){
-                    String uuid = getEntityUuid(clz, entry.getValue());
+                    String uuid = getEntityUuid(clz, entry.getValue(), batchCache);
                     eventDescription.put(ReflectUtil.getEntityName(clz), uuid);
                 }
             } catch (Exception e){
@@ -32,6 +32,7 @@ import com.cloud.agent.api.Answer;
 import com.cloud.agent.api.CleanupNetworkRulesCmd;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.PingRoutingWithNwGroupsCommand;
+import com.cloud.agent.api.SecurityGroupMembersAnswer;
 import com.cloud.agent.api.SecurityGroupRuleAnswer;
 import com.cloud.agent.api.SecurityGroupRuleAnswer.FailureReason;
 import com.cloud.agent.api.StartupCommand;
@@ -81,6 +82,7 @@ public class SecurityGroupListener implements Listener {
     @Override
     public boolean processAnswers(long agentId, long seq, Answer[] answers) {
         List<Long> affectedVms = new ArrayList<Long>();
+        List<Long> groupSetVms = new ArrayList<Long>();
 
         for (Answer ans : answers) {
             if (ans instanceof SecurityGroupRuleAnswer) {
@@ -109,12 +111,26 @@ public class SecurityGroupListener implements Listener {
 
                 if (_workTracker != null)
                     _workTracker.processAnswers(agentId, seq, answers);
+            } else if (ans instanceof SecurityGroupMembersAnswer && !ans.getResult()) {
+                SecurityGroupMembersAnswer membersAnswer = (SecurityGroupMembersAnswer)ans;
+                s_logger.debug("Failed to program security group members into host " + agentId + " due to " + membersAnswer.getDetails());
+                // the sets on the host are stale, vms that match on them need their whole ruleset again
+                for (Long vmId : membersAnswer.getVmIds()) {
+                    if (checkShouldRetryOnFailure(vmId)) {
+                        groupSetVms.add(vmId);
+                    } else {
+                        s_logger.debug("Not retrying security group rules for vm " + vmId + " on failure: too many retries");
+                    }
+                }
             }
         }
 
         if (affectedVms.size() > 0) {
             _securityGroupManager.scheduleRulesetUpdateToHosts(affectedVms, false, new Long(10 * 1000l));
         }
+        if (groupSetVms.size() > 0) {
+            _securityGroupManager.scheduleRulesetUpdateToHosts(groupSetVms, true, new Long(10 * 1000l));
+        }
 
         return true;
     }
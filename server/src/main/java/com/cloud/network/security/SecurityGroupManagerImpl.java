@@ -53,8 +53,11 @@ import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.AgentManager;
+import com.cloud.agent.api.Command;
 import com.cloud.agent.api.NetworkRulesSystemVmCommand;
 import com.cloud.agent.api.NetworkRulesVmSecondaryIpCommand;
+import com.cloud.agent.api.SecurityGroupMembersCmd;
+import com.cloud.agent.api.SecurityGroupMembersCmd.GroupMembers;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.api.SecurityGroupRulesCmd.IpPortAndProto;
 import com.cloud.agent.manager.Commands;
@@ -102,7 +105,6 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.fsm.StateListener;
 import com.cloud.utils.fsm.StateMachine2;
 import com.cloud.utils.net.NetUtils;
-import com.cloud.vm.Nic;
 import com.cloud.vm.NicProfile;
 import com.cloud.vm.NicVO;
 import com.cloud.vm.UserVmManager;
@@ -169,12 +171,15 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
 
     ScheduledExecutorService _executorPool;
     ScheduledExecutorService _cleanupExecutor;
+    ScheduledExecutorService _memberUpdateExecutor;
+    SecurityGroupMemberUpdateQueue _memberUpdateQueue = new SecurityGroupMemberUpdateQueue();
 
     protected long _serverId;
 
     private int _timeBetweenCleanups = TIME_BETWEEN_CLEANUPS; // seconds
     protected int _numWorkerThreads = WORKER_THREAD_COUNT;
     private int _globalWorkLockTimeout = 300; // 5 minutes
+    protected int _memberUpdateDelay = 100; // milliseconds
 
     private final GlobalLock _workLock = GlobalLock.getInternLock("SecurityGroupWork");
 
@@ -198,6 +203,17 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
         }
     }
 
+    public class MemberUpdateThread extends ManagedContextRunnable {
+        @Override
+        protected void runInContext() {
+            try {
+                flushGroupMemberUpdates();
+            } catch (Throwable th) {
+                s_logger.error("Problem with sending security group member updates", th);
+            }
+        }
+    }
+
     public class CleanupThread extends ManagedContextRunnable {
         @Override
         protected void runInContext() {
@@ -327,6 +343,23 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
     }
 
     protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
+        return generateRulesForVM(userVmId, type, new HashMap<Long, Set<String>>());
+    }
+
+    /**
+     * @param groupMemberCidrs cidrs of the running members of the allowed security groups, keyed by group id. Groups are resolved on first
+     *            use and kept in this map, so callers can share it between the ingress and egress rules and between several vms.
+     */
+    protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type, Map<Long, Set<String>> groupMemberCidrs) {
+        return generateRulesForVM(userVmId, type, groupMemberCidrs, null);
+    }
+
+    /**
+     * @param allowedGroups if not null, rules that allow a security group are collected here by group id instead of being expanded
+     *            into the cidrs of the group members. The host then matches the members against the address set of the group.
+     */
+    protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type, Map<Long, Set<String>> groupMemberCidrs,
+            Map<PortAndProto, Set<Long>> allowedGroups) {
 
         Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
 
@@ -339,16 +372,20 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
                 if (cidrs == null) {
                     cidrs = new TreeSet<String>(new CidrComparator());
                 }
-                if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        Nic defaultNic = _networkModel.getDefaultNic(ngmapVO.getInstanceId());
-                        if (defaultNic != null) {
-                            String cidr = defaultNic.getIPv4Address();
-                            cidr = cidr + "/32";
-                            cidrs.add(cidr);
-                        }
+                if (rule.getAllowedNetworkId() != null && allowedGroups != null) {
+                    Set<Long> groupIds = allowedGroups.get(portAndProto);
+                    if (groupIds == null) {
+                        groupIds = new TreeSet<Long>();
+                        allowedGroups.put(portAndProto, groupIds);
+                    }
+                    groupIds.add(rule.getAllowedNetworkId());
+                } else if (rule.getAllowedNetworkId() != null) {
+                    Set<String> memberCidrs = groupMemberCidrs.get(rule.getAllowedNetworkId());
+                    if (memberCidrs == null) {
+                        memberCidrs = listGroupMemberCidrs(rule.getAllowedNetworkId());
+                        groupMemberCidrs.put(rule.getAllowedNetworkId(), memberCidrs);
                     }
+                    cidrs.addAll(memberCidrs);
                 } else if (rule.getAllowedSourceIpCidr() != null) {
                     cidrs.add(rule.getAllowedSourceIpCidr());
                 }
@@ -361,6 +398,24 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
         return allowed;
     }
 
+    /**
+     * @return the /32 cidrs of the default nics of the running members of the security group
+     */
+    protected Set<String> listGroupMemberCidrs(long securityGroupId) {
+        List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(securityGroupId, State.Running);
+        List<Long> instanceIds = new ArrayList<Long>(allowedInstances.size());
+        for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
+            instanceIds.add(ngmapVO.getInstanceId());
+        }
+        Set<String> cidrs = new HashSet<String>();
+        for (NicVO defaultNic : _nicDao.listDefaultNicsForVms(instanceIds)) {
+            if (defaultNic.getIPv4Address() != null) {
+                cidrs.add(defaultNic.getIPv4Address() + "/32");
+            }
+        }
+        return cidrs;
+    }
+
     protected String generateRulesetSignature(Map<PortAndProto, Set<String>> ingress, Map<PortAndProto, Set<String>> egress) {
         String ruleset = ingress.toString();
         ruleset = ruleset.concat(egress.toString());
@@ -372,7 +427,93 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
             return;
         }
         List<Long> affectedVms = getAffectedVmsForVmStart(vm);
-        scheduleRulesetUpdateToHosts(affectedVms, true, null);
+        scheduleRulesetUpdateToHosts(submitGroupMemberUpdates(vm, affectedVms, true), true, null);
+    }
+
+    /**
+     * Vms that match security groups by address set only need the vm that started or stopped added to or removed from the sets
+     * of its groups on their hosts, instead of a whole new ruleset.
+     *
+     * @return the affected vms that still need a ruleset update
+     */
+    protected List<Long> submitGroupMemberUpdates(VMInstanceVO vm, List<Long> affectedVms, boolean joined) {
+        NicVO defaultNic = _nicDao.findDefaultNicForVM(vm.getId());
+        if (defaultNic == null || defaultNic.getIPv4Address() == null) {
+            return affectedVms;
+        }
+        String cidr = defaultNic.getIPv4Address() + "/32";
+
+        Set<Long> otherVms = new HashSet<Long>(affectedVms);
+        otherVms.remove(vm.getId());
+        List<Long> rulesetVms = new ArrayList<Long>();
+        if (affectedVms.contains(vm.getId())) {
+            rulesetVms.add(vm.getId());
+        }
+        Map<Long, Long> groupSetVmHosts = new HashMap<Long, Long>();
+        for (VMInstanceVO affectedVm : _vmDao.listByIds(new ArrayList<Long>(otherVms))) {
+            if (usesGroupSets(affectedVm)) {
+                groupSetVmHosts.put(affectedVm.getId(), affectedVm.getHostId());
+            } else {
+                rulesetVms.add(affectedVm.getId());
+            }
+        }
+        if (groupSetVmHosts.isEmpty()) {
+            return rulesetVms;
+        }
+
+        boolean scheduleFlush = false;
+        for (SecurityGroupVMMapVO mapVO : _securityGroupVMMapDao.listByInstanceId(vm.getId())) {
+            // only the hosts of vms whose rules allow this group have its set
+            Map<Long, List<Long>> allowingVmsByHost = new HashMap<Long, List<Long>>();
+            List<SecurityGroupRuleVO> allowingRules = _securityGroupRuleDao.listByAllowedSecurityGroupId(mapVO.getSecurityGroupId());
+            for (Long allowingVmId : getAffectedVmsForSecurityRules(allowingRules)) {
+                Long hostId = groupSetVmHosts.get(allowingVmId);
+                if (hostId != null) {
+                    List<Long> hostVms = allowingVmsByHost.get(hostId);
+                    if (hostVms == null) {
+                        hostVms = new ArrayList<Long>();
+                        allowingVmsByHost.put(hostId, hostVms);
+                    }
+                    hostVms.add(allowingVmId);
+                }
+            }
+            for (Map.Entry<Long, List<Long>> hostVms : allowingVmsByHost.entrySet()) {
+                scheduleFlush |= _memberUpdateQueue.submitMemberChange(hostVms.getKey(), mapVO.getSecurityGroupId(), cidr, joined, hostVms.getValue());
+            }
+        }
+        if (scheduleFlush) {
+            _memberUpdateExecutor.schedule(new MemberUpdateThread(), _memberUpdateDelay, TimeUnit.MILLISECONDS);
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Security Group Mgr: vm " + vm.getId() + (joined ? " joined" : " left") + " its groups, " + groupSetVmHosts.size() + " vms get a group set update and "
+                    + rulesetVms.size() + " vms a ruleset update");
+        }
+        return rulesetVms;
+    }
+
+    protected void flushGroupMemberUpdates() {
+        Map<Long, SecurityGroupMembersCmd> updates = _memberUpdateQueue.drain();
+        for (Map.Entry<Long, SecurityGroupMembersCmd> update : updates.entrySet()) {
+            Long agentId = update.getKey();
+            SecurityGroupMembersCmd cmd = update.getValue();
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Security Group Mgr: sending member updates of " + cmd.getGroups().size() + " groups to host " + agentId + " num cidrs=" + cmd.getTotalNumCidrs());
+            }
+            try {
+                _agentMgr.send(agentId, new Commands(cmd), _answerListener);
+            } catch (AgentUnavailableException e) {
+                s_logger.debug("Unable to send security group member updates to host " + agentId + ", scheduling ruleset updates for its vms");
+                scheduleRulesetUpdateToHosts(new ArrayList<Long>(cmd.getVmIds()), true, null);
+            }
+        }
+    }
+
+    /**
+     * @return true if the vm runs on a host that matches security groups against address sets pushed with {@link SecurityGroupMembersCmd}
+     */
+    protected boolean usesGroupSets(VirtualMachine vm) {
+        return vm.getState() == State.Running && vm.getHostId() != null
+                && (vm.getHypervisorType() == HypervisorType.KVM || vm.getHypervisorType() == HypervisorType.LXC);
     }
 
     @DB
@@ -494,26 +635,67 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
 
     protected SecurityGroupRulesCmd generateRulesetCmd(String vmName, String guestIp, String guestIp6, String guestMac, Long vmId, String signature, long seqnum,
             Map<PortAndProto, Set<String>> ingressRules, Map<PortAndProto, Set<String>> egressRules, List<String> secIps) {
-        List<IpPortAndProto> ingressResult = new ArrayList<IpPortAndProto>();
-        List<IpPortAndProto> egressResult = new ArrayList<IpPortAndProto>();
-        for (PortAndProto pAp : ingressRules.keySet()) {
-            Set<String> cidrs = ingressRules.get(pAp);
-            if (cidrs.size() > 0) {
+        return generateRulesetCmd(vmName, guestIp, guestIp6, guestMac, vmId, signature, seqnum, ingressRules, egressRules, new HashMap<PortAndProto, Set<Long>>(),
+                new HashMap<PortAndProto, Set<Long>>(), secIps);
+    }
+
+    protected SecurityGroupRulesCmd generateRulesetCmd(String vmName, String guestIp, String guestIp6, String guestMac, Long vmId, String signature, long seqnum,
+            Map<PortAndProto, Set<String>> ingressRules, Map<PortAndProto, Set<String>> egressRules, Map<PortAndProto, Set<Long>> ingressGroups,
+            Map<PortAndProto, Set<Long>> egressGroups, List<String> secIps) {
+        List<IpPortAndProto> ingressResult = generateIpPortAndProtos(ingressRules, ingressGroups);
+        List<IpPortAndProto> egressResult = generateIpPortAndProtos(egressRules, egressGroups);
+        return new SecurityGroupRulesCmd(guestIp, guestIp6, guestMac, vmName, vmId, signature, seqnum, ingressResult.toArray(new IpPortAndProto[ingressResult.size()]),
+                egressResult.toArray(new IpPortAndProto[egressResult.size()]), secIps);
+    }
+
+    private List<IpPortAndProto> generateIpPortAndProtos(Map<PortAndProto, Set<String>> rules, Map<PortAndProto, Set<Long>> groups) {
+        Set<PortAndProto> portAndProtos = new TreeSet<PortAndProto>(rules.keySet());
+        portAndProtos.addAll(groups.keySet());
+        List<IpPortAndProto> result = new ArrayList<IpPortAndProto>();
+        for (PortAndProto pAp : portAndProtos) {
+            Set<String> cidrs = rules.containsKey(pAp) ? rules.get(pAp) : new HashSet<String>();
+            Set<Long> groupIds = groups.containsKey(pAp) ? groups.get(pAp) : new HashSet<Long>();
+            if (cidrs.size() > 0 || groupIds.size() > 0) {
                 IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs
-                                                                                                                                                                        .size()]));
-                ingressResult.add(ipPortAndProto);
+                        .size()]));
+                List<String> groupSets = new ArrayList<String>();
+                for (Long groupId : groupIds) {
+                    groupSets.add(SecurityGroupMembersCmd.getGroupSetName(groupId));
+                }
+                ipPortAndProto.setAllowedGroupSets(groupSets.toArray(new String[groupSets.size()]));
+                result.add(ipPortAndProto);
             }
         }
-        for (PortAndProto pAp : egressRules.keySet()) {
-            Set<String> cidrs = egressRules.get(pAp);
-            if (cidrs.size() > 0) {
-                IpPortAndProto ipPortAndProto = new SecurityGroupRulesCmd.IpPortAndProto(pAp.getProto(), pAp.getStartPort(), pAp.getEndPort(), cidrs.toArray(new String[cidrs
-                                                                                                                                                                        .size()]));
-                egressResult.add(ipPortAndProto);
+        return result;
+    }
+
+    /**
+     * @return the full member lists of the groups the rules refer to, sent ahead of the rules so that the host has every set they match on
+     */
+    protected SecurityGroupMembersCmd generateGroupMembersCmd(Long vmId, Map<PortAndProto, Set<Long>> ingressGroups, Map<PortAndProto, Set<Long>> egressGroups,
+            Map<Long, Set<String>> groupMemberCidrs) {
+        Set<Long> groupIds = new TreeSet<Long>();
+        for (Set<Long> ids : ingressGroups.values()) {
+            groupIds.addAll(ids);
+        }
+        for (Set<Long> ids : egressGroups.values()) {
+            groupIds.addAll(ids);
+        }
+        if (groupIds.isEmpty()) {
+            return null;
+        }
+        List<GroupMembers> groups = new ArrayList<GroupMembers>();
+        for (Long groupId : groupIds) {
+            Set<String> memberCidrs = groupMemberCidrs.get(groupId);
+            if (memberCidrs == null) {
+                memberCidrs = listGroupMemberCidrs(groupId);
+                groupMemberCidrs.put(groupId, memberCidrs);
             }
+            groups.add(new GroupMembers(SecurityGroupMembersCmd.getGroupSetName(groupId), true, new ArrayList<String>(memberCidrs), new ArrayList<String>()));
         }
-        return new SecurityGroupRulesCmd(guestIp, guestIp6, guestMac, vmName, vmId, signature, seqnum, ingressResult.toArray(new IpPortAndProto[ingressResult.size()]),
-                egressResult.toArray(new IpPortAndProto[egressResult.size()]), secIps);
+        List<Long> vmIds = new ArrayList<Long>();
+        vmIds.add(vmId);
+        return new SecurityGroupMembersCmd(groups, vmIds);
     }
 
     protected void handleVmStopped(VMInstanceVO vm) {
@@ -521,7 +703,7 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
             return;
         }
         List<Long> affectedVms = getAffectedVmsForVmStop(vm);
-        scheduleRulesetUpdateToHosts(affectedVms, true, null);
+        scheduleRulesetUpdateToHosts(submitGroupMemberUpdates(vm, affectedVms, false), true, null);
     }
 
     protected void handleVmMigrated(VMInstanceVO vm) {
@@ -886,6 +1068,7 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
         _numWorkerThreads = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkerThreads.key()), WORKER_THREAD_COUNT);
         _timeBetweenCleanups = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkCleanupInterval.key()), TIME_BETWEEN_CLEANUPS);
         _globalWorkLockTimeout = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkGlobalLockTimeout.key()), 300);
+        _memberUpdateDelay = NumbersUtil.parseInt(configs.get(Config.SecurityGroupMemberUpdateDelay.key()), 100);
         /* register state listener, no matter security group is enabled or not */
         VirtualMachine.State.getStateMachine().registerListener(this);
 
@@ -897,6 +1080,7 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
         s_logger.info("SecurityGroupManager: num worker threads=" + _numWorkerThreads + ", time between cleanups=" + _timeBetweenCleanups + " global lock timeout="
                 + _globalWorkLockTimeout);
         createThreadPools();
+        _memberUpdateExecutor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("NWGRP-MemberUpdate"));
 
         return true;
     }
@@ -988,8 +1172,12 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
                     seqnum = log.getLogsequence();
 
                     if (vm != null && vm.getState() == State.Running) {
-                        Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule);
-                        Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
+                        Map<Long, Set<String>> groupMemberCidrs = new HashMap<Long, Set<String>>();
+                        boolean groupSets = usesGroupSets(vm);
+                        Map<PortAndProto, Set<Long>> ingressGroups = groupSets ? new TreeMap<PortAndProto, Set<Long>>() : null;
+                        Map<PortAndProto, Set<Long>> egressGroups = groupSets ? new TreeMap<PortAndProto, Set<Long>>() : null;
+                        Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule, groupMemberCidrs, ingressGroups);
+                        Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule, groupMemberCidrs, egressGroups);
                         agentId = vm.getHostId();
                         if (agentId != null) {
                             // get nic secondary ip address
@@ -1002,9 +1190,18 @@ public class SecurityGroupManagerImpl extends ManagerBase implements SecurityGro
                                     nicSecIps = _nicSecIpDao.getSecondaryIpAddressesForNic(nic.getId());
                                 }
                             }
-                            SecurityGroupRulesCmd cmd = generateRulesetCmd(vm.getInstanceName(), nic.getIPv6Address(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(),
-                                    generateRulesetSignature(ingressRules, egressRules), seqnum, ingressRules, egressRules, nicSecIps);
-                            Commands cmds = new Commands(cmd);
+                            Commands cmds = new Commands(Command.OnError.Stop);
+                            if (groupSets) {
+                                SecurityGroupMembersCmd membersCmd = generateGroupMembersCmd(vm.getId(), ingressGroups, egressGroups, groupMemberCidrs);
+                                if (membersCmd != null) {
+                                    cmds.addCommand(membersCmd);
+                                }
+                                cmds.addCommand(generateRulesetCmd(vm.getInstanceName(), nic.getIPv6Address(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(),
+                                        null, seqnum, ingressRules, egressRules, ingressGroups, egressGroups, nicSecIps));
+                            } else {
+                                cmds.addCommand(generateRulesetCmd(vm.getInstanceName(), nic.getIPv6Address(), vm.getPrivateIpAddress(), vm.getPrivateMacAddress(), vm.getId(),
+                                        generateRulesetSignature(ingressRules, egressRules), seqnum, ingressRules, egressRules, nicSecIps));
+                            }
                             try {
                                 _agentMgr.send(agentId, cmds, _answerListener);
                             } catch (AgentUnavailableException e) {
@@ -17,6 +17,8 @@
 package com.cloud.network.security;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -29,6 +31,8 @@ import javax.naming.ConfigurationException;
 
 import org.apache.cloudstack.managed.context.ManagedContext;
 
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SecurityGroupMembersCmd;
 import com.cloud.agent.api.SecurityGroupRulesCmd;
 import com.cloud.agent.manager.Commands;
 import com.cloud.configuration.Config;
@@ -58,6 +62,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     WorkerThread[] _workers;
     private Set<Long> _disabledVms = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
     private boolean _schedulerDisabled = false;
+    int _workBatchSize = 10;
 
     protected class WorkerThread extends Thread {
         public WorkerThread(String name) {
@@ -140,7 +145,9 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         s_logger.trace("Checking the work queue");
         List<SecurityGroupWork> workItems;
         try {
-            workItems = _workQueue.getWork(1);
+            workItems = _workQueue.getWork(_workBatchSize);
+            // vms queued together were usually scheduled by the same membership change, resolve each allowed group once for all of them
+            Map<Long, Set<String>> groupMemberCidrs = new HashMap<Long, Set<String>>();
             for (SecurityGroupWork work : workItems) {
                 if (s_logger.isTraceEnabled()) {
                     s_logger.trace("Processing " + work.getInstanceId());
@@ -153,7 +160,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                         continue;
                     }
                     work.setLogsequenceNumber(rulesetLog.getLogsequence());
-                    sendRulesetUpdates(work);
+                    sendRulesetUpdates(work, groupMemberCidrs);
                     _mBean.logUpdateDetails(work.getInstanceId(), work.getLogsequenceNumber());
                 } catch (Exception e) {
                     s_logger.error("Problem during SG work " + work, e);
@@ -166,6 +173,10 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
     }
 
     public void sendRulesetUpdates(SecurityGroupWork work) {
+        sendRulesetUpdates(work, new HashMap<Long, Set<String>>());
+    }
+
+    protected void sendRulesetUpdates(SecurityGroupWork work, Map<Long, Set<String>> groupMemberCidrs) {
         Long userVmId = work.getInstanceId();
         UserVm vm = _userVMDao.findById(userVmId);
 
@@ -173,8 +184,11 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("SecurityGroupManager v2: found vm, " + userVmId + " state=" + vm.getState());
             }
-            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule);
-            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule);
+            boolean groupSets = usesGroupSets(vm);
+            Map<PortAndProto, Set<Long>> ingressGroups = groupSets ? new TreeMap<PortAndProto, Set<Long>>() : null;
+            Map<PortAndProto, Set<Long>> egressGroups = groupSets ? new TreeMap<PortAndProto, Set<Long>>() : null;
+            Map<PortAndProto, Set<String>> ingressRules = generateRulesForVM(userVmId, SecurityRuleType.IngressRule, groupMemberCidrs, ingressGroups);
+            Map<PortAndProto, Set<String>> egressRules = generateRulesForVM(userVmId, SecurityRuleType.EgressRule, groupMemberCidrs, egressGroups);
             Long agentId = vm.getHostId();
             if (agentId != null) {
                 String privateIp = vm.getPrivateIpAddress();
@@ -185,16 +199,26 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
                         nicSecIps = _nicSecIpDao.getSecondaryIpAddressesForNic(nic.getId());
                     }
                 }
-                SecurityGroupRulesCmd cmd =
-                    generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), nic.getIPv6Address(), vm.getPrivateMacAddress(), vm.getId(), null, work.getLogsequenceNumber(),
-                        ingressRules, egressRules, nicSecIps);
+                Commands cmds = new Commands(Command.OnError.Stop);
+                SecurityGroupRulesCmd cmd;
+                if (groupSets) {
+                    SecurityGroupMembersCmd membersCmd = generateGroupMembersCmd(vm.getId(), ingressGroups, egressGroups, groupMemberCidrs);
+                    if (membersCmd != null) {
+                        cmds.addCommand(membersCmd);
+                    }
+                    cmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), nic.getIPv6Address(), vm.getPrivateMacAddress(), vm.getId(), null,
+                        work.getLogsequenceNumber(), ingressRules, egressRules, ingressGroups, egressGroups, nicSecIps);
+                } else {
+                    cmd = generateRulesetCmd(vm.getInstanceName(), vm.getPrivateIpAddress(), nic.getIPv6Address(), vm.getPrivateMacAddress(), vm.getId(), null,
+                        work.getLogsequenceNumber(), ingressRules, egressRules, nicSecIps);
+                }
                 cmd.setMsId(_serverId);
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("SecurityGroupManager v2: sending ruleset update for vm " + vm.getInstanceName() + ":ingress num rules=" +
-                        cmd.getIngressRuleSet().size() + ":egress num rules=" + cmd.getEgressRuleSet().size() + " num cidrs=" + cmd.getTotalNumCidrs() + " sig=" +
-                        cmd.getSignature());
+                        cmd.getIngressRuleSet().size() + ":egress num rules=" + cmd.getEgressRuleSet().size() + " num cidrs=" + cmd.getTotalNumCidrs() + " num group sets=" +
+                        cmd.getTotalNumGroupSets() + " sig=" + cmd.getSignature());
                 }
-                Commands cmds = new Commands(cmd);
+                cmds.addCommand(cmd);
                 try {
                     _agentMgr.send(agentId, cmds, _answerListener);
                     if (s_logger.isTraceEnabled()) {
@@ -227,38 +251,15 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
      * then we get all ips, including the default nic ip. This is also probably the correct behavior.
      */
     @Override
-    protected Map<PortAndProto, Set<String>> generateRulesForVM(Long userVmId, SecurityRuleType type) {
-
-        Map<PortAndProto, Set<String>> allowed = new TreeMap<PortAndProto, Set<String>>();
-
-        List<SecurityGroupVMMapVO> groupsForVm = _securityGroupVMMapDao.listByInstanceId(userVmId);
-        for (SecurityGroupVMMapVO mapVO : groupsForVm) {
-            List<SecurityGroupRuleVO> rules = _securityGroupRuleDao.listBySecurityGroupId(mapVO.getSecurityGroupId(), type);
-            for (SecurityGroupRuleVO rule : rules) {
-                PortAndProto portAndProto = new PortAndProto(rule.getProtocol(), rule.getStartPort(), rule.getEndPort());
-                Set<String> cidrs = allowed.get(portAndProto);
-                if (cidrs == null) {
-                    cidrs = new TreeSet<String>(new CidrComparator());
-                }
-                if (rule.getAllowedNetworkId() != null) {
-                    List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(rule.getAllowedNetworkId(), State.Running);
-                    for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
-                        //here, we differ from the superclass: instead of creating N more queries to the
-                        //nics table, we use what's already there in the VO since the listBySecurityGroup already
-                        //did a join with the nics table
-                        String cidr = ngmapVO.getGuestIpAddress() + "/32";
-                        cidrs.add(cidr);
-                    }
-                } else if (rule.getAllowedSourceIpCidr() != null) {
-                    cidrs.add(rule.getAllowedSourceIpCidr());
-                }
-                if (cidrs.size() > 0) {
-                    allowed.put(portAndProto, cidrs);
-                }
-            }
+    protected Set<String> listGroupMemberCidrs(long securityGroupId) {
+        Set<String> cidrs = new HashSet<String>();
+        List<SecurityGroupVMMapVO> allowedInstances = _securityGroupVMMapDao.listBySecurityGroup(securityGroupId, State.Running);
+        for (SecurityGroupVMMapVO ngmapVO : allowedInstances) {
+            //here, we differ from the superclass: instead of querying the nics table, we use what's
+            //already there in the VO since the listBySecurityGroup already did a join with the nics table
+            cidrs.add(ngmapVO.getGuestIpAddress() + "/32");
         }
-
-        return allowed;
+        return cidrs;
     }
 
     public int getQueueSize() {
@@ -280,6 +281,7 @@ public class SecurityGroupManagerImpl2 extends SecurityGroupManagerImpl {
         boolean result = super.configure(name, params);
         Map<String, String> configs = _configDao.getConfiguration("Network", params);
         int bufferLength = NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkPerAgentMaxQueueSize.key()), 100);
+        _workBatchSize = Math.max(NumbersUtil.parseInt(configs.get(Config.SecurityGroupWorkBatchSize.key()), 10), 1);
         _workTracker = new SecurityGroupWorkTracker(_agentMgr, _answerListener, bufferLength);
         _answerListener.setWorkDispatcher(_workTracker);
         return result;
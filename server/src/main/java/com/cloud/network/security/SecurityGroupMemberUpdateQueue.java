@@ -0,0 +1,113 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.cloud.agent.api.SecurityGroupMembersCmd;
+import com.cloud.agent.api.SecurityGroupMembersCmd.GroupMembers;
+
+/**
+ * Collects security group members joining and leaving until they are sent as one {@link SecurityGroupMembersCmd} per host.
+ * Changes of the same member of a group are merged, only the last one is sent.
+ *
+ */
+public class SecurityGroupMemberUpdateQueue {
+    private Map<Long, HostUpdates> _pending = new HashMap<Long, HostUpdates>();
+    private boolean _flushScheduled = false;
+
+    protected static class HostUpdates {
+        Map<Long, Set<String>> _added = new TreeMap<Long, Set<String>>();
+        Map<Long, Set<String>> _removed = new TreeMap<Long, Set<String>>();
+        Set<Long> _vmIds = new TreeSet<Long>();
+
+        void submit(long securityGroupId, String cidr, boolean joined) {
+            getCidrs(joined ? _removed : _added, securityGroupId).remove(cidr);
+            getCidrs(joined ? _added : _removed, securityGroupId).add(cidr);
+        }
+
+        private static Set<String> getCidrs(Map<Long, Set<String>> cidrsByGroup, long securityGroupId) {
+            Set<String> cidrs = cidrsByGroup.get(securityGroupId);
+            if (cidrs == null) {
+                cidrs = new TreeSet<String>();
+                cidrsByGroup.put(securityGroupId, cidrs);
+            }
+            return cidrs;
+        }
+
+        SecurityGroupMembersCmd toCommand() {
+            Set<Long> groupIds = new TreeSet<Long>(_added.keySet());
+            groupIds.addAll(_removed.keySet());
+            List<GroupMembers> groups = new ArrayList<GroupMembers>();
+            for (Long groupId : groupIds) {
+                Set<String> added = getCidrs(_added, groupId);
+                Set<String> removed = getCidrs(_removed, groupId);
+                if (added.size() > 0 || removed.size() > 0) {
+                    groups.add(new GroupMembers(SecurityGroupMembersCmd.getGroupSetName(groupId), false, new ArrayList<String>(added), new ArrayList<String>(removed)));
+                }
+            }
+            return new SecurityGroupMembersCmd(groups, new ArrayList<Long>(_vmIds));
+        }
+    }
+
+    /**
+     * @param vmIds vms on the host whose rules refer to the group
+     * @return true if no flush of the queue was pending, the caller has to schedule one
+     */
+    public synchronized boolean submitMemberChange(long hostId, long securityGroupId, String cidr, boolean joined, Collection<Long> vmIds) {
+        HostUpdates updates = _pending.get(hostId);
+        if (updates == null) {
+            updates = new HostUpdates();
+            _pending.put(hostId, updates);
+        }
+        updates.submit(securityGroupId, cidr, joined);
+        updates._vmIds.addAll(vmIds);
+
+        boolean scheduleFlush = !_flushScheduled;
+        _flushScheduled = true;
+        return scheduleFlush;
+    }
+
+    /**
+     * Takes everything queued so far, the next change schedules a new flush.
+     *
+     * @return the command for each host that has changes
+     */
+    public synchronized Map<Long, SecurityGroupMembersCmd> drain() {
+        Map<Long, SecurityGroupMembersCmd> commands = new HashMap<Long, SecurityGroupMembersCmd>();
+        for (Map.Entry<Long, HostUpdates> entry : _pending.entrySet()) {
+            commands.put(entry.getKey(), entry.getValue().toCommand());
+        }
+        _pending = new HashMap<Long, HostUpdates>();
+        _flushScheduled = false;
+        return commands;
+    }
+
+    /**
+     * @return the number of hosts with queued changes
+     */
+    public synchronized int size() {
+        return _pending.size();
+    }
+}
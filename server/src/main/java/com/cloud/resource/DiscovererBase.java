@@ -139,6 +139,7 @@ public abstract class DiscovererBase extends AdapterBase implements Discoverer {
         params.put(Config.XenServerHeartBeatInterval.toString().toLowerCase(), _configDao.getValue(Config.XenServerHeartBeatInterval.toString()));
         params.put(Config.XenServerHeartBeatTimeout.toString().toLowerCase(), _configDao.getValue(Config.XenServerHeartBeatTimeout.toString()));
         params.put("router.aggregation.command.each.timeout", _configDao.getValue(Config.RouterAggregationCommandEachTimeout.toString()));
+        params.put("router.config.bundle", _configDao.getValue(Config.RouterConfigBundle.toString()));
 
         return params;
 
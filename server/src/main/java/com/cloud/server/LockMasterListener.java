@@ -20,11 +20,13 @@ import java.util.List;
 
 import com.cloud.cluster.ClusterManagerListener;
 import com.cloud.cluster.ManagementServerHost;
+import com.cloud.utils.db.FreeRowPool;
 import com.cloud.utils.db.Merovingian2;
 
 /**
  * when a management server is down.
- *
+ * Also drops the in-memory free row pools when the cluster membership changes, so that they are rebuilt from
+ * the database.
  */
 public class LockMasterListener implements ClusterManagerListener {
     Merovingian2 _lockMaster;
@@ -35,6 +37,7 @@ public class LockMasterListener implements ClusterManagerListener {
 
     @Override
     public void onManagementNodeJoined(List<? extends ManagementServerHost> nodeList, long selfNodeId) {
+        FreeRowPool.invalidateAll();
     }
 
     @Override
@@ -42,6 +45,7 @@ public class LockMasterListener implements ClusterManagerListener {
         for (ManagementServerHost node : nodeList) {
             _lockMaster.cleanupForServer(node.getMsid());
         }
+        FreeRowPool.invalidateAll();
     }
 
     @Override
@@ -22,14 +22,19 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
 
@@ -121,6 +126,7 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.db.TransactionCallbackNoReturn;
 import com.cloud.utils.db.TransactionStatus;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.MacAddress;
 import com.cloud.vm.NicVO;
 import com.cloud.vm.UserVmManager;
@@ -165,10 +171,14 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
             "Minimal Interval (in seconds) to report vm network statistics (for Shared networks). If vm.network.stats.interval is smaller than this, use this to report vm network statistics.", false);
     static final ConfigKey<Integer> StatsTimeout = new ConfigKey<Integer>("Advanced", Integer.class, "stats.timeout", "60000",
             "The timeout for stats call in milli seconds.", true, ConfigKey.Scope.Cluster);
+    static final ConfigKey<Integer> StatsCollectorWorkers = new ConfigKey<Integer>("Advanced", Integer.class, "stats.collector.workers", "10",
+            "Number of threads used to collect host and vm statistics from hosts in parallel.", false);
 
     private static StatsCollector s_instance = null;
 
     private ScheduledExecutorService _executor = null;
+    private ExecutorService _collectorWorkers = null;
+    private StatsCollectorMBeanImpl _mBean = null;
     @Inject
     private AgentManager _agentMgr;
     @Inject
@@ -282,6 +292,18 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
     private void init(Map<String, String> configs) {
         _executor = Executors.newScheduledThreadPool(6, new NamedThreadFactory("StatsCollector"));
 
+        int workers = StatsCollectorWorkers.value();
+        if (workers <= 0) {
+            workers = 1;
+        }
+        _collectorWorkers = Executors.newFixedThreadPool(workers, new NamedThreadFactory("StatsCollector-Worker"));
+        _mBean = new StatsCollectorMBeanImpl(workers);
+        try {
+            JmxUtil.registerMBean("StatsCollector", "StatsCollector", _mBean);
+        } catch (Exception e) {
+            s_logger.error("Failed to register MBean", e);
+        }
+
         hostStatsInterval = NumbersUtil.parseLong(configs.get("host.stats.interval"), 60000L);
         hostAndVmStatsInterval = NumbersUtil.parseLong(configs.get("vm.stats.interval"), 60000L);
         storageStatsInterval = NumbersUtil.parseLong(configs.get("storage.stats.interval"), 60000L);
@@ -432,35 +454,34 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.L2Networking.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalDhcp.toString());
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.BaremetalPxe.toString());
-                ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
+                final ConcurrentHashMap<Long, HostStats> hostStats = new ConcurrentHashMap<Long, HostStats>();
                 List<HostVO> hosts = _hostDao.search(sc, null);
+                // Get a subset of hosts with GPU support from the list of "hosts"
+                final Set<Long> gpuEnabledHostIds = new HashSet<Long>();
                 for (HostVO host : hosts) {
-                    HostStatsEntry stats = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
-                    if (stats != null) {
-                        hostStats.put(host.getId(), stats);
-                    } else {
-                        s_logger.warn("Received invalid host stats for host: " + host.getId());
+                    if (hostIds == null || hostIds.contains(host.getId())) {
+                        // Check for all the hosts managed by CloudStack if GPU hosts are not known yet.
+                        gpuEnabledHostIds.add(host.getId());
                     }
                 }
-                _hostStats = hostStats;
-                // Get a subset of hosts with GPU support from the list of "hosts"
-                List<HostVO> gpuEnabledHosts = new ArrayList<HostVO>();
-                if (hostIds != null) {
-                    for (HostVO host : hosts) {
-                        if (hostIds.contains(host.getId())) {
-                            gpuEnabledHosts.add(host);
+                collectFromHosts(hosts, new HostStatsTask() {
+                    @Override
+                    public void collect(HostVO host) {
+                        HostStatsEntry stats = (HostStatsEntry)_resourceMgr.getHostStatistics(host.getId());
+                        if (stats != null) {
+                            hostStats.put(host.getId(), stats);
+                        } else {
+                            s_logger.warn("Received invalid host stats for host: " + host.getId());
+                        }
+                        if (gpuEnabledHostIds.contains(host.getId())) {
+                            HashMap<String, HashMap<String, VgpuTypesInfo>> groupDetails = _resourceMgr.getGPUStatistics(host);
+                            if (groupDetails != null) {
+                                _resourceMgr.updateGPUDetails(host.getId(), groupDetails);
+                            }
                         }
                     }
-                } else {
-                    // Check for all the hosts managed by CloudStack.
-                    gpuEnabledHosts = hosts;
-                }
-                for (HostVO host : gpuEnabledHosts) {
-                    HashMap<String, HashMap<String, VgpuTypesInfo>> groupDetails = _resourceMgr.getGPUStatistics(host);
-                    if (groupDetails != null) {
-                        _resourceMgr.updateGPUDetails(host.getId(), groupDetails);
-                    }
-                }
+                }, _mBean.getHostStatistics(), "host");
+                _hostStats = hostStats;
                 hostIds = _hostGpuGroupsDao.listHostIds();
             } catch (Throwable t) {
                 s_logger.error("Error trying to retrieve host stats", t);
@@ -485,106 +506,201 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
                 sc.addAnd("type", SearchCriteria.Op.NEQ, Host.Type.SecondaryStorageVM.toString());
                 List<HostVO> hosts = _hostDao.search(sc, null);
 
-                /* HashMap for metrics to be send to Graphite */
-                HashMap metrics = new HashMap<String, Integer>();
-
-                for (HostVO host : hosts) {
-                    List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
-                    List<Long> vmIds = new ArrayList<Long>();
-
-                    for (UserVmVO vm : vms) {
-                        vmIds.add(vm.getId());
+                collectFromHosts(hosts, new HostStatsTask() {
+                    @Override
+                    public void collect(HostVO host) {
+                        collectVmStats(host);
                     }
+                }, _mBean.getVmStatistics(), "VM");
+            } catch (Throwable t) {
+                s_logger.error("Error trying to retrieve VM stats", t);
+            }
+        }
+    }
 
-                    try {
-                        HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
+    /**
+     * Collects the stats of the vms running on one host. Runs on the collector workers, so several
+     * hosts are handled at the same time and nothing in here may rely on being the only writer.
+     */
+    private void collectVmStats(HostVO host) {
+        List<UserVmVO> vms = _userVmDao.listRunningByHostId(host.getId());
+        List<Long> vmIds = new ArrayList<Long>();
 
-                        if (vmStatsById != null) {
-                            VmStatsEntry statsInMemory = null;
+        for (UserVmVO vm : vms) {
+            vmIds.add(vm.getId());
+        }
 
-                            Set<Long> vmIdSet = vmStatsById.keySet();
-                            for (Long vmId : vmIdSet) {
-                                VmStatsEntry statsForCurrentIteration = vmStatsById.get(vmId);
-                                statsInMemory = (VmStatsEntry)_VmStats.get(vmId);
-
-                                if (statsInMemory == null) {
-                                    //no stats exist for this vm, directly persist
-                                    _VmStats.put(vmId, statsForCurrentIteration);
-                                } else {
-                                    //update each field
-                                    statsInMemory.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
-                                    statsInMemory.setNumCPUs(statsForCurrentIteration.getNumCPUs());
-                                    statsInMemory.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
-                                    statsInMemory.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
-                                    statsInMemory.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
-                                    statsInMemory.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
-                                    statsInMemory.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
-                                    statsInMemory.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
-                                    statsInMemory.setMemoryKBs(statsForCurrentIteration.getMemoryKBs());
-                                    statsInMemory.setIntFreeMemoryKBs(statsForCurrentIteration.getIntFreeMemoryKBs());
-                                    statsInMemory.setTargetMemoryKBs(statsForCurrentIteration.getTargetMemoryKBs());
-
-                                    _VmStats.put(vmId, statsInMemory);
-                                }
+        HashMap<Long, VmStatsEntry> vmStatsById = _userVmMgr.getVirtualMachineStatistics(host.getId(), host.getName(), vmIds);
+        if (vmStatsById == null) {
+            return;
+        }
 
-                                /**
-                                 * Add statistics to HashMap only when they should be send to a external stats collector
-                                 * Performance wise it seems best to only append to the HashMap when needed
-                                 */
-                                if (externalStatsEnabled) {
-                                    VMInstanceVO vmVO = _vmInstance.findById(vmId);
-                                    String vmName = vmVO.getUuid();
-
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.num", statsForCurrentIteration.getNumCPUs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.utilization", statsForCurrentIteration.getCPUUtilization());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.read_kbs", statsForCurrentIteration.getNetworkReadKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.write_kbs", statsForCurrentIteration.getNetworkWriteKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_kbs", statsForCurrentIteration.getDiskWriteKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_kbs", statsForCurrentIteration.getDiskReadKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_iops", statsForCurrentIteration.getDiskWriteIOs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_iops", statsForCurrentIteration.getDiskReadIOs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".memory.total_kbs", statsForCurrentIteration.getMemoryKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".memory.internalfree_kbs", statsForCurrentIteration.getIntFreeMemoryKBs());
-                                    metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".memory.target_kbs", statsForCurrentIteration.getTargetMemoryKBs());
+        /* HashMap for metrics to be send to Graphite */
+        HashMap metrics = new HashMap<String, Integer>();
+
+        for (Map.Entry<Long, VmStatsEntry> entry : vmStatsById.entrySet()) {
+            Long vmId = entry.getKey();
+            VmStatsEntry statsForCurrentIteration = entry.getValue();
+            mergeVmStats(vmId, statsForCurrentIteration);
+
+            /**
+             * Add statistics to HashMap only when they should be send to a external stats collector
+             * Performance wise it seems best to only append to the HashMap when needed
+             */
+            if (externalStatsEnabled) {
+                VMInstanceVO vmVO = _vmInstance.findById(vmId);
+                String vmName = vmVO.getUuid();
+
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.num", statsForCurrentIteration.getNumCPUs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".cpu.utilization", statsForCurrentIteration.getCPUUtilization());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.read_kbs", statsForCurrentIteration.getNetworkReadKBs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".network.write_kbs", statsForCurrentIteration.getNetworkWriteKBs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_kbs", statsForCurrentIteration.getDiskWriteKBs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_kbs", statsForCurrentIteration.getDiskReadKBs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.write_iops", statsForCurrentIteration.getDiskWriteIOs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".disk.read_iops", statsForCurrentIteration.getDiskReadIOs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".memory.total_kbs", statsForCurrentIteration.getMemoryKBs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".memory.internalfree_kbs", statsForCurrentIteration.getIntFreeMemoryKBs());
+                metrics.put(externalStatsPrefix + "cloudstack.stats.instances." + vmName + ".memory.target_kbs", statsForCurrentIteration.getTargetMemoryKBs());
+            }
+        }
 
-                                }
+        /**
+         * Send the metrics to a external stats collector
+         * We send it on a per-host basis to prevent that we flood the host
+         * Currently only Graphite is supported
+         */
+        if (!metrics.isEmpty()) {
+            if (externalStatsType != null && externalStatsType == ExternalStatsProtocol.GRAPHITE) {
+                int port = externalStatsPort == -1 ? 2003 : externalStatsPort;
 
-                            }
+                s_logger.debug("Sending VmStats of host " + host.getId() + " to Graphite host " + externalStatsHost + ":" + port);
 
-                            /**
-                             * Send the metrics to a external stats collector
-                             * We send it on a per-host basis to prevent that we flood the host
-                             * Currently only Graphite is supported
-                             */
-                            if (!metrics.isEmpty()) {
-                                if (externalStatsType != null && externalStatsType == ExternalStatsProtocol.GRAPHITE) {
+                try {
+                    GraphiteClient g = new GraphiteClient(externalStatsHost, port);
+                    g.sendMetrics(metrics);
+                } catch (GraphiteException e) {
+                    s_logger.debug("Failed sending VmStats to Graphite host " + externalStatsHost + ":" + port + ": " + e.getMessage());
+                }
+            }
+        }
+    }
 
-                                    if (externalStatsPort == -1) {
-                                        externalStatsPort = 2003;
-                                    }
+    /**
+     * Folds the stats of the current round into the in-memory stats of a vm. Published entries are
+     * never modified, a merged copy is swapped in instead, so readers always see a consistent entry
+     * and two hosts reporting the same vm (e.g. during a migration) cannot lose each other's counters.
+     */
+    void mergeVmStats(Long vmId, VmStatsEntry statsForCurrentIteration) {
+        while (true) {
+            VmStats statsInMemory = _VmStats.get(vmId);
+            if (statsInMemory == null) {
+                //no stats exist for this vm, directly persist
+                if (_VmStats.putIfAbsent(vmId, statsForCurrentIteration) == null) {
+                    return;
+                }
+                continue;
+            }
 
-                                    s_logger.debug("Sending VmStats of host " + host.getId() + " to Graphite host " + externalStatsHost + ":" + externalStatsPort);
+            VmStatsEntry merged = new VmStatsEntry();
+            merged.setEntityType(statsForCurrentIteration.getEntityType());
+            merged.setCPUUtilization(statsForCurrentIteration.getCPUUtilization());
+            merged.setNumCPUs(statsForCurrentIteration.getNumCPUs());
+            merged.setNetworkReadKBs(statsInMemory.getNetworkReadKBs() + statsForCurrentIteration.getNetworkReadKBs());
+            merged.setNetworkWriteKBs(statsInMemory.getNetworkWriteKBs() + statsForCurrentIteration.getNetworkWriteKBs());
+            merged.setDiskWriteKBs(statsInMemory.getDiskWriteKBs() + statsForCurrentIteration.getDiskWriteKBs());
+            merged.setDiskReadIOs(statsInMemory.getDiskReadIOs() + statsForCurrentIteration.getDiskReadIOs());
+            merged.setDiskWriteIOs(statsInMemory.getDiskWriteIOs() + statsForCurrentIteration.getDiskWriteIOs());
+            merged.setDiskReadKBs(statsInMemory.getDiskReadKBs() + statsForCurrentIteration.getDiskReadKBs());
+            merged.setMemoryKBs(statsForCurrentIteration.getMemoryKBs());
+            merged.setIntFreeMemoryKBs(statsForCurrentIteration.getIntFreeMemoryKBs());
+            merged.setTargetMemoryKBs(statsForCurrentIteration.getTargetMemoryKBs());
+
+            if (_VmStats.replace(vmId, statsInMemory, merged)) {
+                return;
+            }
+        }
+    }
 
-                                    try {
-                                        GraphiteClient g = new GraphiteClient(externalStatsHost, externalStatsPort);
-                                        g.sendMetrics(metrics);
-                                    } catch (GraphiteException e) {
-                                        s_logger.debug("Failed sending VmStats to Graphite host " + externalStatsHost + ":" + externalStatsPort + ": " + e.getMessage());
-                                    }
+    interface HostStatsTask {
+        void collect(HostVO host);
+    }
 
-                                    metrics.clear();
-                                }
-                            }
-                        }
+    /**
+     * Runs the task for every host on the collector workers. Each host gets stats.timeout of its
+     * cluster, counted from the moment a worker picks it up; hosts that do not finish in time are
+     * cancelled and reported as missed, they are simply collected again in the next round.
+     */
+    void collectFromHosts(List<HostVO> hosts, final HostStatsTask task, final StatsCollectorMBeanImpl.RoundStatistics statistics, String kind) {
+        long roundStart = System.currentTimeMillis();
+
+        List<HostWork> works = new ArrayList<HostWork>(hosts.size());
+        for (HostVO host : hosts) {
+            HostWork work = new HostWork(host, task, statistics);
+            work._future = _collectorWorkers.submit(work);
+            works.add(work);
+        }
 
-                    } catch (Exception e) {
-                        s_logger.debug("Failed to get VM stats for host with ID: " + host.getId());
-                        continue;
+        int missed = 0;
+        for (int i = 0; i < works.size(); i++) {
+            HostWork work = works.get(i);
+            long timeout = StatsTimeout.valueIn(work._host.getClusterId());
+            try {
+                while (true) {
+                    long started = work._started;
+                    long wait = started == 0 ? timeout : started + timeout - System.currentTimeMillis();
+                    try {
+                        work._future.get(Math.max(wait, 1L), TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        started = work._started;
+                        if (started != 0 && System.currentTimeMillis() - started >= timeout) {
+                            work._future.cancel(true);
+                            missed++;
+                            s_logger.warn("Timed out after " + timeout + "ms collecting " + kind + " stats for host with ID: " + work._host.getId());
+                            break;
+                        }
                     }
                 }
+            } catch (ExecutionException e) {
+                s_logger.debug("Failed to get " + kind + " stats for host with ID: " + work._host.getId(), e.getCause());
+            } catch (InterruptedException e) {
+                for (int j = i; j < works.size(); j++) {
+                    works.get(j)._future.cancel(true);
+                }
+                missed += works.size() - i;
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
 
-            } catch (Throwable t) {
-                s_logger.error("Error trying to retrieve VM stats", t);
+        long duration = System.currentTimeMillis() - roundStart;
+        statistics.recordRound(duration, hosts.size(), missed);
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Collected " + kind + " stats from " + (hosts.size() - missed) + " of " + hosts.size() + " hosts in " + duration + "ms");
+        }
+    }
+
+    private static class HostWork extends ManagedContextRunnable {
+        private final HostVO _host;
+        private final HostStatsTask _task;
+        private final StatsCollectorMBeanImpl.RoundStatistics _statistics;
+        private volatile long _started;
+        private Future<?> _future;
+
+        HostWork(HostVO host, HostStatsTask task, StatsCollectorMBeanImpl.RoundStatistics statistics) {
+            _host = host;
+            _task = task;
+            _statistics = statistics;
+        }
+
+        @Override
+        protected void runInContext() {
+            _started = System.currentTimeMillis();
+            try {
+                _task.collect(_host);
+            } finally {
+                _statistics.recordHostLatency(System.currentTimeMillis() - _started);
             }
         }
     }
@@ -1334,6 +1450,6 @@ public class StatsCollector extends ManagerBase implements ComponentMethodInterc
 
     @Override
     public ConfigKey<?>[] getConfigKeys() {
-        return new ConfigKey<?>[] { vmDiskStatsInterval, vmDiskStatsIntervalMin, vmNetworkStatsInterval, vmNetworkStatsIntervalMin, StatsTimeout };
+        return new ConfigKey<?>[] { vmDiskStatsInterval, vmDiskStatsIntervalMin, vmNetworkStatsInterval, vmNetworkStatsIntervalMin, StatsTimeout, StatsCollectorWorkers };
     }
 }
@@ -0,0 +1,173 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.StandardMBean;
+
+import com.cloud.utils.NumbersUtil;
+
+public class StatsCollectorMBeanImpl extends StandardMBean implements StatsCollectorMBean {
+
+    /**
+     * Timings of one kind of collection round. Host tasks record their latency concurrently, the
+     * round summary is written by the collector thread once all hosts answered or timed out.
+     */
+    static class RoundStatistics {
+        private volatile long _lastRoundDuration;
+        private volatile int _lastRoundHosts;
+        private volatile int _lastRoundMissedHosts;
+        private final AtomicLong _totalMissedHosts = new AtomicLong();
+        private final AtomicLong _hostCount = new AtomicLong();
+        private final AtomicLong _totalHostLatency = new AtomicLong();
+        private final AtomicLong _maxHostLatency = new AtomicLong();
+
+        void recordHostLatency(long latency) {
+            _hostCount.incrementAndGet();
+            _totalHostLatency.addAndGet(latency);
+            NumbersUtil.updateMax(_maxHostLatency, latency);
+        }
+
+        void recordRound(long duration, int hosts, int missedHosts) {
+            _lastRoundDuration = duration;
+            _lastRoundHosts = hosts;
+            _lastRoundMissedHosts = missedHosts;
+            _totalMissedHosts.addAndGet(missedHosts);
+        }
+
+        long getLastRoundDuration() {
+            return _lastRoundDuration;
+        }
+
+        int getLastRoundHosts() {
+            return _lastRoundHosts;
+        }
+
+        int getLastRoundMissedHosts() {
+            return _lastRoundMissedHosts;
+        }
+
+        long getTotalMissedHosts() {
+            return _totalMissedHosts.get();
+        }
+
+        long getAverageHostLatency() {
+            long count = _hostCount.get();
+            return count == 0 ? 0 : _totalHostLatency.get() / count;
+        }
+
+        long getMaxHostLatency() {
+            return _maxHostLatency.get();
+        }
+
+        void reset() {
+            _totalMissedHosts.set(0);
+            _hostCount.set(0);
+            _totalHostLatency.set(0);
+            _maxHostLatency.set(0);
+        }
+    }
+
+    private final int _collectorWorkers;
+    private final RoundStatistics _hostStatistics = new RoundStatistics();
+    private final RoundStatistics _vmStatistics = new RoundStatistics();
+
+    protected StatsCollectorMBeanImpl(int collectorWorkers) {
+        super(StatsCollectorMBean.class, false);
+        _collectorWorkers = collectorWorkers;
+    }
+
+    RoundStatistics getHostStatistics() {
+        return _hostStatistics;
+    }
+
+    RoundStatistics getVmStatistics() {
+        return _vmStatistics;
+    }
+
+    @Override
+    public int getCollectorWorkers() {
+        return _collectorWorkers;
+    }
+
+    @Override
+    public long getHostStatsLastRoundDuration() {
+        return _hostStatistics.getLastRoundDuration();
+    }
+
+    @Override
+    public int getHostStatsLastRoundHosts() {
+        return _hostStatistics.getLastRoundHosts();
+    }
+
+    @Override
+    public int getHostStatsLastRoundMissedHosts() {
+        return _hostStatistics.getLastRoundMissedHosts();
+    }
+
+    @Override
+    public long getHostStatsTotalMissedHosts() {
+        return _hostStatistics.getTotalMissedHosts();
+    }
+
+    @Override
+    public long getHostStatsAverageHostLatency() {
+        return _hostStatistics.getAverageHostLatency();
+    }
+
+    @Override
+    public long getHostStatsMaxHostLatency() {
+        return _hostStatistics.getMaxHostLatency();
+    }
+
+    @Override
+    public long getVmStatsLastRoundDuration() {
+        return _vmStatistics.getLastRoundDuration();
+    }
+
+    @Override
+    public int getVmStatsLastRoundHosts() {
+        return _vmStatistics.getLastRoundHosts();
+    }
+
+    @Override
+    public int getVmStatsLastRoundMissedHosts() {
+        return _vmStatistics.getLastRoundMissedHosts();
+    }
+
+    @Override
+    public long getVmStatsTotalMissedHosts() {
+        return _vmStatistics.getTotalMissedHosts();
+    }
+
+    @Override
+    public long getVmStatsAverageHostLatency() {
+        return _vmStatistics.getAverageHostLatency();
+    }
+
+    @Override
+    public long getVmStatsMaxHostLatency() {
+        return _vmStatistics.getMaxHostLatency();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _hostStatistics.reset();
+        _vmStatistics.reset();
+    }
+}
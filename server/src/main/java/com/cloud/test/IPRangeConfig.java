@@ -17,6 +17,7 @@
 package com.cloud.test;
 
 import java.lang.reflect.Array;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -446,9 +447,10 @@ public class IPRangeConfig {
     }
 
     public Vector<String> savePublicIPRange(TransactionLegacy txn, long startIP, long endIP, long zoneId, long vlanDbId, Long sourceNetworkId, long physicalNetworkId, boolean forSystemVms) {
+        String selectMacSql = "SELECT mac_address FROM `cloud`.`data_center` WHERE id=? FOR UPDATE";
         String insertSql =
-            "INSERT INTO `cloud`.`user_ip_address` (public_ip_address, data_center_id, vlan_db_id, mac_address, source_network_id, physical_network_id, uuid, forsystemvms) VALUES (?, ?, ?, (select mac_address from `cloud`.`data_center` where id=?), ?, ?, ?, ?)";
-        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+1 where id=?";
+            "INSERT INTO `cloud`.`user_ip_address` (public_ip_address, data_center_id, vlan_db_id, mac_address, source_network_id, physical_network_id, uuid, forsystemvms) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        String updateSql = "UPDATE `cloud`.`data_center` set mac_address = mac_address+? where id=?";
         Vector<String> problemIPs = new Vector<String>();
 
         Connection conn = null;
@@ -457,25 +459,61 @@ public class IPRangeConfig {
         } catch (SQLException e) {
             return null;
         }
-        while (startIP <= endIP) {
-            try (PreparedStatement insert_stmt = conn.prepareStatement(insertSql);
-            PreparedStatement update_stmt = conn.prepareStatement(updateSql);
-            ){
-                insert_stmt.setString(1, NetUtils.long2Ip(startIP));
+
+        // lock the zone row once and insert the whole range in one batch, instead of an insert and a mac
+        // address update per ip
+        long macAddress;
+        try (PreparedStatement select_stmt = conn.prepareStatement(selectMacSql);) {
+            select_stmt.setLong(1, zoneId);
+            try (ResultSet rs = select_stmt.executeQuery();) {
+                if (!rs.next()) {
+                    return null;
+                }
+                macAddress = rs.getLong(1);
+            }
+        } catch (SQLException e) {
+            return null;
+        }
+
+        long count = 0;
+        try (PreparedStatement insert_stmt = conn.prepareStatement(insertSql);) {
+            for (long ip = startIP; ip <= endIP; ip++) {
+                insert_stmt.setString(1, NetUtils.long2Ip(ip));
                 insert_stmt.setLong(2, zoneId);
                 insert_stmt.setLong(3, vlanDbId);
-                insert_stmt.setLong(4, zoneId);
+                insert_stmt.setLong(4, macAddress + count++);
                 insert_stmt.setLong(5, sourceNetworkId);
                 insert_stmt.setLong(6, physicalNetworkId);
                 insert_stmt.setString(7, UUID.randomUUID().toString());
                 insert_stmt.setBoolean(8, forSystemVms);
-                insert_stmt.executeUpdate();
-                update_stmt.setLong(1, zoneId);
-                update_stmt.executeUpdate();
-            } catch (Exception ex) {
-                problemIPs.add(NetUtils.long2Ip(startIP));
+                insert_stmt.addBatch();
+            }
+            insert_stmt.executeBatch();
+        } catch (BatchUpdateException ex) {
+            int[] results = ex.getUpdateCounts();
+            for (long ip = startIP; ip <= endIP; ip++) {
+                int i = (int)(ip - startIP);
+                if (results == null || i >= results.length || results[i] == Statement.EXECUTE_FAILED) {
+                    problemIPs.add(NetUtils.long2Ip(ip));
+                }
+            }
+        } catch (Exception ex) {
+            for (long ip = startIP; ip <= endIP; ip++) {
+                problemIPs.add(NetUtils.long2Ip(ip));
+            }
+            return problemIPs;
+        }
+
+        // the mac addresses handed to the batch are used up even if some of its inserts failed
+        try (PreparedStatement update_stmt = conn.prepareStatement(updateSql);) {
+            update_stmt.setLong(1, count);
+            update_stmt.setLong(2, zoneId);
+            update_stmt.executeUpdate();
+        } catch (SQLException ex) {
+            problemIPs.clear();
+            for (long ip = startIP; ip <= endIP; ip++) {
+                problemIPs.add(NetUtils.long2Ip(ip));
             }
-            startIP++;
         }
 
         return problemIPs;
@@ -305,6 +305,11 @@ public class RoleManagerImpl extends ManagerBase implements RoleService, Configu
         return Collections.emptyList();
     }
 
+    @Override
+    public long getPermissionsVersion() {
+        return rolePermissionsDao.getPermissionsVersion();
+    }
+
     @Override
     public String getConfigComponentName() {
         return RoleService.class.getSimpleName();
@@ -0,0 +1,146 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.agent.manager.allocator.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyShort;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.capacity.CapacityManager;
+import com.cloud.capacity.CapacityVO;
+import com.cloud.capacity.dao.CapacityDao;
+import com.cloud.dc.ClusterDetailsDao;
+import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.deploy.DeploymentPlan;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.host.Host;
+import com.cloud.offering.ServiceOffering;
+import com.cloud.resource.ResourceManager;
+import com.cloud.service.dao.ServiceOfferingDetailsDao;
+import com.cloud.storage.VMTemplateVO;
+import com.cloud.storage.dao.GuestOSDao;
+
+public class FirstFitAllocatorTest {
+    private static final int CLUSTERS = 10;
+
+    FirstFitAllocator allocator;
+    CapacityManager capacityMgr = mock(CapacityManager.class);
+    CapacityDao capacityDao = mock(CapacityDao.class);
+    ClusterDetailsDao clusterDetailsDao = mock(ClusterDetailsDao.class);
+    ServiceOfferingDetailsDao serviceOfferingDetailsDao = mock(ServiceOfferingDetailsDao.class);
+    DeploymentPlan plan = mock(DeploymentPlan.class);
+    ServiceOffering offering = mock(ServiceOffering.class);
+    VMTemplateVO template = mock(VMTemplateVO.class);
+
+    @Before
+    public void setUp() {
+        allocator = new FirstFitAllocator();
+        allocator._capacityMgr = capacityMgr;
+        allocator._capacityDao = capacityDao;
+        allocator._clusterDetailsDao = clusterDetailsDao;
+        allocator._serviceOfferingDetailsDao = serviceOfferingDetailsDao;
+        allocator._resourceMgr = mock(ResourceManager.class);
+        allocator._guestOSDao = mock(GuestOSDao.class);
+
+        when(offering.getId()).thenReturn(1l);
+        when(offering.getCpu()).thenReturn(1);
+        when(offering.getSpeed()).thenReturn(500);
+        when(offering.getRamSize()).thenReturn(512);
+
+        ClusterDetailsVO ratio = mock(ClusterDetailsVO.class);
+        when(ratio.getValue()).thenReturn("1.0");
+        when(clusterDetailsDao.findDetail(anyLong(), anyString())).thenReturn(ratio);
+        when(capacityDao.listByHostIdsTypes(anyList(), any(Short.class), any(Short.class))).thenReturn(new ArrayList<CapacityVO>());
+        when(capacityMgr.listHostsReachedMaxGuestLimit(anyList())).thenReturn(new HashSet<Long>());
+        when(capacityMgr.checkIfHostHasCpuCapability(any(Host.class), anyInt(), anyInt())).thenReturn(true);
+        when(capacityMgr.checkIfHostHasCapacity(anyLong(), any(CapacityVO.class), any(CapacityVO.class), anyInt(), anyLong(), anyBoolean(), anyFloat(), anyFloat(),
+            anyBoolean())).thenReturn(true);
+    }
+
+    private List<Host> createHosts(int count) {
+        List<Host> hosts = new ArrayList<Host>(count);
+        for (long id = 1; id <= count; id++) {
+            Host host = mock(Host.class);
+            when(host.getId()).thenReturn(id);
+            when(host.getClusterId()).thenReturn(id % CLUSTERS);
+            hosts.add(host);
+        }
+        return hosts;
+    }
+
+    @Test
+    public void allocateToLooksUpHostsInBatches() {
+        for (int count : new int[] {1000, 5000, 10000}) {
+            reset(capacityMgr, capacityDao, clusterDetailsDao);
+            setUp();
+            List<Host> suitableHosts = allocator.allocateTo(plan, offering, template, new ExcludeList(), createHosts(count), -1, true, null);
+
+            Assert.assertEquals(count, suitableHosts.size());
+            int batches = count / FirstFitAllocator.HOST_BATCH_SIZE;
+            verify(capacityDao, times(batches)).listByHostIdsTypes(anyList(), eq(CapacityVO.CAPACITY_TYPE_CPU), eq(CapacityVO.CAPACITY_TYPE_MEMORY));
+            verify(capacityMgr, times(batches)).listHostsReachedMaxGuestLimit(anyList());
+            verify(clusterDetailsDao, times(2 * CLUSTERS)).findDetail(anyLong(), anyString());
+            verify(capacityDao, never()).findByHostIdType(anyLong(), anyShort());
+            verify(capacityMgr, never()).checkIfHostReachMaxGuestLimit(any(Host.class));
+            verify(capacityMgr, never()).checkIfHostHasCpuCapability(anyLong(), anyInt(), anyInt());
+        }
+    }
+
+    @Test
+    public void allocateToStopsLoadingOnceEnoughHostsAreFound() {
+        List<Host> suitableHosts = allocator.allocateTo(plan, offering, template, new ExcludeList(), createHosts(1000), 1, true, null);
+
+        Assert.assertEquals(1, suitableHosts.size());
+        verify(capacityDao, times(1)).listByHostIdsTypes(anyList(), any(Short.class), any(Short.class));
+    }
+
+    @Test
+    public void allocateToSkipsHostsAtGuestLimitAndInAvoidSet() {
+        List<Host> hosts = createHosts(3);
+        ExcludeList avoid = new ExcludeList();
+        avoid.addHost(1l);
+        HashSet<Long> atLimit = new HashSet<Long>();
+        atLimit.add(2l);
+        when(capacityMgr.listHostsReachedMaxGuestLimit(anyList())).thenReturn(atLimit);
+
+        List<Host> suitableHosts = allocator.allocateTo(plan, offering, template, avoid, hosts, -1, true, null);
+
+        Assert.assertEquals(1, suitableHosts.size());
+        Assert.assertEquals(3l, suitableHosts.get(0).getId());
+        Assert.assertTrue(avoid.getHostsToAvoid().contains(2l));
+    }
+}
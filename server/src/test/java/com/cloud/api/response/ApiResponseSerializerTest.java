@@ -0,0 +1,174 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.api.response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cloudstack.acl.RoleType;
+import org.apache.cloudstack.api.BaseResponse;
+import org.apache.cloudstack.api.response.ListResponse;
+import org.apache.cloudstack.api.response.SuccessResponse;
+import org.apache.cloudstack.context.CallContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.cloud.serializer.Param;
+import com.cloud.user.Account;
+import com.cloud.user.User;
+import com.google.gson.annotations.SerializedName;
+
+public class ApiResponseSerializerTest {
+
+    public static class SecretResponse extends BaseResponse {
+        @SerializedName("name")
+        @Param(description = "the name")
+        private String name;
+
+        @SerializedName("secret")
+        @Param(description = "the secret", isSensitive = true)
+        private String secret;
+
+        public SecretResponse(String name, String secret) {
+            super("secret");
+            this.name = name;
+            this.secret = secret;
+        }
+    }
+
+    public static class WrapperResponse extends BaseResponse {
+        @SerializedName("secrets")
+        @Param(description = "the nested secrets")
+        private List<SecretResponse> secrets;
+    }
+
+    public static class PlainResponse extends BaseResponse {
+        @SerializedName("name")
+        @Param(description = "the name")
+        private String name;
+
+        public PlainResponse(String name) {
+            super("plain");
+            this.name = name;
+        }
+    }
+
+    public static class RestrictedResponse extends BaseResponse {
+        @SerializedName("name")
+        @Param(description = "the name")
+        private String name;
+
+        @SerializedName("internal")
+        @Param(description = "only shown to admins", authorized = {RoleType.Admin})
+        private String internal;
+
+        public RestrictedResponse(String name, String internal) {
+            super("restricted");
+            this.name = name;
+            this.internal = internal;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        registerCaller(Account.ACCOUNT_TYPE_NORMAL);
+    }
+
+    @After
+    public void tearDown() {
+        CallContext.unregisterAll();
+    }
+
+    private static void registerCaller(short accountType) {
+        CallContext.unregisterAll();
+        User user = mock(User.class);
+        Account account = mock(Account.class);
+        when(account.getType()).thenReturn(accountType);
+        CallContext.register(user, account);
+    }
+
+    @Test
+    public void testRoleRestrictedFieldsFollowTheCaller() {
+        RestrictedResponse response = new RestrictedResponse("vm", "host1");
+        response.setResponseName("getrestrictedresponse");
+
+        registerCaller(Account.ACCOUNT_TYPE_ADMIN);
+        String adminOut = ApiResponseSerializer.toJSONSerializedString(response, new StringBuilder());
+        assertEquals("{\"getrestrictedresponse\":{\"restricted\":{\"name\":\"vm\",\"internal\":\"host1\"}}}", adminOut);
+
+        registerCaller(Account.ACCOUNT_TYPE_NORMAL);
+        String userOut = ApiResponseSerializer.toJSONSerializedString(response, new StringBuilder());
+        assertEquals("{\"getrestrictedresponse\":{\"restricted\":{\"name\":\"vm\"}}}", userOut);
+
+        registerCaller(Account.ACCOUNT_TYPE_ADMIN);
+        assertEquals(adminOut, ApiResponseSerializer.toJSONSerializedString(response, new StringBuilder()));
+    }
+
+    @Test
+    public void testUnescape() {
+        assertEquals("plain", ApiResponseSerializer.unescape("plain"));
+        assertEquals("<a>&'b'=", ApiResponseSerializer.unescape("\\u003ca\\u003e\\u0026\\u0027b\\u0027\\u003d"));
+        assertEquals("\\u00zz and \\u12", ApiResponseSerializer.unescape("\\u00zz and \\u12"));
+    }
+
+    @Test
+    public void testHasSensitiveFields() {
+        assertFalse(ApiResponseSerializer.hasSensitiveFields(SuccessResponse.class));
+        assertFalse(ApiResponseSerializer.hasSensitiveFields(PlainResponse.class));
+        assertTrue(ApiResponseSerializer.hasSensitiveFields(SecretResponse.class));
+        assertTrue(ApiResponseSerializer.hasSensitiveFields(WrapperResponse.class));
+    }
+
+    @Test
+    public void testListResponseLogViewSkipsSensitiveFields() {
+        List<SecretResponse> responses = new ArrayList<SecretResponse>();
+        responses.add(new SecretResponse("first", "s1"));
+        responses.add(new SecretResponse("second", "s2"));
+        ListResponse<SecretResponse> listResponse = new ListResponse<SecretResponse>();
+        listResponse.setResponseName("listsecretsresponse");
+        listResponse.setResponses(responses);
+
+        StringBuilder log = new StringBuilder();
+        String out = ApiResponseSerializer.toJSONSerializedString(listResponse, log);
+
+        String expected = "{\"listsecretsresponse\":{\"count\":2,\"secret\":[{\"name\":\"first\",\"secret\":\"s1\"},{\"name\":\"second\",\"secret\":\"s2\"}]}}";
+        assertEquals(expected, out);
+        assertEquals("{\"listsecretsresponse\":{\"count\":2,\"secret\":[{\"name\":\"first\"},{\"name\":\"second\"}]}}", log.toString());
+    }
+
+    @Test
+    public void testListResponseSharesLogView() {
+        List<PlainResponse> responses = new ArrayList<PlainResponse>();
+        responses.add(new PlainResponse("a<b"));
+        ListResponse<PlainResponse> listResponse = new ListResponse<PlainResponse>();
+        listResponse.setResponseName("listplainresponse");
+        listResponse.setResponses(responses);
+
+        StringBuilder log = new StringBuilder();
+        String out = ApiResponseSerializer.toJSONSerializedString(listResponse, log);
+
+        assertEquals("{\"listplainresponse\":{\"count\":1,\"plain\":[{\"name\":\"a<b\"}]}}", out);
+        assertEquals(out, log.toString());
+    }
+}
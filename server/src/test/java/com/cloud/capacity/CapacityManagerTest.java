@@ -17,21 +17,50 @@
 
 package com.cloud.capacity;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.anyList;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyShort;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.dc.ClusterDetailsDao;
 import com.cloud.dc.ClusterDetailsVO;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.host.HostVO;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.hypervisor.dao.HypervisorCapabilitiesDao;
+import com.cloud.resource.ResourceState;
 import com.cloud.service.ServiceOfferingVO;
 import com.cloud.service.dao.ServiceOfferingDao;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.vm.VMInstanceVO;
 import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.dao.UserVmDetailsDao;
+import com.cloud.vm.dao.VMInstanceDao;
 
 public class CapacityManagerTest {
     CapacityDao CDao = mock(CapacityDao.class);
@@ -76,4 +105,116 @@ public class CapacityManagerTest {
         Assert.assertTrue(hasCapacity);
 
     }
+
+    @Test
+    public void updateCapacityForHostsUsesClusterWideLookupsTest() {
+        capMgr = setUp();
+        ClusterDao clusterDao = mock(ClusterDao.class);
+        VMInstanceDao vmDao = mock(VMInstanceDao.class);
+        UserVmDetailsDao userVmDetailsDao = mock(UserVmDetailsDao.class);
+        capMgr._clusterDao = clusterDao;
+        capMgr._vmDao = vmDao;
+        capMgr._userVmDetailsDao = userVmDetailsDao;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        ReflectionTestUtils.setField(capMgr, "_capacityCalculateExecutor", executor);
+
+        ClusterVO cluster = mock(ClusterVO.class);
+        when(cluster.getId()).thenReturn(10l);
+        when(clusterDao.findById(10l)).thenReturn(cluster);
+        when(clusterDetailCpu.getValue()).thenReturn("1");
+        when(clusterDetailRam.getValue()).thenReturn("1");
+        when(ClusterDetailsDao.findDetail(10l, "cpuOvercommitRatio")).thenReturn(clusterDetailCpu);
+        when(ClusterDetailsDao.findDetail(10l, "memoryOvercommitRatio")).thenReturn(clusterDetailRam);
+
+        when(svo.getId()).thenReturn(2l);
+        when(svo.getCpu()).thenReturn(2);
+        when(svo.getSpeed()).thenReturn(1000);
+        when(svo.getRamSize()).thenReturn(1024);
+        List<ServiceOfferingVO> offerings = new ArrayList<ServiceOfferingVO>();
+        offerings.add(svo);
+        when(SOfferingDao.listAllIncludingRemoved()).thenReturn(offerings);
+
+        List<HostVO> hosts = new ArrayList<HostVO>();
+        List<CapacityVO> capacities = new ArrayList<CapacityVO>();
+        List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+        for (long hostId = 1; hostId <= 2; hostId++) {
+            HostVO host = mock(HostVO.class);
+            when(host.getId()).thenReturn(hostId);
+            when(host.getClusterId()).thenReturn(10l);
+            when(host.getResourceState()).thenReturn(ResourceState.Enabled);
+            when(host.getCpus()).thenReturn(8);
+            when(host.getSpeed()).thenReturn(1000l);
+            when(host.getTotalMemory()).thenReturn(16l * 1024 * 1024 * 1024);
+            hosts.add(host);
+
+            long capacityId = hostId * 10;
+            for (short type : new short[] {Capacity.CAPACITY_TYPE_CPU, Capacity.CAPACITY_TYPE_MEMORY, CapacityVO.CAPACITY_TYPE_CPU_CORE}) {
+                CapacityVO capacity = mock(CapacityVO.class);
+                when(capacity.getId()).thenReturn(capacityId--);
+                when(capacity.getHostOrPoolId()).thenReturn(hostId);
+                when(capacity.getCapacityType()).thenReturn(type);
+                when(capacity.getCapacityState()).thenReturn(CapacityState.Enabled);
+                capacities.add(capacity);
+            }
+
+            VMInstanceVO vm = mock(VMInstanceVO.class);
+            when(vm.getId()).thenReturn(100l + hostId);
+            when(vm.getHostId()).thenReturn(hostId);
+            when(vm.getServiceOfferingId()).thenReturn(2l);
+            vms.add(vm);
+        }
+        when(vmDao.listUpByHostIds(anyList())).thenReturn(vms);
+        when(vmDao.listByLastHostIds(anyList())).thenReturn(new ArrayList<VMInstanceVO>());
+        when(userVmDetailsDao.listDetailsKeyPairsForResources(anyCollection())).thenReturn(new HashMap<Long, Map<String, String>>());
+        when(CDao.listByHostIdsTypes(anyList(), any(Short.class), any(Short.class), any(Short.class))).thenReturn(capacities);
+        // the first host fails, the second one is still updated
+        when(CDao.updateAll(anyList())).thenThrow(new CloudRuntimeException("Deadlock found")).thenReturn(3);
+
+        try {
+            capMgr.updateCapacityForHosts(hosts);
+        } finally {
+            executor.shutdown();
+        }
+
+        verify(vmDao, times(1)).listUpByHostIds(Arrays.asList(1l, 2l));
+        verify(userVmDetailsDao, times(1)).listDetailsKeyPairsForResources(anyCollection());
+        verify(userVmDetailsDao, never()).listDetailsKeyPairs(anyLong());
+        verify(CDao, never()).findByHostIdType(anyLong(), anyShort());
+        InOrder inOrder = inOrder(CDao);
+        inOrder.verify(CDao).updateAll(Arrays.asList(capacities.get(2), capacities.get(1), capacities.get(0)));
+        inOrder.verify(CDao).updateAll(Arrays.asList(capacities.get(5), capacities.get(4), capacities.get(3)));
+        verify(capacities.get(0)).setUsedCapacity(2000l);
+        verify(capacities.get(1)).setUsedCapacity(1024l * 1024 * 1024);
+        verify(capacities.get(2)).setUsedCapacity(2l);
+    }
+
+    @Test
+    public void listHostsReachedMaxGuestLimitTest() {
+        capMgr = setUp();
+        VMInstanceDao vmDao = mock(VMInstanceDao.class);
+        HypervisorCapabilitiesDao hypervisorCapabilitiesDao = mock(HypervisorCapabilitiesDao.class);
+        capMgr._vmDao = vmDao;
+        capMgr._hypervisorCapabilitiesDao = hypervisorCapabilitiesDao;
+
+        List<HostVO> hosts = new ArrayList<HostVO>();
+        for (long hostId = 1; hostId <= 3; hostId++) {
+            HostVO host = mock(HostVO.class);
+            when(host.getId()).thenReturn(hostId);
+            when(host.getHypervisorType()).thenReturn(HypervisorType.KVM);
+            when(host.getHypervisorVersion()).thenReturn("default");
+            hosts.add(host);
+        }
+        Map<Long, Long> vmCounts = new HashMap<Long, Long>();
+        vmCounts.put(1l, 50l);
+        vmCounts.put(2l, 10l);
+        when(vmDao.countActiveByHostIds(Arrays.asList(1l, 2l, 3l))).thenReturn(vmCounts);
+        when(hypervisorCapabilitiesDao.getMaxGuestsLimit(HypervisorType.KVM, "default")).thenReturn(50l);
+
+        Set<Long> result = capMgr.listHostsReachedMaxGuestLimit(hosts);
+
+        Assert.assertEquals(1, result.size());
+        Assert.assertTrue(result.contains(1l));
+        verify(hypervisorCapabilitiesDao, times(1)).getMaxGuestsLimit(HypervisorType.KVM, "default");
+        verify(vmDao, never()).countActiveByHostId(anyLong());
+    }
 }
@@ -0,0 +1,165 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ActionEventPipelineTest {
+
+    private ActionEventPipeline pipeline;
+    private List<String> published;
+
+    private class RecordingTask implements ActionEventPipeline.EventTask {
+        private final String name;
+
+        RecordingTask(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void publish(Map<Object, Object> batchCache) {
+            if (name.startsWith("fail")) {
+                throw new RuntimeException("broker unavailable");
+            }
+            published.add(name);
+            Integer count = (Integer)batchCache.get("count");
+            batchCache.put("count", count == null ? 1 : count + 1);
+        }
+    }
+
+    @Before
+    public void setup() {
+        pipeline = new ActionEventPipeline();
+        published = new ArrayList<String>();
+    }
+
+    @Test
+    public void testSubmitWhenNotRunning() {
+        pipeline.createQueues(10, 2);
+        assertFalse(pipeline.submit("vm:1", new RecordingTask("a")));
+        assertEquals(0, pipeline.getQueueSize());
+    }
+
+    @Test
+    public void testEventsOfAResourceShareAQueue() throws Exception {
+        pipeline.createQueues(100, 4);
+        pipeline.setRunning(true);
+        assertEquals(4, pipeline.getWorkerCount());
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(pipeline.submit("vm:42", new RecordingTask("event-" + i)));
+        }
+        int index = pipeline.getQueueIndex("vm:42");
+        assertEquals(10, pipeline.getQueue(index).size());
+
+        pipeline.publishBatch(pipeline.takeBatch(pipeline.getQueue(index), 10));
+        assertEquals(10, published.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("event-" + i, published.get(i));
+        }
+        assertEquals(10, pipeline.getPublishedCount());
+        assertEquals(0, pipeline.getQueueSize());
+    }
+
+    @Test
+    public void testBlockKeepsTheOrderOfAResourceWhenQueueIsFull() throws Exception {
+        pipeline.createQueues(2, 1);
+        pipeline.setRunning(true);
+        assertEquals(ActionEventPipeline.OverflowPolicy.Block, pipeline.getOverflowPolicy());
+
+        assertTrue(pipeline.submit("vm:1", new RecordingTask("a")));
+        assertTrue(pipeline.submit("vm:1", new RecordingTask("b")));
+
+        // a worker that only gets to the full queue after the next event was submitted
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    while (published.size() < 3) {
+                        pipeline.publishBatch(pipeline.takeBatch(pipeline.getQueue(0), 1000));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        };
+        worker.start();
+        assertTrue(pipeline.submit("vm:1", new RecordingTask("c")));
+        worker.join(5000);
+
+        assertEquals(Arrays.asList("a", "b", "c"), published);
+        assertEquals(0, pipeline.getDroppedCount());
+        assertEquals(0, pipeline.getCallerRunsCount());
+    }
+
+    @Test
+    public void testCallerRunsWhenQueueIsFull() {
+        pipeline = new ActionEventPipeline() {
+            @Override
+            OverflowPolicy getOverflowPolicy() {
+                return OverflowPolicy.CallerRuns;
+            }
+        };
+        pipeline.createQueues(2, 1);
+        pipeline.setRunning(true);
+
+        assertTrue(pipeline.submit(1L, new RecordingTask("a")));
+        assertTrue(pipeline.submit(1L, new RecordingTask("b")));
+        assertFalse(pipeline.submit(1L, new RecordingTask("c")));
+        assertEquals(1, pipeline.getCallerRunsCount());
+        assertEquals(0, pipeline.getDroppedCount());
+        assertEquals(2, pipeline.getQueueSize());
+    }
+
+    @Test
+    public void testFailedEventDoesNotStopBatch() throws Exception {
+        pipeline.createQueues(10, 1);
+        pipeline.setRunning(true);
+
+        pipeline.submit(1L, new RecordingTask("a"));
+        pipeline.submit(1L, new RecordingTask("fail"));
+        pipeline.submit(1L, new RecordingTask("b"));
+        pipeline.publishBatch(pipeline.takeBatch(pipeline.getQueue(0), 10));
+
+        assertEquals(2, published.size());
+        assertEquals(2, pipeline.getPublishedCount());
+        assertEquals(1, pipeline.getFailedCount());
+
+        pipeline.resetStatistics();
+        assertEquals(0, pipeline.getPublishedCount());
+        assertEquals(0, pipeline.getFailedCount());
+    }
+
+    @Test
+    public void testOverflowPolicyFromString() {
+        assertEquals(ActionEventPipeline.OverflowPolicy.Drop, ActionEventPipeline.OverflowPolicy.fromString("drop"));
+        assertEquals(ActionEventPipeline.OverflowPolicy.Block, ActionEventPipeline.OverflowPolicy.fromString("Block"));
+        assertEquals(ActionEventPipeline.OverflowPolicy.CallerRuns, ActionEventPipeline.OverflowPolicy.fromString("callerruns"));
+        assertEquals(ActionEventPipeline.OverflowPolicy.Block, ActionEventPipeline.OverflowPolicy.fromString("unknown"));
+    }
+}
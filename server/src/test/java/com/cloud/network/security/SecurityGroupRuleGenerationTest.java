@@ -0,0 +1,325 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.network.security;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.cloud.agent.AgentManager;
+import com.cloud.agent.Listener;
+import com.cloud.agent.api.Command;
+import com.cloud.agent.api.SecurityGroupMembersCmd;
+import com.cloud.agent.api.SecurityGroupMembersCmd.GroupMembers;
+import com.cloud.agent.api.SecurityGroupRulesCmd;
+import com.cloud.agent.manager.Commands;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.network.security.SecurityGroupManagerImpl.PortAndProto;
+import com.cloud.network.security.SecurityRule.SecurityRuleType;
+import com.cloud.network.security.dao.SecurityGroupRuleDao;
+import com.cloud.network.security.dao.SecurityGroupVMMapDao;
+import com.cloud.vm.NicVO;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.VirtualMachine.State;
+import com.cloud.vm.dao.NicDao;
+import com.cloud.vm.dao.VMInstanceDao;
+
+public class SecurityGroupRuleGenerationTest {
+    private static final long GROUP_ID = 1l;
+    private static final int MEMBERS = 2000;
+    private static final int HOSTS = 4;
+
+    SecurityGroupManagerImpl2 sgMgr;
+    SecurityGroupVMMapDao securityGroupVMMapDao = mock(SecurityGroupVMMapDao.class);
+    SecurityGroupRuleDao securityGroupRuleDao = mock(SecurityGroupRuleDao.class);
+    List<SecurityGroupVMMapVO> members = new ArrayList<SecurityGroupVMMapVO>();
+    List<SecurityGroupRuleVO> ingressRules;
+
+    @Before
+    public void setUp() {
+        sgMgr = new SecurityGroupManagerImpl2();
+        sgMgr._securityGroupVMMapDao = securityGroupVMMapDao;
+        sgMgr._securityGroupRuleDao = securityGroupRuleDao;
+
+        for (long vmId = 1; vmId <= MEMBERS; vmId++) {
+            members.add(createMember(vmId));
+        }
+        SecurityGroupVMMapVO membership = mock(SecurityGroupVMMapVO.class);
+        when(membership.getSecurityGroupId()).thenReturn(GROUP_ID);
+        when(securityGroupVMMapDao.listByInstanceId(anyLong())).thenReturn(Arrays.asList(membership));
+        when(securityGroupVMMapDao.listBySecurityGroup(GROUP_ID, State.Running)).thenReturn(members);
+        ingressRules = Arrays.asList(new SecurityGroupRuleVO(SecurityRuleType.IngressRule, GROUP_ID, 22, 22, "tcp", GROUP_ID),
+            new SecurityGroupRuleVO(SecurityRuleType.IngressRule, GROUP_ID, 80, 80, "tcp", GROUP_ID),
+            new SecurityGroupRuleVO(SecurityRuleType.IngressRule, GROUP_ID, 53, 53, "udp", GROUP_ID));
+        when(securityGroupRuleDao.listBySecurityGroupId(GROUP_ID, SecurityRuleType.IngressRule)).thenReturn(ingressRules);
+        when(securityGroupRuleDao.listBySecurityGroupId(GROUP_ID, SecurityRuleType.EgressRule)).thenReturn(new ArrayList<SecurityGroupRuleVO>());
+    }
+
+    private SecurityGroupVMMapVO createMember(long vmId) {
+        SecurityGroupVMMapVO member = mock(SecurityGroupVMMapVO.class);
+        when(member.getInstanceId()).thenReturn(vmId);
+        when(member.getSecurityGroupId()).thenReturn(GROUP_ID);
+        when(member.getGuestIpAddress()).thenReturn("10.1." + (vmId / 256) + "." + (vmId % 256));
+        return member;
+    }
+
+    private Map<PortAndProto, Set<String>> generateIngress(long vmId, Map<Long, Set<String>> groupMemberCidrs) {
+        return sgMgr.generateRulesForVM(vmId, SecurityRuleType.IngressRule, groupMemberCidrs);
+    }
+
+    @Test
+    public void groupMembersAreResolvedOncePerBatch() {
+        Map<Long, Set<String>> groupMemberCidrs = new HashMap<Long, Set<String>>();
+        for (long vmId = 1; vmId <= 100; vmId++) {
+            Map<PortAndProto, Set<String>> ingress = generateIngress(vmId, groupMemberCidrs);
+            Assert.assertEquals(3, ingress.size());
+            for (Set<String> cidrs : ingress.values()) {
+                Assert.assertEquals(MEMBERS, cidrs.size());
+            }
+        }
+        verify(securityGroupVMMapDao, times(1)).listBySecurityGroup(GROUP_ID, State.Running);
+    }
+
+    @Test
+    public void membershipChangesShowInTheNextBatch() {
+        Map<PortAndProto, Set<String>> before = generateIngress(1l, new HashMap<Long, Set<String>>());
+
+        members.add(createMember(MEMBERS + 1));
+        Map<PortAndProto, Set<String>> afterJoin = generateIngress(1l, new HashMap<Long, Set<String>>());
+        members.remove(0);
+        Map<PortAndProto, Set<String>> afterLeave = generateIngress(1l, new HashMap<Long, Set<String>>());
+
+        for (PortAndProto portAndProto : before.keySet()) {
+            Assert.assertEquals(MEMBERS + 1, afterJoin.get(portAndProto).size());
+            Assert.assertTrue(afterJoin.get(portAndProto).contains("10.1.7.209/32"));
+            Assert.assertEquals(MEMBERS, afterLeave.get(portAndProto).size());
+            Assert.assertFalse(afterLeave.get(portAndProto).contains("10.1.0.1/32"));
+        }
+        verify(securityGroupVMMapDao, times(3)).listBySecurityGroup(GROUP_ID, State.Running);
+    }
+
+    @Test
+    public void rulesetPayloadIsCompressed() {
+        Map<Long, Set<String>> groupMemberCidrs = new HashMap<Long, Set<String>>();
+        Map<PortAndProto, Set<String>> ingress = generateIngress(1l, groupMemberCidrs);
+        Map<PortAndProto, Set<String>> egress = sgMgr.generateRulesForVM(1l, SecurityRuleType.EgressRule, groupMemberCidrs);
+
+        SecurityGroupRulesCmd cmd = sgMgr.generateRulesetCmd("i-2-1-VM", "10.1.0.1", null, "02:00:00:00:00:01", 1l, null, 1l, ingress, egress, null);
+
+        Assert.assertEquals(3 * MEMBERS, cmd.getTotalNumCidrs());
+        Assert.assertTrue(cmd.compressStringifiedRules().length() < cmd.stringifyRules().length() / 4);
+    }
+
+    @Test
+    public void defaultNicsAreLoadedInOneQuery() {
+        SecurityGroupManagerImpl baseMgr = new SecurityGroupManagerImpl();
+        NicDao nicDao = mock(NicDao.class);
+        baseMgr._securityGroupVMMapDao = securityGroupVMMapDao;
+        baseMgr._nicDao = nicDao;
+        List<NicVO> nics = new ArrayList<NicVO>();
+        for (SecurityGroupVMMapVO member : members) {
+            NicVO nic = mock(NicVO.class);
+            when(nic.getIPv4Address()).thenReturn(member.getGuestIpAddress());
+            nics.add(nic);
+        }
+        when(nicDao.listDefaultNicsForVms(anyList())).thenReturn(nics);
+
+        Set<String> cidrs = baseMgr.listGroupMemberCidrs(GROUP_ID);
+
+        Assert.assertEquals(MEMBERS, cidrs.size());
+        verify(nicDao, times(1)).listDefaultNicsForVms(memberIds());
+    }
+
+    private List<Long> memberIds() {
+        List<Long> ids = new ArrayList<Long>();
+        for (SecurityGroupVMMapVO member : members) {
+            ids.add(member.getInstanceId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void groupSetRulesDoNotGrowWithTheGroup() {
+        Map<Long, Set<String>> groupMemberCidrs = new HashMap<Long, Set<String>>();
+        Map<PortAndProto, Set<Long>> ingressGroups = new TreeMap<PortAndProto, Set<Long>>();
+        Map<PortAndProto, Set<Long>> egressGroups = new TreeMap<PortAndProto, Set<Long>>();
+        Map<PortAndProto, Set<String>> ingress = sgMgr.generateRulesForVM(1l, SecurityRuleType.IngressRule, groupMemberCidrs, ingressGroups);
+        Map<PortAndProto, Set<String>> egress = sgMgr.generateRulesForVM(1l, SecurityRuleType.EgressRule, groupMemberCidrs, egressGroups);
+
+        Assert.assertTrue(ingress.isEmpty());
+        Assert.assertEquals(3, ingressGroups.size());
+        verify(securityGroupVMMapDao, never()).listBySecurityGroup(GROUP_ID, State.Running);
+
+        SecurityGroupRulesCmd cmd = sgMgr.generateRulesetCmd("i-2-1-VM", "10.1.0.1", null, "02:00:00:00:00:01", 1l, null, 1l, ingress, egress, ingressGroups, egressGroups, null);
+        Assert.assertEquals(0, cmd.getTotalNumCidrs());
+        Assert.assertEquals(3, cmd.getTotalNumGroupSets());
+        Assert.assertTrue(cmd.stringifyRules().contains("set:sg_1,"));
+        Assert.assertTrue(cmd.stringifyRules().length() < 100);
+
+        SecurityGroupMembersCmd membersCmd = sgMgr.generateGroupMembersCmd(1l, ingressGroups, egressGroups, groupMemberCidrs);
+        Assert.assertEquals(1, membersCmd.getGroups().size());
+        Assert.assertTrue(membersCmd.getGroups().get(0).isReplace());
+        Assert.assertEquals(MEMBERS, membersCmd.getGroups().get(0).getAddedCidrs().size());
+        verify(securityGroupVMMapDao, times(1)).listBySecurityGroup(GROUP_ID, State.Running);
+    }
+
+    @Test
+    public void memberChangesAreSentAsOneDeltaPerHost() throws Exception {
+        AgentManager agentMgr = mockGroupSetHosts();
+        VMInstanceVO joining = createVm(MEMBERS + 1, 1l, "10.1.7.209");
+        VMInstanceVO leaving = createVm(1l, 2l, "10.1.0.1");
+
+        List<Long> rulesetVms = sgMgr.submitGroupMemberUpdates(joining, affectedVms(joining.getId()), true);
+        Assert.assertEquals(Arrays.asList(joining.getId()), rulesetVms);
+        rulesetVms = sgMgr.submitGroupMemberUpdates(leaving, affectedVms(leaving.getId()), false);
+        Assert.assertEquals(Arrays.asList(leaving.getId()), rulesetVms);
+        verify(sgMgr._memberUpdateExecutor, times(1)).schedule(any(Runnable.class), eq(100l), eq(TimeUnit.MILLISECONDS));
+
+        List<GroupMembers> updates = flush(agentMgr);
+        for (GroupMembers update : updates) {
+            Assert.assertEquals("sg_1", update.getSetName());
+            Assert.assertFalse(update.isReplace());
+            Assert.assertEquals(Arrays.asList("10.1.7.209/32"), update.getAddedCidrs());
+            Assert.assertEquals(Arrays.asList("10.1.0.1/32"), update.getRemovedCidrs());
+        }
+    }
+
+    @Test
+    public void memberChangesAreCoalescedUntilTheFlush() throws Exception {
+        AgentManager agentMgr = mockGroupSetHosts();
+        VMInstanceVO member = createVm(MEMBERS + 1, 1l, "10.1.7.209");
+
+        sgMgr.submitGroupMemberUpdates(member, affectedVms(member.getId()), true);
+        sgMgr.submitGroupMemberUpdates(member, affectedVms(member.getId()), false);
+        sgMgr.submitGroupMemberUpdates(member, affectedVms(member.getId()), true);
+
+        List<GroupMembers> updates = flush(agentMgr);
+        for (GroupMembers update : updates) {
+            Assert.assertEquals(Arrays.asList("10.1.7.209/32"), update.getAddedCidrs());
+            Assert.assertTrue(update.getRemovedCidrs().isEmpty());
+        }
+        Assert.assertEquals(0, sgMgr._memberUpdateQueue.size());
+    }
+
+    @Test
+    public void membersOfGroupsWithoutSetsGetRulesets() {
+        mockGroupSetHosts();
+        VMInstanceVO member = createVm(MEMBERS + 1, 1l, "10.1.7.209");
+        List<VMInstanceVO> xenVms = new ArrayList<VMInstanceVO>();
+        for (SecurityGroupVMMapVO vm : members) {
+            VMInstanceVO xenVm = createVm(vm.getInstanceId(), 1l, vm.getGuestIpAddress());
+            when(xenVm.getHypervisorType()).thenReturn(HypervisorType.XenServer);
+            xenVms.add(xenVm);
+        }
+        when(sgMgr._vmDao.listByIds(anyList())).thenReturn(xenVms);
+
+        List<Long> rulesetVms = sgMgr.submitGroupMemberUpdates(member, affectedVms(member.getId()), true);
+
+        Assert.assertEquals(MEMBERS + 1, rulesetVms.size());
+        Assert.assertEquals(0, sgMgr._memberUpdateQueue.size());
+    }
+
+    /**
+     * Members 1..MEMBERS run on KVM, spread over HOSTS hosts
+     */
+    private AgentManager mockGroupSetHosts() {
+        AgentManager agentMgr = mock(AgentManager.class);
+        sgMgr._agentMgr = agentMgr;
+        sgMgr._nicDao = mock(NicDao.class);
+        sgMgr._vmDao = mock(VMInstanceDao.class);
+        sgMgr._memberUpdateExecutor = mock(ScheduledExecutorService.class);
+
+        List<VMInstanceVO> vms = new ArrayList<VMInstanceVO>();
+        for (SecurityGroupVMMapVO member : members) {
+            vms.add(createVm(member.getInstanceId(), 1 + member.getInstanceId() % HOSTS, member.getGuestIpAddress()));
+        }
+        when(sgMgr._vmDao.listByIds(anyList())).thenReturn(vms);
+        when(securityGroupRuleDao.listByAllowedSecurityGroupId(GROUP_ID)).thenReturn(ingressRules);
+        List<Long> memberIds = memberIds();
+        memberIds.add(MEMBERS + 1l);
+        when(securityGroupVMMapDao.listVmIdsBySecurityGroup(GROUP_ID)).thenReturn(memberIds);
+        return agentMgr;
+    }
+
+    private VMInstanceVO createVm(long vmId, long hostId, String ip) {
+        VMInstanceVO vm = mock(VMInstanceVO.class);
+        when(vm.getId()).thenReturn(vmId);
+        when(vm.getHostId()).thenReturn(hostId);
+        when(vm.getState()).thenReturn(State.Running);
+        when(vm.getHypervisorType()).thenReturn(HypervisorType.KVM);
+        NicVO nic = mock(NicVO.class);
+        when(nic.getIPv4Address()).thenReturn(ip);
+        if (sgMgr._nicDao != null) {
+            when(sgMgr._nicDao.findDefaultNicForVM(vmId)).thenReturn(nic);
+        }
+        return vm;
+    }
+
+    /**
+     * @return the vms that a start or stop of the vm affects, as the manager lists them
+     */
+    private List<Long> affectedVms(long vmId) {
+        List<Long> affected = new ArrayList<Long>();
+        affected.add(vmId);
+        affected.addAll(memberIds());
+        return affected;
+    }
+
+    /**
+     * A full ruleset for every vm of the group would carry 3 rules of MEMBERS cidrs each, the deltas carry one update per host.
+     */
+    private List<GroupMembers> flush(AgentManager agentMgr) throws Exception {
+        sgMgr.flushGroupMemberUpdates();
+
+        ArgumentCaptor<Commands> sent = ArgumentCaptor.forClass(Commands.class);
+        verify(agentMgr, times(HOSTS)).send(anyLong(), sent.capture(), any(Listener.class));
+        List<GroupMembers> updates = new ArrayList<GroupMembers>();
+        int vmIds = 0;
+        for (Commands cmds : sent.getAllValues()) {
+            Command[] commands = cmds.toCommands();
+            Assert.assertEquals(1, commands.length);
+            SecurityGroupMembersCmd cmd = (SecurityGroupMembersCmd)commands[0];
+            Assert.assertEquals(1, cmd.getGroups().size());
+            Assert.assertTrue(cmd.getTotalNumCidrs() <= 2);
+            vmIds += cmd.getVmIds().size();
+            updates.addAll(cmd.getGroups());
+        }
+        Assert.assertEquals(MEMBERS, vmIds);
+        return updates;
+    }
+}
@@ -0,0 +1,103 @@
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+package com.cloud.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.host.HostVO;
+import com.cloud.vm.VmStats;
+
+public class StatsCollectorTest {
+
+    private StatsCollector _collector;
+    private ExecutorService _workers;
+
+    @Before
+    public void setUp() {
+        _collector = new StatsCollector();
+        _workers = Executors.newFixedThreadPool(4);
+        ReflectionTestUtils.setField(_collector, "_collectorWorkers", _workers);
+    }
+
+    @After
+    public void tearDown() {
+        _workers.shutdownNow();
+    }
+
+    @Test
+    public void testMergeVmStatsAccumulatesCountersIntoNewEntry() {
+        VmStatsEntry first = new VmStatsEntry(10, 1, 2, 3, 4, 1, "UserVm");
+        _collector.mergeVmStats(1L, first);
+        assertEquals(first, _collector.getVmStats(1L));
+
+        VmStatsEntry second = new VmStatsEntry(20, 10, 20, 30, 40, 2, "UserVm");
+        _collector.mergeVmStats(1L, second);
+
+        VmStats merged = _collector.getVmStats(1L);
+        assertNotSame(first, merged);
+        assertNotSame(second, merged);
+        assertEquals(20, merged.getCPUUtilization(), 0);
+        assertEquals(2, merged.getNumCPUs());
+        assertEquals(11, merged.getNetworkReadKBs(), 0);
+        assertEquals(22, merged.getNetworkWriteKBs(), 0);
+        assertEquals(33, merged.getDiskReadKBs(), 0);
+        assertEquals(44, merged.getDiskWriteKBs(), 0);
+        assertEquals(1, first.getNetworkReadKBs(), 0);
+    }
+
+    @Test
+    public void testCollectFromHostsRecordsRoundAndFailures() {
+        List<HostVO> hosts = new ArrayList<HostVO>();
+        for (long id = 1; id <= 8; id++) {
+            HostVO host = Mockito.mock(HostVO.class);
+            Mockito.when(host.getId()).thenReturn(id);
+            hosts.add(host);
+        }
+
+        final Set<Long> collected = ConcurrentHashMap.newKeySet();
+        StatsCollectorMBeanImpl.RoundStatistics statistics = new StatsCollectorMBeanImpl.RoundStatistics();
+        _collector.collectFromHosts(hosts, new StatsCollector.HostStatsTask() {
+            @Override
+            public void collect(HostVO host) {
+                if (host.getId() == 3) {
+                    throw new RuntimeException("unreachable");
+                }
+                collected.add(host.getId());
+            }
+        }, statistics, "test");
+
+        assertEquals(7, collected.size());
+        assertEquals(8, statistics.getLastRoundHosts());
+        assertEquals(0, statistics.getLastRoundMissedHosts());
+        assertEquals(0, statistics.getTotalMissedHosts());
+    }
+}
@@ -133,6 +133,11 @@ public class MockUsageEventDao implements UsageEventDao{
         return 0;
     }
 
+    @Override
+    public int updateAll(List<UsageEventVO> entities) {
+        return 0;
+    }
+
     @Override
     public List<UsageEventVO> listAll() {
         return persistedItems;
@@ -191,6 +196,12 @@ public class MockUsageEventDao implements UsageEventDao{
         return entity;
     }
 
+    @Override
+    public List<UsageEventVO> persistAll(List<UsageEventVO> entities) {
+        persistedItems.addAll(entities);
+        return entities;
+    }
+
     @Override
     public boolean remove(Long id) {
         return false;
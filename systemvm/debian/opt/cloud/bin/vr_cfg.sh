@@ -20,6 +20,9 @@
 
 cfg=
 version=
+compressed=
+immediate=
+item=0
 log=/var/log/cloud.log
 
 log_it() {
@@ -27,12 +30,37 @@ log_it() {
     echo "$(date) : $*" >> $log
 }
 
-while getopts 'c:' OPTION; do
+# report the result of an item of a bundle, so that the caller can map it back
+item_done() {
+    if [ -n "$compressed" ]; then
+        echo "VR config item $item: $1"
+    fi
+    item=$((item+1))
+}
+
+# -z: the config file is gzip compressed and base64 encoded (a bundle)
+# -i: apply every item right away, without deferring the dhcp/vmdata updates and the conntrack flush
+while getopts 'c:zi' OPTION; do
     case $OPTION in
         c) cfg="$OPTARG" ;;
+        z) compressed=1 ;;
+        i) immediate=1 ;;
 esac; done
 
-export DEFER_CONFIG=true
+input=$cfg
+if [ -n "$compressed" ]; then
+    input=$(mktemp /tmp/vr_cfg.XXXXXX)
+    trap "rm -f $input" EXIT
+    if ! base64 -d $cfg | gunzip > $input; then
+        log_it "VR config: unable to unpack $cfg"
+        echo "VR config: unable to unpack $cfg" 1>&2
+        exit 1
+    fi
+fi
+
+if [ -z "$immediate" ]; then
+    export DEFER_CONFIG=true
+fi
 while read line; do
     #comment
     if [[ $line == \#* ]]; then
@@ -53,11 +81,13 @@ while read line; do
             log_it "VR config: executing failed: $line"
             # expose error info to mgmt server
             echo "VR config: execution failed: \"$line\", check $log in VR for details " 1>&2
+            item_done failed
             exit 1
         fi
         #skip </script>
         read line
         log_it "VR config: execution success "
+        item_done success
 
     elif [ "$line" == "<file>" ]; then
         read line
@@ -71,14 +101,19 @@ while read line; do
             echo $line >> $file
         done
         log_it "VR config: create file success"
+        item_done success
 
     fi
 
-done < $cfg
+done < $input
 
 # archive the configuration file
 mv $cfg /var/cache/cloud/processed/
 
+if [ -n "$immediate" ]; then
+    exit 0
+fi
+
 unset DEFER_CONFIG
 # trigger finish_config()
 if [ -f /etc/cloudstack/dhcpentry.json ]; then
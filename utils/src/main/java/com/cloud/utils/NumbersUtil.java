@@ -25,6 +25,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Formatter;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.math.NumberUtils;
 
@@ -136,4 +137,15 @@ public class NumbersUtil {
     public static int hash(long value) {
         return (int)(value ^ (value >>> 32));
     }
+
+    /**
+     * Raises max to value if value is larger, without locking; used to keep the maximum of latencies recorded
+     * concurrently.
+     */
+    public static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
 }
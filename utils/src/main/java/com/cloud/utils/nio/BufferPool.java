@@ -0,0 +1,114 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers in power of two size classes, used by Link so that
+ * reading and writing a packet does not allocate a new buffer each time.
+ * Buffers larger than the biggest size class are allocated on the heap and
+ * never pooled.
+ */
+public class BufferPool {
+    private static final int MIN_SIZE_SHIFT = 12; // 4K
+    private static final int MAX_SIZE_SHIFT = 16; // 64K
+
+    private static final BufferPool s_instance = new BufferPool(64);
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] _free;
+    private final AtomicInteger[] _freeCount;
+    private final int _maxFreePerClass;
+    private final AtomicLong _allocated = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxFreePerClass) {
+        int classes = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+        _free = new ConcurrentLinkedQueue[classes];
+        _freeCount = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            _free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            _freeCount[i] = new AtomicInteger();
+        }
+        _maxFreePerClass = maxFreePerClass;
+    }
+
+    public static BufferPool getInstance() {
+        return s_instance;
+    }
+
+    /**
+     * @return a cleared buffer with a capacity of at least size bytes, it should
+     * be given back with release() once it is not used any more.
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass < 0) {
+            _allocated.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = _free[sizeClass].poll();
+        if (buffer != null) {
+            _freeCount[sizeClass].decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        _allocated.incrementAndGet();
+        return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SIZE_SHIFT));
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || buffer.capacity() != 1 << (sizeClass + MIN_SIZE_SHIFT)) {
+            return;
+        }
+        if (_freeCount[sizeClass].incrementAndGet() > _maxFreePerClass) {
+            // pool is full, let the buffer be garbage collected
+            _freeCount[sizeClass].decrementAndGet();
+            return;
+        }
+        _free[sizeClass].offer(buffer);
+    }
+
+    /**
+     * @return number of buffers allocated by this pool so far, a pool in steady state should
+     * not see this number grow.
+     */
+    public long getAllocatedCount() {
+        return _allocated.get();
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 0) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (shift > MAX_SIZE_SHIFT) {
+            return -1;
+        }
+        return Math.max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+    }
+}
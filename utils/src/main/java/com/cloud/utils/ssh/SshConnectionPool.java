@@ -0,0 +1,455 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.ssh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.NumbersUtil;
+import com.cloud.utils.mgmt.JmxUtil;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.Session;
+
+/**
+ * Keeps authenticated SSH connections open between calls, keyed by host, port, user and
+ * credentials. Exec and scp each run in their own channel, so a connection carries up to
+ * maxSessionsPerConnection of them at once over the same transport. Connections that stayed idle
+ * longer than the idle timeout are closed by a background timer.
+ *
+ * A pooled connection may be half-open, e.g. after the router was destroyed, and trilead waits for a new
+ * channel without a timeout. Channels are therefore opened under a watchdog that closes the connection when
+ * the connect timeout runs out, and connections idle for a few seconds are checked that way before they are
+ * handed out again.
+ */
+public class SshConnectionPool {
+    private static final Logger s_logger = Logger.getLogger(SshConnectionPool.class);
+
+    public static final int DEFAULT_MAX_SESSIONS_PER_CONNECTION = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000; // ms
+    static final long VALIDATE_AFTER_IDLE = 2000; // ms
+
+    private static SshConnectionPool s_defaultPool;
+
+    /**
+     * Pool shared by everything in this JVM that runs commands on system VMs, e.g. the virtual
+     * router deployers
+     */
+    public static synchronized SshConnectionPool getDefault() {
+        if (s_defaultPool == null) {
+            s_defaultPool = new SshConnectionPool(DEFAULT_MAX_SESSIONS_PER_CONNECTION, DEFAULT_IDLE_TIMEOUT);
+            try {
+                JmxUtil.registerMBean("SshConnectionPool", "Default", new SshConnectionPoolMBeanImpl(s_defaultPool));
+            } catch (Exception e) {
+                s_logger.warn("Unable to register SSH connection pool statistics to JMX monitoring due to " + e.getMessage());
+            }
+        }
+        return s_defaultPool;
+    }
+
+    static final class ConnectionKey {
+        private final String _host;
+        private final int _port;
+        private final String _user;
+        private final File _pemKeyFile;
+        private final String _password;
+
+        ConnectionKey(String host, int port, String user, File pemKeyFile, String password) {
+            _host = host;
+            _port = port;
+            _user = user;
+            _pemKeyFile = pemKeyFile;
+            _password = password;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ConnectionKey)) {
+                return false;
+            }
+            ConnectionKey other = (ConnectionKey)obj;
+            return _port == other._port && Objects.equals(_host, other._host) && Objects.equals(_user, other._user) && Objects.equals(_pemKeyFile, other._pemKeyFile)
+                    && Objects.equals(_password, other._password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(_host, _port, _user, _pemKeyFile);
+        }
+
+        @Override
+        public String toString() {
+            return _user + "@" + _host + ":" + _port;
+        }
+    }
+
+    public final class PooledConnection implements ConnectionMonitor {
+        private final ConnectionKey _key;
+        private final Connection _connection;
+        // guarded by the pool
+        private int _sessions;
+        private long _lastReleased;
+        private boolean _reused;
+        private volatile boolean _broken;
+
+        PooledConnection(ConnectionKey key, Connection connection) {
+            _key = key;
+            _connection = connection;
+        }
+
+        public Connection getConnection() {
+            return _connection;
+        }
+
+        /**
+         * @return true if the connection was opened for an earlier caller, in which case its
+         *         transport may have gone away while it was idle
+         */
+        public boolean isReused() {
+            return _reused;
+        }
+
+        @Override
+        public void connectionLost(Throwable reason) {
+            if (!_broken) {
+                _broken = true;
+                _brokenCount.incrementAndGet();
+            }
+        }
+    }
+
+    private final int _maxSessionsPerConnection;
+    private final long _idleTimeout;
+    private final Map<ConnectionKey, List<PooledConnection>> _connections = new HashMap<ConnectionKey, List<PooledConnection>>();
+    private Timer _timer;
+
+    private final AtomicLong _handshakeCount = new AtomicLong();
+    private final AtomicLong _reuseCount = new AtomicLong();
+    private final AtomicLong _evictedCount = new AtomicLong();
+    private final AtomicLong _brokenCount = new AtomicLong();
+    private final AtomicLong _executionCount = new AtomicLong();
+    private final AtomicLong _totalExecutionLatency = new AtomicLong();
+    private final AtomicLong _maxExecutionLatency = new AtomicLong();
+
+    public SshConnectionPool(int maxSessionsPerConnection, long idleTimeout) {
+        _maxSessionsPerConnection = Math.max(1, maxSessionsPerConnection);
+        _idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Hands out a connection with room for one more session, opening and authenticating a new one
+     * if there is none. Every acquire has to be matched by a {@link #release}.
+     *
+     * @param reuse false to skip the open connections, e.g. after a reused one turned out to be stale
+     */
+    public PooledConnection acquire(String host, int port, String user, File pemKeyFile, String password, int connectTimeoutInMs, int kexTimeoutInMs, boolean reuse)
+            throws Exception {
+        ConnectionKey key = new ConnectionKey(host, port, user, pemKeyFile, password);
+        while (reuse) {
+            boolean validate = false;
+            PooledConnection pooled = null;
+            List<PooledConnection> stale = new ArrayList<PooledConnection>();
+            try {
+                synchronized (this) {
+                    List<PooledConnection> connections = _connections.get(key);
+                    if (connections != null) {
+                        for (Iterator<PooledConnection> it = connections.iterator(); it.hasNext();) {
+                            PooledConnection candidate = it.next();
+                            if (candidate._broken) {
+                                if (candidate._sessions == 0) {
+                                    it.remove();
+                                    stale.add(candidate);
+                                }
+                            } else if (candidate._sessions < _maxSessionsPerConnection) {
+                                validate = candidate._sessions == 0 && System.currentTimeMillis() - candidate._lastReleased >= VALIDATE_AFTER_IDLE;
+                                candidate._sessions++;
+                                candidate._reused = true;
+                                _reuseCount.incrementAndGet();
+                                pooled = candidate;
+                                break;
+                            }
+                        }
+                    }
+                }
+            } finally {
+                closeConnections(stale);
+            }
+
+            if (pooled == null) {
+                break;
+            }
+            if (!validate || isAlive(pooled, connectTimeoutInMs)) {
+                return pooled;
+            }
+            release(pooled, false);
+        }
+
+        // connect and authenticate outside the lock, other hosts should not wait for this one
+        Connection connection = connect(key, connectTimeoutInMs, kexTimeoutInMs);
+        _handshakeCount.incrementAndGet();
+        PooledConnection pooled = new PooledConnection(key, connection);
+        pooled._sessions = 1;
+        connection.addConnectionMonitor(pooled);
+
+        synchronized (this) {
+            List<PooledConnection> connections = _connections.get(key);
+            if (connections == null) {
+                connections = new ArrayList<PooledConnection>();
+                _connections.put(key, connections);
+            }
+            connections.add(pooled);
+            getTimer();
+        }
+        return pooled;
+    }
+
+    /**
+     * Opens a session on the connection. If the channel is not open after timeoutInMs the connection is
+     * closed, which fails the open with an IOException, and it is not handed out again.
+     */
+    public Session openSession(final PooledConnection pooled, int timeoutInMs) throws IOException {
+        TimerTask watchdog = new TimerTask() {
+            @Override
+            public void run() {
+                s_logger.warn("Timed out opening a channel on the SSH connection to " + pooled._key + ", closing it");
+                pooled.connectionLost(null);
+                closeConnection(pooled);
+            }
+        };
+        getTimer().schedule(watchdog, Math.max(1, timeoutInMs));
+        try {
+            return openChannel(pooled._connection);
+        } finally {
+            watchdog.cancel();
+        }
+    }
+
+    protected Session openChannel(Connection connection) throws IOException {
+        return connection.openSession();
+    }
+
+    private boolean isAlive(PooledConnection pooled, int timeoutInMs) {
+        try {
+            openSession(pooled, timeoutInMs).close();
+            return true;
+        } catch (IOException e) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Idle SSH connection to " + pooled._key + " is gone: " + e.getMessage());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the timer running the watchdogs, started along with the eviction of idle connections
+     */
+    private synchronized Timer getTimer() {
+        if (_timer == null) {
+            _timer = new Timer("SshConnectionPool-Timer", true);
+            long interval = Math.max(1000, _idleTimeout / 2);
+            _timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        evictIdleConnections();
+                    } catch (Throwable e) {
+                        s_logger.warn("Unable to evict idle SSH connections due to " + e.getMessage());
+                    }
+                }
+            }, interval, interval);
+        }
+        return _timer;
+    }
+
+    protected Connection connect(ConnectionKey key, int connectTimeoutInMs, int kexTimeoutInMs) throws Exception {
+        return SshHelper.openConnection(key._host, key._port, key._user, key._pemKeyFile, key._password, connectTimeoutInMs, kexTimeoutInMs);
+    }
+
+    /**
+     * @param reusable false if the connection failed and must not be handed out again
+     */
+    public void release(PooledConnection pooled, boolean reusable) {
+        PooledConnection toClose = null;
+        synchronized (this) {
+            pooled._sessions--;
+            pooled._lastReleased = System.currentTimeMillis();
+            if (!reusable && !pooled._broken) {
+                pooled._broken = true;
+                _brokenCount.incrementAndGet();
+            }
+            if (pooled._broken && pooled._sessions == 0) {
+                removeConnection(pooled);
+                toClose = pooled;
+            }
+        }
+        if (toClose != null) {
+            closeConnection(toClose);
+        }
+    }
+
+    public void recordExecution(long latency) {
+        _executionCount.incrementAndGet();
+        _totalExecutionLatency.addAndGet(latency);
+        NumbersUtil.updateMax(_maxExecutionLatency, latency);
+    }
+
+    void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> idle = new ArrayList<PooledConnection>();
+        synchronized (this) {
+            for (Iterator<List<PooledConnection>> it = _connections.values().iterator(); it.hasNext();) {
+                List<PooledConnection> connections = it.next();
+                for (Iterator<PooledConnection> connIt = connections.iterator(); connIt.hasNext();) {
+                    PooledConnection pooled = connIt.next();
+                    if (pooled._sessions == 0 && (pooled._broken || now - pooled._lastReleased >= _idleTimeout)) {
+                        connIt.remove();
+                        idle.add(pooled);
+                    }
+                }
+                if (connections.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        _evictedCount.addAndGet(idle.size());
+        closeConnections(idle);
+    }
+
+    /**
+     * Closes all connections, including those that are in use
+     */
+    public void shutdown() {
+        List<PooledConnection> all = new ArrayList<PooledConnection>();
+        synchronized (this) {
+            for (List<PooledConnection> connections : _connections.values()) {
+                all.addAll(connections);
+            }
+            _connections.clear();
+            if (_timer != null) {
+                _timer.cancel();
+                _timer = null;
+            }
+        }
+        closeConnections(all);
+    }
+
+    private void removeConnection(PooledConnection pooled) {
+        List<PooledConnection> connections = _connections.get(pooled._key);
+        if (connections != null) {
+            connections.remove(pooled);
+            if (connections.isEmpty()) {
+                _connections.remove(pooled._key);
+            }
+        }
+    }
+
+    private void closeConnections(List<PooledConnection> connections) {
+        for (PooledConnection pooled : connections) {
+            closeConnection(pooled);
+        }
+    }
+
+    private void closeConnection(PooledConnection pooled) {
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Closing pooled SSH connection to " + pooled._key);
+        }
+        try {
+            pooled._connection.close();
+        } catch (Exception e) {
+            s_logger.debug("[ignored] error while closing SSH connection to " + pooled._key + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized int getOpenConnections() {
+        int count = 0;
+        for (List<PooledConnection> connections : _connections.values()) {
+            count += connections.size();
+        }
+        return count;
+    }
+
+    public synchronized int getActiveSessions() {
+        int count = 0;
+        for (List<PooledConnection> connections : _connections.values()) {
+            for (PooledConnection pooled : connections) {
+                count += pooled._sessions;
+            }
+        }
+        return count;
+    }
+
+    public int getMaxSessionsPerConnection() {
+        return _maxSessionsPerConnection;
+    }
+
+    public long getIdleTimeout() {
+        return _idleTimeout;
+    }
+
+    public long getHandshakeCount() {
+        return _handshakeCount.get();
+    }
+
+    public long getReuseCount() {
+        return _reuseCount.get();
+    }
+
+    public long getEvictedCount() {
+        return _evictedCount.get();
+    }
+
+    public long getBrokenCount() {
+        return _brokenCount.get();
+    }
+
+    public long getExecutionCount() {
+        return _executionCount.get();
+    }
+
+    public long getAverageExecutionLatency() {
+        long count = _executionCount.get();
+        return count == 0 ? 0 : _totalExecutionLatency.get() / count;
+    }
+
+    public long getMaxExecutionLatency() {
+        return _maxExecutionLatency.get();
+    }
+
+    public void resetStatistics() {
+        _handshakeCount.set(0);
+        _reuseCount.set(0);
+        _evictedCount.set(0);
+        _brokenCount.set(0);
+        _executionCount.set(0);
+        _totalExecutionLatency.set(0);
+        _maxExecutionLatency.set(0);
+    }
+}
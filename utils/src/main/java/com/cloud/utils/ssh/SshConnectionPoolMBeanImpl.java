@@ -0,0 +1,91 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.ssh;
+
+import javax.management.StandardMBean;
+
+public class SshConnectionPoolMBeanImpl extends StandardMBean implements SshConnectionPoolMBean {
+    private final SshConnectionPool _pool;
+
+    public SshConnectionPoolMBeanImpl(SshConnectionPool pool) {
+        super(SshConnectionPoolMBean.class, false);
+        _pool = pool;
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return _pool.getOpenConnections();
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return _pool.getActiveSessions();
+    }
+
+    @Override
+    public int getMaxSessionsPerConnection() {
+        return _pool.getMaxSessionsPerConnection();
+    }
+
+    @Override
+    public long getIdleTimeout() {
+        return _pool.getIdleTimeout();
+    }
+
+    @Override
+    public long getHandshakeCount() {
+        return _pool.getHandshakeCount();
+    }
+
+    @Override
+    public long getReuseCount() {
+        return _pool.getReuseCount();
+    }
+
+    @Override
+    public long getEvictedCount() {
+        return _pool.getEvictedCount();
+    }
+
+    @Override
+    public long getBrokenCount() {
+        return _pool.getBrokenCount();
+    }
+
+    @Override
+    public long getExecutionCount() {
+        return _pool.getExecutionCount();
+    }
+
+    @Override
+    public long getAverageExecutionLatency() {
+        return _pool.getAverageExecutionLatency();
+    }
+
+    @Override
+    public long getMaxExecutionLatency() {
+        return _pool.getMaxExecutionLatency();
+    }
+
+    @Override
+    public void resetStatistics() {
+        _pool.resetStatistics();
+    }
+}
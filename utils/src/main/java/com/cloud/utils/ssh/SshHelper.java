@@ -65,22 +65,7 @@ public class SshHelper {
         com.trilead.ssh2.SCPClient scpClient = null;
 
         try {
-            conn = new com.trilead.ssh2.Connection(host, port);
-            conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
-
-            if (pemKeyFile == null) {
-                if (!conn.authenticateWithPassword(user, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
-                }
-            } else {
-                if (!conn.authenticateWithPublicKey(user, pemKeyFile, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
-                }
-            }
+            conn = openConnection(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs);
 
             scpClient = conn.createSCPClient();
 
@@ -98,37 +83,63 @@ public class SshHelper {
             String fileMode, int connectTimeoutInMs, int kexTimeoutInMs) throws Exception {
 
         com.trilead.ssh2.Connection conn = null;
-        com.trilead.ssh2.SCPClient scpClient = null;
 
         try {
-            conn = new com.trilead.ssh2.Connection(host, port);
-            conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
+            conn = openConnection(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs);
+            putData(conn, remoteTargetDirectory, data, remoteFileName, fileMode);
+        } finally {
+            if (conn != null)
+                conn.close();
+        }
+    }
 
-            if (pemKeyFile == null) {
-                if (!conn.authenticateWithPassword(user, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
-                }
-            } else {
-                if (!conn.authenticateWithPublicKey(user, pemKeyFile, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
+    /**
+     * Same as {@link #scpTo(String, int, String, File, String, String, byte[], String, String, int, int)},
+     * but over a connection from the pool
+     */
+    public static void scpTo(SshConnectionPool pool, String host, int port, String user, File pemKeyFile, String password, String remoteTargetDirectory, byte[] data,
+            String remoteFileName, String fileMode) throws Exception {
+
+        scpTo(pool, host, port, user, pemKeyFile, password, remoteTargetDirectory, data, remoteFileName, fileMode, DEFAULT_CONNECT_TIMEOUT, DEFAULT_KEX_TIMEOUT);
+    }
+
+    public static void scpTo(SshConnectionPool pool, String host, int port, String user, File pemKeyFile, String password, String remoteTargetDirectory, byte[] data,
+            String remoteFileName, String fileMode, int connectTimeoutInMs, int kexTimeoutInMs) throws Exception {
+
+        long startTime = System.currentTimeMillis();
+        SshConnectionPool.PooledConnection pooled = pool.acquire(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs, true);
+        boolean reusable = false;
+        try {
+            try {
+                putData(pooled.getConnection(), remoteTargetDirectory, data, remoteFileName, fileMode);
+            } catch (IOException e) {
+                if (!pooled.isReused()) {
+                    throw e;
                 }
+                // the transport may have gone away while the connection was idle, writing the file again is harmless
+                s_logger.debug("Pooled SSH connection to " + host + " failed, retrying on a new connection: " + e.getMessage());
+                pool.release(pooled, false);
+                pooled = null;
+                pooled = pool.acquire(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs, false);
+                putData(pooled.getConnection(), remoteTargetDirectory, data, remoteFileName, fileMode);
             }
-
-            scpClient = conn.createSCPClient();
-            if (fileMode != null)
-                scpClient.put(data, remoteFileName, remoteTargetDirectory, fileMode);
-            else
-                scpClient.put(data, remoteFileName, remoteTargetDirectory);
+            reusable = true;
         } finally {
-            if (conn != null)
-                conn.close();
+            if (pooled != null) {
+                pool.release(pooled, reusable);
+            }
+            pool.recordExecution(System.currentTimeMillis() - startTime);
         }
     }
 
+    private static void putData(Connection conn, String remoteTargetDirectory, byte[] data, String remoteFileName, String fileMode) throws IOException {
+        com.trilead.ssh2.SCPClient scpClient = conn.createSCPClient();
+        if (fileMode != null)
+            scpClient.put(data, remoteFileName, remoteTargetDirectory, fileMode);
+        else
+            scpClient.put(data, remoteFileName, remoteTargetDirectory);
+    }
+
     public static Pair<Boolean, String> sshExecute(String host, int port, String user, File pemKeyFile, String password, String command, Duration connectTimeout,
             Duration kexTimeout, Duration waitTime) throws Exception {
         return sshExecute(host, port, user, pemKeyFile, password, command, (int)connectTimeout.getMillis(), (int)kexTimeout.getMillis(), (int)waitTime.getMillis());
@@ -140,94 +151,157 @@ public class SshHelper {
         com.trilead.ssh2.Connection conn = null;
         com.trilead.ssh2.Session sess = null;
         try {
-            conn = new com.trilead.ssh2.Connection(host, port);
-            conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
+            conn = openConnection(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs);
+            sess = openConnectionSession(conn);
 
-            if (pemKeyFile == null) {
-                if (!conn.authenticateWithPassword(user, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
-                }
-            } else {
-                if (!conn.authenticateWithPublicKey(user, pemKeyFile, password)) {
-                    String msg = "Failed to authentication SSH user " + user + " on host " + host;
-                    s_logger.error(msg);
-                    throw new Exception(msg);
+            return execute(sess, command, waitResultTimeoutInMs);
+        } finally {
+            if (sess != null)
+                sess.close();
+
+            if (conn != null)
+                conn.close();
+        }
+    }
+
+    public static Pair<Boolean, String> sshExecute(SshConnectionPool pool, String host, int port, String user, File pemKeyFile, String password, String command,
+            Duration connectTimeout, Duration kexTimeout, Duration waitTime) throws Exception {
+        return sshExecute(pool, host, port, user, pemKeyFile, password, command, (int)connectTimeout.getMillis(), (int)kexTimeout.getMillis(), (int)waitTime.getMillis());
+    }
+
+    /**
+     * Same as {@link #sshExecute(String, int, String, File, String, String, int, int, int)}, but
+     * runs the command in a new session over a connection from the pool
+     */
+    public static Pair<Boolean, String> sshExecute(SshConnectionPool pool, String host, int port, String user, File pemKeyFile, String password, String command,
+            int connectTimeoutInMs, int kexTimeoutInMs, int waitResultTimeoutInMs) throws Exception {
+
+        long startTime = System.currentTimeMillis();
+        SshConnectionPool.PooledConnection pooled = pool.acquire(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs, true);
+        com.trilead.ssh2.Session sess = null;
+        boolean reusable = false;
+        try {
+            try {
+                sess = pool.openSession(pooled, connectTimeoutInMs);
+            } catch (IOException e) {
+                if (!pooled.isReused()) {
+                    throw e;
                 }
+                // the transport went away while the connection was idle, e.g. the router rebooted. The
+                // command did not run yet, so it is safe to try again on a new connection
+                s_logger.debug("Pooled SSH connection to " + host + " failed, retrying on a new connection: " + e.getMessage());
+                pool.release(pooled, false);
+                pooled = null;
+                pooled = pool.acquire(host, port, user, pemKeyFile, password, connectTimeoutInMs, kexTimeoutInMs, false);
+                sess = pool.openSession(pooled, connectTimeoutInMs);
             }
-            sess = openConnectionSession(conn);
 
-            sess.execCommand(command);
+            Pair<Boolean, String> result = execute(sess, command, waitResultTimeoutInMs);
+            reusable = true;
+            return result;
+        } finally {
+            if (sess != null)
+                sess.close();
 
-            InputStream stdout = sess.getStdout();
-            InputStream stderr = sess.getStderr();
+            if (pooled != null)
+                pool.release(pooled, reusable);
+            pool.recordExecution(System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * Opens a connection and authenticates with the key file, or with the password when there is
+     * no key file
+     */
+    protected static Connection openConnection(String host, int port, String user, File pemKeyFile, String password, int connectTimeoutInMs, int kexTimeoutInMs)
+            throws Exception {
+        Connection conn = new Connection(host, port);
+        boolean authenticated = false;
+        try {
+            conn.connect(null, connectTimeoutInMs, kexTimeoutInMs);
+
+            if (pemKeyFile == null) {
+                authenticated = conn.authenticateWithPassword(user, password);
+            } else {
+                authenticated = conn.authenticateWithPublicKey(user, pemKeyFile, password);
+            }
+            if (!authenticated) {
+                String msg = "Failed to authentication SSH user " + user + " on host " + host;
+                s_logger.error(msg);
+                throw new Exception(msg);
+            }
+            return conn;
+        } finally {
+            if (!authenticated) {
+                conn.close();
+            }
+        }
+    }
 
-            byte[] buffer = new byte[8192];
-            StringBuffer sbResult = new StringBuffer();
+    protected static Pair<Boolean, String> execute(Session sess, String command, int waitResultTimeoutInMs) throws Exception {
+        sess.execCommand(command);
 
-            int currentReadBytes = 0;
-            while (true) {
-                throwSshExceptionIfStdoutOrStdeerIsNull(stdout, stderr);
+        InputStream stdout = sess.getStdout();
+        InputStream stderr = sess.getStderr();
 
-                if ((stdout.available() == 0) && (stderr.available() == 0)) {
-                    int conditions = sess.waitForCondition(ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA | ChannelCondition.EOF | ChannelCondition.EXIT_STATUS,
-                            waitResultTimeoutInMs);
+        byte[] buffer = new byte[8192];
+        StringBuffer sbResult = new StringBuffer();
 
-                    throwSshExceptionIfConditionsTimeout(conditions);
+        int currentReadBytes = 0;
+        while (true) {
+            throwSshExceptionIfStdoutOrStdeerIsNull(stdout, stderr);
 
-                    if ((conditions & ChannelCondition.EXIT_STATUS) != 0) {
-                        break;
-                    }
+            if ((stdout.available() == 0) && (stderr.available() == 0)) {
+                int conditions = sess.waitForCondition(ChannelCondition.STDOUT_DATA | ChannelCondition.STDERR_DATA | ChannelCondition.EOF | ChannelCondition.EXIT_STATUS,
+                        waitResultTimeoutInMs);
 
-                    if (canEndTheSshConnection(waitResultTimeoutInMs, sess, conditions)) {
-                        break;
-                    }
+                throwSshExceptionIfConditionsTimeout(conditions);
 
+                if ((conditions & ChannelCondition.EXIT_STATUS) != 0) {
+                    break;
                 }
 
-                while (stdout.available() > 0) {
-                    currentReadBytes = stdout.read(buffer);
-                    sbResult.append(new String(buffer, 0, currentReadBytes));
+                if (canEndTheSshConnection(waitResultTimeoutInMs, sess, conditions)) {
+                    break;
                 }
 
-                while (stderr.available() > 0) {
-                    currentReadBytes = stderr.read(buffer);
-                    sbResult.append(new String(buffer, 0, currentReadBytes));
-                }
             }
 
-            String result = sbResult.toString();
-
-            if (StringUtils.isBlank(result)) {
-                try {
-                    result = IOUtils.toString(stdout, StandardCharsets.UTF_8);
-                }
-                catch (IOException e) {
-                    s_logger.error("Couldn't get content of input stream due to: " + e.getMessage());
-                    return new Pair<Boolean, String>(false, result);
-                }
+            while (stdout.available() > 0) {
+                currentReadBytes = stdout.read(buffer);
+                sbResult.append(new String(buffer, 0, currentReadBytes));
             }
 
-            if (sess.getExitStatus() == null) {
-                //Exit status is NOT available. Returning failure result.
-                s_logger.error(String.format("SSH execution of command %s has no exit status set. Result output: %s", command, result));
-                return new Pair<Boolean, String>(false, result);
+            while (stderr.available() > 0) {
+                currentReadBytes = stderr.read(buffer);
+                sbResult.append(new String(buffer, 0, currentReadBytes));
             }
+        }
+
+        String result = sbResult.toString();
 
-            if (sess.getExitStatus() != null && sess.getExitStatus().intValue() != 0) {
-                s_logger.error(String.format("SSH execution of command %s has an error status code in return. Result output: %s", command, result));
+        if (StringUtils.isBlank(result)) {
+            try {
+                result = IOUtils.toString(stdout, StandardCharsets.UTF_8);
+            }
+            catch (IOException e) {
+                s_logger.error("Couldn't get content of input stream due to: " + e.getMessage());
                 return new Pair<Boolean, String>(false, result);
             }
+        }
 
-            return new Pair<Boolean, String>(true, result);
-        } finally {
-            if (sess != null)
-                sess.close();
+        if (sess.getExitStatus() == null) {
+            //Exit status is NOT available. Returning failure result.
+            s_logger.error(String.format("SSH execution of command %s has no exit status set. Result output: %s", command, result));
+            return new Pair<Boolean, String>(false, result);
+        }
 
-            if (conn != null)
-                conn.close();
+        if (sess.getExitStatus() != null && sess.getExitStatus().intValue() != 0) {
+            s_logger.error(String.format("SSH execution of command %s has an error status code in return. Result output: %s", command, result));
+            return new Pair<Boolean, String>(false, result);
         }
+
+        return new Pair<Boolean, String>(true, result);
     }
 
 
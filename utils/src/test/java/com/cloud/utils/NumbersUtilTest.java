@@ -22,6 +22,7 @@ package com.cloud.utils;
 import static org.junit.Assert.assertEquals;
 
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 
@@ -44,4 +45,30 @@ public class NumbersUtilTest {
         assertEquals(257, NumbersUtil.bytesToLong(new byte[] {0, 0, 0, 0, 0, 0, 1, 1}));
     }
 
+    @Test
+    public void updateMax() throws InterruptedException {
+        final AtomicLong max = new AtomicLong();
+        NumbersUtil.updateMax(max, 5);
+        NumbersUtil.updateMax(max, 3);
+        assertEquals(5, max.get());
+
+        final int threadCount = 4;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int value = offset; value < 100000; value += threadCount) {
+                        NumbersUtil.updateMax(max, value);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(99999, max.get());
+    }
 }
@@ -0,0 +1,84 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.nio;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testAcquireRoundsUpToSizeClass() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer buffer = pool.acquire(100);
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(4096, buffer.capacity());
+
+        buffer = pool.acquire(16 * 1024 + 45);
+        Assert.assertTrue(buffer.isDirect());
+        Assert.assertEquals(32 * 1024, buffer.capacity());
+    }
+
+    @Test
+    public void testOversizedBuffersAreNotPooled() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer buffer = pool.acquire(100 * 1024);
+        Assert.assertFalse(buffer.isDirect());
+        pool.release(buffer);
+        Assert.assertNotSame(buffer, pool.acquire(100 * 1024));
+    }
+
+    @Test
+    public void testNoAllocationInSteadyState() {
+        BufferPool pool = new BufferPool(4);
+        ByteBuffer buffer = pool.acquire(18000);
+        buffer.putInt(42);
+        pool.release(buffer);
+        long allocated = pool.getAllocatedCount();
+
+        for (int i = 0; i < 1000; i++) {
+            ByteBuffer reused = pool.acquire(18000);
+            Assert.assertSame(buffer, reused);
+            Assert.assertEquals(0, reused.position());
+            Assert.assertEquals(reused.capacity(), reused.limit());
+            pool.release(reused);
+        }
+        Assert.assertEquals(allocated, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void testReleaseKeepsAtMostMaxFreeBuffers() {
+        BufferPool pool = new BufferPool(2);
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(4096);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        long allocated = pool.getAllocatedCount();
+        for (int i = 0; i < buffers.length; i++) {
+            pool.acquire(4096);
+        }
+        Assert.assertEquals(allocated + 1, pool.getAllocatedCount());
+    }
+}
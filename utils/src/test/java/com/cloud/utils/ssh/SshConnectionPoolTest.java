@@ -0,0 +1,239 @@
+//
+// Licensed to the Apache Software Foundation (ASF) under one
+// or more contributor license agreements.  See the NOTICE file
+// distributed with this work for additional information
+// regarding copyright ownership.  The ASF licenses this file
+// to you under the Apache License, Version 2.0 (the
+// "License"); you may not use this file except in compliance
+// with the License.  You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing,
+// software distributed under the License is distributed on an
+// "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+// KIND, either express or implied.  See the License for the
+// specific language governing permissions and limitations
+// under the License.
+//
+
+package com.cloud.utils.ssh;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.internal.util.reflection.Whitebox;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+
+public class SshConnectionPoolTest {
+
+    private SshConnectionPool pool;
+
+    @Before
+    public void setup() {
+        pool = new SshConnectionPool(2, 100000) {
+            @Override
+            protected Connection connect(ConnectionKey key, int connectTimeoutInMs, int kexTimeoutInMs) {
+                return Mockito.mock(Connection.class);
+            }
+        };
+    }
+
+    private SshConnectionPool.PooledConnection acquire(String host, boolean reuse) throws Exception {
+        return pool.acquire(host, 3922, "root", null, "password", 1000, 1000, reuse);
+    }
+
+    @Test
+    public void acquireReusesReleasedConnection() throws Exception {
+        SshConnectionPool.PooledConnection first = acquire("10.1.1.1", true);
+        Assert.assertFalse(first.isReused());
+        pool.release(first, true);
+
+        SshConnectionPool.PooledConnection second = acquire("10.1.1.1", true);
+        Assert.assertSame(first, second);
+        Assert.assertTrue(second.isReused());
+        pool.release(second, true);
+
+        Assert.assertEquals(1, pool.getHandshakeCount());
+        Assert.assertEquals(1, pool.getReuseCount());
+        Assert.assertEquals(1, pool.getOpenConnections());
+        Assert.assertEquals(0, pool.getActiveSessions());
+    }
+
+    @Test
+    public void acquireSharesConnectionUpToMaxSessions() throws Exception {
+        SshConnectionPool.PooledConnection first = acquire("10.1.1.1", true);
+        SshConnectionPool.PooledConnection second = acquire("10.1.1.1", true);
+        SshConnectionPool.PooledConnection third = acquire("10.1.1.1", true);
+
+        Assert.assertSame(first, second);
+        Assert.assertNotSame(first, third);
+        Assert.assertEquals(2, pool.getHandshakeCount());
+        Assert.assertEquals(3, pool.getActiveSessions());
+    }
+
+    @Test
+    public void acquireKeepsHostsApart() throws Exception {
+        SshConnectionPool.PooledConnection first = acquire("10.1.1.1", true);
+        pool.release(first, true);
+        SshConnectionPool.PooledConnection second = acquire("10.1.1.2", true);
+
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, pool.getOpenConnections());
+    }
+
+    @Test
+    public void releaseClosesBrokenConnection() throws Exception {
+        SshConnectionPool.PooledConnection pooled = acquire("10.1.1.1", true);
+        pool.release(pooled, false);
+
+        Mockito.verify(pooled.getConnection()).close();
+        Assert.assertEquals(0, pool.getOpenConnections());
+        Assert.assertEquals(1, pool.getBrokenCount());
+    }
+
+    @Test
+    public void acquireSkipsLostConnection() throws Exception {
+        SshConnectionPool.PooledConnection first = acquire("10.1.1.1", true);
+        pool.release(first, true);
+        first.connectionLost(new IOException("connection reset"));
+
+        SshConnectionPool.PooledConnection second = acquire("10.1.1.1", true);
+        Assert.assertNotSame(first, second);
+        Mockito.verify(first.getConnection()).close();
+        Assert.assertEquals(1, pool.getOpenConnections());
+    }
+
+    @Test
+    public void acquireWithoutReuseOpensNewConnection() throws Exception {
+        SshConnectionPool.PooledConnection first = acquire("10.1.1.1", true);
+        pool.release(first, true);
+
+        SshConnectionPool.PooledConnection second = acquire("10.1.1.1", false);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, pool.getHandshakeCount());
+    }
+
+    @Test
+    public void evictIdleConnectionsClosesOnlyIdleOnes() throws Exception {
+        SshConnectionPool idlePool = new SshConnectionPool(1, 0) {
+            @Override
+            protected Connection connect(ConnectionKey key, int connectTimeoutInMs, int kexTimeoutInMs) {
+                return Mockito.mock(Connection.class);
+            }
+        };
+        SshConnectionPool.PooledConnection idle = idlePool.acquire("10.1.1.1", 3922, "root", null, "password", 1000, 1000, true);
+        SshConnectionPool.PooledConnection busy = idlePool.acquire("10.1.1.1", 3922, "root", null, "password", 1000, 1000, true);
+        idlePool.release(idle, true);
+
+        idlePool.evictIdleConnections();
+
+        Mockito.verify(idle.getConnection()).close();
+        Mockito.verify(busy.getConnection(), Mockito.never()).close();
+        Assert.assertEquals(1, idlePool.getOpenConnections());
+        Assert.assertEquals(1, idlePool.getEvictedCount());
+        idlePool.shutdown();
+    }
+
+    @Test
+    public void recordExecutionTracksLatency() {
+        pool.recordExecution(10);
+        pool.recordExecution(30);
+
+        Assert.assertEquals(2, pool.getExecutionCount());
+        Assert.assertEquals(20, pool.getAverageExecutionLatency());
+        Assert.assertEquals(30, pool.getMaxExecutionLatency());
+
+        pool.resetStatistics();
+        Assert.assertEquals(0, pool.getExecutionCount());
+    }
+
+    @Test
+    public void openSessionClosesHalfOpenConnection() throws Exception {
+        final CountDownLatch closed = new CountDownLatch(1);
+        SshConnectionPool halfOpenPool = new SshConnectionPool(2, 100000) {
+            @Override
+            protected Connection connect(ConnectionKey key, int connectTimeoutInMs, int kexTimeoutInMs) {
+                Connection connection = Mockito.mock(Connection.class);
+                Mockito.doAnswer(new Answer<Void>() {
+                    @Override
+                    public Void answer(InvocationOnMock invocation) {
+                        closed.countDown();
+                        return null;
+                    }
+                }).when(connection).close();
+                return connection;
+            }
+
+            @Override
+            protected Session openChannel(Connection connection) throws IOException {
+                // the peer never confirms the channel, only closing the connection ends the wait
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                throw new IOException("connection closed");
+            }
+        };
+        SshConnectionPool.PooledConnection pooled = halfOpenPool.acquire("10.1.1.1", 3922, "root", null, "password", 1000, 1000, true);
+
+        long start = System.currentTimeMillis();
+        try {
+            halfOpenPool.openSession(pooled, 200);
+            Assert.fail("The channel should not have opened");
+        } catch (IOException e) {
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        halfOpenPool.release(pooled, true);
+
+        Assert.assertEquals(0, halfOpenPool.getOpenConnections());
+        Assert.assertEquals(1, halfOpenPool.getBrokenCount());
+        halfOpenPool.shutdown();
+    }
+
+    @Test
+    public void acquireChecksIdleConnectionBeforeReuse() throws Exception {
+        final Set<Connection> dead = new HashSet<Connection>();
+        SshConnectionPool checkingPool = new SshConnectionPool(2, 100000) {
+            @Override
+            protected Connection connect(ConnectionKey key, int connectTimeoutInMs, int kexTimeoutInMs) {
+                return Mockito.mock(Connection.class);
+            }
+
+            @Override
+            protected Session openChannel(Connection connection) throws IOException {
+                if (dead.contains(connection)) {
+                    throw new IOException("connection reset");
+                }
+                return Mockito.mock(Session.class);
+            }
+        };
+        SshConnectionPool.PooledConnection first = checkingPool.acquire("10.1.1.1", 3922, "root", null, "password", 1000, 1000, true);
+        checkingPool.release(first, true);
+
+        // recently released connections are handed out without a check
+        Assert.assertSame(first, checkingPool.acquire("10.1.1.1", 3922, "root", null, "password", 1000, 1000, true));
+        checkingPool.release(first, true);
+
+        Whitebox.setInternalState(first, "_lastReleased", System.currentTimeMillis() - SshConnectionPool.VALIDATE_AFTER_IDLE);
+        dead.add(first.getConnection());
+        SshConnectionPool.PooledConnection second = checkingPool.acquire("10.1.1.1", 3922, "root", null, "password", 1000, 1000, true);
+
+        Assert.assertNotSame(first, second);
+        Mockito.verify(first.getConnection()).close();
+        Assert.assertEquals(1, checkingPool.getOpenConnections());
+        Assert.assertEquals(2, checkingPool.getHandshakeCount());
+        checkingPool.shutdown();
+    }
+}